@@ -33,7 +33,10 @@ import java.util.Arrays;
 public class ActivationMaskedSoftmax {
 
     public INDArray getActivation(INDArray in, INDArray mask) {
-        if(mask == null){
+        if(mask == null && in.columns() == 1){
+            // A single column would be softmaxed as one vector across the rows
+            return in.assign(1.0);
+        }else if(mask == null){
             return Nd4j.getExecutioner().execAndReturn(new OldSoftMax(in));
         }else {
             assertShape(in, mask, null);
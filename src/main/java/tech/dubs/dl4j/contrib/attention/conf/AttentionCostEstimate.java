@@ -0,0 +1,80 @@
+package tech.dubs.dl4j.contrib.attention.conf;
+
+/**
+ * Static estimate of the cost of one forward and one backward pass of an attention layer, see getCostEstimate of the
+ * attention layer configurations.
+ *
+ *  - Flops: floating point operations, multiply and add counted separately, elementwise functions as one per element
+ *  - Bytes: bytes read and written by all ops, in the current data type, ignoring caches
+ *  - Ops: native op invocations, as counted by OpProfiler. BLAS calls are not counted there, and neither here
+ *  - Peak working memory: bytes of the largest set of working arrays alive at the same time, without the input,
+ *    output and parameters
+ *
+ * The backward pass is the backpropGradient call only, after a training forward pass. Inference estimates have no
+ * backward pass.
+ *
+ * @author Paul Dubs
+ */
+public class AttentionCostEstimate {
+    private final long forwardFlops;
+    private final long forwardBytes;
+    private final long forwardOps;
+    private final long backwardFlops;
+    private final long backwardBytes;
+    private final long backwardOps;
+    private final long peakWorkingMemory;
+
+    public AttentionCostEstimate(long forwardFlops, long forwardBytes, long forwardOps,
+                                 long backwardFlops, long backwardBytes, long backwardOps, long peakWorkingMemory) {
+        this.forwardFlops = forwardFlops;
+        this.forwardBytes = forwardBytes;
+        this.forwardOps = forwardOps;
+        this.backwardFlops = backwardFlops;
+        this.backwardBytes = backwardBytes;
+        this.backwardOps = backwardOps;
+        this.peakWorkingMemory = peakWorkingMemory;
+    }
+
+    public long getForwardFlops() {
+        return forwardFlops;
+    }
+
+    public long getForwardBytes() {
+        return forwardBytes;
+    }
+
+    public long getForwardOps() {
+        return forwardOps;
+    }
+
+    public long getBackwardFlops() {
+        return backwardFlops;
+    }
+
+    public long getBackwardBytes() {
+        return backwardBytes;
+    }
+
+    public long getBackwardOps() {
+        return backwardOps;
+    }
+
+    public long getPeakWorkingMemory() {
+        return peakWorkingMemory;
+    }
+
+    public long getTotalFlops() {
+        return forwardFlops + backwardFlops;
+    }
+
+    public long getTotalBytes() {
+        return forwardBytes + backwardBytes;
+    }
+
+    @Override
+    public String toString() {
+        return "AttentionCostEstimate(forwardFlops=" + forwardFlops + ", forwardBytes=" + forwardBytes + ", forwardOps=" + forwardOps
+                + ", backwardFlops=" + backwardFlops + ", backwardBytes=" + backwardBytes + ", backwardOps=" + backwardOps
+                + ", peakWorkingMemory=" + peakWorkingMemory + ")";
+    }
+}
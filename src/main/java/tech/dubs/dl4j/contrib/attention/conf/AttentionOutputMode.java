@@ -0,0 +1,21 @@
+package tech.dubs.dl4j.contrib.attention.conf;
+
+/**
+ * How the outputs of the attention heads of a SelfAttentionLayer or TimestepAttentionLayer are combined into the
+ * output of the layer. Every head outputs nIn features.
+ *
+ *  - CONCAT: all heads side by side, head h as the features [h * nIn, (h + 1) * nIn), nIn * nOut features in total
+ *  - MEAN: the average over all heads, nIn features
+ *  - PROJECTION: the concatenated heads multiplied with a learned [nIn * nOut, projectionSize] weight matrix,
+ *    projectionSize features
+ *
+ * The reduction is applied per query while aggregating the values, so the concatenated output of all heads is never
+ * stored for MEAN and PROJECTION.
+ *
+ * @author Paul Dubs
+ */
+public enum AttentionOutputMode {
+    CONCAT,
+    MEAN,
+    PROJECTION
+}
@@ -0,0 +1,449 @@
+package tech.dubs.dl4j.contrib.attention.conf;
+
+import org.deeplearning4j.nn.api.TrainingConfig;
+import org.deeplearning4j.nn.conf.GradientNormalization;
+import org.deeplearning4j.nn.conf.distribution.Distribution;
+import org.deeplearning4j.nn.conf.graph.GraphVertex;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.inputs.InvalidInputTypeException;
+import org.deeplearning4j.nn.conf.memory.LayerMemoryReport;
+import org.deeplearning4j.nn.conf.memory.MemoryReport;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationTanH;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.Sgd;
+import tech.dubs.dl4j.contrib.attention.nn.params.CrossAttentionParamInitializer;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Encoder-decoder attention for a ComputationGraph. The first input provides the queries (e.g. the decoder), the
+ * second input the keys and values (e.g. the encoder output). The output has the time series length of the queries
+ * and nIn * nOut features, where nIn is the size of the second input and nOut the number of attention heads.
+ *
+ * The graph builder only applies the global configuration to layers, not to graph vertices. Activation, weight init,
+ * updater, regularization and gradient normalization of this vertex are set on its builder, see there for defaults.
+ *
+ * @author Paul Dubs
+ */
+public class CrossAttentionVertex extends GraphVertex implements TrainingConfig {
+    public static final String WEIGHT_KEY = CrossAttentionParamInitializer.WEIGHT_KEY;
+    public static final String QUERY_WEIGHT_KEY = CrossAttentionParamInitializer.QUERY_WEIGHT_KEY;
+    public static final String BIAS_KEY = CrossAttentionParamInitializer.BIAS_KEY;
+
+    private String name;
+    private long nInQueries;
+    private long nIn;
+    private long nOut;
+    private IActivation activation;
+    private WeightInit weightInit;
+    private Distribution dist;
+    private IUpdater updater;
+    private IUpdater biasUpdater;
+    private double l1;
+    private double l2;
+    private double l1Bias;
+    private double l2Bias;
+    private GradientNormalization gradientNormalization;
+    private double gradientNormalizationThreshold;
+
+    // No-Op Constructor for Deserialization
+    public CrossAttentionVertex() { }
+
+    private CrossAttentionVertex(Builder builder) {
+        this.nInQueries = builder.nInQueries;
+        this.nIn = builder.nIn;
+        this.nOut = builder.nOut;
+        this.activation = builder.activation;
+        this.weightInit = builder.weightInit;
+        this.dist = builder.dist;
+        this.updater = builder.updater;
+        this.biasUpdater = builder.biasUpdater;
+        this.l1 = builder.l1;
+        this.l2 = builder.l2;
+        this.l1Bias = builder.l1Bias;
+        this.l2Bias = builder.l2Bias;
+        this.gradientNormalization = builder.gradientNormalization;
+        this.gradientNormalizationThreshold = builder.gradientNormalizationThreshold;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getNInQueries() {
+        return nInQueries;
+    }
+
+    public void setNInQueries(long nInQueries) {
+        this.nInQueries = nInQueries;
+    }
+
+    public long getNIn() {
+        return nIn;
+    }
+
+    public void setNIn(long nIn) {
+        this.nIn = nIn;
+    }
+
+    public long getNOut() {
+        return nOut;
+    }
+
+    public void setNOut(long nOut) {
+        this.nOut = nOut;
+    }
+
+    public IActivation getActivation() {
+        return activation;
+    }
+
+    public void setActivation(IActivation activation) {
+        this.activation = activation;
+    }
+
+    public WeightInit getWeightInit() {
+        return weightInit;
+    }
+
+    public void setWeightInit(WeightInit weightInit) {
+        this.weightInit = weightInit;
+    }
+
+    public Distribution getDist() {
+        return dist;
+    }
+
+    public void setDist(Distribution dist) {
+        this.dist = dist;
+    }
+
+    public IUpdater getUpdater() {
+        return updater;
+    }
+
+    public void setUpdater(IUpdater updater) {
+        this.updater = updater;
+    }
+
+    public IUpdater getBiasUpdater() {
+        return biasUpdater;
+    }
+
+    public void setBiasUpdater(IUpdater biasUpdater) {
+        this.biasUpdater = biasUpdater;
+    }
+
+    public double getL1() {
+        return l1;
+    }
+
+    public void setL1(double l1) {
+        this.l1 = l1;
+    }
+
+    public double getL2() {
+        return l2;
+    }
+
+    public void setL2(double l2) {
+        this.l2 = l2;
+    }
+
+    public double getL1Bias() {
+        return l1Bias;
+    }
+
+    public void setL1Bias(double l1Bias) {
+        this.l1Bias = l1Bias;
+    }
+
+    public double getL2Bias() {
+        return l2Bias;
+    }
+
+    public void setL2Bias(double l2Bias) {
+        this.l2Bias = l2Bias;
+    }
+
+    @Override
+    public GradientNormalization getGradientNormalization() {
+        return gradientNormalization;
+    }
+
+    public void setGradientNormalization(GradientNormalization gradientNormalization) {
+        this.gradientNormalization = gradientNormalization;
+    }
+
+    @Override
+    public double getGradientNormalizationThreshold() {
+        return gradientNormalizationThreshold;
+    }
+
+    public void setGradientNormalizationThreshold(double gradientNormalizationThreshold) {
+        this.gradientNormalizationThreshold = gradientNormalizationThreshold;
+    }
+
+    @Override
+    public int numParams(boolean backprop) {
+        return (int) CrossAttentionParamInitializer.getInstance().numParams(this);
+    }
+
+    @Override
+    public int minVertexInputs() {
+        return 2;
+    }
+
+    @Override
+    public int maxVertexInputs() {
+        return 2;
+    }
+
+    @Override
+    public org.deeplearning4j.nn.graph.vertex.GraphVertex instantiate(ComputationGraph graph, String name, int idx, INDArray paramsView, boolean initializeParams) {
+        setName(name);
+        return new tech.dubs.dl4j.contrib.attention.nn.CrossAttentionVertex(this, graph, name, idx, paramsView, initializeParams);
+    }
+
+    @Override
+    public InputType getOutputType(int layerIndex, InputType... vertexInputs) throws InvalidInputTypeException {
+        if (vertexInputs.length != 2 || vertexInputs[0].getType() != InputType.Type.RNN || vertexInputs[1].getType() != InputType.Type.RNN) {
+            throw new InvalidInputTypeException("Invalid input for CrossAttentionVertex (vertex name = \"" + name
+                    + "\"): expect two RNN inputs (queries, keys). Got: " + Arrays.toString(vertexInputs));
+        }
+        final InputType.InputTypeRecurrent queries = (InputType.InputTypeRecurrent) vertexInputs[0];
+        final InputType.InputTypeRecurrent keys = (InputType.InputTypeRecurrent) vertexInputs[1];
+
+        if (nInQueries <= 0) nInQueries = queries.getSize();
+        if (nIn <= 0) nIn = keys.getSize();
+
+        return InputType.recurrent(nIn * nOut, queries.getTimeSeriesLength());
+    }
+
+    @Override
+    public MemoryReport getMemoryReport(InputType... inputTypes) {
+        final long numParams = numParams(true);
+        final long updaterStateSize = updater == null ? 0 : updater.stateSize(numParams);
+        return new LayerMemoryReport.Builder(name, CrossAttentionVertex.class, inputTypes[0], getOutputType(-1, inputTypes))
+                .standardMemory(numParams, updaterStateSize)
+                .workingMemory(0, 0, 0, 0)
+                .cacheMemory(0, 0)
+                .build();
+    }
+
+    @Override
+    public String getLayerName() {
+        return name;
+    }
+
+    @Override
+    public boolean isPretrain() {
+        return false;
+    }
+
+    @Override
+    public void setPretrain(boolean pretrain) {
+        // No pretraining for attention
+    }
+
+    @Override
+    public boolean isPretrainParam(String paramName) {
+        return false;
+    }
+
+    @Override
+    public double getL1ByParam(String paramName) {
+        return CrossAttentionParamInitializer.getInstance().isBiasParam(paramName) ? l1Bias : l1;
+    }
+
+    @Override
+    public double getL2ByParam(String paramName) {
+        return CrossAttentionParamInitializer.getInstance().isBiasParam(paramName) ? l2Bias : l2;
+    }
+
+    @Override
+    public IUpdater getUpdaterByParam(String paramName) {
+        if (biasUpdater != null && CrossAttentionParamInitializer.getInstance().isBiasParam(paramName)) {
+            return biasUpdater;
+        }
+        return updater;
+    }
+
+    @Override
+    public CrossAttentionVertex clone() {
+        final CrossAttentionVertex clone = new CrossAttentionVertex();
+        clone.name = name;
+        clone.nInQueries = nInQueries;
+        clone.nIn = nIn;
+        clone.nOut = nOut;
+        clone.activation = activation;
+        clone.weightInit = weightInit;
+        clone.dist = dist == null ? null : dist.clone();
+        clone.updater = updater == null ? null : updater.clone();
+        clone.biasUpdater = biasUpdater == null ? null : biasUpdater.clone();
+        clone.l1 = l1;
+        clone.l2 = l2;
+        clone.l1Bias = l1Bias;
+        clone.l2Bias = l2Bias;
+        clone.gradientNormalization = gradientNormalization;
+        clone.gradientNormalizationThreshold = gradientNormalizationThreshold;
+        return clone;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CrossAttentionVertex)) {
+            return false;
+        }
+        final CrossAttentionVertex other = (CrossAttentionVertex) o;
+        return nInQueries == other.nInQueries && nIn == other.nIn && nOut == other.nOut
+                && Objects.equals(activation, other.activation) && weightInit == other.weightInit
+                && Objects.equals(dist, other.dist) && Objects.equals(updater, other.updater)
+                && Objects.equals(biasUpdater, other.biasUpdater) && l1 == other.l1 && l2 == other.l2
+                && l1Bias == other.l1Bias && l2Bias == other.l2Bias && gradientNormalization == other.gradientNormalization
+                && gradientNormalizationThreshold == other.gradientNormalizationThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(nInQueries, nIn, nOut, activation, weightInit, dist, updater, biasUpdater, l1, l2, l1Bias, l2Bias,
+                gradientNormalization, gradientNormalizationThreshold);
+    }
+
+    @Override
+    public String toString() {
+        return "CrossAttentionVertex(nInQueries=" + nInQueries + ", nIn=" + nIn + ", nOut=" + nOut + ")";
+    }
+
+    public static class Builder {
+        private long nInQueries;
+        private long nIn;
+        private long nOut;
+        private IActivation activation = new ActivationTanH();
+        private WeightInit weightInit = WeightInit.XAVIER;
+        private Distribution dist;
+        private IUpdater updater = new Sgd();
+        private IUpdater biasUpdater;
+        private double l1;
+        private double l2;
+        private double l1Bias;
+        private double l2Bias;
+        private GradientNormalization gradientNormalization = GradientNormalization.None;
+        private double gradientNormalizationThreshold = 1.0;
+
+        /**
+         * Size of the queries (first input). Inferred from the input types, if not set.
+         */
+        public Builder nInQueries(long nInQueries) {
+            this.nInQueries = nInQueries;
+            return this;
+        }
+
+        /**
+         * Size of the keys and values (second input). Inferred from the input types, if not set.
+         */
+        public Builder nIn(long nIn) {
+            this.nIn = nIn;
+            return this;
+        }
+
+        /**
+         * Number of attention heads.
+         */
+        public Builder nOut(long nOut) {
+            this.nOut = nOut;
+            return this;
+        }
+
+        /**
+         * Activation of the attention scores, tanh by default.
+         */
+        public Builder activation(IActivation activation) {
+            this.activation = activation;
+            return this;
+        }
+
+        public Builder activation(org.nd4j.linalg.activations.Activation activation) {
+            return activation(activation.getActivationFunction());
+        }
+
+        /**
+         * Weight init of W and Q, XAVIER by default.
+         */
+        public Builder weightInit(WeightInit weightInit) {
+            this.weightInit = weightInit;
+            return this;
+        }
+
+        public Builder dist(Distribution dist) {
+            this.dist = dist;
+            return this;
+        }
+
+        /**
+         * Updater of the parameters. The default is Sgd with its default learning rate, the same default as for
+         * layers, but the updater of the global configuration is not applied to this vertex.
+         */
+        public Builder updater(IUpdater updater) {
+            this.updater = updater;
+            return this;
+        }
+
+        /**
+         * Updater of the bias, the updater of the weights if not set.
+         */
+        public Builder biasUpdater(IUpdater biasUpdater) {
+            this.biasUpdater = biasUpdater;
+            return this;
+        }
+
+        public Builder l1(double l1) {
+            this.l1 = l1;
+            return this;
+        }
+
+        public Builder l2(double l2) {
+            this.l2 = l2;
+            return this;
+        }
+
+        public Builder l1Bias(double l1Bias) {
+            this.l1Bias = l1Bias;
+            return this;
+        }
+
+        public Builder l2Bias(double l2Bias) {
+            this.l2Bias = l2Bias;
+            return this;
+        }
+
+        public Builder gradientNormalization(GradientNormalization gradientNormalization) {
+            this.gradientNormalization = gradientNormalization;
+            return this;
+        }
+
+        public Builder gradientNormalizationThreshold(double gradientNormalizationThreshold) {
+            this.gradientNormalizationThreshold = gradientNormalizationThreshold;
+            return this;
+        }
+
+        public CrossAttentionVertex build() {
+            if (nOut <= 0) {
+                throw new IllegalStateException("nOut (number of attention heads) must be positive, but got " + nOut);
+            }
+            if (updater == null) {
+                throw new IllegalStateException("updater must be set, use NoOp for fixed parameters");
+            }
+            return new CrossAttentionVertex(this);
+        }
+    }
+}
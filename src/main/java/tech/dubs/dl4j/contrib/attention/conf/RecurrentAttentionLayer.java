@@ -8,6 +8,9 @@ import org.deeplearning4j.nn.conf.layers.BaseRecurrentLayer;
 import org.deeplearning4j.nn.conf.memory.LayerMemoryReport;
 import org.deeplearning4j.optimize.api.TrainingListener;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.NoOp;
+import tech.dubs.dl4j.contrib.attention.nn.AttentionCostModel;
 import tech.dubs.dl4j.contrib.attention.nn.params.RecurrentQueryAttentionParamInitializer;
 
 import java.util.Collection;
@@ -19,16 +22,62 @@ import java.util.Map;
  * @author Paul Dubs
  */
 public class RecurrentAttentionLayer extends BaseRecurrentLayer {
+    private boolean frozenParams;
+    private boolean skipInputGradients;
+    private boolean approximateScoring;
+    private long smallShapeThreshold;
+
     // No-Op Constructor for Deserialization
     public RecurrentAttentionLayer() { }
 
     private RecurrentAttentionLayer(Builder builder) {
         super(builder);
+        this.frozenParams = builder.frozenParams;
+        this.skipInputGradients = builder.skipInputGradients;
+        this.approximateScoring = builder.approximateScoring;
+        this.smallShapeThreshold = builder.smallShapeThreshold;
+    }
+
+    public boolean isFrozenParams() {
+        return frozenParams;
+    }
+
+    public void setFrozenParams(boolean frozenParams) {
+        this.frozenParams = frozenParams;
+    }
+
+    public boolean isSkipInputGradients() {
+        return skipInputGradients;
+    }
+
+    public void setSkipInputGradients(boolean skipInputGradients) {
+        this.skipInputGradients = skipInputGradients;
+    }
+
+    public boolean isApproximateScoring() {
+        return approximateScoring;
+    }
+
+    public void setApproximateScoring(boolean approximateScoring) {
+        this.approximateScoring = approximateScoring;
+    }
+
+    public long getSmallShapeThreshold() {
+        return smallShapeThreshold;
+    }
+
+    public void setSmallShapeThreshold(long smallShapeThreshold) {
+        this.smallShapeThreshold = smallShapeThreshold;
     }
 
     @Override
     public Layer instantiate(NeuralNetConfiguration conf, Collection<TrainingListener> iterationListeners,
                              int layerIndex, INDArray layerParamsView, boolean initializeParams) {
+        // A ComputationGraph instantiates its layers without listeners, numbered among all of its vertices
+        if (skipInputGradients && layerIndex > 0 && iterationListeners != null) {
+            throw new IllegalStateException("skipInputGradients is only supported on the first layer of a network, but it is set on layer "
+                    + layerIndex + " (layer name = \"" + getLayerName() + "\"), whose input needs an epsilon");
+        }
 
         tech.dubs.dl4j.contrib.attention.nn.RecurrentAttentionLayer layer = new tech.dubs.dl4j.contrib.attention.nn.RecurrentAttentionLayer(conf);
         layer.setListeners(iterationListeners);             //Set the iteration listeners, if any
@@ -49,7 +98,9 @@ public class RecurrentAttentionLayer extends BaseRecurrentLayer {
 
     @Override
     public double getL1ByParam(String paramName) {
-        if(initializer().isWeightParam(this, paramName)){
+        if(frozenParams){
+            return 0.0;
+        }else if(initializer().isWeightParam(this, paramName)){
             return l1;
         }else if(initializer().isBiasParam(this, paramName)){
             return l1Bias;
@@ -60,7 +111,9 @@ public class RecurrentAttentionLayer extends BaseRecurrentLayer {
 
     @Override
     public double getL2ByParam(String paramName) {
-        if(initializer().isWeightParam(this, paramName)){
+        if(frozenParams){
+            return 0.0;
+        }else if(initializer().isWeightParam(this, paramName)){
             return l2;
         }else if(initializer().isBiasParam(this, paramName)){
             return l2Bias;
@@ -69,6 +122,11 @@ public class RecurrentAttentionLayer extends BaseRecurrentLayer {
         throw new IllegalArgumentException("Unknown parameter name: \"" + paramName + "\"");
     }
 
+    @Override
+    public IUpdater getUpdaterByParam(String paramName) {
+        return frozenParams ? new NoOp() : super.getUpdaterByParam(paramName);
+    }
+
 
     @Override
     public LayerMemoryReport getMemoryReport(InputType inputType) {
@@ -76,7 +134,83 @@ public class RecurrentAttentionLayer extends BaseRecurrentLayer {
     }
 
 
+    /**
+     * Estimated FLOPs, bytes moved, native op invocations and peak working memory of this layer for minibatch examples
+     * of the given input type, see AttentionCostEstimate. maskDensity is the fraction of unmasked timesteps, 1.0 for
+     * no mask. Estimates for training include the backward pass.
+     */
+    public AttentionCostEstimate getCostEstimate(InputType inputType, long minibatch, double maskDensity, boolean training) {
+        AttentionCostModel.checkArguments(inputType, minibatch, maskDensity);
+        final long tsLength = ((InputType.InputTypeRecurrent) inputType).getTimeSeriesLength();
+        return AttentionCostModel.recurrentAttention(minibatch, tsLength, nIn, nOut, maskDensity, training, getActivationFn(), smallShapeThreshold);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RecurrentAttentionLayer && super.equals(o) && frozenParams == ((RecurrentAttentionLayer) o).frozenParams
+                && skipInputGradients == ((RecurrentAttentionLayer) o).skipInputGradients
+                && approximateScoring == ((RecurrentAttentionLayer) o).approximateScoring
+                && smallShapeThreshold == ((RecurrentAttentionLayer) o).smallShapeThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * (31 * (31 * super.hashCode() + (frozenParams ? 1 : 0)) + (skipInputGradients ? 1 : 0)) + (approximateScoring ? 1 : 0)) + Long.hashCode(smallShapeThreshold);
+    }
+
     public static class Builder extends BaseRecurrentLayer.Builder<Builder> {
+        private boolean frozenParams;
+        private boolean skipInputGradients;
+        private boolean approximateScoring;
+        private long smallShapeThreshold;
+
+        /**
+         * Do not train the parameters of this layer, e.g. to fine tune the layers above it: backprop only computes
+         * the epsilon for the input and skips all parameter gradient work, and the parameters get no updates or
+         * regularization. Use this instead of FrozenLayer to keep the backprop into the layers below, or inside
+         * FrozenLayerWithBackprop. A zero learning rate for all parameters skips the parameter gradients as well.
+         */
+        public Builder frozenParams(boolean frozenParams) {
+            this.frozenParams = frozenParams;
+            return this;
+        }
+
+        /**
+         * Do not compute the epsilon for the input in backprop, for a layer that sits directly on the network input,
+         * where the epsilon would be thrown away: all key, value and query gradient work and the epsilon array are
+         * skipped, and backprop returns a null epsilon. Only use this for the first layer of a network, instantiating
+         * it on any other layer of a MultiLayerNetwork fails. In a ComputationGraph, only use this for a layer vertex
+         * fed by a network input, that is not checked.
+         */
+        public Builder skipInputGradients(boolean skipInputGradients) {
+            this.skipInputGradients = skipInputGradients;
+            return this;
+        }
+
+        /**
+         * Use fast approximations of tanh and exp for the attention weights in inference (see ApproximateScoring), within
+         * a relative error of 1e-6 of the exact weights. Training, backprop and top-k attention stay exact. Disabled by
+         * default.
+         */
+        public Builder approximateScoring(boolean approximateScoring) {
+            this.approximateScoring = approximateScoring;
+            return this;
+        }
+
+        /**
+         * Run attention with at most this many attentionHeads * timesteps * widest input in plain Java loops instead
+         * of native ops (see SmallAttentionKernel), where the dispatch of every op costs more than its arithmetic. The
+         * kernel computes in double, so float results differ by rounding from those of the native ops. Top-k attention
+         * and the PROJECTION output mode always use native ops. Defaults to 0, which disables the kernel,
+         * SmallAttentionKernel.SUGGESTED_THRESHOLD is a calibrated value to opt in with.
+         */
+        public Builder smallShapeThreshold(long smallShapeThreshold) {
+            if (smallShapeThreshold < 0) {
+                throw new IllegalStateException("smallShapeThreshold must not be negative, but got " + smallShapeThreshold);
+            }
+            this.smallShapeThreshold = smallShapeThreshold;
+            return this;
+        }
 
         @Override
         @SuppressWarnings("unchecked")  //To stop warnings about unchecked cast. Not required.
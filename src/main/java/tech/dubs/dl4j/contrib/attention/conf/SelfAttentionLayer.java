@@ -11,6 +11,9 @@ import org.deeplearning4j.nn.conf.memory.LayerMemoryReport;
 import org.deeplearning4j.nn.conf.memory.MemoryReport;
 import org.deeplearning4j.optimize.api.TrainingListener;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.NoOp;
+import tech.dubs.dl4j.contrib.attention.nn.AttentionCostModel;
 import tech.dubs.dl4j.contrib.attention.nn.params.SelfAttentionParamInitializer;
 
 import java.util.Collection;
@@ -26,16 +29,122 @@ import java.util.Map;
  * @author Paul Dubs
  */
 public class SelfAttentionLayer extends FeedForwardLayer {
+    private int topK;
+    private AttentionOutputMode outputMode = AttentionOutputMode.CONCAT;
+    private int projectionSize;
+    private int inferenceCacheSize;
+    private long inferenceCacheBytes;
+    private long inferenceCacheTtl;
+    private boolean frozenParams;
+    private boolean skipInputGradients;
+    private boolean approximateScoring;
+    private long smallShapeThreshold;
+
     // No-Op Constructor for Deserialization
     public SelfAttentionLayer() { }
 
     private SelfAttentionLayer(Builder builder) {
         super(builder);
+        this.topK = builder.topK;
+        this.outputMode = builder.outputMode;
+        this.projectionSize = builder.projectionSize;
+        this.inferenceCacheSize = builder.inferenceCacheSize;
+        this.inferenceCacheBytes = builder.inferenceCacheBytes;
+        this.inferenceCacheTtl = builder.inferenceCacheTtl;
+        this.frozenParams = builder.frozenParams;
+        this.skipInputGradients = builder.skipInputGradients;
+        this.approximateScoring = builder.approximateScoring;
+        this.smallShapeThreshold = builder.smallShapeThreshold;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public void setTopK(int topK) {
+        this.topK = topK;
+    }
+
+    public AttentionOutputMode getOutputMode() {
+        return outputMode;
+    }
+
+    public void setOutputMode(AttentionOutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    public int getProjectionSize() {
+        return projectionSize;
+    }
+
+    public void setProjectionSize(int projectionSize) {
+        this.projectionSize = projectionSize;
+    }
+
+    public int getInferenceCacheSize() {
+        return inferenceCacheSize;
+    }
+
+    public void setInferenceCacheSize(int inferenceCacheSize) {
+        this.inferenceCacheSize = inferenceCacheSize;
+    }
+
+    public long getInferenceCacheBytes() {
+        return inferenceCacheBytes;
+    }
+
+    public void setInferenceCacheBytes(long inferenceCacheBytes) {
+        this.inferenceCacheBytes = inferenceCacheBytes;
+    }
+
+    public long getInferenceCacheTtl() {
+        return inferenceCacheTtl;
+    }
+
+    public void setInferenceCacheTtl(long inferenceCacheTtl) {
+        this.inferenceCacheTtl = inferenceCacheTtl;
+    }
+
+    public boolean isFrozenParams() {
+        return frozenParams;
+    }
+
+    public void setFrozenParams(boolean frozenParams) {
+        this.frozenParams = frozenParams;
+    }
+
+    public boolean isSkipInputGradients() {
+        return skipInputGradients;
+    }
+
+    public void setSkipInputGradients(boolean skipInputGradients) {
+        this.skipInputGradients = skipInputGradients;
+    }
+
+    public boolean isApproximateScoring() {
+        return approximateScoring;
+    }
+
+    public void setApproximateScoring(boolean approximateScoring) {
+        this.approximateScoring = approximateScoring;
+    }
+
+    public long getSmallShapeThreshold() {
+        return smallShapeThreshold;
+    }
+
+    public void setSmallShapeThreshold(long smallShapeThreshold) {
+        this.smallShapeThreshold = smallShapeThreshold;
     }
 
     @Override
     public Layer instantiate(NeuralNetConfiguration conf, Collection<TrainingListener> iterationListeners,
                              int layerIndex, INDArray layerParamsView, boolean initializeParams) {
+        // A ComputationGraph instantiates its layers without listeners, numbered among all of its vertices
+        if (skipInputGradients && layerIndex > 0 && iterationListeners != null) {
+            throw new IllegalStateException("skipInputGradients is only supported on the first layer of a network, but it is set on layer "
+                    + layerIndex + " (layer name = \"" + getLayerName() + "\"), whose input needs an epsilon");
+        }
 
         tech.dubs.dl4j.contrib.attention.nn.SelfAttentionLayer layer = new tech.dubs.dl4j.contrib.attention.nn.SelfAttentionLayer(conf);
         layer.setListeners(iterationListeners);             //Set the iteration listeners, if any
@@ -57,7 +166,9 @@ public class SelfAttentionLayer extends FeedForwardLayer {
 
     @Override
     public double getL1ByParam(String paramName) {
-        if(initializer().isWeightParam(this, paramName)){
+        if(frozenParams){
+            return 0.0;
+        }else if(initializer().isWeightParam(this, paramName)){
             return l1;
         }else if(initializer().isBiasParam(this, paramName)){
             return l1Bias;
@@ -68,7 +179,9 @@ public class SelfAttentionLayer extends FeedForwardLayer {
 
     @Override
     public double getL2ByParam(String paramName) {
-        if(initializer().isWeightParam(this, paramName)){
+        if(frozenParams){
+            return 0.0;
+        }else if(initializer().isWeightParam(this, paramName)){
             return l2;
         }else if(initializer().isBiasParam(this, paramName)){
             return l2Bias;
@@ -77,6 +190,11 @@ public class SelfAttentionLayer extends FeedForwardLayer {
         throw new IllegalArgumentException("Unknown parameter name: \"" + paramName + "\"");
     }
 
+    @Override
+    public IUpdater getUpdaterByParam(String paramName) {
+        return frozenParams ? new NoOp() : super.getUpdaterByParam(paramName);
+    }
+
     @Override
     public InputType getOutputType(int layerIndex, InputType inputType) {
         if (inputType == null || inputType.getType() != InputType.Type.RNN) {
@@ -85,7 +203,21 @@ public class SelfAttentionLayer extends FeedForwardLayer {
                 + inputType);
         }
 
-        return InputType.feedForward(nIn * nOut);
+        return InputType.feedForward(outputSize());
+    }
+
+    /*
+     * Features per timestep of the output: all heads, one head or the projection
+     */
+    private long outputSize() {
+        switch (outputMode) {
+            case MEAN:
+                return nIn;
+            case PROJECTION:
+                return projectionSize;
+            default:
+                return nIn * nOut;
+        }
     }
 
     @Override
@@ -133,10 +265,160 @@ public class SelfAttentionLayer extends FeedForwardLayer {
     }
 
 
+    /**
+     * Estimated FLOPs, bytes moved, native op invocations and peak working memory of this layer for minibatch examples
+     * of the given input type, see AttentionCostEstimate. maskDensity is the fraction of unmasked timesteps, 1.0 for
+     * no mask. Estimates for training include the backward pass.
+     */
+    public AttentionCostEstimate getCostEstimate(InputType inputType, long minibatch, double maskDensity, boolean training) {
+        AttentionCostModel.checkArguments(inputType, minibatch, maskDensity);
+        final long tsLength = ((InputType.InputTypeRecurrent) inputType).getTimeSeriesLength();
+        return AttentionCostModel.selfAttention(minibatch, tsLength, nIn, nOut, topK, outputMode, projectionSize, maskDensity, training,
+                getActivationFn(), smallShapeThreshold);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof SelfAttentionLayer && super.equals(o) && topK == ((SelfAttentionLayer) o).topK
+                && outputMode == ((SelfAttentionLayer) o).outputMode && projectionSize == ((SelfAttentionLayer) o).projectionSize
+                && inferenceCacheSize == ((SelfAttentionLayer) o).inferenceCacheSize && inferenceCacheBytes == ((SelfAttentionLayer) o).inferenceCacheBytes
+                && inferenceCacheTtl == ((SelfAttentionLayer) o).inferenceCacheTtl && frozenParams == ((SelfAttentionLayer) o).frozenParams
+                && skipInputGradients == ((SelfAttentionLayer) o).skipInputGradients
+                && approximateScoring == ((SelfAttentionLayer) o).approximateScoring
+                && smallShapeThreshold == ((SelfAttentionLayer) o).smallShapeThreshold;
+    }
+
+    @Override
+    public int hashCode() {
+        final int hash = 31 * (31 * (31 * super.hashCode() + topK) + outputMode.hashCode()) + projectionSize;
+        final int withCache = 31 * (31 * (31 * hash + inferenceCacheSize) + Long.hashCode(inferenceCacheBytes)) + Long.hashCode(inferenceCacheTtl);
+        return 31 * (31 * (31 * (31 * withCache + (frozenParams ? 1 : 0)) + (skipInputGradients ? 1 : 0)) + (approximateScoring ? 1 : 0)) + Long.hashCode(smallShapeThreshold);
+    }
+
     public static class Builder extends FeedForwardLayer.Builder<Builder> {
+        private int topK;
+        private AttentionOutputMode outputMode = AttentionOutputMode.CONCAT;
+        private int projectionSize;
+        private int inferenceCacheSize;
+        private long inferenceCacheBytes;
+        private long inferenceCacheTtl;
+        private boolean frozenParams;
+        private boolean skipInputGradients;
+        private boolean approximateScoring;
+        private long smallShapeThreshold;
+
+        /**
+         * Only attend to the k highest scoring timesteps per query and attention head, renormalizing the attention
+         * weights over them. Values are only gathered and aggregated for selected timesteps, and no gradient flows
+         * through the others. 0 (the default) attends to all timesteps.
+         *
+         * This is an accuracy and sparsity option, not a speed one: the scores of all timesteps are still computed,
+         * and selecting the k highest adds a pass per query, so top-k attention is slower than dense attention (see
+         * TopKBenchmark).
+         */
+        public Builder topK(int topK) {
+            if (topK < 0) {
+                throw new IllegalStateException("topK must not be negative, but got " + topK);
+            }
+            this.topK = topK;
+            return this;
+        }
+
+        /**
+         * How the outputs of the attention heads are combined, see AttentionOutputMode. CONCAT (the default) keeps all
+         * of them, MEAN averages them and PROJECTION maps them to projectionSize features with a learned weight.
+         */
+        public Builder outputMode(AttentionOutputMode outputMode) {
+            if (outputMode == null) {
+                throw new IllegalStateException("outputMode must not be null");
+            }
+            this.outputMode = outputMode;
+            return this;
+        }
+
+        /**
+         * Number of output features with output mode PROJECTION.
+         */
+        public Builder projectionSize(int projectionSize) {
+            if (projectionSize <= 0) {
+                throw new IllegalStateException("projectionSize must be positive, but got " + projectionSize);
+            }
+            this.projectionSize = projectionSize;
+            return this;
+        }
+
+        /**
+         * Memoize the inference output per example, for inputs that are seen repeatedly (see InferenceCache): at most
+         * maxEntries outputs and maxBytes bytes (0 for no limit) are kept, for at most ttlMillis milliseconds (0 for no
+         * limit). The cache compares the parameters on every call and is cleared when they changed, also in place,
+         * e.g. by MultiLayerNetwork.setParams. It is not used for training. Disabled by default.
+         */
+        public Builder inferenceCache(int maxEntries, long maxBytes, long ttlMillis) {
+            if (maxEntries <= 0 || maxBytes < 0 || ttlMillis < 0) {
+                throw new IllegalStateException("maxEntries must be positive, maxBytes and ttlMillis must not be negative, but got maxEntries = "
+                        + maxEntries + ", maxBytes = " + maxBytes + ", ttlMillis = " + ttlMillis);
+            }
+            this.inferenceCacheSize = maxEntries;
+            this.inferenceCacheBytes = maxBytes;
+            this.inferenceCacheTtl = ttlMillis;
+            return this;
+        }
+
+        /**
+         * Do not train the parameters of this layer, e.g. to fine tune the layers above it: backprop only computes
+         * the epsilon for the input and skips all parameter gradient work, and the parameters get no updates or
+         * regularization. Use this instead of FrozenLayer to keep the backprop into the layers below, or inside
+         * FrozenLayerWithBackprop. A zero learning rate for all parameters skips the parameter gradients as well.
+         */
+        public Builder frozenParams(boolean frozenParams) {
+            this.frozenParams = frozenParams;
+            return this;
+        }
+
+        /**
+         * Do not compute the epsilon for the input in backprop, for a layer that sits directly on the network input,
+         * where the epsilon would be thrown away: all key, value and query gradient work and the epsilon array are
+         * skipped, and backprop returns a null epsilon. Only use this for the first layer of a network, instantiating
+         * it on any other layer of a MultiLayerNetwork fails. In a ComputationGraph, only use this for a layer vertex
+         * fed by a network input, that is not checked.
+         */
+        public Builder skipInputGradients(boolean skipInputGradients) {
+            this.skipInputGradients = skipInputGradients;
+            return this;
+        }
+
+        /**
+         * Use fast approximations of tanh and exp for the attention weights in inference (see ApproximateScoring), within
+         * a relative error of 1e-6 of the exact weights. Training, backprop and top-k attention stay exact. Disabled by
+         * default.
+         */
+        public Builder approximateScoring(boolean approximateScoring) {
+            this.approximateScoring = approximateScoring;
+            return this;
+        }
+
+        /**
+         * Run attention with at most this many attentionHeads * timesteps * widest input in plain Java loops instead
+         * of native ops (see SmallAttentionKernel), where the dispatch of every op costs more than its arithmetic. The
+         * kernel computes in double, so float results differ by rounding from those of the native ops. Top-k attention
+         * and the PROJECTION output mode always use native ops. Defaults to 0, which disables the kernel,
+         * SmallAttentionKernel.SUGGESTED_THRESHOLD is a calibrated value to opt in with.
+         */
+        public Builder smallShapeThreshold(long smallShapeThreshold) {
+            if (smallShapeThreshold < 0) {
+                throw new IllegalStateException("smallShapeThreshold must not be negative, but got " + smallShapeThreshold);
+            }
+            this.smallShapeThreshold = smallShapeThreshold;
+            return this;
+        }
+
         @Override
         @SuppressWarnings("unchecked")  //To stop warnings about unchecked cast. Not required.
         public SelfAttentionLayer build() {
+            if ((outputMode == AttentionOutputMode.PROJECTION) != (projectionSize > 0)) {
+                throw new IllegalStateException("projectionSize has to be set exactly for output mode PROJECTION, but got outputMode = "
+                        + outputMode + ", projectionSize = " + projectionSize);
+            }
             return new SelfAttentionLayer(this);
         }
     }
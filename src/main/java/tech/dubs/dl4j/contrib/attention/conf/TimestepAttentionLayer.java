@@ -11,10 +11,14 @@ import org.deeplearning4j.nn.conf.memory.LayerMemoryReport;
 import org.deeplearning4j.nn.conf.memory.MemoryReport;
 import org.deeplearning4j.optimize.api.TrainingListener;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.NoOp;
+import tech.dubs.dl4j.contrib.attention.nn.AttentionCostModel;
 import tech.dubs.dl4j.contrib.attention.nn.params.QueryAttentionParamInitializer;
 
 import java.util.Collection;
 import java.util.Map;
+import java.util.Objects;
 
 /**
  *
@@ -22,16 +26,162 @@ import java.util.Map;
  * @author Paul Dubs
  */
 public class TimestepAttentionLayer extends BaseRecurrentLayer {
+    private int topK;
+    private AttentionOutputMode outputMode = AttentionOutputMode.CONCAT;
+    private int projectionSize;
+    private boolean linearAttention;
+    private int keyStride = 1;
+    private int inferenceCacheSize;
+    private long inferenceCacheBytes;
+    private long inferenceCacheTtl;
+    private boolean frozenParams;
+    private boolean skipInputGradients;
+    private boolean approximateScoring;
+    private long smallShapeThreshold;
+    private int queryThreads = 1;
+    private String autotuneFile;
+
     // No-Op Constructor for Deserialization
     public TimestepAttentionLayer() { }
 
     private TimestepAttentionLayer(Builder builder) {
         super(builder);
+        this.topK = builder.topK;
+        this.outputMode = builder.outputMode;
+        this.projectionSize = builder.projectionSize;
+        this.linearAttention = builder.linearAttention;
+        this.keyStride = builder.keyStride;
+        this.inferenceCacheSize = builder.inferenceCacheSize;
+        this.inferenceCacheBytes = builder.inferenceCacheBytes;
+        this.inferenceCacheTtl = builder.inferenceCacheTtl;
+        this.frozenParams = builder.frozenParams;
+        this.skipInputGradients = builder.skipInputGradients;
+        this.approximateScoring = builder.approximateScoring;
+        this.smallShapeThreshold = builder.smallShapeThreshold;
+        this.queryThreads = builder.queryThreads;
+        this.autotuneFile = builder.autotuneFile;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public void setTopK(int topK) {
+        this.topK = topK;
+    }
+
+    public AttentionOutputMode getOutputMode() {
+        return outputMode;
+    }
+
+    public void setOutputMode(AttentionOutputMode outputMode) {
+        this.outputMode = outputMode;
+    }
+
+    public int getProjectionSize() {
+        return projectionSize;
+    }
+
+    public void setProjectionSize(int projectionSize) {
+        this.projectionSize = projectionSize;
+    }
+
+    public boolean isLinearAttention() {
+        return linearAttention;
+    }
+
+    public void setLinearAttention(boolean linearAttention) {
+        this.linearAttention = linearAttention;
+    }
+
+    public int getKeyStride() {
+        return keyStride;
+    }
+
+    public void setKeyStride(int keyStride) {
+        this.keyStride = keyStride;
+    }
+
+    public int getInferenceCacheSize() {
+        return inferenceCacheSize;
+    }
+
+    public void setInferenceCacheSize(int inferenceCacheSize) {
+        this.inferenceCacheSize = inferenceCacheSize;
+    }
+
+    public long getInferenceCacheBytes() {
+        return inferenceCacheBytes;
+    }
+
+    public void setInferenceCacheBytes(long inferenceCacheBytes) {
+        this.inferenceCacheBytes = inferenceCacheBytes;
+    }
+
+    public long getInferenceCacheTtl() {
+        return inferenceCacheTtl;
+    }
+
+    public void setInferenceCacheTtl(long inferenceCacheTtl) {
+        this.inferenceCacheTtl = inferenceCacheTtl;
+    }
+
+    public boolean isFrozenParams() {
+        return frozenParams;
+    }
+
+    public void setFrozenParams(boolean frozenParams) {
+        this.frozenParams = frozenParams;
+    }
+
+    public boolean isSkipInputGradients() {
+        return skipInputGradients;
+    }
+
+    public void setSkipInputGradients(boolean skipInputGradients) {
+        this.skipInputGradients = skipInputGradients;
+    }
+
+    public boolean isApproximateScoring() {
+        return approximateScoring;
+    }
+
+    public void setApproximateScoring(boolean approximateScoring) {
+        this.approximateScoring = approximateScoring;
+    }
+
+    public long getSmallShapeThreshold() {
+        return smallShapeThreshold;
+    }
+
+    public void setSmallShapeThreshold(long smallShapeThreshold) {
+        this.smallShapeThreshold = smallShapeThreshold;
+    }
+
+    public int getQueryThreads() {
+        return queryThreads;
+    }
+
+    public void setQueryThreads(int queryThreads) {
+        this.queryThreads = queryThreads;
+    }
+
+    public String getAutotuneFile() {
+        return autotuneFile;
+    }
+
+    public void setAutotuneFile(String autotuneFile) {
+        this.autotuneFile = autotuneFile;
     }
 
     @Override
     public Layer instantiate(NeuralNetConfiguration conf, Collection<TrainingListener> iterationListeners,
                              int layerIndex, INDArray layerParamsView, boolean initializeParams) {
+        // A ComputationGraph instantiates its layers without listeners, numbered among all of its vertices
+        if (skipInputGradients && layerIndex > 0 && iterationListeners != null) {
+            throw new IllegalStateException("skipInputGradients is only supported on the first layer of a network, but it is set on layer "
+                    + layerIndex + " (layer name = \"" + getLayerName() + "\"), whose input needs an epsilon");
+        }
 
         tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer layer = new tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer(conf);
         layer.setListeners(iterationListeners);             //Set the iteration listeners, if any
@@ -52,7 +202,9 @@ public class TimestepAttentionLayer extends BaseRecurrentLayer {
 
     @Override
     public double getL1ByParam(String paramName) {
-        if(initializer().isWeightParam(this, paramName)){
+        if(frozenParams){
+            return 0.0;
+        }else if(initializer().isWeightParam(this, paramName)){
             return l1;
         }else if(initializer().isBiasParam(this, paramName)){
             return l1Bias;
@@ -63,7 +215,9 @@ public class TimestepAttentionLayer extends BaseRecurrentLayer {
 
     @Override
     public double getL2ByParam(String paramName) {
-        if(initializer().isWeightParam(this, paramName)){
+        if(frozenParams){
+            return 0.0;
+        }else if(initializer().isWeightParam(this, paramName)){
             return l2;
         }else if(initializer().isBiasParam(this, paramName)){
             return l2Bias;
@@ -72,6 +226,11 @@ public class TimestepAttentionLayer extends BaseRecurrentLayer {
         throw new IllegalArgumentException("Unknown parameter name: \"" + paramName + "\"");
     }
 
+    @Override
+    public IUpdater getUpdaterByParam(String paramName) {
+        return frozenParams ? new NoOp() : super.getUpdaterByParam(paramName);
+    }
+
     @Override
     public InputType getOutputType(int layerIndex, InputType inputType) {
         if (inputType == null || inputType.getType() != InputType.Type.RNN) {
@@ -81,7 +240,21 @@ public class TimestepAttentionLayer extends BaseRecurrentLayer {
         }
         InputType.InputTypeRecurrent itr = (InputType.InputTypeRecurrent) inputType;
 
-        return InputType.recurrent(nIn * nOut, itr.getTimeSeriesLength());
+        return InputType.recurrent(outputSize(), itr.getTimeSeriesLength());
+    }
+
+    /*
+     * Features per timestep of the output: all heads, one head or the projection
+     */
+    private long outputSize() {
+        switch (outputMode) {
+            case MEAN:
+                return nIn;
+            case PROJECTION:
+                return projectionSize;
+            default:
+                return nIn * nOut;
+        }
     }
 
     @Override
@@ -129,13 +302,224 @@ public class TimestepAttentionLayer extends BaseRecurrentLayer {
     }
 
 
+    /**
+     * Estimated FLOPs, bytes moved, native op invocations and peak working memory of this layer for minibatch examples
+     * of the given input type, see AttentionCostEstimate. maskDensity is the fraction of unmasked timesteps, 1.0 for
+     * no mask. Estimates for training include the backward pass.
+     */
+    public AttentionCostEstimate getCostEstimate(InputType inputType, long minibatch, double maskDensity, boolean training) {
+        AttentionCostModel.checkArguments(inputType, minibatch, maskDensity);
+        final long tsLength = ((InputType.InputTypeRecurrent) inputType).getTimeSeriesLength();
+        return AttentionCostModel.timestepAttention(minibatch, tsLength, nIn, nOut, topK, linearAttention, keyStride, outputMode, projectionSize, maskDensity, training,
+                getActivationFn(), smallShapeThreshold);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof TimestepAttentionLayer && super.equals(o) && topK == ((TimestepAttentionLayer) o).topK
+                && linearAttention == ((TimestepAttentionLayer) o).linearAttention
+                && outputMode == ((TimestepAttentionLayer) o).outputMode && projectionSize == ((TimestepAttentionLayer) o).projectionSize
+                && keyStride == ((TimestepAttentionLayer) o).keyStride
+                && inferenceCacheSize == ((TimestepAttentionLayer) o).inferenceCacheSize && inferenceCacheBytes == ((TimestepAttentionLayer) o).inferenceCacheBytes
+                && inferenceCacheTtl == ((TimestepAttentionLayer) o).inferenceCacheTtl && frozenParams == ((TimestepAttentionLayer) o).frozenParams
+                && skipInputGradients == ((TimestepAttentionLayer) o).skipInputGradients
+                && approximateScoring == ((TimestepAttentionLayer) o).approximateScoring
+                && smallShapeThreshold == ((TimestepAttentionLayer) o).smallShapeThreshold && queryThreads == ((TimestepAttentionLayer) o).queryThreads
+                && Objects.equals(autotuneFile, ((TimestepAttentionLayer) o).autotuneFile);
+    }
+
+    @Override
+    public int hashCode() {
+        final int hash = 31 * (31 * super.hashCode() + topK) + (linearAttention ? 1 : 0);
+        final int withStride = 31 * (31 * (31 * hash + outputMode.hashCode()) + projectionSize) + keyStride;
+        final int withCache = 31 * (31 * (31 * withStride + inferenceCacheSize) + Long.hashCode(inferenceCacheBytes)) + Long.hashCode(inferenceCacheTtl);
+        final int withOptions = 31 * (31 * (31 * (31 * (31 * withCache + (frozenParams ? 1 : 0)) + (skipInputGradients ? 1 : 0)) + queryThreads) + Objects.hashCode(autotuneFile)) + (approximateScoring ? 1 : 0);
+        return 31 * withOptions + Long.hashCode(smallShapeThreshold);
+    }
+
     public static class Builder extends BaseRecurrentLayer.Builder<Builder> {
+        private int topK;
+        private boolean linearAttention;
+        private AttentionOutputMode outputMode = AttentionOutputMode.CONCAT;
+        private int projectionSize;
+        private int keyStride = 1;
+        private int inferenceCacheSize;
+        private long inferenceCacheBytes;
+        private long inferenceCacheTtl;
+        private boolean frozenParams;
+        private boolean skipInputGradients;
+        private boolean approximateScoring;
+        private long smallShapeThreshold;
+        private int queryThreads = 1;
+        private String autotuneFile;
+
+        /**
+         * Only attend to the k highest scoring timesteps per query and attention head, renormalizing the attention
+         * weights over them. Values are only gathered and aggregated for selected timesteps, and no gradient flows
+         * through the others. 0 (the default) attends to all timesteps.
+         *
+         * This is an accuracy and sparsity option, not a speed one: the scores of all timesteps are still computed,
+         * and selecting the k highest adds a pass per query, so top-k attention is slower than dense attention (see
+         * TopKBenchmark).
+         */
+        public Builder topK(int topK) {
+            if (topK < 0) {
+                throw new IllegalStateException("topK must not be negative, but got " + topK);
+            }
+            this.topK = topK;
+            return this;
+        }
+
+        /**
+         * Use kernelized linear attention (see LinearAttentionMechanism) instead of additive attention. Keys and values
+         * are summarized once, so the cost grows linearly with the sequence length instead of quadratically, and
+         * decoding with rnnTimeStep keeps a fixed size state. The activation function is not used in this mode.
+         */
+        public Builder linearAttention(boolean linearAttention) {
+            this.linearAttention = linearAttention;
+            return this;
+        }
+
+        /**
+         * How the outputs of the attention heads are combined, see AttentionOutputMode. CONCAT (the default) keeps all
+         * of them, MEAN averages them and PROJECTION maps them to projectionSize features with a learned weight.
+         */
+        public Builder outputMode(AttentionOutputMode outputMode) {
+            if (outputMode == null) {
+                throw new IllegalStateException("outputMode must not be null");
+            }
+            this.outputMode = outputMode;
+            return this;
+        }
+
+        /**
+         * Number of output features with output mode PROJECTION.
+         */
+        public Builder projectionSize(int projectionSize) {
+            if (projectionSize <= 0) {
+                throw new IllegalStateException("projectionSize must be positive, but got " + projectionSize);
+            }
+            this.projectionSize = projectionSize;
+            return this;
+        }
+
+        /**
+         * Compress keys and values to every keyStride timesteps before attention, by averaging the unmasked timesteps
+         * of each window. Queries keep the full resolution, so every query only scores T / keyStride keys. 1 (the
+         * default) attends to every timestep. Layers with keyStride > 1 can not decode with rnnTimeStep.
+         */
+        public Builder keyStride(int keyStride) {
+            if (keyStride < 1) {
+                throw new IllegalStateException("keyStride must be positive, but got " + keyStride);
+            }
+            this.keyStride = keyStride;
+            return this;
+        }
+
+        /**
+         * Memoize the inference output per example, for inputs that are seen repeatedly (see InferenceCache): at most
+         * maxEntries outputs and maxBytes bytes (0 for no limit) are kept, for at most ttlMillis milliseconds (0 for no
+         * limit). The cache compares the parameters on every call and is cleared when they changed, also in place,
+         * e.g. by MultiLayerNetwork.setParams. It is not used for training. Disabled by default.
+         */
+        public Builder inferenceCache(int maxEntries, long maxBytes, long ttlMillis) {
+            if (maxEntries <= 0 || maxBytes < 0 || ttlMillis < 0) {
+                throw new IllegalStateException("maxEntries must be positive, maxBytes and ttlMillis must not be negative, but got maxEntries = "
+                        + maxEntries + ", maxBytes = " + maxBytes + ", ttlMillis = " + ttlMillis);
+            }
+            this.inferenceCacheSize = maxEntries;
+            this.inferenceCacheBytes = maxBytes;
+            this.inferenceCacheTtl = ttlMillis;
+            return this;
+        }
+
+        /**
+         * Do not train the parameters of this layer, e.g. to fine tune the layers above it: backprop only computes
+         * the epsilon for the input and skips all parameter gradient work, and the parameters get no updates or
+         * regularization. Use this instead of FrozenLayer to keep the backprop into the layers below, or inside
+         * FrozenLayerWithBackprop. A zero learning rate for all parameters skips the parameter gradients as well.
+         */
+        public Builder frozenParams(boolean frozenParams) {
+            this.frozenParams = frozenParams;
+            return this;
+        }
+
+        /**
+         * Do not compute the epsilon for the input in backprop, for a layer that sits directly on the network input,
+         * where the epsilon would be thrown away: all key, value and query gradient work and the epsilon array are
+         * skipped, and backprop returns a null epsilon. Only use this for the first layer of a network, instantiating
+         * it on any other layer of a MultiLayerNetwork fails. In a ComputationGraph, only use this for a layer vertex
+         * fed by a network input, that is not checked.
+         */
+        public Builder skipInputGradients(boolean skipInputGradients) {
+            this.skipInputGradients = skipInputGradients;
+            return this;
+        }
+
+        /**
+         * Use fast approximations of tanh and exp for the attention weights in inference (see ApproximateScoring), within
+         * a relative error of 1e-6 of the exact weights. Training, backprop and top-k attention stay exact. Disabled by
+         * default.
+         */
+        public Builder approximateScoring(boolean approximateScoring) {
+            this.approximateScoring = approximateScoring;
+            return this;
+        }
+
+        /**
+         * Run attention with at most this many attentionHeads * timesteps * widest input in plain Java loops instead
+         * of native ops (see SmallAttentionKernel), where the dispatch of every op costs more than its arithmetic. The
+         * kernel computes in double, so float results differ by rounding from those of the native ops. Top-k attention
+         * and the PROJECTION output mode always use native ops. Defaults to 0, which disables the kernel,
+         * SmallAttentionKernel.SUGGESTED_THRESHOLD is a calibrated value to opt in with.
+         */
+        public Builder smallShapeThreshold(long smallShapeThreshold) {
+            if (smallShapeThreshold < 0) {
+                throw new IllegalStateException("smallShapeThreshold must not be negative, but got " + smallShapeThreshold);
+            }
+            this.smallShapeThreshold = smallShapeThreshold;
+            return this;
+        }
+
+        /**
+         * Split the queries of every example across up to queryThreads threads in the forward pass, for low latency
+         * on single long sequences, where a minibatch of one gives no examples to spread across cores. The key
+         * projection is computed once and shared by all threads. 1 (the default) scores the queries on the calling
+         * thread. Linear attention and backprop do not use the extra threads.
+         */
+        public Builder queryThreads(int queryThreads) {
+            if (queryThreads < 1) {
+                throw new IllegalStateException("queryThreads must be positive, but got " + queryThreads);
+            }
+            this.queryThreads = queryThreads;
+            return this;
+        }
+
+        /**
+         * Time the execution strategies of additive attention for inference the first time a shape bucket is seen,
+         * and use the fastest from then on (see AttentionAutotuner): projecting the keys per example or for the whole
+         * minibatch, and scoring the queries on 1 or queryThreads threads. Decisions are persisted to the given file
+         * and reused after a restart. Disabled by default.
+         */
+        public Builder autotune(String file) {
+            if (file == null || file.isEmpty()) {
+                throw new IllegalStateException("The autotuning file must be given");
+            }
+            this.autotuneFile = file;
+            return this;
+        }
 
         @Override
         @SuppressWarnings("unchecked")  //To stop warnings about unchecked cast. Not required.
         public TimestepAttentionLayer build() {
+            if (linearAttention && topK > 0) {
+                throw new IllegalStateException("topK can not be used together with linear attention");
+            }
+            if ((outputMode == AttentionOutputMode.PROJECTION) != (projectionSize > 0)) {
+                throw new IllegalStateException("projectionSize has to be set exactly for output mode PROJECTION, but got outputMode = "
+                        + outputMode + ", projectionSize = " + projectionSize);
+            }
             return new TimestepAttentionLayer(this);
         }
-
     }
 }
@@ -15,13 +15,22 @@ import tech.dubs.dl4j.contrib.attention.activations.ActivationMaskedSoftmax;
 import java.util.Arrays;
 
 import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
 import static org.nd4j.linalg.indexing.NDArrayIndex.point;
 
 /*
  *  Attention: Shapes for keys, values and queries should be in [features, timesteps, examples] order!
+ *
+ *  Values may have a different width than the keys, the output of every head has the width of the values.
  * @author Paul Dubs
  */
 public class AdditiveAttentionMechanism {
+    /*
+     * Score bias of masked keys. Large enough that exp underflows to exactly 0 as soon as one key is unmasked, but finite
+     * so that 0 * MASKED_SCORE and shifting by the maximum never produce NaN.
+     */
+    private static final double MASKED_SCORE = -1e30;
+
     private final INDArray W;
     private final INDArray Q;
     private final INDArray b;
@@ -31,6 +40,12 @@ public class AdditiveAttentionMechanism {
     private final boolean training;
     private boolean caching;
     private INDArray WkCache;
+    private int topK;
+    private int queryThreads = 1;
+    private boolean approximate;
+    private long smallShapeThreshold;
+    private double[] WkCacheData;
+    private HeadReduction reduction = HeadReduction.concat();
 
     // Required to be set for backprop
     private INDArray Wg;
@@ -58,6 +73,92 @@ public class AdditiveAttentionMechanism {
         return this;
     }
 
+    /*
+     * Only keep the k highest scores per query and head. The softmax is renormalized over the selected keys, and
+     * values are aggregated only over the keys selected by any head. Gradients only flow through the selected keys.
+     *
+     * k <= 0 means dense attention over all keys. All scores are still computed and selected from, so
+     * this is slower than dense attention, it only makes the attention sparse.
+     */
+    public AdditiveAttentionMechanism withTopK(int k) {
+        this.topK = k;
+        return this;
+    }
+
+    /*
+     * Split the queries of every example into up to threads contiguous ranges in query, scored in parallel on shared
+     * worker threads (see QueryWorkers). The key projection, values and mask are only read, and every query writes its
+     * own output column, so the result is the same as with a single thread. Meant for a single long sequence, where
+     * there are no examples to spread across cores. Backprop always runs on the calling thread.
+     */
+    public AdditiveAttentionMechanism withQueryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalStateException("Query threads must be positive, but got " + threads);
+        }
+        this.queryThreads = threads;
+        return this;
+    }
+
+    /*
+     * Compute the attention weights of dense attention with fast approximations of tanh and exp (see
+     * ApproximateScoring) for inference. Ignored for training and backprop, and top-k attention stays exact.
+     */
+    public AdditiveAttentionMechanism withApproximateScoring(boolean approximate) {
+        this.approximate = approximate;
+        return this;
+    }
+
+    /*
+     * Run attention with at most threshold attentionHeads * timesteps * widest input in plain Java loops instead of
+     * native ops (see SmallAttentionKernel), 0 always uses native ops. Query threads are not used for those.
+     */
+    public AdditiveAttentionMechanism withSmallShapeThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalStateException("Small shape threshold must not be negative, but got " + threshold);
+        }
+        this.smallShapeThreshold = threshold;
+        return this;
+    }
+
+    /*
+     * Combine the outputs of the heads per query with the given reduction (see HeadReduction) instead of concatenating
+     * them. For backprop with a projection, the reduction needs its gradient view.
+     */
+    public AdditiveAttentionMechanism withOutputReduction(HeadReduction reduction) {
+        this.reduction = reduction;
+        return this;
+    }
+
+    /*
+     * Use an already computed key projection (see projectKeys) instead of computing it from the keys. Keys are then
+     * only used for shape checks.
+     */
+    public AdditiveAttentionMechanism withKeyProjection(INDArray keyProjection) {
+        this.caching = true;
+        this.WkCache = keyProjection;
+        return this;
+    }
+
+    /*
+     * Projects the keys of all examples at once: W*keys + b, shape [attentionHeads, timesteps, examples]
+     */
+    public INDArray projectKeys(INDArray keys, ArrayType arrayType) {
+        final long attentionHeads = W.shape()[1];
+        final long memoryWidth = W.shape()[0];
+        final long tsLength = keys.shape()[1];
+        final long examples = keys.shape()[2];
+
+        if (keys.shape()[0] != memoryWidth) {
+            throw new IllegalStateException("Shapes of keys must be compatible to weights, but got: keyWeight.shape() = " + Arrays.toString(W.shape())
+                    + ", keys.shape() = " + Arrays.toString(keys.shape()));
+        }
+
+        final INDArray target = mgr.createUninitialized(arrayType, new long[]{attentionHeads, tsLength * examples}, 'f');
+        return Nd4j.gemm(W, keys.reshape('f', memoryWidth, tsLength * examples), target, true, false, 1.0, 0.0)
+                .addiColumnVector(b.transpose())
+                .reshape('f', attentionHeads, tsLength, examples);
+    }
+
     public INDArray query(INDArray queries, INDArray keys, INDArray values, INDArray mask) {
         assertShapes(queries, keys, values);
 
@@ -65,10 +166,10 @@ public class AdditiveAttentionMechanism {
         final long queryCount = queries.shape()[1];
         final long queryWidth = queries.shape()[0];
         final long attentionHeads = W.shape()[1];
-        final long memoryWidth = W.shape()[0];
+        final long valueWidth = values.shape()[0];
         final long tsLength = keys.shape()[1];
 
-        final INDArray result = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{examples, memoryWidth * attentionHeads, queryCount}, 'f');
+        final INDArray result = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{examples, reduction.outputWidth(valueWidth, attentionHeads), queryCount}, 'f');
 
         WorkspaceConfiguration initialConfig = WorkspaceConfiguration.builder()
                 .policyAllocation(AllocationPolicy.STRICT)
@@ -76,13 +177,18 @@ public class AdditiveAttentionMechanism {
                 .build();
 
         if (this.caching && this.WkCache == null) {
-            final INDArray target = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{attentionHeads, tsLength * examples}, 'f');
+            this.WkCache = projectKeys(keys, ArrayType.FF_WORKING_MEM);
+        }
 
-            this.WkCache = Nd4j.gemm(W, keys.reshape('f', memoryWidth, tsLength * examples), target, true, false, 1.0, 0.0)
-                    .addiColumnVector(b.transpose())
-                    .reshape('f', attentionHeads, tsLength, examples);
+        final SmallAttentionKernel kernel = smallShapeKernel(tsLength, valueWidth);
+        if (kernel != null) {
+            kernel.query(result, queries, keys, values, mask, cachedKeyProjection());
+            return result;
         }
 
+        final INDArray maskBias = maskBias(mask);
+        final double[] unmasked = unmaskedCounts(mask);
+
         final INDArray queryRes = Nd4j.gemm(Q, queries.reshape('f', queryWidth, queryCount * examples), true, false)
                 .reshape('f', attentionHeads, queryCount, examples);
 
@@ -99,28 +205,226 @@ public class AdditiveAttentionMechanism {
                     preResult.addiColumnVector(b.transpose());
                 }
 
+                final long available = unmasked == null ? tsLength : (long) unmasked[(int) example];
+                if (available == 0) {
+                    // Nothing to attend to
+                    subArray(result, example).assign(0);
+                    continue;
+                }
 
-                final INDArray curMask = subMask(mask, example);
-                final INDArray attentionHeadMask = attentionHeadMask(curMask, preResult.shape());
+                attendQueries(subArray(result, example), queryRes.get(all(), all(), point(example)), preResult, curValues,
+                        maskBias == null ? null : maskBias.getRow((int) example), available, initialConfig);
+            }
+        }
+        return result;
+    }
 
-                for (long queryIdx = 0; queryIdx < queryCount; queryIdx++) {
-                    final INDArray query = queries.get(all(), point(queryIdx), point(example));
-                    final INDArray curResult = subArray(result, example, queryIdx);
+    /*
+     * Same as query for packed sequences (see PackedSequences) instead of padded ones with a mask: the queries of every
+     * sequence attend over the keys of the same sequence. Keys and queries of all sequences are projected with one GEMM
+     * each, and no padding is materialized. Returns the outputs [outputWidth, total queries], packed like the queries.
+     */
+    public INDArray queryPacked(PackedSequences queries, PackedSequences keys, PackedSequences values) {
+        assertPackedShapes(queries, keys, values);
 
-                    final INDArray queryResult = queryRes.get(all(), point(queryIdx), point(example));
+        final long attentionHeads = W.shape()[1];
+        final long outputWidth = reduction.outputWidth(values.getFeatures(), attentionHeads);
 
-                    final INDArray preA = preResult.addColumnVector(queryResult);
-                    final INDArray preS = this.activation.getActivation(preA, training);
-                    final INDArray attW = softmax.getActivation(preS, attentionHeadMask);
+        final INDArray result = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{outputWidth, queries.getTotalLength()}, 'f');
+
+        WorkspaceConfiguration initialConfig = WorkspaceConfiguration.builder()
+                .policyAllocation(AllocationPolicy.STRICT)
+                .policyLearning(LearningPolicy.FIRST_LOOP)
+                .build();
+
+        final INDArray keyRes = projectPackedKeys(keys, b.transpose());
+        final INDArray queryRes = Nd4j.gemm(Q, queries.getData(), true, false);
+
+        for (int example = 0; example < queries.getExamples(); example++) {
+            final long queryCount = queries.getLength(example);
+            if (queryCount == 0) {
+                continue;
+            }
+            final INDArray exResult = result.get(all(), interval(queries.getOffset(example), queries.getOffset(example) + queryCount));
+            if (keys.getLength(example) == 0) {
+                // Nothing to attend to
+                exResult.assign(0);
+                continue;
+            }
+
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(initialConfig, "ATTENTION_FF")) {
+                attendQueries(exResult, queryRes.get(all(), interval(queries.getOffset(example), queries.getOffset(example) + queryCount)),
+                        keyRes.get(all(), interval(keys.getOffset(example), keys.getOffset(example) + keys.getLength(example))),
+                        values.getSequence(example), null, keys.getLength(example), initialConfig);
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Attends with the queries of one example, the columns of queryRes [attentionHeads, queryCount], over its projected
+     * keys and writes the outputs to the columns of exResult [outputWidth, queryCount]. With query threads, the queries
+     * are split into ranges scored in parallel.
+     */
+    private void attendQueries(INDArray exResult, INDArray queryRes, INDArray preResult, INDArray curValues, INDArray maskBias,
+                               long available, WorkspaceConfiguration workspaceConfig) {
+        final long queryCount = exResult.size(1);
+        final int partitions = (int) Math.min(queryThreads, queryCount);
+        if (partitions <= 1) {
+            scoreQueries(exResult, queryRes, preResult, curValues, maskBias, available, 0, queryCount);
+            return;
+        }
+
+        QueryWorkers.run(partitions, partition -> {
+            final long from = queryCount * partition / partitions;
+            final long to = queryCount * (partition + 1) / partitions;
+            if (partition == 0) {
+                scoreQueries(exResult, queryRes, preResult, curValues, maskBias, available, from, to);
+                return;
+            }
+            try (MemoryWorkspace workerWs = Nd4j.getWorkspaceManager().getAndActivateWorkspace(workspaceConfig, "ATTENTION_FF")) {
+                scoreQueries(exResult, queryRes, preResult, curValues, maskBias, available, from, to);
+            }
+        });
+    }
+
+    /*
+     * Scores the queries [from, to) of one example against its projected keys and writes their outputs to exResult
+     */
+    private void scoreQueries(INDArray exResult, INDArray queryRes, INDArray preResult, INDArray curValues, INDArray maskBias,
+                              long available, long from, long to) {
+        for (long queryIdx = from; queryIdx < to; queryIdx++) {
+            final INDArray curResult = exResult.tensorAlongDimension((int) queryIdx, 0);
+
+            final INDArray queryResult = queryRes.getColumn(queryIdx);
+
+            final INDArray preA = preResult.addColumnVector(queryResult);
+            curResult.assign(attend(curValues, preA, maskBias, available));
+        }
+    }
+
+    /*
+     * Folds the parameter-only part of the score, Q*query + b, into a single column of shape [attentionHeads, 1].
+     *
+     * When the query is itself a parameter (as in SelfAttentionLayer), the result is the same for every example and
+     * is passed to queryFolded once for all of them.
+     */
+    public INDArray foldQuery(INDArray query) {
+        if (query.shape()[0] != Q.shape()[0]) {
+            throw new IllegalStateException("Shape of query must be compatible to query weight, but got: queryWeight.shape() = " + Arrays.toString(Q.shape())
+                    + ", query.shape() = " + Arrays.toString(query.shape()));
+        }
+
+        return Nd4j.gemm(Q, query, true, false).addiColumnVector(b.transpose());
+    }
+
+    /*
+     * Same as query with a single query per example, but uses the folded query term given by foldQuery instead of
+     * recomputing Q*query and adding b for every example.
+     */
+    public INDArray queryFolded(INDArray foldedQuery, INDArray keys, INDArray values, INDArray mask) {
+        final long attentionHeads = W.shape()[1];
+        final long memoryWidth = W.shape()[0];
+
+        if (foldedQuery.shape()[0] != attentionHeads || foldedQuery.length() != attentionHeads) {
+            throw new IllegalStateException("Folded query must have shape [" + attentionHeads + ", 1], but got foldedQuery.shape() = " + Arrays.toString(foldedQuery.shape()));
+        }
+        if (keys.shape()[0] != memoryWidth) {
+            throw new IllegalStateException("Shapes of keys must be compatible to weights, but got: keyWeight.shape() = " + Arrays.toString(W.shape())
+                    + ", keys.shape() = " + Arrays.toString(keys.shape()));
+        }
+
+        final long examples = keys.shape()[2];
+        final long tsLength = keys.shape()[1];
+
+        final INDArray result = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{examples, reduction.outputWidth(values.shape()[0], attentionHeads), 1}, 'f');
+
+        final SmallAttentionKernel kernel = smallShapeKernel(tsLength, values.shape()[0]);
+        if (kernel != null) {
+            kernel.queryFolded(result, foldedQuery, keys, values, mask);
+            return result;
+        }
+
+        WorkspaceConfiguration initialConfig = WorkspaceConfiguration.builder()
+                .policyAllocation(AllocationPolicy.STRICT)
+                .policyLearning(LearningPolicy.FIRST_LOOP)
+                .build();
+
+        final INDArray target = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{attentionHeads, tsLength * examples}, 'f');
+        final INDArray keyRes = Nd4j.gemm(W, keys.reshape('f', memoryWidth, tsLength * examples), target, true, false, 1.0, 0.0)
+                .addiColumnVector(foldedQuery)
+                .reshape('f', attentionHeads, tsLength, examples);
+
+        final INDArray maskBias = maskBias(mask);
+        final double[] unmasked = unmaskedCounts(mask);
+
+        for (long example = 0; example < examples; example++) {
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(initialConfig, "ATTENTION_FF")) {
+                final INDArray curValues = values.get(all(), all(), point(example));
+                final INDArray curResult = subArray(result, example, 0);
 
-                    final INDArray att = Nd4j.gemm(curValues, attW, false, true);
-                    curResult.assign(att.reshape('f', 1, memoryWidth * attentionHeads));
+                final long available = unmasked == null ? tsLength : (long) unmasked[(int) example];
+                if (available == 0) {
+                    curResult.assign(0);
+                    continue;
                 }
+
+                final INDArray preA = keyRes.get(all(), all(), point(example));
+                curResult.assign(attend(curValues, preA, maskBias == null ? null : maskBias.getRow((int) example), available));
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Same as queryFolded for packed sequences (see PackedSequences), returns the outputs [examples, outputWidth]
+     */
+    public INDArray queryFoldedPacked(INDArray foldedQuery, PackedSequences keys, PackedSequences values) {
+        final long attentionHeads = W.shape()[1];
+
+        if (foldedQuery.shape()[0] != attentionHeads || foldedQuery.length() != attentionHeads) {
+            throw new IllegalStateException("Folded query must have shape [" + attentionHeads + ", 1], but got foldedQuery.shape() = " + Arrays.toString(foldedQuery.shape()));
+        }
+        assertPackedShapes(null, keys, values);
+
+        final INDArray result = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{keys.getExamples(), reduction.outputWidth(values.getFeatures(), attentionHeads)}, 'f');
+
+        WorkspaceConfiguration initialConfig = WorkspaceConfiguration.builder()
+                .policyAllocation(AllocationPolicy.STRICT)
+                .policyLearning(LearningPolicy.FIRST_LOOP)
+                .build();
+
+        final INDArray keyRes = projectPackedKeys(keys, foldedQuery);
+
+        for (int example = 0; example < keys.getExamples(); example++) {
+            final INDArray curResult = result.getRow(example);
+            final long available = keys.getLength(example);
+            if (available == 0) {
+                curResult.assign(0);
+                continue;
+            }
+
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(initialConfig, "ATTENTION_FF")) {
+                final INDArray preA = keyRes.get(all(), interval(keys.getOffset(example), keys.getOffset(example) + available));
+                curResult.assign(attend(values.getSequence(example), preA, null, available));
             }
         }
         return result;
     }
 
+    /*
+     * W*keys + bias for the packed keys of all examples at once, shape [attentionHeads, total timesteps]
+     */
+    private INDArray projectPackedKeys(PackedSequences keys, INDArray bias) {
+        final INDArray target = mgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{W.shape()[1], keys.getTotalLength()}, 'f');
+        return Nd4j.gemm(W, keys.getData(), target, true, false, 1.0, 0.0).addiColumnVector(bias);
+    }
+
+    /*
+     * W, Q and b may all be null to skip the parameter gradients, e.g. for frozen parameters. Only the key, value and
+     * query gradients are computed then. Keys, values and queries may each be null to skip their gradients, e.g. for
+     * the first layer of a network.
+     */
     public AdditiveAttentionMechanism withGradientViews(INDArray W, INDArray Q, INDArray b, INDArray keys, INDArray values, INDArray queries) {
         Wg = W;
         Qg = Q;
@@ -132,45 +436,72 @@ public class AdditiveAttentionMechanism {
         return this;
     }
 
+    private boolean parameterGradients() {
+        if (Wg == null && Qg == null && bg == null) {
+            return false;
+        }
+        if (Wg == null || Qg == null || bg == null) {
+            throw new IllegalStateException("Gradient views for W, Q and b must either all be given or all be null.");
+        }
+        return true;
+    }
+
     public void backprop(INDArray epsilon, INDArray queries, INDArray keys, INDArray values, INDArray mask) {
-        if (Wg == null || Qg == null || bg == null || keyG == null || valueG == null || queryG == null) {
+        final boolean parameterGradients = parameterGradients();
+        if (!parameterGradients && keyG == null && valueG == null && queryG == null) {
             throw new IllegalStateException("You MUST use attnMech.withGradientViews(...).backprop(...).");
         }
 
         assertShapes(queries, keys, values);
+        if (parameterGradients) {
+            reduction.checkBackprop();
+        }
 
         final long examples = queries.shape()[2];
         final long queryCount = queries.shape()[1];
         final long queryWidth = queries.shape()[0];
         final long attentionHeads = W.shape()[1];
-        final long memoryWidth = W.shape()[0];
+        final long valueWidth = values.shape()[0];
         final long tsLength = keys.shape()[1];
+        final long outputWidth = reduction.outputWidth(valueWidth, attentionHeads);
 
 
-        if (epsilon.ordering() != 'c' || !Shape.hasDefaultStridesForShape(epsilon))
-            epsilon = epsilon.dup('c');
-
         final long[] epsilonShape = epsilon.shape();
-        if (epsilonShape[0] != examples || epsilonShape[1] != (attentionHeads * memoryWidth) || (epsilonShape.length == 2 && queryCount != 1) || (epsilonShape.length == 3 && epsilonShape[2] != queryCount)) {
+        if (epsilonShape[0] != examples || epsilonShape[1] != outputWidth || (epsilonShape.length == 2 && queryCount != 1) || (epsilonShape.length == 3 && epsilonShape[2] != queryCount)) {
             throw new IllegalStateException("Epsilon shape must match result shape. Got epsilon.shape() = " + Arrays.toString(epsilonShape)
-                    + "; result shape = [" + examples + ", " + attentionHeads * memoryWidth + ", " + queryCount + "]");
+                    + "; result shape = [" + examples + ", " + outputWidth + ", " + queryCount + "]");
+        }
+
+        final SmallAttentionKernel kernel = smallShapeKernel(tsLength, valueWidth);
+        if (kernel != null) {
+            if (this.caching && this.WkCache == null) {
+                this.WkCache = projectKeys(keys, ArrayType.BP_WORKING_MEM);
+            }
+            kernel.backprop(epsilon, queries, keys, values, mask, cachedKeyProjection(), parameterGradients ? Wg : null, parameterGradients ? Qg : null,
+                    parameterGradients ? bg : null, keyG, valueG, queryG);
+            return;
         }
 
+        if (epsilon.ordering() != 'c' || !Shape.hasDefaultStridesForShape(epsilon))
+            epsilon = epsilon.dup('c');
+
         WorkspaceConfiguration initialConfig = WorkspaceConfiguration.builder()
                 .policyAllocation(AllocationPolicy.STRICT)
                 .policyLearning(LearningPolicy.FIRST_LOOP)
                 .build();
 
-        final INDArray dldAtt = epsilon.reshape('c', examples, attentionHeads, memoryWidth, queryCount);
+        // Concatenated heads are split by a reshape, reduced heads get their gradients per query
+        final INDArray dldAtt = reduction.isConcat()
+                ? epsilon.reshape('c', examples, attentionHeads, valueWidth, queryCount)
+                : epsilon.reshape('c', examples, outputWidth, queryCount);
 
         if (this.caching && this.WkCache == null) {
-            final INDArray target = mgr.createUninitialized(ArrayType.BP_WORKING_MEM, new long[]{attentionHeads, tsLength * examples}, 'f');
-
-            this.WkCache = Nd4j.gemm(W, keys.reshape('f', memoryWidth, tsLength * examples), target, true, false, 1.0, 0.0)
-                    .addiColumnVector(b.transpose())
-                    .reshape('f', attentionHeads, tsLength, examples);
+            this.WkCache = projectKeys(keys, ArrayType.BP_WORKING_MEM);
         }
 
+        final INDArray maskBias = maskBias(mask);
+        final double[] unmasked = unmaskedCounts(mask);
+
         final INDArray queryRes = Nd4j.gemm(Q, queries.reshape('f', queryWidth, queryCount * examples), true, false)
                 .reshape('f', attentionHeads, queryCount, examples);
 
@@ -179,7 +510,7 @@ public class AdditiveAttentionMechanism {
                 final INDArray curValues = values.get(all(), all(), point(example));
                 final INDArray curKeys = keys.get(all(), all(), point(example));
 
-                final INDArray exEps = dldAtt.tensorAlongDimension((int) example, 1, 2, 3);
+                final INDArray exEps = reduction.isConcat() ? dldAtt.tensorAlongDimension((int) example, 1, 2, 3) : dldAtt.tensorAlongDimension((int) example, 1, 2);
 
                 final INDArray preResult;
                 if (this.caching) {
@@ -189,37 +520,205 @@ public class AdditiveAttentionMechanism {
                     preResult.addiColumnVector(b.transpose());
                 }
 
-                final INDArray curMask = subMask(mask, example);
-                final INDArray attentionHeadMask = attentionHeadMask(curMask, preResult.shape());
+                final long available = unmasked == null ? tsLength : (long) unmasked[(int) example];
+                if (available == 0) {
+                    // Output was constant 0, no gradient
+                    continue;
+                }
 
                 for (long queryIdx = 0; queryIdx < queryCount; queryIdx++) {
-                    final INDArray curEps = exEps.tensorAlongDimension((int) queryIdx, 0, 1);
                     final INDArray query = queries.get(all(), point(queryIdx), point(example));
 
                     final INDArray queryResult = queryRes.get(all(), point(queryIdx), point(example));
 
                     final INDArray preA = preResult.addColumnVector(queryResult);
-                    final INDArray preS = this.activation.getActivation(preA.dup(), training);
-                    final INDArray attW = softmax.getActivation(preS, attentionHeadMask);
-
-                    valueG.get(all(), all(), point(example)).addi(Nd4j.gemm(curEps, attW, true, false));
+                    final INDArray preS = addMaskBias(this.activation.getActivation(preA.dup(), training), maskBias == null ? null : maskBias.getRow((int) example));
+                    // Masked and unselected keys get zero weight, so no gradient flows through them
+                    final INDArray selection = selectTopK(preS, available);
+                    final INDArray attW = softmax.getActivation(preS, selection);
+
+                    final INDArray curEps;
+                    if (reduction.isConcat()) {
+                        curEps = exEps.tensorAlongDimension((int) queryIdx, 0, 1);
+                    } else {
+                        final INDArray heads = reduction.needsHeadOutputs() ? Nd4j.gemm(curValues, attW, false, true) : null;
+                        curEps = reduction.headGradients(exEps.getColumn(queryIdx), heads, valueWidth, attentionHeads);
+                    }
+
+                    if (valueG != null) {
+                        valueG.get(all(), all(), point(example)).addi(Nd4j.gemm(curEps, attW, true, false));
+                    }
 
                     final INDArray dldAttW = Nd4j.gemm(curEps, curValues, false, false);
-                    final INDArray dldPreS = softmax.backprop(attW, attentionHeadMask, dldAttW).getFirst();
+                    final INDArray dldPreS = softmax.backprop(attW, null, dldAttW).getFirst();
                     final INDArray dldPreA = activation.backprop(preA, dldPreS).getFirst();
 
                     final INDArray dldPreASum = dldPreA.sum(1);
 
-                    Nd4j.gemm(query, dldPreASum, Qg, false, true, 1.0, 1.0);
-                    Nd4j.gemm(curKeys, dldPreA, Wg, false, true, 1.0, 1.0);
+                    if (parameterGradients) {
+                        Nd4j.gemm(query, dldPreASum, Qg, false, true, 1.0, 1.0);
+                        Nd4j.gemm(curKeys, dldPreA, Wg, false, true, 1.0, 1.0);
+
+                        bg.addi(dldPreASum.transpose());
+                    }
+
+                    if (keyG != null) {
+                        keyG.get(all(), all(), point(example)).addi(Nd4j.gemm(W, dldPreA, false, false));
+                    }
+                    if (queryG != null) {
+                        queryG.get(all(), point(queryIdx), point(example)).addi(Nd4j.gemm(Q, dldPreASum, false, false));
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Kernel for attention over tsLength keys, or null if the shape is not small or not supported by it
+     */
+    private SmallAttentionKernel smallShapeKernel(long tsLength, long valueWidth) {
+        final long width = Math.max(Math.max(W.size(0), Q.size(0)), valueWidth);
+        if (!SmallAttentionKernel.applies(smallShapeThreshold, activation, topK, reduction.getMode(), W.size(1), tsLength, width)) {
+            return null;
+        }
+        return new SmallAttentionKernel(W, Q, b, activation, reduction.getMode(), approximate && !training);
+    }
+
+    /*
+     * The cached key projection as a primitive array, read once for all calls of the kernel
+     */
+    private double[] cachedKeyProjection() {
+        if (WkCache == null) {
+            return null;
+        }
+        if (WkCacheData == null) {
+            WkCacheData = SmallAttentionKernel.read(WkCache);
+        }
+        return WkCacheData;
+    }
+
+    /*
+     * Output row of one query for its scores before the activation, preA [attentionHeads, timesteps], which may be
+     * modified
+     */
+    private INDArray attend(INDArray curValues, INDArray preA, INDArray exMaskBias, long available) {
+        if (approximate && !training && (topK <= 0 || topK >= available)) {
+            final INDArray attW = ApproximateScoring.attentionWeights(preA, activation, exMaskBias);
+            return reduction.reduce(Nd4j.gemm(curValues, attW, false, true));
+        }
+        return aggregate(curValues, addMaskBias(this.activation.getActivation(preA, training), exMaskBias), available);
+    }
+
+    /*
+     * Softmax over the scores and weighted sum of the values, reduced over the heads to a [1, outputWidth] row.
+     * With top-k, only values of keys selected by at least one head are gathered.
+     */
+    private INDArray aggregate(INDArray curValues, INDArray preS, long available) {
+        final INDArray selection = selectTopK(preS, available);
+        final INDArray att;
+        if (selection == null) {
+            final INDArray attW = softmax.getActivation(preS, null);
+            att = Nd4j.gemm(curValues, attW, false, true);
+        } else {
+            final int[] keyIdx = selectedKeys(selection);
+            final INDArray attW = softmax.getActivation(preS, selection);
+            att = Nd4j.gemm(Nd4j.pullRows(curValues, 0, keyIdx), Nd4j.pullRows(attW, 0, keyIdx), false, true);
+        }
+        return reduction.reduce(att);
+    }
 
-                    bg.addi(dldPreASum.transpose());
+    /*
+     * Returns a [attentionHeads, tsLength] mask with ones at the topK highest unmasked scores of each head, or null
+     * if every unmasked key would be selected anyway. Keys tied with the k-th highest score are selected as well.
+     *
+     * The scores already contain the mask bias, so masked keys can never reach the threshold, as at least topK keys
+     * are unmasked.
+     *
+     * A single Java pass over one copy of the scores: the k-th highest score of a head is found by a partial selection
+     * of a scratch copy of its row, in linear expected time, and the row is compared against it.
+     */
+    private INDArray selectTopK(INDArray preS, long available) {
+        if (topK <= 0 || topK >= available) {
+            return null;
+        }
 
-                    keyG.get(all(), all(), point(example)).addi(Nd4j.gemm(W, dldPreA, false, false));
-                    queryG.get(all(), point(queryIdx), point(example)).addi(Nd4j.gemm(Q, dldPreASum, false, false));
+        final int rows = (int) preS.rows();
+        final int columns = (int) preS.columns();
+        final boolean contiguous = !preS.isView() && Shape.hasDefaultStridesForShape(preS) && preS.length() == preS.data().length();
+        final INDArray source = contiguous ? preS : preS.dup('c');
+        final double[] values = source.data().asDouble();
+        final boolean rowMajor = source.ordering() == 'c';
+
+        final double[] row = new double[columns];
+        final double[] selection = new double[rows * columns];
+        for (int r = 0; r < rows; r++) {
+            for (int column = 0; column < columns; column++) {
+                row[column] = values[rowMajor ? r * columns + column : column * rows + r];
+            }
+            // The k-th highest score is at index columns - topK in ascending order
+            final double threshold = select(row, columns - topK);
+            for (int column = 0; column < columns; column++) {
+                if (values[rowMajor ? r * columns + column : column * rows + r] >= threshold) {
+                    selection[r * columns + column] = 1.0;
                 }
             }
         }
+        return Nd4j.create(selection, new int[]{rows, columns}, 'c');
+    }
+
+    /*
+     * Quickselect: reorders values so that values[index] is the value at index in ascending order, and returns it
+     */
+    private static double select(double[] values, int index) {
+        int left = 0;
+        int right = values.length - 1;
+        while (left < right) {
+            // Median of three as the pivot, so sorted rows don't degrade to quadratic time
+            final int middle = (left + right) >>> 1;
+            if (values[middle] < values[left]) swap(values, left, middle);
+            if (values[right] < values[left]) swap(values, left, right);
+            if (values[right] < values[middle]) swap(values, middle, right);
+            final double pivot = values[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (values[i] < pivot) i++;
+                while (values[j] > pivot) j--;
+                if (i <= j) {
+                    swap(values, i++, j--);
+                }
+            }
+
+            if (index <= j) {
+                right = j;
+            } else if (index >= i) {
+                left = i;
+            } else {
+                return values[index];
+            }
+        }
+        return values[index];
+    }
+
+    private static void swap(double[] values, int i, int j) {
+        final double tmp = values[i];
+        values[i] = values[j];
+        values[j] = tmp;
+    }
+
+    private int[] selectedKeys(INDArray selection) {
+        final double[] selected = selection.max(0).toDoubleVector();
+        int count = 0;
+        for (double s : selected) {
+            if (s != 0.0) count++;
+        }
+
+        final int[] keyIdx = new int[count];
+        for (int i = 0, j = 0; i < selected.length; i++) {
+            if (selected[i] != 0.0) keyIdx[j++] = i;
+        }
+        return keyIdx;
     }
 
     private void assertWeightShapes(INDArray queryWeight, INDArray keyWeight, INDArray bias) {
@@ -235,6 +734,20 @@ public class AdditiveAttentionMechanism {
         }
     }
 
+    private void assertPackedShapes(PackedSequences queries, PackedSequences keys, PackedSequences values) {
+        if ((queries != null && queries.getFeatures() != Q.shape()[0]) || keys.getFeatures() != W.shape()[0]) {
+            throw new IllegalStateException("Packed queries and keys must be compatible to weights, but got: queryWeight.shape() = " + Arrays.toString(Q.shape())
+                    + ", query features = " + (queries == null ? "none" : queries.getFeatures())
+                    + "; keyWeight.shape() = " + Arrays.toString(W.shape())
+                    + ", key features = " + keys.getFeatures());
+        }
+        if (!Arrays.equals(keys.getOffsets(), values.getOffsets()) || (queries != null && queries.getExamples() != keys.getExamples())) {
+            throw new IllegalStateException("Keys and values must be packed the same way, and queries must have as many examples! But got key offsets = "
+                    + Arrays.toString(keys.getOffsets()) + ", value offsets = " + Arrays.toString(values.getOffsets())
+                    + (queries == null ? "" : ", query offsets = " + Arrays.toString(queries.getOffsets())));
+        }
+    }
+
     private void assertShapes(INDArray query, INDArray keys, INDArray values) {
         final long kIn = W.shape()[0];
         final long qIn = Q.shape()[0];
@@ -269,19 +782,19 @@ public class AdditiveAttentionMechanism {
         return subArray(in, example).tensorAlongDimension((int) timestep, 0);
     }
 
-    private INDArray subMask(INDArray mask, long example) {
-        if (mask == null) {
-            return null;
-        } else {
-            return mask.tensorAlongDimension((int) example, 1);
-        }
+    /*
+     * Computed once per minibatch: 0 for unmasked and MASKED_SCORE for masked keys, shape [examples, timesteps]. Added
+     * to the scores, a plain softmax gives zero weight to masked keys, without broadcasting the mask per example.
+     */
+    private INDArray maskBias(INDArray mask) {
+        return mask == null ? null : mask.rsub(1.0).muli(MASKED_SCORE);
     }
 
-    private INDArray attentionHeadMask(INDArray mask, long[] shape) {
-        if (mask == null) {
-            return null;
-        } else {
-            return mask.broadcast(shape);
-        }
+    private double[] unmaskedCounts(INDArray mask) {
+        return mask == null ? null : mask.sum(1).toDoubleVector();
+    }
+
+    private INDArray addMaskBias(INDArray scores, INDArray exMaskBias) {
+        return exMaskBias == null ? scores : scores.addiRowVector(exMaskBias);
     }
 }
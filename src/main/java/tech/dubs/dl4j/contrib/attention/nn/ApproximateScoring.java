@@ -0,0 +1,97 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationTanH;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.shape.Shape;
+import org.nd4j.linalg.factory.Nd4j;
+
+/*
+ *  Fast approximate attention weights for inference: activation of the scores, mask bias and softmax of one query in a
+ *  single pass over its [attentionHeads, timesteps] scores, instead of one native op per step.
+ *
+ *  exp is computed as 2^i * p(f) with i = round(x / ln 2) and a degree 6 Taylor polynomial p on |f| <= ln(2) / 2, its
+ *  relative error is below 3e-7 for x >= -708. Below that it returns 0, which is where doubles become subnormal. tanh
+ *  is computed from that exp as sign(x) * (1 - 2 / (exp(2|x|) + 1)), its absolute error is below 2e-7.
+ *
+ *  Together the attention weights are within a relative error of 1e-6 of the exact ones, well below the precision
+ *  of float networks. Other activation functions than tanh are applied exactly, and only the softmax is approximated.
+ * @author Paul Dubs
+ */
+public class ApproximateScoring {
+    public static final double EXP_RELATIVE_ERROR = 3e-7;
+    public static final double TANH_ABSOLUTE_ERROR = 2e-7;
+    public static final double WEIGHT_RELATIVE_ERROR = 1e-6;
+
+    private static final double LOG2E = 1.4426950408889634;
+    private static final double LN2 = 0.6931471805599453;
+
+    private ApproximateScoring() { }
+
+    public static double exp(double x) {
+        if (x < -708.0) {
+            return 0.0;
+        }
+        if (x > 709.0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        final double i = Math.rint(x * LOG2E);
+        final double f = x - i * LN2;
+        final double p = 1.0 + f * (1.0 + f * (1.0 / 2 + f * (1.0 / 6 + f * (1.0 / 24 + f * (1.0 / 120 + f * (1.0 / 720))))));
+        return p * Double.longBitsToDouble(((long) i + 1023L) << 52);
+    }
+
+    public static double tanh(double x) {
+        final double abs = Math.abs(x);
+        if (abs > 19.0) {
+            // 1 - tanh(19) is below the precision of a double
+            return Math.signum(x);
+        }
+        final double t = 1.0 - 2.0 / (exp(2.0 * abs) + 1.0);
+        return x < 0 ? -t : t;
+    }
+
+    /*
+     * Softmax over every row of activation(preA) + maskBias, shape [attentionHeads, timesteps]. maskBias is a row of
+     * 0 for unmasked and a large negative bias for masked timesteps, or null. preA is not modified.
+     */
+    public static INDArray attentionWeights(INDArray preA, IActivation activation, INDArray maskBias) {
+        final boolean tanh = activation instanceof ActivationTanH;
+        final INDArray scores = tanh ? preA : activation.getActivation(preA.dup(), false);
+
+        final int rows = (int) scores.rows();
+        final int columns = (int) scores.columns();
+        final boolean contiguous = !scores.isView() && Shape.hasDefaultStridesForShape(scores) && scores.length() == scores.data().length();
+        final INDArray source = contiguous ? scores : scores.dup('c');
+        final double[] values = source.data().asDouble();
+        final boolean rowMajor = source.ordering() == 'c';
+        final double[] bias = maskBias == null ? null : maskBias.toDoubleVector();
+
+        final double[] weights = new double[rows * columns];
+        for (int row = 0; row < rows; row++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int column = 0; column < columns; column++) {
+                double s = values[rowMajor ? row * columns + column : column * rows + row];
+                if (tanh) {
+                    s = tanh(s);
+                }
+                if (bias != null) {
+                    s += bias[column];
+                }
+                weights[row * columns + column] = s;
+                max = Math.max(max, s);
+            }
+
+            double sum = 0.0;
+            for (int column = 0; column < columns; column++) {
+                final double e = exp(weights[row * columns + column] - max);
+                weights[row * columns + column] = e;
+                sum += e;
+            }
+            for (int column = 0; column < columns; column++) {
+                weights[row * columns + column] /= sum;
+            }
+        }
+        return Nd4j.create(weights, new int[]{rows, columns}, 'c');
+    }
+}
@@ -0,0 +1,274 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.function.Function;
+
+/*
+ *  Picks the fastest execution strategy of an attention layer per shape bucket. The first time a bucket is seen, every
+ *  candidate strategy is run a few times on the actual input and timed, the fastest one is kept for the bucket and
+ *  used from then on. All strategies compute the same output, so the output of the trials is returned as the result of
+ *  that call.
+ *
+ *  Decisions are persisted to a properties file, so a restarted process reuses them without timing again. Buckets
+ *  include the number of cores, decisions of other machines sharing the file are not reused. Every decision is logged,
+ *  and the counters and decisions can be read for metrics.
+ * @author Paul Dubs
+ */
+public class AttentionAutotuner {
+    private static final Logger log = LoggerFactory.getLogger(AttentionAutotuner.class);
+    private static final Map<Path, AttentionAutotuner> SHARED = new HashMap<>();
+
+    private final Path file;
+    private final int trials;
+    private final Map<String, Strategy> decisions = new TreeMap<>();
+
+    private long tunedBuckets;
+    private long timedRuns;
+    private long reusedDecisions;
+
+    /*
+     * file may be null to keep the decisions in memory only. Every candidate is timed trials times, and its fastest
+     * run counts.
+     */
+    public AttentionAutotuner(Path file, int trials) {
+        if (trials < 1) {
+            throw new IllegalStateException("trials must be positive, but got " + trials);
+        }
+        this.file = file;
+        this.trials = trials;
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+    }
+
+    /*
+     * One tuner per file, shared by all layers of the process that persist to it
+     */
+    public static AttentionAutotuner forFile(String file) {
+        final Path path = Paths.get(file).toAbsolutePath().normalize();
+        synchronized (SHARED) {
+            return SHARED.computeIfAbsent(path, p -> new AttentionAutotuner(p, 3));
+        }
+    }
+
+    /*
+     * Runs attend with the strategy decided for the bucket, after timing all candidates if there is none yet. A
+     * persisted decision that is not among the candidates is tuned again.
+     */
+    public INDArray run(String bucket, List<Strategy> candidates, Function<Strategy, INDArray> attend) {
+        if (candidates.isEmpty()) {
+            throw new IllegalStateException("At least one candidate strategy is required for " + bucket);
+        }
+
+        synchronized (this) {
+            final Strategy decided = decisions.get(bucket);
+            if (decided != null && candidates.contains(decided)) {
+                reusedDecisions++;
+                return attend.apply(decided);
+            }
+        }
+
+        if (candidates.size() == 1) {
+            decide(bucket, candidates.get(0), Collections.singletonMap(candidates.get(0), 0L));
+            return attend.apply(candidates.get(0));
+        }
+
+        final Map<Strategy, Long> timings = new LinkedHashMap<>();
+        INDArray result = null;
+        Strategy fastest = null;
+        for (Strategy candidate : candidates) {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < trials; i++) {
+                final long start = System.nanoTime();
+                result = attend.apply(candidate);
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            timings.put(candidate, best);
+            if (fastest == null || best < timings.get(fastest)) {
+                fastest = candidate;
+            }
+        }
+
+        synchronized (this) {
+            timedRuns += (long) candidates.size() * trials;
+        }
+        decide(bucket, fastest, timings);
+        return result;
+    }
+
+    private void decide(String bucket, Strategy strategy, Map<Strategy, Long> timings) {
+        synchronized (this) {
+            decisions.put(bucket, strategy);
+            tunedBuckets++;
+            if (file != null) {
+                save();
+            }
+        }
+        log.info("Autotuned {}: {} (timings in ns: {})", bucket, strategy, timings);
+    }
+
+    public synchronized Strategy getDecision(String bucket) {
+        return decisions.get(bucket);
+    }
+
+    public synchronized Map<String, Strategy> getDecisions() {
+        return new TreeMap<>(decisions);
+    }
+
+    /*
+     * Number of buckets tuned by this process, not counting decisions loaded from the file
+     */
+    public synchronized long getTunedBuckets() {
+        return tunedBuckets;
+    }
+
+    /*
+     * Number of timed candidate runs
+     */
+    public synchronized long getTimedRuns() {
+        return timedRuns;
+    }
+
+    /*
+     * Number of calls that used an existing decision
+     */
+    public synchronized long getReusedDecisions() {
+        return reusedDecisions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "AttentionAutotuner(file=" + file + ", decisions=" + decisions.size() + ", tunedBuckets=" + tunedBuckets
+                + ", timedRuns=" + timedRuns + ", reusedDecisions=" + reusedDecisions + ")";
+    }
+
+    /*
+     * Sizes are bucketed to the next power of two, so similar shapes share their decision
+     */
+    public static long sizeBucket(long size) {
+        long bucket = 1;
+        while (bucket < size) {
+            bucket <<= 1;
+        }
+        return bucket;
+    }
+
+    /*
+     * Bucket name for the given layer kind and shape description, including the number of cores of this machine
+     */
+    public static String bucket(String kind, String shape) {
+        return kind + "[" + shape + ", cores=" + Runtime.getRuntime().availableProcessors() + "]";
+    }
+
+    private void load() {
+        final Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            log.warn("Could not read autotuning decisions from {}, tuning again", file, e);
+            return;
+        }
+        for (String bucket : properties.stringPropertyNames()) {
+            try {
+                decisions.put(bucket, Strategy.parse(properties.getProperty(bucket)));
+            } catch (IllegalStateException e) {
+                log.warn("Ignoring autotuning decision {} = {} in {}", bucket, properties.getProperty(bucket), file);
+            }
+        }
+        log.info("Loaded {} autotuning decisions from {}", decisions.size(), file);
+    }
+
+    /*
+     * Writes all decisions to a temporary file next to the target and moves it over, so readers never see a partial
+     * file. Failing to persist only costs tuning again after a restart.
+     */
+    private void save() {
+        final Properties properties = new Properties();
+        for (Map.Entry<String, Strategy> decision : decisions.entrySet()) {
+            properties.setProperty(decision.getKey(), decision.getValue().toString());
+        }
+        try {
+            final Path parent = file.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            final Path tmp = Files.createTempFile(parent == null ? Paths.get(".") : parent, file.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, "Attention autotuning decisions");
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Could not persist autotuning decisions to {}", file, e);
+        }
+    }
+
+    /*
+     * How AdditiveAttentionMechanism runs the queries: with the keys of all examples projected in one GEMM (see
+     * AdditiveAttentionMechanism.useCaching) or per example, and on how many threads (see withQueryThreads).
+     */
+    public static class Strategy {
+        private final boolean batchedKeys;
+        private final int queryThreads;
+
+        public Strategy(boolean batchedKeys, int queryThreads) {
+            if (queryThreads < 1) {
+                throw new IllegalStateException("queryThreads must be positive, but got " + queryThreads);
+            }
+            this.batchedKeys = batchedKeys;
+            this.queryThreads = queryThreads;
+        }
+
+        public boolean isBatchedKeys() {
+            return batchedKeys;
+        }
+
+        public int getQueryThreads() {
+            return queryThreads;
+        }
+
+        public static Strategy parse(String value) {
+            final String[] parts = value.trim().split("\\s*,\\s*");
+            if (parts.length != 2 || !parts[0].startsWith("batchedKeys=") || !parts[1].startsWith("queryThreads=")) {
+                throw new IllegalStateException("Strategy must have the form batchedKeys=<boolean>, queryThreads=<int>, but got " + value);
+            }
+            try {
+                return new Strategy(Boolean.parseBoolean(parts[0].substring("batchedKeys=".length())),
+                        Integer.parseInt(parts[1].substring("queryThreads=".length())));
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("Strategy must have the form batchedKeys=<boolean>, queryThreads=<int>, but got " + value, e);
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Strategy && batchedKeys == ((Strategy) o).batchedKeys && queryThreads == ((Strategy) o).queryThreads;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (batchedKeys ? 1 : 0) + queryThreads;
+        }
+
+        @Override
+        public String toString() {
+            return "batchedKeys=" + batchedKeys + ", queryThreads=" + queryThreads;
+        }
+    }
+}
@@ -0,0 +1,733 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.factory.Nd4j;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionCostEstimate;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+
+/*
+ * Static cost model of the attention layers. It walks through the same steps as AdditiveAttentionMechanism,
+ * LinearAttentionMechanism and the layers, for given shapes instead of arrays, so it has to be kept in sync with them.
+ *
+ * Masks are described by their density, the fraction of unmasked timesteps, which is assumed to be the same for every
+ * example. A density of 1 means no mask at all.
+ *
+ * Native op invocations per step (OPS_* and the constants in the layer methods) are not derived, but calibrated
+ * against the invocation counts of OpProfiler for the current implementation, see the CostModel test. They are the
+ * counts of repeated calls, the first call of some ops is counted twice. Attention run by SmallAttentionKernel needs
+ * no native ops at all, only its arithmetic and memory traffic are counted.
+ *
+ * @author Paul Dubs
+ */
+public class AttentionCostModel {
+    // AdditiveAttentionMechanism.query and queryFolded: per query, per example with uncached key projection and per masked call
+    private static final int OPS_QUERY = 5;
+    private static final int OPS_FOLDED_QUERY = 3;
+    private static final int OPS_TOP_K_QUERY = 7;
+    // The folded scores of an example are a view, which the selection copies first
+    private static final int OPS_TOP_K_FOLDED_QUERY = 8;
+    private static final int OPS_KEY_PROJECTION = 1;
+    private static final int OPS_MASK = 4;
+    private static final int OPS_MASKED_QUERY = 1;
+
+    // AdditiveAttentionMechanism.backprop: per query
+    private static final int OPS_BACKPROP = 19;
+    private static final int OPS_TOP_K_BACKPROP = 5;
+
+    // HeadReduction: additional ops over concatenated heads, per query (additive) or per example and attention head
+    // (linear). The additive head gradients replace the two copies of the strided epsilon slice of a query, only a
+    // single query per example has one copy less.
+    private static final int OPS_MEAN_REDUCTION = 1;
+    private static final int OPS_LINEAR_MEAN_REDUCTION = 1;
+    private static final int OPS_LINEAR_PROJECTION_REDUCTION = 1;
+    private static final int OPS_LINEAR_MEAN_HEAD_GRADIENT = 3;
+    private static final int OPS_LINEAR_PROJECTION_HEAD_GRADIENT = 5;
+
+    // MemoryPooling: reading the mask for the pooling weights, padding the last window, weighting, summing and copying
+    // the windows, and spreading the gradient of a window to one of its offsets or weighting and accumulating it
+    private static final int OPS_MEMORY_POOLING_SETUP = 1;
+    private static final int OPS_MEMORY_POOLING_PADDING = 1;
+    private static final int OPS_MEMORY_POOLING = 4;
+    private static final int OPS_MEMORY_POOLING_SPREAD = 1;
+    private static final int OPS_MEMORY_POOLING_BACKPROP = 2;
+
+    // LinearAttentionMechanism: per example and attention head
+    private static final int OPS_LINEAR_QUERY = 16;
+    private static final int OPS_LINEAR_BACKPROP = 43;
+
+    private AttentionCostModel() { }
+
+    public static void checkArguments(InputType inputType, long minibatch, double maskDensity) {
+        if (inputType == null || inputType.getType() != InputType.Type.RNN || ((InputType.InputTypeRecurrent) inputType).getTimeSeriesLength() <= 0) {
+            throw new IllegalStateException("Cost estimates need an RNN input type with known time series length, but got: " + inputType);
+        }
+        if (minibatch <= 0) {
+            throw new IllegalStateException("minibatch must be positive, but got " + minibatch);
+        }
+        if (maskDensity < 0.0 || maskDensity > 1.0) {
+            throw new IllegalStateException("maskDensity must be between 0 and 1, but got " + maskDensity);
+        }
+    }
+
+    public static AttentionCostEstimate selfAttention(long examples, long tsLength, long nIn, long attentionHeads, int topK,
+                                                      AttentionOutputMode outputMode, long projectionSize, double maskDensity, boolean training,
+                                                      IActivation activation, long smallShapeThreshold) {
+        final Additive attention = new Additive(examples, 1, tsLength, nIn, nIn, nIn, attentionHeads, topK, outputMode, projectionSize, maskDensity,
+                activation, smallShapeThreshold);
+        final long outputWidth = attention.outputWidth;
+
+        final Pass forward = new Pass();
+        forward.allocate(nIn * tsLength * examples);
+        forward.elementwise(1, nIn * tsLength * examples, 0, 1);
+        if (training) {
+            // Broadcast parameter query
+            forward.elementwise(1, nIn * examples, 0, 1);
+            attention.query(forward, false);
+            attention.copies(forward, 1);
+            forward.ops(4);
+        } else {
+            // Query is a parameter, Q*q + b is folded once for all examples
+            forward.gemm(1, attentionHeads, 1, nIn);
+            forward.elementwise(1, attentionHeads, 1, 2);
+            attention.queryFolded(forward);
+            forward.ops(3);
+        }
+        forward.elementwise(1, examples * outputWidth, 0, 1);
+
+        if (!training) {
+            return forward.estimate(null);
+        }
+
+        final Pass backward = new Pass();
+        backward.allocate(2 * nIn * tsLength * examples + nIn * examples);
+        backward.elementwise(1, nIn * tsLength * examples, 0, 1);
+        backward.elementwise(1, nIn * examples, 0, 1);
+        attention.backprop(backward, false);
+        attention.copies(backward, 1);
+        backward.elementwise(1, nIn * examples, 1, 1);
+        backward.elementwise(1, nIn * tsLength * examples, 0, 1);
+        backward.ops(6);
+        return forward.estimate(backward);
+    }
+
+    public static AttentionCostEstimate timestepAttention(long examples, long tsLength, long nIn, long attentionHeads, int topK,
+                                                          boolean linearAttention, int keyStride, AttentionOutputMode outputMode,
+                                                          long projectionSize, double maskDensity, boolean training,
+                                                          IActivation activation, long smallShapeThreshold) {
+        final long memoryLength = keyStride > 1 ? MemoryPooling.pooledLength(tsLength, keyStride) : tsLength;
+        final Additive additive = new Additive(examples, tsLength, memoryLength, nIn, nIn, nIn, attentionHeads, topK, outputMode, projectionSize, maskDensity,
+                activation, smallShapeThreshold);
+        final Linear linear = new Linear(examples, tsLength, memoryLength, nIn, attentionHeads, outputMode, projectionSize, maskDensity);
+
+        final Pass forward = new Pass();
+        forward.allocate(nIn * tsLength * examples);
+        forward.elementwise(1, nIn * tsLength * examples, 0, 1);
+        if (keyStride > 1) {
+            pool(forward, examples, tsLength, memoryLength, keyStride, nIn, maskDensity < 1.0);
+        }
+        if (linearAttention) {
+            linear.query(forward);
+        } else {
+            additive.query(forward, false);
+        }
+        forward.elementwise(1, examples * additive.outputWidth * tsLength, 0, 1);
+        forward.ops(2);
+
+        if (!training) {
+            return forward.estimate(null);
+        }
+
+        final Pass backward = new Pass();
+        backward.allocate(2 * nIn * tsLength * examples);
+        backward.elementwise(1, nIn * tsLength * examples, 0, 1);
+        if (keyStride > 1) {
+            pool(backward, examples, tsLength, memoryLength, keyStride, nIn, maskDensity < 1.0);
+            backward.allocate(nIn * memoryLength * examples);
+        }
+        if (linearAttention) {
+            linear.backprop(backward);
+            backward.ops(1);
+        } else {
+            additive.backprop(backward, false);
+            additive.copies(backward, 1);
+        }
+        if (keyStride > 1) {
+            // Gradient of the pooled memory back to every timestep of its window
+            final long paddedLength = memoryLength * keyStride;
+            backward.allocate(nIn * paddedLength * examples);
+            backward.elementwise(keyStride, nIn * memoryLength * examples, 0, 1);
+            backward.elementwise(1, nIn * paddedLength * examples, 1, 2);
+            backward.elementwise(1, nIn * tsLength * examples, 1, 2);
+            backward.ops(OPS_MEMORY_POOLING_SPREAD * keyStride + OPS_MEMORY_POOLING_BACKPROP);
+        }
+        backward.elementwise(1, nIn * tsLength * examples, 0, 1);
+        backward.ops(3);
+        return forward.estimate(backward);
+    }
+
+    /*
+     * Mask-aware mean pooling of keys and values with MemoryPooling: the memory, padded to full windows if needed, is
+     * weighted per timestep and summed over every window, then copied into the pooled memory. Only a mask needs a setup
+     * op, to read it.
+     */
+    private static void pool(Pass pass, long examples, long tsLength, long memoryLength, int keyStride, long nIn, boolean masked) {
+        final long paddedLength = memoryLength * keyStride;
+        final boolean padded = paddedLength != tsLength;
+        pass.allocate(paddedLength * examples + (padded ? nIn * paddedLength * examples : 0) + nIn * paddedLength * examples
+                + 2 * nIn * memoryLength * examples);
+        if (padded) {
+            pass.elementwise(1, nIn * tsLength * examples, 0, 1);
+        }
+        pass.elementwise(1, nIn * paddedLength * examples, 1, 2);
+        pass.elementwise(1, nIn * paddedLength * examples, 1, 1);
+        pass.elementwise(1, nIn * memoryLength * examples, 0, 1);
+        pass.ops((masked ? OPS_MEMORY_POOLING_SETUP : 0) + (padded ? OPS_MEMORY_POOLING_PADDING : 0) + OPS_MEMORY_POOLING);
+    }
+
+    public static AttentionCostEstimate recurrentAttention(long examples, long tsLength, long nIn, long nOut,
+                                                           double maskDensity, boolean training, IActivation activation,
+                                                           long smallShapeThreshold) {
+        // A single attention head over the input, queried by the previous activation. With nOut <= nIn the values are
+        // projected through Wr once, and every step aggregates them directly.
+        final boolean preProject = nOut <= nIn;
+        final Additive attention = new Additive(examples, 1, tsLength, nIn, preProject ? nOut : nIn, nOut, 1, 0, AttentionOutputMode.CONCAT, 0, maskDensity,
+                activation, smallShapeThreshold);
+        final long steps = Math.max(0, tsLength - 1);
+
+        final Pass forward = new Pass();
+        recurrentForward(forward, attention, examples, tsLength, nIn, nOut, preProject, false);
+
+        if (!training) {
+            return forward.estimate(null);
+        }
+
+        final Pass backward = new Pass();
+        // preOut, attentions or the gradient of the pre-projected values, dldzs and epsOut
+        backward.allocate(2 * nOut * tsLength * examples + (preProject ? nOut : nIn) * tsLength * examples
+                + nIn * tsLength * examples);
+        recurrentForward(backward, attention, examples, tsLength, nIn, nOut, preProject, true);
+
+        backward.elementwise(tsLength, nOut * examples, 3, 2);
+        backward.elementwise(tsLength, nOut * examples, 0, 1);
+        backward.elementwise(steps, nOut * examples, 0, 1);
+        if (!preProject) {
+            backward.gemm(steps, examples, nIn, nOut);
+        }
+        for (long step = 0; step < steps; step++) {
+            attention.backprop(backward, true);
+        }
+        backward.elementwise(steps, nOut * examples, 1, 2);
+        // The strided query view of every example for the Q gradient, besides the query and epsilon of every step
+        attention.copies(backward, 2 * steps + examples * steps);
+        backward.ops((preProject ? 6 : 8) * steps);
+
+        // W, Wr and b gradients of all timesteps at once
+        backward.gemm(2, nIn, nOut, tsLength * examples);
+        backward.elementwise(1, nOut * tsLength * examples, 1, 1);
+        backward.gemm(1, nIn, tsLength * examples, nOut);
+        backward.elementwise(1, nIn * tsLength * examples, 1, 2);
+        if (preProject) {
+            // Gradient of the input through the pre-projected values, accumulated by the GEMM
+            backward.gemm(1, nIn, tsLength * examples, nOut);
+        }
+        backward.elementwise(1, nIn * tsLength * examples, 0, 1);
+        backward.ops(preProject ? 9 : 10);
+        return forward.estimate(backward);
+    }
+
+    /*
+     * The forward pass of RecurrentAttentionLayer, which its backward pass repeats while keeping the attentions and
+     * pre activations of every step.
+     */
+    private static void recurrentForward(Pass pass, Additive attention, long examples, long tsLength, long nIn, long nOut, boolean preProject, boolean keep) {
+        final long steps = Math.max(0, tsLength - 1);
+
+        pass.allocate(nIn * tsLength * examples);
+        pass.elementwise(1, nIn * tsLength * examples, 0, 1);
+
+        // Non-recurrent part
+        pass.allocate(nOut * tsLength * examples);
+        pass.gemm(1, nOut, tsLength * examples, nIn);
+        pass.elementwise(1, nOut * tsLength * examples, 1, 2);
+        pass.elementwise(1, nOut * tsLength * examples, 0, 1);
+
+        attention.projectKeys(pass);
+        if (preProject) {
+            pass.allocate(nOut * tsLength * examples);
+            pass.gemm(1, nOut, tsLength * examples, nIn);
+        }
+        for (long step = 0; step < steps; step++) {
+            attention.query(pass, true);
+        }
+        if (!preProject) {
+            pass.gemm(steps, examples, nOut, nIn);
+        }
+        pass.elementwise(steps, nOut * examples, 1, 2);
+        pass.elementwise(tsLength, nOut * examples, 1, 1);
+        if (keep) {
+            if (!preProject) {
+                pass.elementwise(steps, nIn * examples, 0, 1);
+            }
+            pass.elementwise(tsLength, nOut * examples, 0, 1);
+        }
+        attention.copies(pass, steps);
+        pass.ops(2 * steps + 4);
+    }
+
+    /*
+     * AdditiveAttentionMechanism for queryCount queries per example over tsLength keys.
+     */
+    private static class Additive {
+        private final long examples;
+        private final long queryCount;
+        private final long tsLength;
+        private final long memoryWidth;
+        private final long valueWidth;
+        private final long queryWidth;
+        private final long attentionHeads;
+        private final AttentionOutputMode outputMode;
+        private final long outputWidth;
+        private final boolean masked;
+        private final boolean empty;
+        private final boolean selecting;
+        // Keys the values are aggregated over
+        private final long gathered;
+        // Run by SmallAttentionKernel, without native ops
+        private final boolean smallShapes;
+
+        private Additive(long examples, long queryCount, long tsLength, long memoryWidth, long valueWidth, long queryWidth, long attentionHeads,
+                         int topK, AttentionOutputMode outputMode, long projectionSize, double maskDensity, IActivation activation,
+                         long smallShapeThreshold) {
+            this.examples = examples;
+            this.queryCount = queryCount;
+            this.tsLength = tsLength;
+            this.memoryWidth = memoryWidth;
+            this.valueWidth = valueWidth;
+            this.queryWidth = queryWidth;
+            this.attentionHeads = attentionHeads;
+            this.outputMode = outputMode;
+            this.outputWidth = outputWidth(outputMode, projectionSize, valueWidth, attentionHeads);
+
+            final long available = Math.round(maskDensity * tsLength);
+            this.masked = maskDensity < 1.0;
+            this.empty = available == 0;
+            this.selecting = topK > 0 && topK < available;
+            // Upper bound: heads selecting different keys
+            this.gathered = selecting ? Math.min(available, attentionHeads * topK) : tsLength;
+            this.smallShapes = SmallAttentionKernel.applies(smallShapeThreshold, activation, topK, outputMode, attentionHeads, tsLength,
+                    Math.max(Math.max(memoryWidth, queryWidth), valueWidth));
+        }
+
+        private void projectKeys(Pass pass) {
+            pass.allocate(attentionHeads * tsLength * examples);
+            pass.gemm(1, attentionHeads, tsLength * examples, memoryWidth);
+            pass.elementwise(1, attentionHeads * tsLength * examples, 1, 2);
+            pass.ops(OPS_KEY_PROJECTION);
+        }
+
+        private void query(Pass pass, boolean cachedKeys) {
+            final long queries = examples * queryCount;
+            final long scores = attentionHeads * tsLength;
+
+            pass.allocate(examples * outputWidth * queryCount + attentionHeads * queries);
+            pass.gemm(1, attentionHeads, queries, queryWidth);
+            mask(pass);
+            if (empty) {
+                pass.elementwise(examples, outputWidth * queryCount, 0, 1);
+                ops(pass, examples);
+                return;
+            }
+            if (!cachedKeys) {
+                keyProjections(pass, examples);
+            }
+
+            pass.allocate(queryWorkingMemory());
+            pass.elementwise(queries, scores, 1, 2);
+            pass.elementwise(queries, scores, 1, 1);
+            scores(pass, queries);
+            ops(pass, OPS_QUERY * queries + (selecting ? OPS_TOP_K_QUERY * queries : 0));
+            pass.release(queryWorkingMemory());
+        }
+
+        private void queryFolded(Pass pass) {
+            final long scores = attentionHeads * tsLength;
+
+            pass.allocate(examples * outputWidth + scores * examples);
+            pass.gemm(1, attentionHeads, tsLength * examples, memoryWidth);
+            pass.elementwise(1, scores * examples, 1, 2);
+            ops(pass, 1);
+            mask(pass);
+            if (empty) {
+                pass.elementwise(examples, outputWidth, 0, 1);
+                ops(pass, examples);
+                return;
+            }
+
+            pass.allocate(queryWorkingMemory());
+            pass.elementwise(examples, scores, 1, 1);
+            scores(pass, examples);
+            ops(pass, OPS_FOLDED_QUERY * examples + (selecting ? OPS_TOP_K_FOLDED_QUERY * examples : 0));
+            pass.release(queryWorkingMemory());
+        }
+
+        private void backprop(Pass pass, boolean cachedKeys) {
+            final long queries = examples * queryCount;
+            final long scores = attentionHeads * tsLength;
+            final long perQuery = 4 * scores + (memoryWidth + valueWidth) * tsLength + valueWidth * attentionHeads;
+
+            // Epsilon in c order
+            pass.elementwise(1, examples * outputWidth * queryCount, 0, 1);
+            pass.allocate(attentionHeads * queries);
+            pass.gemm(1, attentionHeads, queries, queryWidth);
+            mask(pass);
+            if (empty) {
+                return;
+            }
+            if (!cachedKeys) {
+                keyProjections(pass, examples);
+            }
+
+            pass.allocate(queryWorkingMemory() + perQuery);
+            // Scores again, and their activation from a copy of the pre activation
+            pass.elementwise(queries, scores, 1, 2);
+            pass.elementwise(queries, scores, 0, 1);
+            pass.elementwise(queries, scores, 1, 1);
+            if (masked) {
+                pass.elementwise(queries, scores, 1, 2);
+            }
+            selection(pass, queries);
+            pass.elementwise(queries, scores, 5, 1);
+            headGradients(pass, queries);
+
+            // Values, softmax and activation
+            pass.gemm(queries, valueWidth, tsLength, attentionHeads);
+            pass.elementwise(queries, valueWidth * tsLength, 1, 2);
+            pass.gemm(queries, attentionHeads, tsLength, valueWidth);
+            pass.elementwise(queries, scores, 4, 3);
+            pass.elementwise(queries, scores, 3, 2);
+            pass.elementwise(queries, scores, 1, 1);
+
+            pass.gemm(queries, queryWidth, attentionHeads, 1);
+            pass.gemm(queries, memoryWidth, attentionHeads, tsLength);
+            pass.elementwise(queries, attentionHeads, 1, 2);
+            pass.gemm(queries, memoryWidth, tsLength, attentionHeads);
+            pass.elementwise(queries, memoryWidth * tsLength, 1, 2);
+            pass.gemm(queries, queryWidth, 1, attentionHeads);
+            pass.elementwise(queries, queryWidth, 1, 2);
+
+            ops(pass, OPS_BACKPROP * queries
+                    + (masked ? OPS_MASKED_QUERY * queries : 0)
+                    + (selecting ? OPS_TOP_K_BACKPROP * queries : 0));
+            pass.release(queryWorkingMemory() + perQuery);
+        }
+
+        private void mask(Pass pass) {
+            if (masked) {
+                // Mask bias and unmasked counts, once per call
+                pass.allocate(examples * tsLength);
+                pass.elementwise(2, examples * tsLength, 1, 1);
+                pass.elementwise(1, examples * tsLength, 1, 1);
+                ops(pass, OPS_MASK);
+            }
+        }
+
+        private void keyProjections(Pass pass, long count) {
+            pass.gemm(count, attentionHeads, tsLength, memoryWidth);
+            pass.elementwise(count, attentionHeads * tsLength, 1, 2);
+            ops(pass, OPS_KEY_PROJECTION * count);
+        }
+
+        /*
+         * Mask bias, top-k selection, softmax and aggregation of the activated scores of count queries.
+         */
+        private void scores(Pass pass, long count) {
+            final long scores = attentionHeads * tsLength;
+            if (masked) {
+                pass.elementwise(count, scores, 1, 2);
+                ops(pass, OPS_MASKED_QUERY * count);
+            }
+            selection(pass, count);
+            pass.elementwise(count, scores, 5, 1);
+            if (selecting) {
+                // Gathered values and weights
+                pass.elementwise(count, (valueWidth + attentionHeads) * gathered, 0, 1);
+            }
+            pass.gemm(count, valueWidth, attentionHeads, gathered);
+            reduce(pass, count);
+            pass.elementwise(count, outputWidth, 0, 1);
+        }
+
+        /*
+         * HeadReduction of the [valueWidth, attentionHeads] head outputs of count queries to their output rows.
+         */
+        private void reduce(Pass pass, long count) {
+            if (outputMode == AttentionOutputMode.MEAN) {
+                pass.elementwise(count, valueWidth * attentionHeads, 1, 1);
+                ops(pass, OPS_MEAN_REDUCTION * count);
+            } else if (outputMode == AttentionOutputMode.PROJECTION) {
+                pass.gemm(count, 1, outputWidth, valueWidth * attentionHeads);
+            }
+        }
+
+        /*
+         * Gradients of the head outputs of count queries from the gradients of their output rows, plus the projection
+         * gradient. Concatenated heads only need a reshape.
+         */
+        private void headGradients(Pass pass, long count) {
+            final long heads = valueWidth * attentionHeads;
+            if (outputMode == AttentionOutputMode.MEAN) {
+                pass.elementwise(count, heads, 0, 1);
+                pass.elementwise(count, valueWidth, 1, 1);
+                pass.elementwise(count, heads, 1, 2);
+                ops(pass, queryCount == 1 ? OPS_MEAN_REDUCTION * count : 0);
+            } else if (outputMode == AttentionOutputMode.PROJECTION) {
+                // Head outputs again, outer product with the epsilon and back through the projection
+                pass.gemm(count, valueWidth, attentionHeads, tsLength);
+                pass.gemm(count, heads, outputWidth, 1);
+                pass.gemm(count, heads, 1, outputWidth);
+            }
+        }
+
+        private void selection(Pass pass, long count) {
+            if (selecting) {
+                final long scores = attentionHeads * tsLength;
+                // Partial selection over a copy of the scores, selection and selected keys
+                pass.elementwise(count, scores, 2, 1);
+                pass.elementwise(count, scores, 1, 1);
+                pass.elementwise(count, scores, 1, 1);
+            }
+        }
+
+        /*
+         * Copies of count query or epsilon views that the native ops can not reshape in place, the kernel reads them
+         * as they are
+         */
+        private void copies(Pass pass, long count) {
+            ops(pass, count);
+        }
+
+        /*
+         * Native op invocations, none if the kernel runs the attention
+         */
+        private void ops(Pass pass, long count) {
+            if (!smallShapes) {
+                pass.ops(count);
+            }
+        }
+
+        private long queryWorkingMemory() {
+            final long scores = attentionHeads * tsLength;
+            final long working = 3 * scores + 2 * valueWidth * attentionHeads + outputWidth;
+            return selecting ? working + 3 * scores + (valueWidth + attentionHeads) * gathered : working;
+        }
+    }
+
+    /*
+     * LinearAttentionMechanism for queryCount queries per example over tsLength keys.
+     */
+    private static class Linear {
+        private final long examples;
+        private final long queryCount;
+        private final long tsLength;
+        private final long memoryWidth;
+        private final long attentionHeads;
+        private final AttentionOutputMode outputMode;
+        private final long outputWidth;
+        private final boolean masked;
+
+        private Linear(long examples, long queryCount, long tsLength, long memoryWidth, long attentionHeads,
+                       AttentionOutputMode outputMode, long projectionSize, double maskDensity) {
+            this.examples = examples;
+            this.queryCount = queryCount;
+            this.tsLength = tsLength;
+            this.memoryWidth = memoryWidth;
+            this.attentionHeads = attentionHeads;
+            this.outputMode = outputMode;
+            this.outputWidth = outputWidth(outputMode, projectionSize, memoryWidth, attentionHeads);
+            this.masked = maskDensity < 1.0;
+        }
+
+        private void query(Pass pass) {
+            final long heads = examples * attentionHeads;
+            final long keys = memoryWidth * tsLength;
+            final long queries = memoryWidth * queryCount;
+
+            pass.allocate(memoryWidth * memoryWidth * heads + memoryWidth * heads + examples * outputWidth * queryCount);
+            pass.allocate(2 * keys + 2 * queries + memoryWidth * memoryWidth);
+
+            // Summaries: key features, masked, and their products with the values
+            keyFeatures(pass, heads);
+            pass.gemm(heads, memoryWidth, memoryWidth, tsLength);
+            pass.elementwise(heads, memoryWidth * memoryWidth, 1, 2);
+            pass.elementwise(heads, keys, 1, 1);
+            pass.elementwise(heads, memoryWidth, 1, 2);
+
+            // Queries against the summaries, examples without unmasked keys are found by their normalizer sums
+            pass.elementwise(1, memoryWidth * heads, 1, 1);
+            pass.ops(1);
+            queryFeatures(pass, heads);
+            pass.gemm(heads, memoryWidth, queryCount, memoryWidth);
+            pass.gemm(heads, 1, queryCount, memoryWidth);
+            pass.elementwise(heads, queries, 1, 2);
+            if (outputMode == AttentionOutputMode.MEAN) {
+                pass.elementwise(heads, queries, 1, 1);
+                pass.elementwise(heads, queries, 1, 2);
+                pass.ops(OPS_LINEAR_MEAN_REDUCTION * heads);
+            } else if (outputMode == AttentionOutputMode.PROJECTION) {
+                pass.gemm(heads, outputWidth, queryCount, memoryWidth);
+                pass.elementwise(heads, outputWidth * queryCount, 1, 2);
+                pass.ops(OPS_LINEAR_PROJECTION_REDUCTION * heads);
+            } else {
+                pass.elementwise(heads, queries, 0, 1);
+            }
+
+            pass.ops(OPS_LINEAR_QUERY * heads + (masked ? heads : 0));
+            pass.release(2 * keys + 2 * queries + memoryWidth * memoryWidth);
+        }
+
+        private void backprop(Pass pass) {
+            final long heads = examples * attentionHeads;
+            final long keys = memoryWidth * tsLength;
+            final long queries = memoryWidth * queryCount;
+
+            // Epsilon in c order, and the unmasked counts
+            pass.elementwise(1, examples * outputWidth * queryCount, 0, 1);
+            if (masked) {
+                pass.elementwise(1, examples * tsLength, 1, 1);
+                pass.ops(1);
+            }
+            pass.allocate(6 * keys + 6 * queries + 2 * memoryWidth * memoryWidth);
+
+            // Forward again
+            keyFeatures(pass, heads);
+            queryFeatures(pass, heads);
+            pass.gemm(heads, memoryWidth, memoryWidth, tsLength);
+            pass.elementwise(heads, keys, 1, 1);
+            pass.gemm(heads, memoryWidth, queryCount, memoryWidth);
+            pass.gemm(heads, 1, queryCount, memoryWidth);
+
+            // Numerator and denominator
+            pass.elementwise(heads, queries, 1, 2);
+            pass.elementwise(heads, queries, 1, 2);
+            pass.elementwise(heads, queries, 1, 1);
+            pass.elementwise(3 * heads, queryCount, 1, 2);
+            if (outputMode == AttentionOutputMode.MEAN) {
+                pass.elementwise(heads, queries, 1, 1);
+                pass.ops(OPS_LINEAR_MEAN_HEAD_GRADIENT * heads);
+            } else if (outputMode == AttentionOutputMode.PROJECTION) {
+                // Head output, projection gradient and back through the projection
+                pass.elementwise(heads, queries, 1, 2);
+                pass.gemm(heads, memoryWidth, outputWidth, queryCount);
+                pass.elementwise(heads, memoryWidth * outputWidth, 1, 2);
+                pass.gemm(heads, memoryWidth, queryCount, outputWidth);
+                pass.ops(OPS_LINEAR_PROJECTION_HEAD_GRADIENT * heads);
+            }
+
+            // Query features, summaries, key features and values
+            pass.gemm(heads, memoryWidth, queryCount, memoryWidth);
+            pass.gemm(heads, memoryWidth, queryCount, 1);
+            pass.elementwise(heads, queries, 1, 2);
+            pass.gemm(heads, memoryWidth, memoryWidth, queryCount);
+            pass.gemm(heads, memoryWidth, 1, queryCount);
+            pass.gemm(heads, memoryWidth, tsLength, memoryWidth);
+            pass.elementwise(heads, keys, 1, 2);
+            pass.gemm(heads, memoryWidth, tsLength, memoryWidth);
+            pass.elementwise(heads, keys, 1, 2);
+
+            // Feature map derivatives
+            pass.elementwise(3 * heads, keys, 1, 1);
+            pass.elementwise(heads, keys, 1, 2);
+            if (masked) {
+                pass.elementwise(heads, keys, 1, 2);
+            }
+            pass.elementwise(3 * heads, queries, 1, 1);
+            pass.elementwise(heads, queries, 1, 2);
+
+            // Weights, bias, keys and queries
+            pass.elementwise(heads, keys, 1, 2);
+            pass.elementwise(2 * heads, keys, 1, 1);
+            pass.elementwise(heads, memoryWidth, 1, 2);
+            pass.elementwise(2 * heads, keys, 1, 2);
+            pass.elementwise(heads, queries, 1, 2);
+            pass.elementwise(heads, queries, 1, 1);
+            pass.elementwise(heads, memoryWidth, 1, 2);
+            pass.elementwise(2 * heads, queries, 1, 2);
+
+            pass.ops(OPS_LINEAR_BACKPROP * heads + (masked ? 2 * heads : 0));
+            pass.release(6 * keys + 6 * queries + 2 * memoryWidth * memoryWidth);
+        }
+
+        private void keyFeatures(Pass pass, long heads) {
+            final long keys = memoryWidth * tsLength;
+            pass.elementwise(heads, keys, 1, 2);
+            pass.elementwise(heads, keys, 1, 1);
+            pass.elementwise(2 * heads, keys, 1, 1);
+            if (masked) {
+                pass.elementwise(heads, keys, 1, 2);
+            }
+        }
+
+        private void queryFeatures(Pass pass, long heads) {
+            final long queries = memoryWidth * queryCount;
+            pass.elementwise(heads, queries, 1, 2);
+            pass.elementwise(2 * heads, queries, 1, 1);
+        }
+    }
+
+    /*
+     * Costs of one pass, in elements until converted to an estimate.
+     */
+    private static class Pass {
+        private long flops;
+        private long elements;
+        private long ops;
+        private long working;
+        private long peak;
+
+        // count times C[m, n] = A[m, k] * B[k, n]
+        private void gemm(long count, long m, long n, long k) {
+            flops += count * 2 * m * n * k;
+            elements += count * (m * k + k * n + m * n);
+        }
+
+        // count times an op over length elements, reading inputs arrays and writing one
+        private void elementwise(long count, long length, long flopsPerElement, int inputs) {
+            flops += count * length * flopsPerElement;
+            elements += count * length * (inputs + 1);
+        }
+
+        private void ops(long count) {
+            ops += count;
+        }
+
+        private void allocate(long length) {
+            working += length;
+            peak = Math.max(peak, working);
+        }
+
+        private void release(long length) {
+            working -= length;
+        }
+
+        private AttentionCostEstimate estimate(Pass backward) {
+            final long bytes = Nd4j.sizeOfDataType();
+            if (backward == null) {
+                return new AttentionCostEstimate(flops, elements * bytes, ops, 0, 0, 0, peak * bytes);
+            }
+            return new AttentionCostEstimate(flops, elements * bytes, ops, backward.flops, backward.elements * bytes, backward.ops,
+                    Math.max(peak, backward.peak) * bytes);
+        }
+    }
+
+    private static long outputWidth(AttentionOutputMode outputMode, long projectionSize, long memoryWidth, long attentionHeads) {
+        switch (outputMode) {
+            case MEAN:
+                return memoryWidth;
+            case PROJECTION:
+                return projectionSize;
+            default:
+                return memoryWidth * attentionHeads;
+        }
+    }
+}
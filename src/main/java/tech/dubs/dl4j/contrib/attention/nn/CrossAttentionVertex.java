@@ -0,0 +1,232 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.MaskState;
+import org.deeplearning4j.nn.api.TrainingConfig;
+import org.deeplearning4j.nn.gradient.DefaultGradient;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.graph.vertex.BaseGraphVertex;
+import org.deeplearning4j.nn.workspace.ArrayType;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.nd4j.base.Preconditions;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.accum.EqualsWithEps;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.primitives.Pair;
+import tech.dubs.dl4j.contrib.attention.nn.params.CrossAttentionParamInitializer;
+
+import java.util.Map;
+
+import static tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex.BIAS_KEY;
+import static tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex.QUERY_WEIGHT_KEY;
+import static tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex.WEIGHT_KEY;
+
+/**
+ * Additive attention of the queries (first input) over the keys and values (second input).
+ *
+ * In inference, the key projection W*keys + b is computed once per encoder output and kept. It is reused by following
+ * calls with the same encoder output, e.g. when decoding step by step with the encoder output as a graph input. The
+ * encoder output and the parameters can be changed in place without the vertex being told, by fit,
+ * ComputationGraph.setParams or by writing to the encoder output array. The projection therefore keeps snapshots of
+ * the keys and parameters it was computed from and compares them with the current ones on every call, a single pass
+ * over both instead of the projection.
+ *
+ * In training, the projection of the forward pass is kept with the activations and reused by the backward pass of the
+ * same step.
+ *
+ * @author Paul Dubs
+ */
+public class CrossAttentionVertex extends BaseGraphVertex {
+    private final tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex config;
+    private final INDArray params;
+    private final Map<String, INDArray> paramTable;
+    private INDArray gradients;
+    private Map<String, INDArray> gradTable;
+
+    private INDArray keyMask;
+    private volatile KeyProjection keyProjection;
+    private INDArray trainingInput;
+    private INDArray trainingProjection;
+
+    public CrossAttentionVertex(tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex config, ComputationGraph graph,
+                                String name, int vertexIndex, INDArray paramsView, boolean initializeParams) {
+        super(graph, name, vertexIndex, null, null);
+        this.config = config;
+
+        this.paramTable = CrossAttentionParamInitializer.getInstance().init(config, paramsView, initializeParams);
+        this.params = paramsView;
+    }
+
+    @Override
+    public boolean hasLayer() {
+        return false;
+    }
+
+    @Override
+    public Layer getLayer() {
+        return null;
+    }
+
+    @Override
+    public INDArray doForward(boolean training, LayerWorkspaceMgr workspaceMgr) {
+        Preconditions.checkState(canDoForward(), "Cannot do forward pass: inputs not set");
+
+        final INDArray queries = workspaceMgr.dup(ArrayType.FF_WORKING_MEM, inputs[0].permute(1, 2, 0), 'f');
+        final INDArray keys = workspaceMgr.dup(ArrayType.FF_WORKING_MEM, inputs[1].permute(1, 2, 0), 'f');
+
+        final AdditiveAttentionMechanism attentionMechanism = attentionMechanism(workspaceMgr, training);
+        if (training) {
+            // Activations live until the backward pass of this step, so its projection can live with them
+            trainingInput = inputs[1];
+            trainingProjection = attentionMechanism.projectKeys(keys, ArrayType.ACTIVATIONS);
+            attentionMechanism.withKeyProjection(trainingProjection);
+        } else {
+            clearTrainingProjection();
+            attentionMechanism.withKeyProjection(keyProjection(attentionMechanism, keys));
+        }
+        final INDArray attention = attentionMechanism.query(queries, keys, keys, keyMask);
+
+        return workspaceMgr.dup(ArrayType.ACTIVATIONS, attention, 'f');
+    }
+
+    @Override
+    public Pair<Gradient, INDArray[]> doBackward(boolean tbptt, LayerWorkspaceMgr workspaceMgr) {
+        Preconditions.checkState(canDoBackward(), "Cannot do backward pass: inputs or epsilon not set");
+
+        final INDArray queries = workspaceMgr.dup(ArrayType.BP_WORKING_MEM, inputs[0].permute(1, 2, 0), 'f');
+        final INDArray keys = workspaceMgr.dup(ArrayType.BP_WORKING_MEM, inputs[1].permute(1, 2, 0), 'f');
+
+        gradients.assign(0);
+        final INDArray Wg = gradTable.get(WEIGHT_KEY);
+        final INDArray Qg = gradTable.get(QUERY_WEIGHT_KEY);
+        final INDArray bg = gradTable.get(BIAS_KEY);
+
+        final INDArray queryG = workspaceMgr.create(ArrayType.BP_WORKING_MEM, queries.shape(), 'f');
+        // Keys are also the values, so both gradients are accumulated into the same array
+        final INDArray keyG = workspaceMgr.create(ArrayType.BP_WORKING_MEM, keys.shape(), 'f');
+
+        final AdditiveAttentionMechanism attentionMechanism = attentionMechanism(workspaceMgr, true);
+        if (trainingProjection != null && trainingInput == inputs[1]) {
+            attentionMechanism.withKeyProjection(trainingProjection);
+        }
+        // The projection isn't valid after the update
+        clearTrainingProjection();
+        attentionMechanism
+                .withGradientViews(Wg, Qg, bg, keyG, keyG, queryG)
+                .backprop(epsilon, queries, keys, keys, keyMask);
+
+        final Gradient g = new DefaultGradient(gradients);
+        g.gradientForVariable().put(WEIGHT_KEY, Wg);
+        g.gradientForVariable().put(QUERY_WEIGHT_KEY, Qg);
+        g.gradientForVariable().put(BIAS_KEY, bg);
+
+        return new Pair<>(g, new INDArray[]{
+                workspaceMgr.dup(ArrayType.ACTIVATION_GRAD, queryG.permute(2, 0, 1), 'f'),
+                workspaceMgr.dup(ArrayType.ACTIVATION_GRAD, keyG.permute(2, 0, 1), 'f')
+        });
+    }
+
+    private AdditiveAttentionMechanism attentionMechanism(LayerWorkspaceMgr workspaceMgr, boolean training) {
+        final INDArray W = paramTable.get(WEIGHT_KEY);
+        final INDArray Q = paramTable.get(QUERY_WEIGHT_KEY);
+        final INDArray b = paramTable.get(BIAS_KEY);
+
+        return new AdditiveAttentionMechanism(Q, W, b, config.getActivation(), workspaceMgr, training);
+    }
+
+    private INDArray keyProjection(AdditiveAttentionMechanism attentionMechanism, INDArray keys) {
+        final KeyProjection cached = this.keyProjection;
+        if (cached != null && cached.isProjectionOf(keys, params)) {
+            return cached.projection;
+        }
+
+        final INDArray projection = attentionMechanism.projectKeys(keys, ArrayType.FF_WORKING_MEM);
+        try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+            final KeyProjection computed = new KeyProjection(projection.dup('f'), keys.dup('f'), params.dup(params.ordering()));
+            this.keyProjection = computed;
+            return computed.projection;
+        }
+    }
+
+    private void clearTrainingProjection() {
+        trainingInput = null;
+        trainingProjection = null;
+    }
+
+    public void setParams(INDArray params) {
+        Preconditions.checkState(params.length() == this.params.length(), "Expected %s parameters, got %s", this.params.length(), params.length());
+        this.params.assign(params.reshape(this.params.shape()));
+    }
+
+    @Override
+    public void clear() {
+        super.clear();
+        clearTrainingProjection();
+    }
+
+    private static class KeyProjection {
+        private final INDArray projection;
+        private final INDArray keys;
+        private final INDArray params;
+
+        private KeyProjection(INDArray projection, INDArray keys, INDArray params) {
+            this.projection = projection;
+            this.keys = keys;
+            this.params = params;
+        }
+
+        private boolean isProjectionOf(INDArray keys, INDArray params) {
+            return equal(this.keys, keys) && equal(this.params, params);
+        }
+
+        private static boolean equal(INDArray snapshot, INDArray current) {
+            return snapshot.equalShapes(current)
+                    && Nd4j.getExecutioner().execAndReturn(new EqualsWithEps(snapshot, current, 0.0)).getFinalResult().doubleValue() == 0.0;
+        }
+    }
+
+    @Override
+    public void setBackpropGradientsViewArray(INDArray backpropGradientsViewArray) {
+        this.gradients = backpropGradientsViewArray;
+        this.gradTable = CrossAttentionParamInitializer.getInstance().getGradientsFromFlattened(config, backpropGradientsViewArray);
+    }
+
+    @Override
+    public Pair<INDArray, MaskState> feedForwardMaskArrays(INDArray[] maskArrays, MaskState currentMaskState, int minibatchSize) {
+        if (maskArrays == null) {
+            keyMask = null;
+            return new Pair<>(null, currentMaskState);
+        }
+
+        // The key mask is only used for attention, the output has the time steps of the queries
+        keyMask = maskArrays[1];
+        return new Pair<>(maskArrays[0], maskArrays[0] == null ? null : currentMaskState);
+    }
+
+    @Override
+    public Map<String, INDArray> paramTable(boolean backpropOnly) {
+        return paramTable;
+    }
+
+    @Override
+    public TrainingConfig getConfig() {
+        return config;
+    }
+
+    @Override
+    public INDArray params() {
+        return params;
+    }
+
+    @Override
+    public INDArray getGradientsViewArray() {
+        return gradients;
+    }
+
+    @Override
+    public String toString() {
+        return "CrossAttentionVertex(id=" + vertexIndex + ",name=\"" + vertexName + "\")";
+    }
+}
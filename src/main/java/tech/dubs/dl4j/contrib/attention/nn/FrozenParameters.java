@@ -0,0 +1,39 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.nd4j.linalg.learning.config.IUpdater;
+
+/*
+ * Attention layers skip all parameter gradient work in backprop when the gradients could not change the parameters
+ * anyway: with frozenParams in their configuration (also the way to use them inside FrozenLayerWithBackprop, which
+ * throws the gradients away), or when the updater of every parameter has a learning rate of 0 at the current
+ * iteration and no state. Stateful updaters like Adam or Nesterovs still update their moments from the gradient at a
+ * learning rate of 0, e.g. during a warmup schedule, so they need it. Only the epsilon for the input is computed
+ * then, the parameter gradients are left at zero.
+ * @author Paul Dubs
+ */
+final class FrozenParameters {
+    private FrozenParameters() { }
+
+    static boolean skipGradients(NeuralNetConfiguration conf, boolean frozenParams) {
+        if (frozenParams) {
+            return true;
+        }
+
+        final Layer layer = conf.getLayer();
+        if (!(layer instanceof BaseLayer)) {
+            return false;
+        }
+        final long numParams = layer.initializer().numParams(conf);
+        for (String param : layer.initializer().paramKeys(layer)) {
+            final IUpdater updater = ((BaseLayer) layer).getUpdaterByParam(param);
+            if (updater == null || !updater.hasLearningRate() || updater.stateSize(numParams) != 0
+                    || updater.getLearningRate(conf.getIterationCount(), conf.getEpochCount()) != 0.0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
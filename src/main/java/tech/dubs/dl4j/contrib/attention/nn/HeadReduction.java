@@ -0,0 +1,173 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+
+import java.util.Arrays;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+/*
+ * Combines the outputs of all attention heads into the output of a mechanism, see AttentionOutputMode. Head outputs
+ * have memoryWidth features each, head h is at [h * memoryWidth, (h + 1) * memoryWidth) of the concatenation.
+ *
+ * AdditiveAttentionMechanism reduces all heads of one query at once ([memoryWidth, attentionHeads] -> output row),
+ * LinearAttentionMechanism one head of all queries at a time ([memoryWidth, queryCount] -> added to the output).
+ * @author Paul Dubs
+ */
+public class HeadReduction {
+    private static final HeadReduction CONCAT = new HeadReduction(AttentionOutputMode.CONCAT, null);
+
+    private final AttentionOutputMode mode;
+    // [memoryWidth * attentionHeads, projectionSize], only for PROJECTION
+    private final INDArray projection;
+    private INDArray projectionG;
+
+    private HeadReduction(AttentionOutputMode mode, INDArray projection) {
+        this.mode = mode;
+        this.projection = projection;
+    }
+
+    public static HeadReduction concat() {
+        return CONCAT;
+    }
+
+    public static HeadReduction of(AttentionOutputMode mode, INDArray projection) {
+        if (mode == null || mode == AttentionOutputMode.CONCAT) {
+            return CONCAT;
+        }
+        if (mode == AttentionOutputMode.PROJECTION && (projection == null || projection.rank() != 2)) {
+            throw new IllegalStateException("Output mode PROJECTION needs a [memoryWidth * attentionHeads, projectionSize] projection, but got "
+                    + (projection == null ? "none" : Arrays.toString(projection.shape())));
+        }
+        return new HeadReduction(mode, mode == AttentionOutputMode.PROJECTION ? projection : null);
+    }
+
+    /*
+     * Gradient view of the projection, required for backprop with PROJECTION.
+     */
+    public HeadReduction withGradientView(INDArray projection) {
+        if (mode == AttentionOutputMode.CONCAT) {
+            return this;
+        }
+        final HeadReduction copy = new HeadReduction(mode, this.projection);
+        copy.projectionG = projection;
+        return copy;
+    }
+
+    public boolean isConcat() {
+        return mode == AttentionOutputMode.CONCAT;
+    }
+
+    public AttentionOutputMode getMode() {
+        return mode;
+    }
+
+    public long outputWidth(long memoryWidth, long attentionHeads) {
+        switch (mode) {
+            case MEAN:
+                return memoryWidth;
+            case PROJECTION:
+                if (projection.size(0) != memoryWidth * attentionHeads) {
+                    throw new IllegalStateException("Projection must have " + memoryWidth * attentionHeads + " rows (memoryWidth * attentionHeads), but got projection.shape() = "
+                            + Arrays.toString(projection.shape()));
+                }
+                return projection.size(1);
+            default:
+                return memoryWidth * attentionHeads;
+        }
+    }
+
+    void checkBackprop() {
+        if (mode == AttentionOutputMode.PROJECTION && projectionG == null) {
+            throw new IllegalStateException("Output mode PROJECTION needs a gradient view for the projection, use withOutputReduction(reduction.withGradientView(...)).");
+        }
+    }
+
+    /*
+     * Output of one query from the outputs of all heads, heads [memoryWidth, attentionHeads] -> [1, outputWidth]
+     */
+    INDArray reduce(INDArray heads) {
+        final long memoryWidth = heads.size(0);
+        final long attentionHeads = heads.size(1);
+        final INDArray concatenated = heads.reshape('f', 1, memoryWidth * attentionHeads);
+        switch (mode) {
+            case MEAN:
+                return heads.mean(1).reshape(1, memoryWidth);
+            case PROJECTION:
+                return Nd4j.gemm(concatenated, projection, false, false);
+            default:
+                return concatenated;
+        }
+    }
+
+    /*
+     * Whether headGradients needs the head outputs of the query, otherwise they can be null. Only the projection
+     * gradient needs them, without a gradient view it is skipped.
+     */
+    boolean needsHeadOutputs() {
+        return mode == AttentionOutputMode.PROJECTION && projectionG != null;
+    }
+
+    /*
+     * Gradient of the head outputs of one query from the gradient of its output, epsilon [outputWidth, 1] ->
+     * [attentionHeads, memoryWidth]. With PROJECTION, the projection gradient for the head outputs
+     * [memoryWidth, attentionHeads] of the query is added to the gradient view, if there is one.
+     */
+    INDArray headGradients(INDArray epsilon, INDArray heads, long memoryWidth, long attentionHeads) {
+        switch (mode) {
+            case MEAN:
+                return Nd4j.zeros(attentionHeads, memoryWidth).addiRowVector(epsilon.reshape(1, memoryWidth).mul(1.0 / attentionHeads));
+            case PROJECTION:
+                if (projectionG != null) {
+                    Nd4j.gemm(heads.reshape('f', memoryWidth * attentionHeads, 1), epsilon, projectionG, false, true, 1.0, 1.0);
+                }
+                return Nd4j.gemm(projection, epsilon, false, false).reshape('c', attentionHeads, memoryWidth);
+            default:
+                return epsilon.reshape('c', attentionHeads, memoryWidth);
+        }
+    }
+
+    /*
+     * Adds the output of head to result [outputWidth, queryCount], for head outputs [memoryWidth, queryCount]
+     */
+    void accumulate(INDArray result, INDArray headOutput, long head, long attentionHeads) {
+        final long memoryWidth = headOutput.size(0);
+        switch (mode) {
+            case MEAN:
+                result.addi(headOutput.muli(1.0 / attentionHeads));
+                break;
+            case PROJECTION:
+                result.addi(Nd4j.gemm(headProjection(projection, head, memoryWidth), headOutput, true, false));
+                break;
+            default:
+                result.get(interval(head * memoryWidth, (head + 1) * memoryWidth), all()).assign(headOutput);
+        }
+    }
+
+    /*
+     * Gradient of the output of head from the gradient of the result, epsilon [outputWidth, queryCount] ->
+     * [memoryWidth, queryCount]. With PROJECTION, the projection gradient of headOutput [memoryWidth, queryCount] is
+     * added to the gradient view, if there is one.
+     */
+    INDArray headGradient(INDArray epsilon, INDArray headOutput, long head, long attentionHeads) {
+        final long memoryWidth = headOutput.size(0);
+        switch (mode) {
+            case MEAN:
+                return epsilon.mul(1.0 / attentionHeads);
+            case PROJECTION:
+                if (projectionG != null) {
+                    headProjection(projectionG, head, memoryWidth).addi(Nd4j.gemm(headOutput, epsilon, false, true));
+                }
+                return Nd4j.gemm(headProjection(projection, head, memoryWidth), epsilon, false, false);
+            default:
+                return epsilon.get(interval(head * memoryWidth, (head + 1) * memoryWidth), all());
+        }
+    }
+
+    private static INDArray headProjection(INDArray projection, long head, long memoryWidth) {
+        return projection.get(interval(head * memoryWidth, (head + 1) * memoryWidth), all());
+    }
+}
@@ -0,0 +1,300 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.deeplearning4j.nn.workspace.ArrayType;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.impl.accum.EqualsWithEps;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.indexing.NDArrayIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import java.util.function.LongSupplier;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/*
+ *  Attention: Shapes for input should be in [features, timesteps, examples] order!
+ *
+ *  Memoizes the inference output of an attention layer per example, for inputs that are seen again and again. Entries
+ *  are keyed by a hash of the content of the example and its mask row, and the content itself is kept to rule out
+ *  collisions. The cache is a LRU bounded by the number of entries and the bytes of keys and outputs, entries older
+ *  than the time to live are dropped when they are found.
+ *
+ *  The outputs depend on the parameters, which are changed in place by fit, MultiLayerNetwork.setParams,
+ *  ComputationGraph.setParams or params().assign(...) without the layer being told. The cache therefore keeps a
+ *  snapshot of the parameters its entries were computed with and compares it with the current ones on every call,
+ *  the whole cache is invalidated when they differ. The comparison is a single pass over the parameters, far less
+ *  than the attention it saves on a hit. The snapshot is not counted in the byte limit.
+ * @author Paul Dubs
+ */
+public class InferenceCache {
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private INDArray params;
+    private long bytes;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+
+    /*
+     * maxBytes = 0 and ttlMillis = 0 mean no limit.
+     */
+    public InferenceCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this(maxEntries, maxBytes, ttlMillis, System::currentTimeMillis);
+    }
+
+    public InferenceCache(int maxEntries, long maxBytes, long ttlMillis, LongSupplier clock) {
+        if (maxEntries <= 0) {
+            throw new IllegalStateException("maxEntries must be positive, but got " + maxEntries);
+        }
+        if (maxBytes < 0 || ttlMillis < 0) {
+            throw new IllegalStateException("maxBytes and ttlMillis must not be negative, but got maxBytes = " + maxBytes + ", ttlMillis = " + ttlMillis);
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+    }
+
+    /*
+     * Output [examples, ...] for input [features, timesteps, examples] and mask [examples, timesteps] (may be null).
+     * Only the examples missing from the cache are passed to attend, as one minibatch with their mask rows, and its
+     * output is cached, unless the cache was invalidated in the meantime.
+     */
+    public INDArray activate(INDArray input, INDArray mask, INDArray params, LayerWorkspaceMgr workspaceMgr,
+                             BiFunction<INDArray, INDArray, INDArray> attend) {
+        final int examples = (int) input.size(2);
+        final Key[] keys = new Key[examples];
+        final INDArray[] outputs = new INDArray[examples];
+        final List<Integer> missing = new ArrayList<>();
+        final INDArray snapshot;
+
+        synchronized (this) {
+            snapshot = validate(params);
+            for (int example = 0; example < examples; example++) {
+                keys[example] = new Key(input.get(all(), all(), point(example)), mask == null ? null : mask.getRow(example));
+                outputs[example] = get(keys[example]);
+                if (outputs[example] == null) {
+                    missing.add(example);
+                }
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            final INDArray computed;
+            if (missing.size() == examples) {
+                computed = attend.apply(input, mask);
+            } else {
+                final INDArray missingInput = workspaceMgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{input.size(0), input.size(1), missing.size()}, 'f');
+                final INDArray missingMask = mask == null ? null : workspaceMgr.createUninitialized(ArrayType.FF_WORKING_MEM, new long[]{missing.size(), mask.size(1)}, 'c');
+                for (int i = 0; i < missing.size(); i++) {
+                    missingInput.get(all(), all(), point(i)).assign(input.get(all(), all(), point(missing.get(i))));
+                    if (missingMask != null) {
+                        missingMask.getRow(i).assign(mask.getRow(missing.get(i)));
+                    }
+                }
+                computed = attend.apply(missingInput, missingMask);
+            }
+
+            synchronized (this) {
+                for (int i = 0; i < missing.size(); i++) {
+                    final INDArray output = computed.get(exampleIndex(computed, i));
+                    outputs[missing.get(i)] = output;
+                    if (this.params == snapshot) {
+                        put(keys[missing.get(i)], output);
+                    }
+                }
+            }
+        }
+
+        // Outputs keep their leading example dimension of size 1
+        final long[] resultShape = outputs[0].shape().clone();
+        resultShape[0] = examples;
+        final INDArray result = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, resultShape, 'f');
+        for (int example = 0; example < examples; example++) {
+            result.get(exampleIndex(result, example)).assign(outputs[example]);
+        }
+        return result;
+    }
+
+    private static INDArrayIndex[] exampleIndex(INDArray array, long example) {
+        final INDArrayIndex[] index = new INDArrayIndex[array.rank()];
+        index[0] = NDArrayIndex.interval(example, example + 1);
+        for (int i = 1; i < index.length; i++) {
+            index[i] = NDArrayIndex.all();
+        }
+        return index;
+    }
+
+    /*
+     * Snapshot of the parameters that the entries are valid for, taken anew if they changed
+     */
+    private INDArray validate(INDArray params) {
+        if (this.params != null && this.params.equalShapes(params)
+                && Nd4j.getExecutioner().execAndReturn(new EqualsWithEps(this.params, params, 0.0)).getFinalResult().doubleValue() == 0.0) {
+            return this.params;
+        }
+        if (this.params != null && !entries.isEmpty()) {
+            invalidations++;
+        }
+        clear();
+        try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+            this.params = params.dup(params.ordering());
+        }
+        return this.params;
+    }
+
+    private INDArray get(Key key) {
+        final Entry entry = entries.get(key);
+        if (entry != null && ttlMillis > 0 && clock.getAsLong() - entry.created >= ttlMillis) {
+            remove(key);
+            expirations++;
+            misses++;
+            return null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.output;
+    }
+
+    private void put(Key key, INDArray output) {
+        final Entry entry;
+        try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+            entry = new Entry(output.dup('c'), clock.getAsLong(), (key.content.length + output.length()) * (long) Nd4j.sizeOfDataType());
+        }
+        if (maxBytes > 0 && entry.bytes > maxBytes) {
+            return;
+        }
+        final Entry previous = entries.put(key, entry);
+        bytes += entry.bytes - (previous == null ? 0 : previous.bytes);
+
+        final Iterator<Map.Entry<Key, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || (maxBytes > 0 && bytes > maxBytes)) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private void remove(Key key) {
+        final Entry entry = entries.remove(key);
+        if (entry != null) {
+            bytes -= entry.bytes;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /*
+     * Entries dropped for the entry or byte limit
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    /*
+     * Entries dropped for their time to live
+     */
+    public synchronized long getExpirations() {
+        return expirations;
+    }
+
+    /*
+     * Number of times the cache was cleared because the parameters changed
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "InferenceCache(entries=" + entries.size() + ", bytes=" + bytes + ", hits=" + hits + ", misses=" + misses
+                + ", evictions=" + evictions + ", expirations=" + expirations + ", invalidations=" + invalidations + ")";
+    }
+
+    private static class Entry {
+        private final INDArray output;
+        private final long created;
+        private final long bytes;
+
+        private Entry(INDArray output, long created, long bytes) {
+            this.output = output;
+            this.created = created;
+            this.bytes = bytes;
+        }
+    }
+
+    /*
+     * Shape, values and mask of one example, hashed once
+     */
+    private static class Key {
+        private final double[] content;
+        private final int hash;
+
+        private Key(INDArray example, INDArray mask) {
+            final double[] values = example.dup('f').data().asDouble();
+            final double[] maskValues = mask == null ? new double[0] : mask.dup('c').data().asDouble();
+            content = new double[2 + values.length + maskValues.length];
+            content[0] = example.size(0);
+            content[1] = mask == null ? -1 : maskValues.length;
+            System.arraycopy(values, 0, content, 2, values.length);
+            System.arraycopy(maskValues, 0, content, 2 + values.length, maskValues.length);
+
+            // FNV-1a over the bits of every value
+            long h = 0xcbf29ce484222325L;
+            for (double value : content) {
+                h ^= Double.doubleToLongBits(value);
+                h *= 0x100000001b3L;
+            }
+            hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && hash == ((Key) o).hash && Arrays.equals(content, ((Key) o).content);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,354 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.deeplearning4j.nn.workspace.ArrayType;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
+import org.nd4j.linalg.api.memory.conf.WorkspaceConfiguration;
+import org.nd4j.linalg.api.memory.enums.AllocationPolicy;
+import org.nd4j.linalg.api.memory.enums.LearningPolicy;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.shape.Shape;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+import java.util.Arrays;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/*
+ *  Attention: Shapes for keys, values and queries should be in [features, timesteps, examples] order!
+ *
+ *  Kernelized attention with the same parameters as AdditiveAttentionMechanism. Instead of a softmax over additive
+ *  scores, query i attends to key j of head h with weight
+ *      phi(Q_h x q_i) . phi(W_h x k_j + b_h) / sum_j' phi(Q_h x q_i) . phi(W_h x k_j' + b_h)
+ *  where x is the elementwise product with the weight column of head h and phi(x) = elu(x) + 1 is a positive feature map.
+ *
+ *  This allows summarizing all keys and values of a head once as S = phi(K) V^T and z = phi(K) 1, after which every
+ *  query costs S^T phi(q) / z^T phi(q), independent of the number of keys. The layer activation function is not used.
+ *
+ *  An example without any unmasked key has z = 0. As in AdditiveAttentionMechanism, its output is 0 then and it gets
+ *  no gradient.
+ *
+ *  Summaries have the shapes keySummary = [memoryWidth, memoryWidth * attentionHeads, examples] and
+ *  normalizer = [memoryWidth, attentionHeads, examples].
+ * @author Paul Dubs
+ */
+public class LinearAttentionMechanism {
+    private final INDArray W;
+    private final INDArray Q;
+    private final INDArray b;
+    private final LayerWorkspaceMgr mgr;
+    private HeadReduction reduction = HeadReduction.concat();
+
+    // Required to be set for backprop
+    private INDArray Wg;
+    private INDArray Qg;
+    private INDArray bg;
+    private INDArray keyG;
+    private INDArray valueG;
+    private INDArray queryG;
+
+    public LinearAttentionMechanism(INDArray queryWeight, INDArray keyWeight, INDArray bias, LayerWorkspaceMgr mgr) {
+        if (queryWeight.rank() != 2 || keyWeight.rank() != 2 || !Arrays.equals(queryWeight.shape(), keyWeight.shape())
+                || bias.length() != keyWeight.shape()[1]) {
+            throw new IllegalStateException("Shapes must be compatible: queryWeight.shape() = " + Arrays.toString(queryWeight.shape())
+                    + ", keyWeight.shape() = " + Arrays.toString(keyWeight.shape())
+                    + ", bias.shape() = " + Arrays.toString(bias.shape())
+                    + "\nCompatible shapes should have the form: queryWeight = keyWeight = [memoryWidth, attentionHeads], bias = [1, attentionHeads]");
+        }
+        Q = queryWeight;
+        W = keyWeight;
+        b = bias;
+        this.mgr = mgr;
+    }
+
+    /*
+     * Combine the outputs of the heads with the given reduction (see HeadReduction) instead of concatenating them. For
+     * backprop with a projection, the reduction needs its gradient view.
+     */
+    public LinearAttentionMechanism withOutputReduction(HeadReduction reduction) {
+        this.reduction = reduction;
+        return this;
+    }
+
+    public INDArray query(INDArray queries, INDArray keys, INDArray values, INDArray mask) {
+        assertShapes(queries, keys, values);
+
+        final long examples = keys.shape()[2];
+        final long attentionHeads = W.shape()[1];
+        final long memoryWidth = W.shape()[0];
+
+        final INDArray keySummary = mgr.create(ArrayType.FF_WORKING_MEM, new long[]{memoryWidth, memoryWidth * attentionHeads, examples}, 'f');
+        final INDArray normalizer = mgr.create(ArrayType.FF_WORKING_MEM, new long[]{memoryWidth, attentionHeads, examples}, 'f');
+        summarize(keys, values, mask, keySummary, normalizer);
+        return querySummary(queries, keySummary, normalizer);
+    }
+
+    /*
+     * Adds the given keys and values to the summaries. Summaries of disjoint sets of keys can simply be added, so
+     * keys can be summarized incrementally, e.g. one timestep at a time while decoding.
+     */
+    public void summarize(INDArray keys, INDArray values, INDArray mask, INDArray keySummary, INDArray normalizer) {
+        final long examples = keys.shape()[2];
+        final long attentionHeads = W.shape()[1];
+        final long memoryWidth = W.shape()[0];
+
+        if (keys.shape()[0] != memoryWidth || !Arrays.equals(keys.shape(), values.shape())) {
+            throw new IllegalStateException("Keys must be compatible to weights and have the same shape as values, but got: keyWeight.shape() = " + Arrays.toString(W.shape())
+                    + ", keys.shape() = " + Arrays.toString(keys.shape())
+                    + ", values.shape() = " + Arrays.toString(values.shape()));
+        }
+        if (!Arrays.equals(keySummary.shape(), new long[]{memoryWidth, memoryWidth * attentionHeads, examples})
+                || !Arrays.equals(normalizer.shape(), new long[]{memoryWidth, attentionHeads, examples})) {
+            throw new IllegalStateException("Summaries must have shapes keySummary = [" + memoryWidth + ", " + memoryWidth * attentionHeads + ", " + examples + "], "
+                    + "normalizer = [" + memoryWidth + ", " + attentionHeads + ", " + examples + "], but got keySummary.shape() = " + Arrays.toString(keySummary.shape())
+                    + ", normalizer.shape() = " + Arrays.toString(normalizer.shape()));
+        }
+
+        for (long example = 0; example < examples; example++) {
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(workspaceConfig(), "ATTENTION_FF")) {
+                final INDArray curKeys = keys.get(all(), all(), point(example));
+                final INDArray curValues = values.get(all(), all(), point(example));
+                final INDArray curMask = subMask(mask, example);
+
+                for (long head = 0; head < attentionHeads; head++) {
+                    final INDArray keyFeatures = featureMap(keyPreFeatures(curKeys, head));
+                    if (curMask != null) {
+                        keyFeatures.muliRowVector(curMask);
+                    }
+
+                    headSummary(keySummary, example, head).addi(Nd4j.gemm(keyFeatures, curValues, false, true));
+                    headNormalizer(normalizer, example, head).addi(keyFeatures.sum(1).reshape(memoryWidth, 1));
+                }
+            }
+        }
+    }
+
+    public INDArray querySummary(INDArray queries, INDArray keySummary, INDArray normalizer) {
+        final long examples = queries.shape()[2];
+        final long queryCount = queries.shape()[1];
+        final long attentionHeads = W.shape()[1];
+        final long memoryWidth = W.shape()[0];
+
+        if (queries.shape()[0] != memoryWidth) {
+            throw new IllegalStateException("Shape of queries must be compatible to query weight, but got: queryWeight.shape() = " + Arrays.toString(Q.shape())
+                    + ", queries.shape() = " + Arrays.toString(queries.shape()));
+        }
+
+        // Reduced heads are added up
+        final long[] resultShape = {examples, reduction.outputWidth(memoryWidth, attentionHeads), queryCount};
+        final INDArray result = reduction.isConcat()
+                ? mgr.createUninitialized(ArrayType.FF_WORKING_MEM, resultShape, 'f')
+                : mgr.create(ArrayType.FF_WORKING_MEM, resultShape, 'f');
+
+        // phi is positive, so the normalizer of an example is only 0 without any unmasked key
+        final INDArray normalizerSums = normalizer.sum(0, 1);
+
+        for (long example = 0; example < examples; example++) {
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(workspaceConfig(), "ATTENTION_FF")) {
+                final INDArray curQueries = queries.get(all(), all(), point(example));
+                final INDArray curResult = result.tensorAlongDimension((int) example, 1, 2);
+                if (normalizerSums.getDouble(example) == 0.0) {
+                    if (reduction.isConcat()) {
+                        curResult.assign(0);
+                    }
+                    continue;
+                }
+
+                for (long head = 0; head < attentionHeads; head++) {
+                    final INDArray queryFeatures = featureMap(queryPreFeatures(curQueries, head));
+
+                    final INDArray numerator = Nd4j.gemm(headSummary(keySummary, example, head), queryFeatures, true, false);
+                    final INDArray denominator = Nd4j.gemm(headNormalizer(normalizer, example, head), queryFeatures, true, false);
+
+                    reduction.accumulate(curResult, numerator.diviRowVector(denominator), head, attentionHeads);
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+     * W, Q and b may all be null to skip the parameter gradients, e.g. for frozen parameters. Only the key, value and
+     * query gradients are computed then. Keys, values and queries may all be null to skip the input gradients, e.g.
+     * for the first layer of a network.
+     */
+    public LinearAttentionMechanism withGradientViews(INDArray W, INDArray Q, INDArray b, INDArray keys, INDArray values, INDArray queries) {
+        Wg = W;
+        Qg = Q;
+        bg = b;
+        keyG = keys;
+        valueG = values;
+        queryG = queries;
+
+        return this;
+    }
+
+    public void backprop(INDArray epsilon, INDArray queries, INDArray keys, INDArray values, INDArray mask) {
+        if ((Wg == null) != (Qg == null) || (Wg == null) != (bg == null)) {
+            throw new IllegalStateException("Gradient views for W, Q and b must either all be given or all be null.");
+        }
+        if ((keyG == null) != (valueG == null) || (keyG == null) != (queryG == null)) {
+            throw new IllegalStateException("Gradient views for keys, values and queries must either all be given or all be null.");
+        }
+        if (Wg == null && keyG == null) {
+            throw new IllegalStateException("You MUST use attnMech.withGradientViews(...).backprop(...).");
+        }
+
+        assertShapes(queries, keys, values);
+        final boolean parameterGradients = Wg != null;
+        final boolean inputGradients = keyG != null;
+        if (parameterGradients) {
+            reduction.checkBackprop();
+        }
+
+        final long examples = queries.shape()[2];
+        final long queryCount = queries.shape()[1];
+        final long attentionHeads = W.shape()[1];
+        final long memoryWidth = W.shape()[0];
+        final long outputWidth = reduction.outputWidth(memoryWidth, attentionHeads);
+
+        if (epsilon.ordering() != 'c' || !Shape.hasDefaultStridesForShape(epsilon))
+            epsilon = epsilon.dup('c');
+
+        final long[] epsilonShape = epsilon.shape();
+        if (epsilonShape[0] != examples || epsilonShape[1] != outputWidth || (epsilonShape.length == 2 && queryCount != 1) || (epsilonShape.length == 3 && epsilonShape[2] != queryCount)) {
+            throw new IllegalStateException("Epsilon shape must match result shape. Got epsilon.shape() = " + Arrays.toString(epsilonShape)
+                    + "; result shape = [" + examples + ", " + outputWidth + ", " + queryCount + "]");
+        }
+
+        final INDArray dldAtt = reduction.isConcat()
+                ? epsilon.reshape('c', examples, attentionHeads, memoryWidth, queryCount)
+                : epsilon.reshape('c', examples, outputWidth, queryCount);
+
+        final INDArray unmasked = mask == null ? null : mask.sum(1);
+
+        for (long example = 0; example < examples; example++) {
+            if (unmasked != null && unmasked.getDouble(example) == 0.0) {
+                // Output was constant 0, no gradient
+                continue;
+            }
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().getAndActivateWorkspace(workspaceConfig(), "ATTENTION_BP")) {
+                final INDArray curQueries = queries.get(all(), all(), point(example));
+                final INDArray curKeys = keys.get(all(), all(), point(example));
+                final INDArray curValues = values.get(all(), all(), point(example));
+                final INDArray curMask = subMask(mask, example);
+                final INDArray exEps = reduction.isConcat() ? dldAtt.tensorAlongDimension((int) example, 1, 2, 3) : dldAtt.tensorAlongDimension((int) example, 1, 2);
+
+                for (long head = 0; head < attentionHeads; head++) {
+                    final INDArray keyPre = keyPreFeatures(curKeys, head);
+                    final INDArray keyFeatures = featureMap(keyPre);
+                    if (curMask != null) {
+                        keyFeatures.muliRowVector(curMask);
+                    }
+                    final INDArray queryPre = queryPreFeatures(curQueries, head);
+                    final INDArray queryFeatures = featureMap(queryPre);
+
+                    // Forward: S = Fk V^T, z = Fk 1, N = S^T Fq, D = z^T Fq, out = N / D
+                    final INDArray summary = Nd4j.gemm(keyFeatures, curValues, false, true);
+                    final INDArray normalizer = keyFeatures.sum(1).reshape(memoryWidth, 1);
+                    final INDArray numerator = Nd4j.gemm(summary, queryFeatures, true, false);
+                    final INDArray denominator = Nd4j.gemm(normalizer, queryFeatures, true, false);
+
+                    final INDArray curEps = reduction.isConcat()
+                            ? exEps.tensorAlongDimension((int) head, 1, 2)
+                            : reduction.headGradient(exEps, numerator.divRowVector(denominator), head, attentionHeads);
+
+                    final INDArray dldNumerator = curEps.divRowVector(denominator);
+                    final INDArray dldDenominator = curEps.mul(numerator).sum(0).reshape(1, queryCount)
+                            .divi(denominator).divi(denominator).negi();
+
+                    final INDArray dldQueryFeatures = Nd4j.gemm(summary, dldNumerator, false, false)
+                            .addi(Nd4j.gemm(normalizer, dldDenominator, false, false));
+                    final INDArray dldSummary = Nd4j.gemm(queryFeatures, dldNumerator, false, true);
+                    final INDArray dldNormalizer = Nd4j.gemm(queryFeatures, dldDenominator, false, true);
+
+                    final INDArray dldKeyFeatures = Nd4j.gemm(dldSummary, curValues, false, false).addiColumnVector(dldNormalizer);
+                    if (inputGradients) {
+                        valueG.get(all(), all(), point(example)).addi(Nd4j.gemm(dldSummary, keyFeatures, true, false));
+                    }
+
+                    final INDArray dldKeyPre = dldKeyFeatures.muli(featureMapDerivative(keyPre));
+                    if (curMask != null) {
+                        dldKeyPre.muliRowVector(curMask);
+                    }
+                    final INDArray dldQueryPre = dldQueryFeatures.muli(featureMapDerivative(queryPre));
+
+                    if (parameterGradients) {
+                        Wg.getColumn(head).addi(dldKeyPre.mul(curKeys).sum(1).reshape(memoryWidth, 1));
+                        bg.putScalar(head, bg.getDouble(head) + dldKeyPre.sumNumber().doubleValue());
+                        Qg.getColumn(head).addi(dldQueryPre.mul(curQueries).sum(1).reshape(memoryWidth, 1));
+                    }
+                    if (inputGradients) {
+                        keyG.get(all(), all(), point(example)).addi(dldKeyPre.muliColumnVector(W.getColumn(head)));
+                        queryG.get(all(), all(), point(example)).addi(dldQueryPre.muliColumnVector(Q.getColumn(head)));
+                    }
+                }
+            }
+        }
+    }
+
+    private INDArray keyPreFeatures(INDArray curKeys, long head) {
+        return curKeys.mulColumnVector(W.getColumn(head)).addi(b.getDouble(head));
+    }
+
+    private INDArray queryPreFeatures(INDArray curQueries, long head) {
+        return curQueries.mulColumnVector(Q.getColumn(head));
+    }
+
+    // phi(x) = elu(x) + 1
+    private static INDArray featureMap(INDArray pre) {
+        return Transforms.elu(pre, true).addi(1.0);
+    }
+
+    // phi'(x) = 1 for x > 0, exp(x) = phi(x) otherwise
+    private static INDArray featureMapDerivative(INDArray pre) {
+        return Transforms.min(featureMap(pre), 1.0, false);
+    }
+
+    private static INDArray headSummary(INDArray keySummary, long example, long head) {
+        final long memoryWidth = keySummary.shape()[0];
+        return keySummary.get(all(), interval(head * memoryWidth, (head + 1) * memoryWidth), point(example));
+    }
+
+    private static INDArray headNormalizer(INDArray normalizer, long example, long head) {
+        return normalizer.get(all(), interval(head, head + 1), point(example));
+    }
+
+    private static WorkspaceConfiguration workspaceConfig() {
+        return WorkspaceConfiguration.builder()
+                .policyAllocation(AllocationPolicy.STRICT)
+                .policyLearning(LearningPolicy.FIRST_LOOP)
+                .build();
+    }
+
+    private INDArray subMask(INDArray mask, long example) {
+        if (mask == null) {
+            return null;
+        } else {
+            return mask.tensorAlongDimension((int) example, 1);
+        }
+    }
+
+    private void assertShapes(INDArray query, INDArray keys, INDArray values) {
+        if (query.shape()[0] != Q.shape()[0] || keys.shape()[0] != W.shape()[0]) {
+            throw new IllegalStateException("Shapes of query and keys must be compatible to weights, but got: queryWeight.shape() = " + Arrays.toString(Q.shape())
+                    + ", queries.shape() = " + Arrays.toString(query.shape())
+                    + "; keyWeight.shape() = " + Arrays.toString(W.shape())
+                    + ", keys.shape() = " + Arrays.toString(keys.shape()));
+        }
+
+        if (keys.shape()[1] != values.shape()[1]) {
+            throw new IllegalStateException("Keys must be the same length as values! But got keys.shape() = " + Arrays.toString(keys.shape())
+                    + ", values.shape = " + Arrays.toString(values.shape()));
+        }
+
+        if (keys.shape()[2] != values.shape()[2] || query.shape()[2] != keys.shape()[2]) {
+            throw new IllegalStateException("Queries, Keys and Values must have same mini-batch size! But got keys.shape() = " + Arrays.toString(keys.shape())
+                    + ", values.shape = " + Arrays.toString(values.shape())
+                    + ", queries.shape = " + Arrays.toString(query.shape()));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.deeplearning4j.nn.workspace.ArrayType;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/*
+ *  Attention: Shapes for memory should be in [features, timesteps, examples] order!
+ *
+ *  Mask-aware strided mean pooling along the time axis, to compress keys and values before attention: pooled timestep
+ *  p is the average of the unmasked timesteps in [p * stride, (p + 1) * stride), the last window may be shorter. Windows
+ *  without any unmasked timestep are masked in the pooled mask.
+ *
+ *  Pooling weighs every timestep with its mask value divided by the unmasked count of its window, and sums the weighted
+ *  memory over the stride axis of its [features, stride, pooledLength, examples] view. The gradient of a timestep is the
+ *  pooled gradient of its window times the same weight. Both are linear in the memory size, only a weight per timestep
+ *  and example is kept.
+ * @author Paul Dubs
+ */
+public class MemoryPooling {
+    private final long tsLength;
+    private final int stride;
+    private final long pooledLength;
+    private final long examples;
+    // [1, pooledLength * stride * examples] in 'f' order of [timesteps, examples], zero for the timesteps padding the
+    // last window. Without a mask, the same [1, pooledLength * stride] for all examples.
+    private final INDArray weights;
+    private final INDArray pooledMask;
+
+    public MemoryPooling(long tsLength, int stride, INDArray mask) {
+        if (stride < 1) {
+            throw new IllegalStateException("Stride must be positive, but got " + stride);
+        }
+        if (mask != null && mask.size(1) != tsLength) {
+            throw new IllegalStateException("Mask must have " + tsLength + " timesteps, but got mask.shape() = " + Arrays.toString(mask.shape()));
+        }
+
+        this.tsLength = tsLength;
+        this.stride = stride;
+        this.pooledLength = pooledLength(tsLength, stride);
+        this.examples = mask == null ? 1 : mask.size(0);
+
+        final long paddedLength = pooledLength * stride;
+        if (paddedLength * examples > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many timesteps to pool: " + tsLength + " timesteps of " + examples + " examples");
+        }
+
+        final double[] maskValues = mask == null ? null : mask.dup('c').data().asDouble();
+        final double[] weightValues = new double[(int) (paddedLength * examples)];
+        final double[] pooledMaskValues = new double[(int) (pooledLength * examples)];
+
+        for (int example = 0; example < examples; example++) {
+            for (int p = 0; p < pooledLength; p++) {
+                final long end = Math.min(tsLength, (p + 1L) * stride);
+                double count = 0;
+                for (long t = (long) p * stride; t < end; t++) {
+                    count += maskValues == null ? 1.0 : maskValues[(int) (example * tsLength + t)];
+                }
+                if (count == 0) {
+                    continue;
+                }
+                pooledMaskValues[(int) (example * pooledLength + p)] = 1.0;
+                for (long t = (long) p * stride; t < end; t++) {
+                    final double m = maskValues == null ? 1.0 : maskValues[(int) (example * tsLength + t)];
+                    weightValues[(int) (t + paddedLength * example)] = m / count;
+                }
+            }
+        }
+
+        weights = Nd4j.create(weightValues, new int[]{1, weightValues.length});
+        pooledMask = mask == null ? null : Nd4j.create(pooledMaskValues, new int[]{(int) examples, (int) pooledLength}, 'c');
+    }
+
+    public static long pooledLength(long tsLength, int stride) {
+        return (tsLength + stride - 1) / stride;
+    }
+
+    /*
+     * Mask of the pooled memory, [examples, pooledLength], or null without a mask.
+     */
+    public INDArray getPooledMask() {
+        return pooledMask;
+    }
+
+    /*
+     * Pools memory [features, tsLength, examples] to [features, pooledLength, examples].
+     */
+    public INDArray pool(INDArray memory, LayerWorkspaceMgr mgr, ArrayType arrayType) {
+        assertShape(memory, tsLength);
+
+        final long features = memory.size(0);
+        final long examples = memory.size(2);
+        final long paddedLength = pooledLength * stride;
+
+        // The last window is filled up with zeros to a full stride
+        INDArray padded = memory;
+        if (paddedLength != tsLength) {
+            padded = Nd4j.create(new long[]{features, paddedLength, examples}, 'f');
+            padded.get(all(), interval(0, tsLength), all()).assign(memory);
+        }
+
+        final INDArray weighted = padded.reshape('f', features, paddedLength * examples).mulRowVector(exampleWeights(examples));
+        final INDArray pooled = mgr.createUninitialized(arrayType, new long[]{features, pooledLength, examples}, 'f');
+        pooled.reshape('f', features, pooledLength * examples)
+                .assign(weighted.reshape('f', features, stride, pooledLength * examples).sum(1));
+        return pooled;
+    }
+
+    /*
+     * Adds the gradient of the memory for the gradient of the pooled memory [features, pooledLength, examples] to
+     * memoryGradient [features, tsLength, examples].
+     */
+    public void backprop(INDArray pooledGradient, INDArray memoryGradient) {
+        assertShape(pooledGradient, pooledLength);
+        assertShape(memoryGradient, tsLength);
+
+        final long features = pooledGradient.size(0);
+        final long examples = pooledGradient.size(2);
+        final long paddedLength = pooledLength * stride;
+
+        // Every timestep of a window gets the gradient of its window
+        final INDArray spread = Nd4j.createUninitialized(new long[]{features, stride, pooledLength, examples}, 'f');
+        for (int offset = 0; offset < stride; offset++) {
+            spread.get(all(), point(offset), all(), all()).assign(pooledGradient);
+        }
+
+        final INDArray timestepGradient = spread.reshape('f', features, paddedLength * examples).muliRowVector(exampleWeights(examples))
+                .reshape('f', features, paddedLength, examples);
+        memoryGradient.addi(paddedLength == tsLength ? timestepGradient : timestepGradient.get(all(), interval(0, tsLength), all()));
+    }
+
+    private INDArray exampleWeights(long examples) {
+        return pooledMask == null && examples > 1 ? Nd4j.tile(weights, 1, (int) examples) : weights;
+    }
+
+    private void assertShape(INDArray memory, long length) {
+        if (memory.rank() != 3 || memory.size(1) != length || (pooledMask != null && memory.size(2) != examples)) {
+            throw new IllegalStateException("Memory must have shape [features, " + length + ", examples]"
+                    + (pooledMask != null ? " with " + examples + " examples" : "") + ", but got " + Arrays.toString(memory.shape()));
+        }
+    }
+}
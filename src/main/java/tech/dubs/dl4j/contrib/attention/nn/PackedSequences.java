@@ -0,0 +1,188 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+import java.util.Arrays;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/*
+ *  Variable length sequences without padding: the timesteps of all sequences are concatenated to data of shape
+ *  [features, total timesteps] and offsets has examples + 1 entries, sequence i covers the timesteps
+ *  [offsets[i], offsets[i + 1]).
+ *
+ *  fromPadded and toPadded convert from and to the padded [examples, features, timesteps] format with a
+ *  [examples, timesteps] mask used by DL4J networks, at the boundaries of a stack of attention layers. Only padding at
+ *  the end of a sequence can be packed, i.e. every mask row has to be a run of ones followed by zeros.
+ * @author Paul Dubs
+ */
+public class PackedSequences {
+    private final INDArray data;
+    private final long[] offsets;
+
+    public PackedSequences(INDArray data, long[] offsets) {
+        if (data.rank() != 2) {
+            throw new IllegalStateException("Packed data must have shape [features, total timesteps], but got data.shape() = " + Arrays.toString(data.shape()));
+        }
+        if (offsets.length < 2 || offsets[0] != 0 || offsets[offsets.length - 1] != data.size(1)) {
+            throw new IllegalStateException("Offsets must start at 0 and end at the " + data.size(1) + " packed timesteps, but got offsets = " + Arrays.toString(offsets));
+        }
+        for (int i = 1; i < offsets.length; i++) {
+            if (offsets[i] < offsets[i - 1]) {
+                throw new IllegalStateException("Offsets must not decrease, but got offsets = " + Arrays.toString(offsets));
+            }
+        }
+        this.data = data;
+        this.offsets = offsets.clone();
+    }
+
+    /*
+     * Packs padded input [examples, features, timesteps] with its mask [examples, timesteps], which may be null if
+     * no example is padded.
+     */
+    public static PackedSequences fromPadded(INDArray input, INDArray mask) {
+        if (input.rank() != 3) {
+            throw new IllegalStateException("Padded input must have shape [examples, features, timesteps], but got input.shape() = " + Arrays.toString(input.shape()));
+        }
+        final long examples = input.size(0);
+        final long tsLength = input.size(2);
+        if (mask != null && (mask.size(0) != examples || mask.size(1) != tsLength)) {
+            throw new IllegalStateException("Mask must have shape [" + examples + ", " + tsLength + "], but got mask.shape() = " + Arrays.toString(mask.shape()));
+        }
+
+        final long[] offsets = new long[(int) examples + 1];
+        final double[] maskValues = mask == null ? null : mask.dup('c').data().asDouble();
+        for (int example = 0; example < examples; example++) {
+            long length = tsLength;
+            if (maskValues != null) {
+                length = 0;
+                while (length < tsLength && maskValues[(int) (example * tsLength + length)] != 0.0) {
+                    length++;
+                }
+                for (long t = length; t < tsLength; t++) {
+                    if (maskValues[(int) (example * tsLength + t)] != 0.0) {
+                        throw new IllegalStateException("Only padding at the end of a sequence can be packed, but mask row " + example + " = " + mask.getRow(example));
+                    }
+                }
+            }
+            offsets[example + 1] = offsets[example] + length;
+        }
+
+        final INDArray data = Nd4j.createUninitialized(new long[]{input.size(1), offsets[(int) examples]}, 'f');
+        for (int example = 0; example < examples; example++) {
+            final long length = offsets[example + 1] - offsets[example];
+            if (length > 0) {
+                data.get(all(), interval(offsets[example], offsets[example + 1])).assign(input.get(point(example), all(), interval(0, length)));
+            }
+        }
+        return new PackedSequences(data, offsets);
+    }
+
+    /*
+     * Packs sequences of shape [features, timesteps] each
+     */
+    public static PackedSequences of(INDArray... sequences) {
+        if (sequences.length == 0) {
+            throw new IllegalStateException("At least one sequence is required");
+        }
+        final long features = sequences[0].size(0);
+        final long[] offsets = new long[sequences.length + 1];
+        for (int i = 0; i < sequences.length; i++) {
+            if (sequences[i].rank() != 2 || sequences[i].size(0) != features) {
+                throw new IllegalStateException("Sequences must have shape [" + features + ", timesteps], but got sequences[" + i + "].shape() = "
+                        + Arrays.toString(sequences[i].shape()));
+            }
+            offsets[i + 1] = offsets[i] + sequences[i].size(1);
+        }
+
+        final INDArray data = Nd4j.createUninitialized(new long[]{features, offsets[sequences.length]}, 'f');
+        for (int i = 0; i < sequences.length; i++) {
+            if (offsets[i + 1] > offsets[i]) {
+                data.get(all(), interval(offsets[i], offsets[i + 1])).assign(sequences[i]);
+            }
+        }
+        return new PackedSequences(data, offsets);
+    }
+
+    /*
+     * Padded [examples, features, longest sequence], with zeros after the end of every sequence
+     */
+    public INDArray toPadded() {
+        final INDArray padded = Nd4j.zeros(new long[]{getExamples(), getFeatures(), getMaxLength()}, 'f');
+        for (int example = 0; example < getExamples(); example++) {
+            if (getLength(example) > 0) {
+                padded.get(point(example), all(), interval(0, getLength(example))).assign(getSequence(example));
+            }
+        }
+        return padded;
+    }
+
+    /*
+     * Mask [examples, longest sequence] of the padded data
+     */
+    public INDArray toPaddedMask() {
+        final INDArray mask = Nd4j.zeros(getExamples(), getMaxLength());
+        for (int example = 0; example < getExamples(); example++) {
+            if (getLength(example) > 0) {
+                mask.get(point(example), interval(0, getLength(example))).assign(1.0);
+            }
+        }
+        return mask;
+    }
+
+    /*
+     * Packed sequences with the same lengths for other data, e.g. the output of a layer for these sequences
+     */
+    public PackedSequences withData(INDArray data) {
+        return new PackedSequences(data, offsets);
+    }
+
+    public INDArray getData() {
+        return data;
+    }
+
+    public long[] getOffsets() {
+        return offsets.clone();
+    }
+
+    public long getOffset(int example) {
+        return offsets[example];
+    }
+
+    public long getFeatures() {
+        return data.size(0);
+    }
+
+    public int getExamples() {
+        return offsets.length - 1;
+    }
+
+    public long getTotalLength() {
+        return offsets[offsets.length - 1];
+    }
+
+    public long getLength(int example) {
+        return offsets[example + 1] - offsets[example];
+    }
+
+    public long getMaxLength() {
+        long max = 0;
+        for (int example = 0; example < getExamples(); example++) {
+            max = Math.max(max, getLength(example));
+        }
+        return max;
+    }
+
+    /*
+     * View [features, timesteps] of one sequence, must not be empty
+     */
+    public INDArray getSequence(int example) {
+        if (getLength(example) == 0) {
+            throw new IllegalStateException("Sequence " + example + " is empty");
+        }
+        return data.get(all(), interval(offsets[example], offsets[example + 1]));
+    }
+}
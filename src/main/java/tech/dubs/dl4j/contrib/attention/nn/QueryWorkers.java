@@ -0,0 +1,77 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/*
+ *  Shared daemon threads for query-parallel attention, see AdditiveAttentionMechanism.withQueryThreads. Threads are
+ *  created on demand and end after a minute without work, so every layer can use its own thread budget without a
+ *  pool per layer.
+ *
+ *  ND4J workspaces are thread local, every worker only uses the workspaces it activates itself.
+ * @author Paul Dubs
+ */
+class QueryWorkers {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(task -> {
+        final Thread thread = new Thread(task, "attention-query-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private QueryWorkers() { }
+
+    /*
+     * Runs task for every partition in [0, partitions) and returns when all of them are done. The calling thread runs
+     * partition 0 itself. The first failure is rethrown, but only after every partition finished, as they may still
+     * write into arrays of the caller's workspaces.
+     */
+    static void run(int partitions, IntConsumer task) {
+        final List<Future<?>> futures = new ArrayList<>(partitions - 1);
+        for (int partition = 1; partition < partitions; partition++) {
+            final int current = partition;
+            futures.add(WORKERS.submit(() -> task.accept(current)));
+        }
+
+        Throwable failure = null;
+        try {
+            task.accept(0);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+
+        boolean interrupted = false;
+        for (Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IllegalStateException("Query-parallel attention failed", failure);
+        }
+    }
+}
@@ -8,7 +8,6 @@ import org.deeplearning4j.nn.workspace.ArrayType;
 import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
 import org.nd4j.base.Preconditions;
 import org.nd4j.linalg.activations.IActivation;
-import org.nd4j.linalg.activations.impl.ActivationSoftmax;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.api.shape.Shape;
 import org.nd4j.linalg.factory.Nd4j;
@@ -16,12 +15,13 @@ import org.nd4j.linalg.primitives.Pair;
 import tech.dubs.dl4j.contrib.attention.nn.params.RecurrentQueryAttentionParamInitializer;
 
 import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
 import static org.nd4j.linalg.indexing.NDArrayIndex.point;
 
 /**
  * Recurrent Attention Layer Implementation
  *
- *
+ * Packed sequences (see PackedSequences) can be run without padding by activatePacked, for inference.
  *
  * TODO:
  *  - Optionally keep attention weights around for inspection
@@ -30,8 +30,6 @@ import static org.nd4j.linalg.indexing.NDArrayIndex.point;
  * @author Paul Dubs
  */
 public class RecurrentAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer> {
-    private IActivation softmax = new ActivationSoftmax();
-
     public RecurrentAttentionLayer(NeuralNetConfiguration conf) {
         super(conf);
     }
@@ -49,6 +47,39 @@ public class RecurrentAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.at
 
         applyDropOutIfNecessary(training, workspaceMgr);
 
+        if(input.shape()[0] != layerConf().getNIn())
+            input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
+
+        return attend(input, maskArray, training, workspaceMgr);
+    }
+
+    /*
+     * Inference on packed sequences (see PackedSequences) instead of padded input with a mask, returns the packed
+     * outputs [nOut, total timesteps]. The recurrence is sequential per timestep anyway, so every sequence runs on its
+     * own, without padding to the longest one.
+     */
+    public PackedSequences activatePacked(PackedSequences input, LayerWorkspaceMgr workspaceMgr) {
+        final long nIn = layerConf().getNIn();
+        if (input.getFeatures() != nIn) {
+            throw new IllegalStateException("Packed input must have " + nIn + " features, but got " + input.getFeatures());
+        }
+
+        final INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{layerConf().getNOut(), input.getTotalLength()}, 'f');
+        for (int example = 0; example < input.getExamples(); example++) {
+            final long length = input.getLength(example);
+            if (length > 0) {
+                final INDArray sequence = input.getSequence(example).reshape('f', nIn, length, 1);
+                activations.get(all(), interval(input.getOffset(example), input.getOffset(example) + length))
+                        .assign(attend(sequence, null, false, workspaceMgr).tensorAlongDimension(0, 1, 2));
+            }
+        }
+        return input.withData(activations);
+    }
+
+    /*
+     * Activations [examples, nOut, timesteps] for input [nIn, timesteps, examples]
+     */
+    private INDArray attend(INDArray input, INDArray mask, boolean training, LayerWorkspaceMgr workspaceMgr) {
         INDArray W = getParamWithNoise(RecurrentQueryAttentionParamInitializer.WEIGHT_KEY, training, workspaceMgr);
         INDArray Wr = getParamWithNoise(RecurrentQueryAttentionParamInitializer.RECURRENT_WEIGHT_KEY, training, workspaceMgr);
         INDArray Wq = getParamWithNoise(RecurrentQueryAttentionParamInitializer.QUERY_WEIGHT_KEY, training, workspaceMgr);
@@ -56,18 +87,17 @@ public class RecurrentAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.at
         INDArray b = getParamWithNoise(RecurrentQueryAttentionParamInitializer.BIAS_KEY, training, workspaceMgr);
         INDArray bq = getParamWithNoise(RecurrentQueryAttentionParamInitializer.QUERY_BIAS_KEY, training, workspaceMgr);
 
-        long examples = input.size(0);
-        long tsLength = input.size(2);
+        long examples = input.size(2);
+        long tsLength = input.size(1);
         long nIn = layerConf().getNIn();
         long nOut = layerConf().getNOut();
         IActivation a = layerConf().getActivationFn();
 
         INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{examples, nOut, tsLength}, 'f');
 
-        if(input.shape()[0] != nIn)
-            input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
-
-        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Wqr, Wq, bq, a, workspaceMgr, training).useCaching();
+        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Wqr, Wq, bq, a, workspaceMgr, training).useCaching()
+                .withApproximateScoring(layerConf().isApproximateScoring()).withSmallShapeThreshold(layerConf().getSmallShapeThreshold());
+        final INDArray values = values(Wr, input, workspaceMgr, ArrayType.FF_WORKING_MEM);
 
 
         // pre-compute non-recurrent part
@@ -83,8 +113,8 @@ public class RecurrentAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.at
             if(timestep > 0){
                 final INDArray prevActivation = timestepArray(activations, timestep - 1);
                 final INDArray queries = Nd4j.expandDims(prevActivation, 2).permute(1,2,0);
-                final INDArray attention = attentionMechanism.query(queries, input, input, maskArray);
-                curOut.addi(Nd4j.squeeze(attention, 2).mmul(Wr));
+                final INDArray attention = Nd4j.squeeze(attentionMechanism.query(queries, input, values, mask), 2);
+                curOut.addi(preProjectValues() ? attention : attention.mmul(Wr));
             }
 
             a.getActivation(curOut, true);
@@ -123,6 +153,14 @@ public class RecurrentAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.at
 
         applyDropOutIfNecessary(true, workspaceMgr);
 
+        // Frozen parameters only need the epsilon, so nothing is collected for their gradients. The first layer needs
+        // no epsilon, then the attention gets no key and value gradients.
+        final boolean frozen = FrozenParameters.skipGradients(conf, layerConf().isFrozenParams());
+        final boolean skipInput = layerConf().isSkipInputGradients();
+        if (frozen && skipInput) {
+            weightNoiseParams.clear();
+            return new Pair<>(parameterGradient(), null);
+        }
 
         long nIn = layerConf().getNIn();
         long nOut = layerConf().getNOut();
@@ -132,17 +170,24 @@ public class RecurrentAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.at
 
         INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{examples, nOut, tsLength}, 'f');
         INDArray preOut = workspaceMgr.createUninitialized(ArrayType.BP_WORKING_MEM, new long[]{examples, nOut, tsLength}, 'f');
-        INDArray attentions = workspaceMgr.createUninitialized(ArrayType.BP_WORKING_MEM, new long[]{examples, nIn, tsLength}, 'f');
         INDArray queryG = workspaceMgr.create(ArrayType.BP_WORKING_MEM, new long[]{nOut, 1, examples}, 'f');
 
+        // Collected during the reverse loop, the W, Wr and b gradients are computed from them at the end. Timestep 0 has
+        // no attention, so its entries stay zero. Pre-projected values collect their gradient instead of the attentions.
+        final boolean preProject = preProjectValues();
+        INDArray attentions = frozen || preProject ? null : workspaceMgr.create(ArrayType.BP_WORKING_MEM, new long[]{nIn, tsLength, examples}, 'f');
+        INDArray dldzs = workspaceMgr.create(ArrayType.BP_WORKING_MEM, new long[]{nOut, tsLength, examples}, 'f');
+
         if(input.shape()[0] != nIn)
             input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
 
-        INDArray epsOut = workspaceMgr.create(ArrayType.ACTIVATION_GRAD, input.shape(), 'f');
-        epsOut.assign(0);
+        INDArray epsOut = skipInput ? null : workspaceMgr.create(ArrayType.ACTIVATION_GRAD, input.shape(), 'f');
 
 
-        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Wqr, Wq, bq, a, workspaceMgr, true).useCaching();
+        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Wqr, Wq, bq, a, workspaceMgr, true).useCaching()
+                .withSmallShapeThreshold(layerConf().getSmallShapeThreshold());
+        final INDArray values = values(Wr, input, workspaceMgr, ArrayType.BP_WORKING_MEM);
+        final INDArray valuesG = preProject ? workspaceMgr.create(ArrayType.BP_WORKING_MEM, values.shape(), 'f') : epsOut;
 
         // pre-compute non-recurrent part
         activations.assign(
@@ -158,59 +203,103 @@ public class RecurrentAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.at
             if(timestep > 0){
                 final INDArray prevActivation = timestepArray(activations, timestep - 1);
                 final INDArray query = Nd4j.expandDims(prevActivation, 2).permute(1, 2, 0);
-                final INDArray attention = Nd4j.squeeze(attentionMechanism.query(query, input, input, maskArray), 2);
-                timestepArray(attentions, timestep).assign(attention);
+                final INDArray attention = Nd4j.squeeze(attentionMechanism.query(query, input, values, maskArray), 2);
+                if (attentions != null) {
+                    attentions.get(all(), point(timestep), all()).assign(attention.transpose());
+                }
 
-                curOut.addi(attention.mmul(Wr));
+                curOut.addi(preProject ? attention : attention.mmul(Wr));
             }
             timestepArray(preOut, timestep).assign(curOut);
             a.getActivation(curOut, true);
         }
 
 
+        // The attention gradients are accumulated per step, the others are collected for after the loop
         for (long timestep = tsLength - 1; timestep >= 0; timestep--) {
             final INDArray curEps = timestepArray(epsilon, timestep);
             final INDArray curPreOut = timestepArray(preOut, timestep);
-            final INDArray curIn = input.get(all(), point(timestep), all());
 
             final INDArray dldz = a.backprop(curPreOut, curEps).getFirst();
-            Wg.addi(Nd4j.gemm(curIn, dldz, false, false));
-            bg.addi(dldz.sum(0));
-            epsOut.tensorAlongDimension((int)timestep, 0, 2).addi(Nd4j.gemm(dldz, W, false, true).transposei());
+            dldzs.get(all(), point(timestep), all()).assign(dldz.transpose());
 
             if(timestep > 0){
-                final INDArray curAttn = timestepArray(attentions, timestep);
-
-                Wrg.addi(Nd4j.gemm(curAttn, dldz, true, false));
-
                 final INDArray prevEps = timestepArray(epsilon, timestep - 1);
                 final INDArray prevActivation = timestepArray(activations, timestep - 1);
                 final INDArray query = Nd4j.expandDims(prevActivation, 2).permute(1,2,0);
                 queryG.assign(0);
 
-                final INDArray dldAtt = Nd4j.gemm(dldz, Wr, false, true);
+                final INDArray dldAtt = preProject ? dldz : Nd4j.gemm(dldz, Wr, false, true);
                 attentionMechanism
-                        .withGradientViews(Wqg, Wqrg, bqg, epsOut, epsOut, queryG)
-                        .backprop(dldAtt, query, input, input, maskArray);
+                        .withGradientViews(frozen ? null : Wqg, frozen ? null : Wqrg, frozen ? null : bqg, epsOut, valuesG, queryG)
+                        .backprop(dldAtt, query, input, values, maskArray);
 
                 prevEps.addi(Nd4j.squeeze(queryG, 1).transpose());
             }
         }
 
+        // Parameter gradients of all timesteps at once
+        final INDArray dldz = dldzs.reshape('f', nOut, tsLength * examples);
+        if (!frozen) {
+            Nd4j.gemm(input.reshape('f', nIn, tsLength * examples), dldz, Wg, false, true, 1.0, 1.0);
+            if (preProject) {
+                Nd4j.gemm(input.reshape('f', nIn, tsLength * examples), valuesG.reshape('f', nOut, tsLength * examples), Wrg, false, true, 1.0, 1.0);
+            } else {
+                Nd4j.gemm(attentions.reshape('f', nIn, tsLength * examples), dldz, Wrg, false, true, 1.0, 1.0);
+            }
+            bg.addi(dldz.sum(1).transpose());
+        }
+        if (!skipInput) {
+            epsOut.addi(Nd4j.gemm(W, dldz, false, false).reshape('f', nIn, tsLength, examples));
+            if (preProject) {
+                Nd4j.gemm(Wr, valuesG.reshape('f', nOut, tsLength * examples), epsOut.reshape('f', nIn, tsLength * examples), false, false, 1.0, 1.0);
+            }
+        }
+
         weightNoiseParams.clear();
 
-        Gradient g = new DefaultGradient(gradientsFlattened);
-        g.gradientForVariable().put(RecurrentQueryAttentionParamInitializer.WEIGHT_KEY, Wg);
-        g.gradientForVariable().put(RecurrentQueryAttentionParamInitializer.QUERY_WEIGHT_KEY, Wqg);
-        g.gradientForVariable().put(RecurrentQueryAttentionParamInitializer.RECURRENT_QUERY_WEIGHT_KEY, Wqrg);
-        g.gradientForVariable().put(RecurrentQueryAttentionParamInitializer.RECURRENT_WEIGHT_KEY, Wrg);
-        g.gradientForVariable().put(RecurrentQueryAttentionParamInitializer.BIAS_KEY, bg);
-        g.gradientForVariable().put(RecurrentQueryAttentionParamInitializer.QUERY_BIAS_KEY, bqg);
+        if (skipInput) {
+            return new Pair<>(parameterGradient(), null);
+        }
 
         epsOut = workspaceMgr.dup(ArrayType.ACTIVATION_GRAD, epsOut.permute(2, 0, 1), 'f');
         epsOut = backpropDropOutIfPresent(epsOut);
 
-        return new Pair<>(g, epsOut);
+        return new Pair<>(parameterGradient(), epsOut);
+    }
+
+    /*
+     * The values only enter the output through Wr, so with nOut <= nIn they are projected once for the whole sequence,
+     * instead of multiplying every step's attention with Wr. Each step then aggregates nOut instead of nIn features,
+     * and the projection costs as much as the per step products together.
+     */
+    private boolean preProjectValues() {
+        return layerConf().getNOut() <= layerConf().getNIn();
+    }
+
+    /*
+     * Values for the attention of every step, [nOut, timesteps, examples] when pre-projected, else the input itself
+     */
+    private INDArray values(INDArray Wr, INDArray input, LayerWorkspaceMgr workspaceMgr, ArrayType arrayType) {
+        if (!preProjectValues()) {
+            return input;
+        }
+        final long nIn = input.size(0);
+        final long tsLength = input.size(1);
+        final long examples = input.size(2);
+        final INDArray target = workspaceMgr.createUninitialized(arrayType, new long[]{Wr.size(1), tsLength * examples}, 'f');
+        return Nd4j.gemm(Wr, input.reshape('f', nIn, tsLength * examples), target, true, false, 1.0, 0.0)
+                .reshape('f', Wr.size(1), tsLength, examples);
+    }
+
+    private Gradient parameterGradient() {
+        Gradient g = new DefaultGradient(gradientsFlattened);
+        for (String key : new String[]{RecurrentQueryAttentionParamInitializer.WEIGHT_KEY, RecurrentQueryAttentionParamInitializer.QUERY_WEIGHT_KEY,
+                RecurrentQueryAttentionParamInitializer.RECURRENT_QUERY_WEIGHT_KEY, RecurrentQueryAttentionParamInitializer.RECURRENT_WEIGHT_KEY,
+                RecurrentQueryAttentionParamInitializer.BIAS_KEY, RecurrentQueryAttentionParamInitializer.QUERY_BIAS_KEY}) {
+            g.gradientForVariable().put(key, gradientViews.get(key));
+        }
+        return g;
     }
 
     private INDArray subArray(INDArray in, int example, int timestep){
@@ -9,9 +9,9 @@ import org.deeplearning4j.nn.workspace.ArrayType;
 import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
 import org.nd4j.base.Preconditions;
 import org.nd4j.linalg.activations.IActivation;
-import org.nd4j.linalg.activations.impl.ActivationSoftmax;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.primitives.Pair;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
 import tech.dubs.dl4j.contrib.attention.nn.params.SelfAttentionParamInitializer;
 
 /**
@@ -20,6 +20,8 @@ import tech.dubs.dl4j.contrib.attention.nn.params.SelfAttentionParamInitializer;
  * The implementation of mmul across time isn't the most efficient thing possible in nd4j, since the reshapes require
  * a copy, but it is the easiest to follow for now.
  *
+ * Packed sequences (see PackedSequences) can be attended to without padding by activatePacked, for inference.
+ *
  * TODO:
  *  - Optionally keep attention weights around for inspection
  *  - Handle Masking
@@ -27,7 +29,7 @@ import tech.dubs.dl4j.contrib.attention.nn.params.SelfAttentionParamInitializer;
  * @author Paul Dubs
  */
 public class SelfAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer> {
-    private IActivation softmax = new ActivationSoftmax();
+    private InferenceCache inferenceCache;
 
     public SelfAttentionLayer(NeuralNetConfiguration conf) {
         super(conf);
@@ -46,6 +48,21 @@ public class SelfAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attenti
 
         applyDropOutIfNecessary(training, workspaceMgr);
 
+        long nIn = layerConf().getNIn();
+        if(input.shape()[0] != nIn)
+            input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
+
+        final InferenceCache cache = training ? null : getInferenceCache();
+        if (cache != null) {
+            return cache.activate(input, maskArray, params(), workspaceMgr, (in, mask) -> attend(in, mask, false, workspaceMgr));
+        }
+        return attend(input, maskArray, training, workspaceMgr);
+    }
+
+    /*
+     * Attention output [examples, outputWidth] for input [nIn, timesteps, examples]
+     */
+    private INDArray attend(INDArray input, INDArray mask, boolean training, LayerWorkspaceMgr workspaceMgr) {
         INDArray W = getParamWithNoise(SelfAttentionParamInitializer.WEIGHT_KEY, training, workspaceMgr);
         INDArray Q = getParamWithNoise(SelfAttentionParamInitializer.QUERY_WEIGHT_KEY, training, workspaceMgr);
         INDArray b = getParamWithNoise(SelfAttentionParamInitializer.BIAS_KEY, training, workspaceMgr);
@@ -53,24 +70,67 @@ public class SelfAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attenti
 
         long nOut = layerConf().getNOut();
         long nIn = layerConf().getNIn();
-        long examples = input.shape()[0] == nIn ? input.shape()[2] : input.shape()[0];
+        long examples = input.shape()[2];
         IActivation a = layerConf().getActivationFn();
-
-        INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{examples, nIn * nOut}, 'f');
-
-        if(input.shape()[0] != nIn)
-            input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
-
-        final INDArray queries = q.reshape(nIn, 1, 1).broadcast(nIn, 1, examples);
-
-        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, training);
-        final INDArray attention = attentionMechanism.query(queries, input, input, maskArray);
+        final HeadReduction reduction = outputReduction(training, workspaceMgr);
+
+        INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{examples, reduction.outputWidth(nIn, nOut)}, 'f');
+
+        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, training).withTopK(layerConf().getTopK())
+                .withOutputReduction(reduction).withApproximateScoring(layerConf().isApproximateScoring())
+                .withSmallShapeThreshold(layerConf().getSmallShapeThreshold());
+        final INDArray attention;
+        if(training){
+            final INDArray queries = q.reshape(nIn, 1, 1).broadcast(nIn, 1, examples);
+            attention = attentionMechanism.query(queries, input, input, mask);
+        }else{
+            // The query is a parameter, so Q*q + b is computed once for all examples of the call
+            attention = attentionMechanism.queryFolded(attentionMechanism.foldQuery(q.reshape(nIn, 1)), input, input, mask);
+        }
         activations.assign(attention.reshape(activations.shape()));
 
         return activations;
     }
 
+    /*
+     * Inference on packed sequences (see PackedSequences) instead of padded input with a mask, returns the outputs
+     * [examples, outputWidth]. The keys of all sequences are projected at once, and no sequence is padded. The
+     * inference cache is not used.
+     */
+    public INDArray activatePacked(PackedSequences input, LayerWorkspaceMgr workspaceMgr) {
+        if (input.getFeatures() != layerConf().getNIn()) {
+            throw new IllegalStateException("Packed input must have " + layerConf().getNIn() + " features, but got " + input.getFeatures());
+        }
+
+        INDArray W = getParamWithNoise(SelfAttentionParamInitializer.WEIGHT_KEY, false, workspaceMgr);
+        INDArray Q = getParamWithNoise(SelfAttentionParamInitializer.QUERY_WEIGHT_KEY, false, workspaceMgr);
+        INDArray b = getParamWithNoise(SelfAttentionParamInitializer.BIAS_KEY, false, workspaceMgr);
+        INDArray q = getParamWithNoise(SelfAttentionParamInitializer.QUERY_KEY, false, workspaceMgr);
+
+        final HeadReduction reduction = outputReduction(false, workspaceMgr);
+        final INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{input.getExamples(), reduction.outputWidth(layerConf().getNIn(), layerConf().getNOut())}, 'f');
+
+        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, layerConf().getActivationFn(), workspaceMgr, false).withTopK(layerConf().getTopK())
+                .withOutputReduction(reduction).withApproximateScoring(layerConf().isApproximateScoring());
+        activations.assign(attentionMechanism.queryFoldedPacked(attentionMechanism.foldQuery(q.reshape(q.length(), 1)), input, input));
+        return activations;
+    }
+
+    /*
+     * Memoized inference outputs, if enabled in the configuration, see InferenceCache
+     */
+    public synchronized InferenceCache getInferenceCache() {
+        if (inferenceCache == null && layerConf().getInferenceCacheSize() > 0) {
+            inferenceCache = new InferenceCache(layerConf().getInferenceCacheSize(), layerConf().getInferenceCacheBytes(), layerConf().getInferenceCacheTtl());
+        }
+        return inferenceCache;
+    }
 
+    private HeadReduction outputReduction(boolean training, LayerWorkspaceMgr workspaceMgr) {
+        final AttentionOutputMode mode = layerConf().getOutputMode();
+        return HeadReduction.of(mode, mode == AttentionOutputMode.PROJECTION
+                ? getParamWithNoise(SelfAttentionParamInitializer.PROJECTION_WEIGHT_KEY, training, workspaceMgr) : null);
+    }
 
     @Override
     public Pair<Gradient, INDArray> backpropGradient(INDArray epsilon, LayerWorkspaceMgr workspaceMgr) {
@@ -96,19 +156,27 @@ public class SelfAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attenti
         if(input.shape()[0] != nIn)
             input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
 
-        INDArray epsOut = workspaceMgr.create(ArrayType.ACTIVATION_GRAD, input.shape(), 'f');
+        /* Frozen parameters only need the epsilon, and the query is a parameter as well. The first layer needs no epsilon */
+        final boolean frozen = FrozenParameters.skipGradients(conf, layerConf().isFrozenParams());
+        final boolean skipInput = layerConf().isSkipInputGradients();
+        INDArray epsOut = skipInput ? null : workspaceMgr.create(ArrayType.ACTIVATION_GRAD, input.shape(), 'f');
 
-        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, true);
+        final INDArray Wog = gradientViews.get(SelfAttentionParamInitializer.PROJECTION_WEIGHT_KEY);
+        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, true).withTopK(layerConf().getTopK())
+                .withOutputReduction(outputReduction(true, workspaceMgr).withGradientView(frozen ? null : Wog))
+                .withSmallShapeThreshold(layerConf().getSmallShapeThreshold());
 
         final INDArray queries = q.reshape(nIn, 1, 1).broadcast(nIn, 1, examples);
-        final INDArray queryG = workspaceMgr.create(ArrayType.BP_WORKING_MEM, queries.shape(), 'f');
-
-        attentionMechanism.withGradientViews(Wg, Qg, bg, epsOut, epsOut, queryG)
-                .backprop(epsilon, queries, input, input, maskArray);
+        final INDArray queryG = frozen ? null : workspaceMgr.create(ArrayType.BP_WORKING_MEM, queries.shape(), 'f');
 
-        qg.assign(queryG.sum(2).transposei());
+        if (!frozen || !skipInput) {
+            attentionMechanism.withGradientViews(frozen ? null : Wg, frozen ? null : Qg, frozen ? null : bg, epsOut, epsOut, queryG)
+                    .backprop(epsilon, queries, input, input, maskArray);
+        }
 
-        epsOut = workspaceMgr.dup(ArrayType.ACTIVATION_GRAD, epsOut.permute(2, 0, 1), 'f');
+        if (!frozen) {
+            qg.assign(queryG.sum(2).transposei());
+        }
 
         weightNoiseParams.clear();
 
@@ -117,7 +185,15 @@ public class SelfAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attenti
         g.gradientForVariable().put(SelfAttentionParamInitializer.QUERY_WEIGHT_KEY, Qg);
         g.gradientForVariable().put(SelfAttentionParamInitializer.BIAS_KEY, bg);
         g.gradientForVariable().put(SelfAttentionParamInitializer.QUERY_KEY, qg);
+        if (Wog != null) {
+            g.gradientForVariable().put(SelfAttentionParamInitializer.PROJECTION_WEIGHT_KEY, Wog);
+        }
+
+        if (skipInput) {
+            return new Pair<>(g, null);
+        }
 
+        epsOut = workspaceMgr.dup(ArrayType.ACTIVATION_GRAD, epsOut.permute(2, 0, 1), 'f');
         epsOut = backpropDropOutIfPresent(epsOut);
         return new Pair<>(g, epsOut);
     }
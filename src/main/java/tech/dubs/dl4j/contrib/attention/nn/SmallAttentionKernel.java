@@ -0,0 +1,455 @@
+package tech.dubs.dl4j.contrib.attention.nn;
+
+import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.activations.impl.ActivationIdentity;
+import org.nd4j.linalg.activations.impl.ActivationReLU;
+import org.nd4j.linalg.activations.impl.ActivationSigmoid;
+import org.nd4j.linalg.activations.impl.ActivationTanH;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+
+import java.util.Arrays;
+
+/*
+ *  Additive attention for small shapes in plain Java loops over primitive arrays. With a few features, heads and
+ *  timesteps, every native op of AdditiveAttentionMechanism costs more in dispatch than in arithmetic, and a query
+ *  needs about 5 of them in the forward and 19 in the backward pass. Here all examples and queries of a call are
+ *  computed without a single native op: arrays are read from and written to their buffers directly, respecting the
+ *  strides of views.
+ *
+ *  All arithmetic is done in double, so with float parameters the results differ from those of
+ *  AdditiveAttentionMechanism by rounding, and a network gives slightly different outputs with and without the kernel.
+ *  The kernel is therefore only used when a layer opts in with a small shape threshold. Only dense attention with the identity, tanh, sigmoid or ReLU activation and concatenated or averaged heads is
+ *  supported, see applies. Sizes are measured as attentionHeads * timesteps * widest input, the work per query.
+ * @author Paul Dubs
+ */
+public class SmallAttentionKernel {
+    /*
+     * Suggested small shape threshold to opt in with. Calibrated with SmallShapeBenchmark: on a single core the native
+     * path only catches up at sizes around 16384, this stays well below that, as native ops also use more cores.
+     */
+    public static final long SUGGESTED_THRESHOLD = 2048;
+
+    private enum Function { IDENTITY, TANH, SIGMOID, RELU }
+
+    private final Function function;
+    private final boolean mean;
+    private final boolean approximate;
+    private final int keyWidth;
+    private final int queryWidth;
+    private final int attentionHeads;
+    // [keyWidth, attentionHeads], [queryWidth, attentionHeads] and [attentionHeads] in 'f' order
+    private final double[] W;
+    private final double[] Q;
+    private final double[] b;
+
+    /*
+     * approximate uses the fast tanh and exp of ApproximateScoring, only meant for inference
+     */
+    SmallAttentionKernel(INDArray keyWeight, INDArray queryWeight, INDArray bias, IActivation activation, AttentionOutputMode outputMode,
+                         boolean approximate) {
+        this.function = function(activation);
+        if (function == null) {
+            throw new IllegalStateException("Activation " + activation + " is not supported by the small shape kernel");
+        }
+        this.mean = outputMode == AttentionOutputMode.MEAN;
+        this.approximate = approximate;
+        this.keyWidth = (int) keyWeight.size(0);
+        this.queryWidth = (int) queryWeight.size(0);
+        this.attentionHeads = (int) keyWeight.size(1);
+        this.W = read(keyWeight);
+        this.Q = read(queryWeight);
+        this.b = read(bias);
+    }
+
+    /*
+     * Whether attention of the given shape is run by the kernel. Top-k attention and projected heads are never run by
+     * it, a threshold of 0 disables it.
+     */
+    public static boolean applies(long threshold, IActivation activation, int topK, AttentionOutputMode outputMode,
+                                  long attentionHeads, long tsLength, long width) {
+        return topK <= 0 && outputMode != AttentionOutputMode.PROJECTION && function(activation) != null
+                && attentionHeads * tsLength * width <= threshold;
+    }
+
+    private static Function function(IActivation activation) {
+        if (activation instanceof ActivationTanH) {
+            return Function.TANH;
+        } else if (activation instanceof ActivationIdentity) {
+            return Function.IDENTITY;
+        } else if (activation instanceof ActivationSigmoid) {
+            return Function.SIGMOID;
+        } else if (activation instanceof ActivationReLU) {
+            return Function.RELU;
+        }
+        return null;
+    }
+
+    /*
+     * Same as AdditiveAttentionMechanism.query, writes the result [examples, outputWidth, queryCount]. keyProjection
+     * are the projected keys (see AdditiveAttentionMechanism.projectKeys) or null to project them here.
+     */
+    void query(INDArray result, INDArray queries, INDArray keys, INDArray values, INDArray mask, double[] keyProjection) {
+        final int examples = (int) queries.size(2);
+        final int queryCount = (int) queries.size(1);
+        final double[] queryRes = project(Q, queryWidth, read(queries), queryCount * examples, null);
+        final double[] keyRes = keyProjection != null ? keyProjection : project(W, keyWidth, read(keys), (int) keys.size(1) * examples, b);
+        assign(result, attend(keyRes, queryRes, false, queryCount, read(values), (int) values.size(0), (int) keys.size(1), examples,
+                mask == null ? null : read(mask)));
+    }
+
+    /*
+     * Same as AdditiveAttentionMechanism.queryFolded, writes the result [examples, outputWidth, 1]
+     */
+    void queryFolded(INDArray result, INDArray foldedQuery, INDArray keys, INDArray values, INDArray mask) {
+        final int examples = (int) keys.size(2);
+        final double[] keyRes = project(W, keyWidth, read(keys), (int) keys.size(1) * examples, null);
+        assign(result, attend(keyRes, read(foldedQuery), true, 1, read(values), (int) values.size(0), (int) keys.size(1), examples,
+                mask == null ? null : read(mask)));
+    }
+
+    /*
+     * Output [examples, outputWidth, queryCount] in 'f' order for projected keys [attentionHeads, tsLength, examples]
+     * and projected queries [attentionHeads, queryCount, examples], or a single shared one.
+     */
+    private double[] attend(double[] keyRes, double[] queryRes, boolean sharedQuery, int queryCount, double[] values, int valueWidth,
+                            int tsLength, int examples, double[] mask) {
+        final int outputWidth = mean ? valueWidth : valueWidth * attentionHeads;
+        final double[] result = new double[examples * outputWidth * queryCount];
+        final double[] weights = new double[attentionHeads * tsLength];
+
+        for (int example = 0; example < examples; example++) {
+            if (unmasked(mask, example, examples, tsLength) == 0) {
+                // Nothing to attend to, the output stays 0
+                continue;
+            }
+            final int keyOffset = attentionHeads * tsLength * example;
+            final int valueOffset = valueWidth * tsLength * example;
+            for (int query = 0; query < queryCount; query++) {
+                final int queryOffset = sharedQuery ? 0 : attentionHeads * (query + queryCount * example);
+                weights(weights, keyRes, keyOffset, queryRes, queryOffset, mask, example, examples, tsLength, null);
+
+                for (int head = 0; head < attentionHeads; head++) {
+                    for (int f = 0; f < valueWidth; f++) {
+                        double sum = 0;
+                        for (int t = 0; t < tsLength; t++) {
+                            sum += weights[head + attentionHeads * t] * values[valueOffset + f + valueWidth * t];
+                        }
+                        final int out = mean ? f : head * valueWidth + f;
+                        result[example + examples * (out + outputWidth * query)] += mean ? sum / attentionHeads : sum;
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Same as AdditiveAttentionMechanism.backprop, adds the gradients to the given views. Wg, Qg and bg are either all
+     * null or all given.
+     */
+    void backprop(INDArray epsilon, INDArray queries, INDArray keys, INDArray values, INDArray mask, double[] keyProjection,
+                  INDArray Wg, INDArray Qg, INDArray bg, INDArray keyG, INDArray valueG, INDArray queryG) {
+        final int examples = (int) queries.size(2);
+        final int queryCount = (int) queries.size(1);
+        final int tsLength = (int) keys.size(1);
+        final int valueWidth = (int) values.size(0);
+        final int outputWidth = mean ? valueWidth : valueWidth * attentionHeads;
+        final int scores = attentionHeads * tsLength;
+
+        final double[] queryIn = read(queries);
+        final double[] keyIn = read(keys);
+        final double[] valueIn = read(values);
+        final double[] maskIn = mask == null ? null : read(mask);
+        final double[] eps = read(epsilon);
+        final double[] queryRes = project(Q, queryWidth, queryIn, queryCount * examples, null);
+        final double[] keyRes = keyProjection != null ? keyProjection : project(W, keyWidth, keyIn, tsLength * examples, b);
+
+        final boolean parameterGradients = Wg != null;
+        final double[] dW = parameterGradients ? new double[keyWidth * attentionHeads] : null;
+        final double[] dQ = parameterGradients ? new double[queryWidth * attentionHeads] : null;
+        final double[] db = parameterGradients ? new double[attentionHeads] : null;
+        final double[] dKeys = keyG != null ? new double[keyWidth * tsLength * examples] : null;
+        final double[] dValues = valueG != null ? new double[valueWidth * tsLength * examples] : null;
+        final double[] dQueries = queryG != null ? new double[queryWidth * queryCount * examples] : null;
+
+        final double[] weights = new double[scores];
+        final double[] activated = new double[scores];
+        final double[] dPreA = new double[scores];
+        final double[] dPreASum = new double[attentionHeads];
+
+        for (int example = 0; example < examples; example++) {
+            if (unmasked(maskIn, example, examples, tsLength) == 0) {
+                // Output was constant 0, no gradient
+                continue;
+            }
+            final int keyOffset = scores * example;
+            final int valueOffset = valueWidth * tsLength * example;
+            for (int query = 0; query < queryCount; query++) {
+                final int queryOffset = attentionHeads * (query + queryCount * example);
+                weights(weights, keyRes, keyOffset, queryRes, queryOffset, maskIn, example, examples, tsLength, activated);
+
+                Arrays.fill(dPreASum, 0.0);
+                for (int head = 0; head < attentionHeads; head++) {
+                    // Gradient of the weights, and their weighted sum for the softmax
+                    double dot = 0;
+                    for (int t = 0; t < tsLength; t++) {
+                        double dWeight = 0;
+                        for (int f = 0; f < valueWidth; f++) {
+                            dWeight += headEpsilon(eps, example, examples, outputWidth, valueWidth, query, head, f) * valueIn[valueOffset + f + valueWidth * t];
+                        }
+                        dPreA[head + attentionHeads * t] = dWeight;
+                        dot += weights[head + attentionHeads * t] * dWeight;
+                    }
+                    for (int t = 0; t < tsLength; t++) {
+                        final int score = head + attentionHeads * t;
+                        final double dScore = weights[score] * (dPreA[score] - dot);
+                        dPreA[score] = dScore * derivative(keyRes[keyOffset + score] + queryRes[queryOffset + head], activated[score]);
+                        dPreASum[head] += dPreA[score];
+                    }
+                }
+
+                if (dValues != null) {
+                    for (int t = 0; t < tsLength; t++) {
+                        for (int f = 0; f < valueWidth; f++) {
+                            double sum = 0;
+                            for (int head = 0; head < attentionHeads; head++) {
+                                sum += headEpsilon(eps, example, examples, outputWidth, valueWidth, query, head, f) * weights[head + attentionHeads * t];
+                            }
+                            dValues[valueOffset + f + valueWidth * t] += sum;
+                        }
+                    }
+                }
+
+                if (dW != null) {
+                    final int queryIn0 = queryWidth * (query + queryCount * example);
+                    for (int head = 0; head < attentionHeads; head++) {
+                        db[head] += dPreASum[head];
+                        for (int k = 0; k < queryWidth; k++) {
+                            dQ[k + queryWidth * head] += queryIn[queryIn0 + k] * dPreASum[head];
+                        }
+                        for (int t = 0; t < tsLength; t++) {
+                            final double d = dPreA[head + attentionHeads * t];
+                            final int key0 = keyWidth * (t + tsLength * example);
+                            for (int k = 0; k < keyWidth; k++) {
+                                dW[k + keyWidth * head] += keyIn[key0 + k] * d;
+                            }
+                        }
+                    }
+                }
+                if (dKeys != null) {
+                    for (int t = 0; t < tsLength; t++) {
+                        final int key0 = keyWidth * (t + tsLength * example);
+                        for (int head = 0; head < attentionHeads; head++) {
+                            final double d = dPreA[head + attentionHeads * t];
+                            for (int k = 0; k < keyWidth; k++) {
+                                dKeys[key0 + k] += W[k + keyWidth * head] * d;
+                            }
+                        }
+                    }
+                }
+
+                if (dQueries != null) {
+                    final int query0 = queryWidth * (query + queryCount * example);
+                    for (int head = 0; head < attentionHeads; head++) {
+                        for (int k = 0; k < queryWidth; k++) {
+                            dQueries[query0 + k] += Q[k + queryWidth * head] * dPreASum[head];
+                        }
+                    }
+                }
+            }
+        }
+
+        if (dW != null) {
+            add(Wg, dW);
+            add(Qg, dQ);
+            add(bg, db);
+        }
+        if (dKeys != null) {
+            add(keyG, dKeys);
+        }
+        if (dValues != null) {
+            add(valueG, dValues);
+        }
+        if (dQueries != null) {
+            add(queryG, dQueries);
+        }
+    }
+
+    /*
+     * Softmax weights [attentionHeads, tsLength] of one query over the unmasked keys, and optionally the activated
+     * scores
+     */
+    private void weights(double[] weights, double[] keyRes, int keyOffset, double[] queryRes, int queryOffset, double[] mask,
+                         int example, int examples, int tsLength, double[] activated) {
+        for (int head = 0; head < attentionHeads; head++) {
+            double max = Double.NEGATIVE_INFINITY;
+            for (int t = 0; t < tsLength; t++) {
+                final int score = head + attentionHeads * t;
+                final double s = activate(keyRes[keyOffset + score] + queryRes[queryOffset + head]);
+                if (activated != null) {
+                    activated[score] = s;
+                }
+                weights[score] = s;
+                if (mask == null || mask[example + examples * t] != 0.0) {
+                    max = Math.max(max, s);
+                }
+            }
+
+            double sum = 0;
+            for (int t = 0; t < tsLength; t++) {
+                final int score = head + attentionHeads * t;
+                final double e = mask == null || mask[example + examples * t] != 0.0 ? exp(weights[score] - max) : 0.0;
+                weights[score] = e;
+                sum += e;
+            }
+            for (int t = 0; t < tsLength; t++) {
+                weights[head + attentionHeads * t] /= sum;
+            }
+        }
+    }
+
+    private double headEpsilon(double[] eps, int example, int examples, int outputWidth, int valueWidth, int query, int head, int f) {
+        if (mean) {
+            return eps[example + examples * (f + outputWidth * query)] / attentionHeads;
+        }
+        return eps[example + examples * (head * valueWidth + f + outputWidth * query)];
+    }
+
+    private double activate(double x) {
+        switch (function) {
+            case TANH:
+                return approximate ? ApproximateScoring.tanh(x) : Math.tanh(x);
+            case SIGMOID:
+                return 1.0 / (1.0 + Math.exp(-x));
+            case RELU:
+                return x > 0 ? x : 0.0;
+            default:
+                return x;
+        }
+    }
+
+    /*
+     * Derivative of the activation at x, given its activation
+     */
+    private double derivative(double x, double activated) {
+        switch (function) {
+            case TANH:
+                return 1.0 - activated * activated;
+            case SIGMOID:
+                return activated * (1.0 - activated);
+            case RELU:
+                return x > 0 ? 1.0 : 0.0;
+            default:
+                return 1.0;
+        }
+    }
+
+    private double exp(double x) {
+        return approximate ? ApproximateScoring.exp(x) : Math.exp(x);
+    }
+
+    private static long unmasked(double[] mask, int example, int examples, int tsLength) {
+        if (mask == null) {
+            return tsLength;
+        }
+        long count = 0;
+        for (int t = 0; t < tsLength; t++) {
+            if (mask[example + examples * t] != 0.0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /*
+     * weight^T * in (+ bias) for count input columns [width, count], result [attentionHeads, count]
+     */
+    private double[] project(double[] weight, int width, double[] in, int count, double[] bias) {
+        final double[] result = new double[attentionHeads * count];
+        for (int column = 0; column < count; column++) {
+            for (int head = 0; head < attentionHeads; head++) {
+                double sum = bias == null ? 0.0 : bias[head];
+                for (int k = 0; k < width; k++) {
+                    sum += weight[k + width * head] * in[k + width * column];
+                }
+                result[head + attentionHeads * column] = sum;
+            }
+        }
+        return result;
+    }
+
+    /*
+     * Elements of array in 'f' order of its shape, for any strides
+     */
+    static double[] read(INDArray array) {
+        final int length = (int) array.length();
+        final DataBuffer data = array.data();
+        if (isFortranContiguous(array) && data.length() == length) {
+            return data.asDouble();
+        }
+
+        final double[] result = new double[length];
+        final long[] shape = array.shape();
+        final long[] stride = array.stride();
+        final long[] index = new long[shape.length];
+        long position = 0;
+        for (int i = 0; i < length; i++) {
+            result[i] = data.getDouble(position);
+            position = next(index, shape, stride, position);
+        }
+        return result;
+    }
+
+    private static void assign(INDArray target, double[] values) {
+        final DataBuffer data = target.data();
+        final long[] shape = target.shape();
+        final long[] stride = target.stride();
+        final long[] index = new long[shape.length];
+        long position = 0;
+        for (double value : values) {
+            data.put(position, value);
+            position = next(index, shape, stride, position);
+        }
+    }
+
+    private static void add(INDArray target, double[] values) {
+        final DataBuffer data = target.data();
+        final long[] shape = target.shape();
+        final long[] stride = target.stride();
+        final long[] index = new long[shape.length];
+        long position = 0;
+        for (double value : values) {
+            data.put(position, data.getDouble(position) + value);
+            position = next(index, shape, stride, position);
+        }
+    }
+
+    /*
+     * Advances index to the next element in 'f' order and returns its position in the buffer
+     */
+    private static long next(long[] index, long[] shape, long[] stride, long position) {
+        for (int dimension = 0; dimension < shape.length; dimension++) {
+            if (++index[dimension] < shape[dimension]) {
+                return position + stride[dimension];
+            }
+            position -= stride[dimension] * (shape[dimension] - 1);
+            index[dimension] = 0;
+        }
+        return position;
+    }
+
+    private static boolean isFortranContiguous(INDArray array) {
+        final long[] shape = array.shape();
+        final long[] stride = array.stride();
+        long expected = 1;
+        for (int dimension = 0; dimension < shape.length; dimension++) {
+            if (shape[dimension] != 1 && stride[dimension] != expected) {
+                return false;
+            }
+            expected *= shape[dimension];
+        }
+        return true;
+    }
+}
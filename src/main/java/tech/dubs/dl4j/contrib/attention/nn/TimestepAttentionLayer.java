@@ -1,5 +1,6 @@
 package tech.dubs.dl4j.contrib.attention.nn;
 
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.gradient.DefaultGradient;
 import org.deeplearning4j.nn.gradient.Gradient;
@@ -8,15 +9,47 @@ import org.deeplearning4j.nn.workspace.ArrayType;
 import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
 import org.nd4j.base.Preconditions;
 import org.nd4j.linalg.activations.IActivation;
+import org.nd4j.linalg.api.memory.MemoryWorkspace;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.api.shape.Shape;
+import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.primitives.Pair;
-import tech.dubs.dl4j.contrib.attention.activations.ActivationMaskedSoftmax;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
 import tech.dubs.dl4j.contrib.attention.nn.params.QueryAttentionParamInitializer;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
 /**
  * Timestep Attention Layer Implementation
  *
+ * For autoregressive decoding the layer supports rnnTimeStep: every new timestep is attended to over all timesteps
+ * seen since the last rnnClearPreviousState, which gives the same result as running the layer on the whole prefix and
+ * taking its last timestep. Key projections and values of previous timesteps are kept, so a step only projects its own
+ * key and scores its own query, i.e. O(T) instead of O(T^2) work per step. Masks are not used while decoding.
+ *
+ * With linear attention (see LinearAttentionMechanism) the whole layer is linear in the sequence length, and the
+ * decoding state is a fixed size summary of all previous timesteps, so every step costs O(1) no matter how long the
+ * sequence gets. That state can not be trimmed to a window.
+ *
+ * With a key stride s > 1, keys and values are mean pooled over windows of s timesteps (see MemoryPooling) before
+ * attention, while queries keep the full resolution, i.e. every query only scores T/s keys. Decoding with rnnTimeStep
+ * is not supported then.
+ *
+ * Packed sequences (see PackedSequences) can be attended to without padding by activatePacked, for inference.
+ *
+ * With query threads > 1, the forward pass splits the queries of every example across threads, which share the key
+ * projection of the example. That cuts the latency for a single long sequence, backprop stays on the calling thread.
+ * With autotuning, inference times the strategies of additive attention per shape bucket and keeps the fastest (see
+ * AttentionAutotuner).
  *
  * TODO:
  *  - Optionally keep attention weights around for inspection
@@ -24,8 +57,23 @@ import tech.dubs.dl4j.contrib.attention.nn.params.QueryAttentionParamInitializer
  *
  * @author Paul Dubs
  */
-public class TimestepAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer> {
-    private ActivationMaskedSoftmax softmax = new ActivationMaskedSoftmax();
+public class TimestepAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer> implements RecurrentLayer {
+    public static final String STATE_KEY_PROJECTION = "keyProjection";
+    public static final String STATE_KEY_VALUES = "values";
+    public static final String STATE_KEY_SUMMARY = "keySummary";
+    public static final String STATE_KEY_NORMALIZER = "normalizer";
+    public static final String STATE_KEY_LENGTH = "length";
+
+    // Decoding state: capacity grows by doubling, only the first stateLength timesteps are used
+    private INDArray keyProjectionState;
+    private INDArray valueState;
+    private long stateLength;
+
+    private InferenceCache inferenceCache;
+
+    // Decoding state with linear attention
+    private INDArray keySummaryState;
+    private INDArray normalizerState;
 
     public TimestepAttentionLayer(NeuralNetConfiguration conf) {
         super(conf);
@@ -44,30 +92,146 @@ public class TimestepAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.att
 
         applyDropOutIfNecessary(training, workspaceMgr);
 
+        long nIn = layerConf().getNIn();
+        if(input.shape()[0] != nIn)
+            input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
+
+        final InferenceCache cache = training ? null : getInferenceCache();
+        if (cache != null) {
+            return cache.activate(input, maskArray, params(), workspaceMgr, (in, mask) -> attend(in, mask, false, workspaceMgr));
+        }
+        return attend(input, maskArray, training, workspaceMgr);
+    }
+
+    /*
+     * Attention output [examples, outputWidth, timesteps] for input [nIn, timesteps, examples]
+     */
+    private INDArray attend(INDArray input, INDArray mask, boolean training, LayerWorkspaceMgr workspaceMgr) {
         INDArray W = getParamWithNoise(QueryAttentionParamInitializer.WEIGHT_KEY, training, workspaceMgr);
         INDArray Q = getParamWithNoise(QueryAttentionParamInitializer.QUERY_WEIGHT_KEY, training, workspaceMgr);
         INDArray b = getParamWithNoise(QueryAttentionParamInitializer.BIAS_KEY, training, workspaceMgr);
 
-
         long nIn = layerConf().getNIn();
         long nOut = layerConf().getNOut();
         IActivation a = layerConf().getActivationFn();
-        long examples = input.shape()[0] == nIn ? input.shape()[2] : input.shape()[0];
-        long tsLength = input.shape()[0] == nIn ? input.shape()[1] : input.shape()[2];
+        long examples = input.shape()[2];
+        long tsLength = input.shape()[1];
+        final HeadReduction reduction = outputReduction(training, workspaceMgr);
 
-        INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{examples, nIn*nOut, tsLength}, 'f');
+        INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{examples, reduction.outputWidth(nIn, nOut), tsLength}, 'f');
 
-        if(input.shape()[0] != nIn)
-            input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
+        INDArray memory = input;
+        INDArray memoryMask = mask;
+        if (layerConf().getKeyStride() > 1) {
+            final MemoryPooling pooling = new MemoryPooling(tsLength, layerConf().getKeyStride(), mask);
+            memory = pooling.pool(input, workspaceMgr, ArrayType.FF_WORKING_MEM);
+            memoryMask = pooling.getPooledMask();
+        }
 
-        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, training);
-        final INDArray attention = attentionMechanism.query(input, input, input, maskArray);
+        final INDArray attention;
+        if (layerConf().isLinearAttention()) {
+            attention = new LinearAttentionMechanism(Q, W, b, workspaceMgr).withOutputReduction(reduction).query(input, memory, memory, memoryMask);
+        } else {
+            final INDArray keys = memory;
+            final INDArray keyMask = memoryMask;
+            final Function<AttentionAutotuner.Strategy, INDArray> additive = strategy -> {
+                final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, training).withTopK(layerConf().getTopK())
+                        .withOutputReduction(reduction).withQueryThreads(strategy.getQueryThreads()).withApproximateScoring(layerConf().isApproximateScoring())
+                        .withSmallShapeThreshold(layerConf().getSmallShapeThreshold());
+                return (strategy.isBatchedKeys() ? attentionMechanism.useCaching() : attentionMechanism).query(input, keys, keys, keyMask);
+            };
+
+            final AttentionAutotuner autotuner = training ? null : getAutotuner();
+            if (autotuner == null) {
+                attention = additive.apply(new AttentionAutotuner.Strategy(false, layerConf().getQueryThreads()));
+            } else {
+                attention = autotuner.run(autotuneBucket(examples, tsLength, memory.size(1), mask != null), autotuneCandidates(), additive);
+            }
+        }
         activations.assign(attention);
 
         return activations;
     }
 
+    /*
+     * Autotuner of the file in the configuration, or null if autotuning is disabled
+     */
+    public AttentionAutotuner getAutotuner() {
+        final String file = layerConf().getAutotuneFile();
+        return file == null ? null : AttentionAutotuner.forFile(file);
+    }
+
+    private String autotuneBucket(long examples, long tsLength, long memoryLength, boolean masked) {
+        return AttentionAutotuner.bucket("TimestepAttentionLayer", "nIn=" + layerConf().getNIn() + ", heads=" + layerConf().getNOut()
+                + ", topK=" + layerConf().getTopK() + ", outputMode=" + layerConf().getOutputMode()
+                + ", examples<=" + AttentionAutotuner.sizeBucket(examples) + ", queries<=" + AttentionAutotuner.sizeBucket(tsLength)
+                + ", keys<=" + AttentionAutotuner.sizeBucket(memoryLength) + ", masked=" + masked + ", threads<=" + layerConf().getQueryThreads()
+                + ", approximate=" + layerConf().isApproximateScoring());
+    }
+
+    private List<AttentionAutotuner.Strategy> autotuneCandidates() {
+        final List<AttentionAutotuner.Strategy> candidates = new ArrayList<>();
+        for (boolean batchedKeys : new boolean[]{false, true}) {
+            candidates.add(new AttentionAutotuner.Strategy(batchedKeys, 1));
+            if (layerConf().getQueryThreads() > 1) {
+                candidates.add(new AttentionAutotuner.Strategy(batchedKeys, layerConf().getQueryThreads()));
+            }
+        }
+        return candidates;
+    }
 
+    /*
+     * Inference on packed sequences (see PackedSequences) instead of padded input with a mask. Returns the packed
+     * outputs [outputWidth, total timesteps]. Additive attention projects the keys and queries of all sequences at once
+     * (see AdditiveAttentionMechanism.queryPacked), linear attention and key strides attend one sequence at a time.
+     * Neither pads any sequence. The inference cache is not used.
+     */
+    public PackedSequences activatePacked(PackedSequences input, LayerWorkspaceMgr workspaceMgr) {
+        final long nIn = layerConf().getNIn();
+        if (input.getFeatures() != nIn) {
+            throw new IllegalStateException("Packed input must have " + nIn + " features, but got " + input.getFeatures());
+        }
+
+        final HeadReduction reduction = outputReduction(false, workspaceMgr);
+        final INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{reduction.outputWidth(nIn, layerConf().getNOut()), input.getTotalLength()}, 'f');
+
+        if (!layerConf().isLinearAttention() && layerConf().getKeyStride() == 1) {
+            INDArray W = getParamWithNoise(QueryAttentionParamInitializer.WEIGHT_KEY, false, workspaceMgr);
+            INDArray Q = getParamWithNoise(QueryAttentionParamInitializer.QUERY_WEIGHT_KEY, false, workspaceMgr);
+            INDArray b = getParamWithNoise(QueryAttentionParamInitializer.BIAS_KEY, false, workspaceMgr);
+
+            activations.assign(new AdditiveAttentionMechanism(Q, W, b, layerConf().getActivationFn(), workspaceMgr, false).withTopK(layerConf().getTopK())
+                    .withOutputReduction(reduction).withQueryThreads(layerConf().getQueryThreads())
+                    .withApproximateScoring(layerConf().isApproximateScoring())
+                    .queryPacked(input, input, input));
+        } else {
+            for (int example = 0; example < input.getExamples(); example++) {
+                final long length = input.getLength(example);
+                if (length > 0) {
+                    final INDArray sequence = input.getSequence(example).reshape('f', nIn, length, 1);
+                    activations.get(all(), interval(input.getOffset(example), input.getOffset(example) + length))
+                            .assign(attend(sequence, null, false, workspaceMgr).tensorAlongDimension(0, 1, 2));
+                }
+            }
+        }
+        return input.withData(activations);
+    }
+
+    /*
+     * Memoized inference outputs, if enabled in the configuration, see InferenceCache. rnnTimeStep does not use it.
+     */
+    public synchronized InferenceCache getInferenceCache() {
+        if (inferenceCache == null && layerConf().getInferenceCacheSize() > 0) {
+            inferenceCache = new InferenceCache(layerConf().getInferenceCacheSize(), layerConf().getInferenceCacheBytes(), layerConf().getInferenceCacheTtl());
+        }
+        return inferenceCache;
+    }
+
+    private HeadReduction outputReduction(boolean training, LayerWorkspaceMgr workspaceMgr) {
+        final AttentionOutputMode mode = layerConf().getOutputMode();
+        return HeadReduction.of(mode, mode == AttentionOutputMode.PROJECTION
+                ? getParamWithNoise(QueryAttentionParamInitializer.PROJECTION_WEIGHT_KEY, training, workspaceMgr) : null);
+    }
 
     @Override
     public Pair<Gradient, INDArray> backpropGradient(INDArray epsilon, LayerWorkspaceMgr workspaceMgr) {
@@ -92,14 +256,42 @@ public class TimestepAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.att
         if(input.shape()[0] != nIn)
             input = workspaceMgr.dup(ArrayType.ACTIVATIONS, input.permute(1, 2, 0), 'f');
 
-        INDArray epsOut = workspaceMgr.create(ArrayType.ACTIVATION_GRAD, input.shape(), 'f');
+        /* The first layer needs no epsilon, then neither the keys, values nor queries get a gradient */
+        final boolean skipInput = layerConf().isSkipInputGradients();
+        INDArray epsOut = skipInput ? null : workspaceMgr.create(ArrayType.ACTIVATION_GRAD, input.shape(), 'f');
 
-        final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, true);
-        attentionMechanism
-                .withGradientViews(Wg, Qg, bg, epsOut, epsOut, epsOut)
-                .backprop(epsilon, input, input, input, maskArray);
+        /* Without pooling, keys and values are the input itself, so all gradients go straight to epsOut */
+        INDArray memory = input;
+        INDArray memoryMask = maskArray;
+        INDArray memoryG = epsOut;
+        MemoryPooling pooling = null;
+        if (layerConf().getKeyStride() > 1) {
+            pooling = new MemoryPooling(input.size(1), layerConf().getKeyStride(), maskArray);
+            memory = pooling.pool(input, workspaceMgr, ArrayType.BP_WORKING_MEM);
+            memoryMask = pooling.getPooledMask();
+            memoryG = skipInput ? null : workspaceMgr.create(ArrayType.BP_WORKING_MEM, memory.shape(), 'f');
+        }
 
-        epsOut = workspaceMgr.dup(ArrayType.ACTIVATION_GRAD, epsOut.permute(2, 0, 1), 'f');
+        /* Frozen parameters only need the epsilon */
+        final boolean frozen = FrozenParameters.skipGradients(conf, layerConf().isFrozenParams());
+        final INDArray Wog = gradientViews.get(QueryAttentionParamInitializer.PROJECTION_WEIGHT_KEY);
+        final HeadReduction reduction = outputReduction(true, workspaceMgr).withGradientView(frozen ? null : Wog);
+        if (frozen && skipInput) {
+            // Neither parameter nor input gradients to compute
+        } else if (layerConf().isLinearAttention()) {
+            new LinearAttentionMechanism(Q, W, b, workspaceMgr)
+                    .withOutputReduction(reduction)
+                    .withGradientViews(frozen ? null : Wg, frozen ? null : Qg, frozen ? null : bg, memoryG, memoryG, epsOut)
+                    .backprop(epsilon, input, memory, memory, memoryMask);
+        } else {
+            new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, true).withTopK(layerConf().getTopK())
+                    .withOutputReduction(reduction).withSmallShapeThreshold(layerConf().getSmallShapeThreshold())
+                    .withGradientViews(frozen ? null : Wg, frozen ? null : Qg, frozen ? null : bg, memoryG, memoryG, epsOut)
+                    .backprop(epsilon, input, memory, memory, memoryMask);
+        }
+        if (pooling != null && !skipInput) {
+            pooling.backprop(memoryG, epsOut);
+        }
 
         weightNoiseParams.clear();
 
@@ -107,8 +299,224 @@ public class TimestepAttentionLayer extends BaseLayer<tech.dubs.dl4j.contrib.att
         g.gradientForVariable().put(QueryAttentionParamInitializer.WEIGHT_KEY, Wg);
         g.gradientForVariable().put(QueryAttentionParamInitializer.QUERY_WEIGHT_KEY, Qg);
         g.gradientForVariable().put(QueryAttentionParamInitializer.BIAS_KEY, bg);
+        if (Wog != null) {
+            g.gradientForVariable().put(QueryAttentionParamInitializer.PROJECTION_WEIGHT_KEY, Wog);
+        }
 
+        if (skipInput) {
+            return new Pair<>(g, null);
+        }
+
+        epsOut = workspaceMgr.dup(ArrayType.ACTIVATION_GRAD, epsOut.permute(2, 0, 1), 'f');
         epsOut = backpropDropOutIfPresent(epsOut);
         return new Pair<>(g, epsOut);
     }
+
+    @Override
+    public INDArray rnnTimeStep(INDArray input, LayerWorkspaceMgr workspaceMgr) {
+        if (layerConf().getKeyStride() > 1) {
+            throw new IllegalStateException("rnnTimeStep is not supported with keyStride > 1, keys are pooled over windows of the whole sequence");
+        }
+        setInput(input, workspaceMgr);
+        Preconditions.checkState(input.rank() == 3,
+            "3D input expected to RNN layer expected, got " + input.rank());
+
+        INDArray W = getParamWithNoise(QueryAttentionParamInitializer.WEIGHT_KEY, false, workspaceMgr);
+        INDArray Q = getParamWithNoise(QueryAttentionParamInitializer.QUERY_WEIGHT_KEY, false, workspaceMgr);
+        INDArray b = getParamWithNoise(QueryAttentionParamInitializer.BIAS_KEY, false, workspaceMgr);
+
+        long nIn = layerConf().getNIn();
+        long nOut = layerConf().getNOut();
+        IActivation a = layerConf().getActivationFn();
+        long examples = input.shape()[0];
+        long tsLength = input.shape()[2];
+        final HeadReduction reduction = outputReduction(false, workspaceMgr);
+
+        INDArray activations = workspaceMgr.createUninitialized(ArrayType.ACTIVATIONS, new long[]{examples, reduction.outputWidth(nIn, nOut), tsLength}, 'f');
+
+        final INDArray steps = workspaceMgr.dup(ArrayType.FF_WORKING_MEM, input.permute(1, 2, 0), 'f');
+        if (layerConf().isLinearAttention()) {
+            linearTimeSteps(steps, activations, new LinearAttentionMechanism(Q, W, b, workspaceMgr).withOutputReduction(reduction));
+            return activations;
+        }
+
+        final INDArray stepKeyProjection = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, false)
+                .projectKeys(steps, ArrayType.FF_WORKING_MEM);
+
+        ensureStateCapacity(nIn, nOut, examples, stateLength + tsLength);
+
+        for (long timestep = 0; timestep < tsLength; timestep++) {
+            keyProjectionState.get(all(), point(stateLength), all()).assign(stepKeyProjection.get(all(), point(timestep), all()));
+            valueState.get(all(), point(stateLength), all()).assign(steps.get(all(), point(timestep), all()));
+            stateLength++;
+
+            final INDArray keyProjection = keyProjectionState.get(all(), interval(0, stateLength), all());
+            final INDArray values = valueState.get(all(), interval(0, stateLength), all());
+            final INDArray query = steps.get(all(), interval(timestep, timestep + 1), all());
+
+            final AdditiveAttentionMechanism attentionMechanism = new AdditiveAttentionMechanism(Q, W, b, a, workspaceMgr, false).withTopK(layerConf().getTopK())
+                    .withOutputReduction(reduction).withKeyProjection(keyProjection).withApproximateScoring(layerConf().isApproximateScoring())
+                    .withSmallShapeThreshold(layerConf().getSmallShapeThreshold());
+            final INDArray attention = attentionMechanism.query(query, values, values, null);
+            activations.get(all(), all(), point(timestep)).assign(attention.get(all(), all(), point(0)));
+        }
+
+        return activations;
+    }
+
+    private void linearTimeSteps(INDArray steps, INDArray activations, LinearAttentionMechanism attentionMechanism) {
+        final long nIn = steps.size(0);
+        final long nOut = layerConf().getNOut();
+        final long examples = steps.size(2);
+        if (keySummaryState != null && keySummaryState.size(2) != examples) {
+            throw new IllegalStateException("Minibatch size changed while decoding: got " + examples + " examples, but previous state has "
+                    + keySummaryState.size(2) + ". Call rnnClearPreviousState() first.");
+        }
+        if (keySummaryState == null) {
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+                keySummaryState = Nd4j.create(new long[]{nIn, nIn * nOut, examples}, 'f');
+                normalizerState = Nd4j.create(new long[]{nIn, nOut, examples}, 'f');
+            }
+        }
+
+        for (long timestep = 0; timestep < steps.size(1); timestep++) {
+            final INDArray step = steps.get(all(), interval(timestep, timestep + 1), all());
+            attentionMechanism.summarize(step, step, null, keySummaryState, normalizerState);
+            stateLength++;
+
+            final INDArray attention = attentionMechanism.querySummary(step, keySummaryState, normalizerState);
+            activations.get(all(), all(), point(timestep)).assign(attention.get(all(), all(), point(0)));
+        }
+    }
+
+    private void ensureStateCapacity(long nIn, long nOut, long examples, long required) {
+        if (keyProjectionState != null && keyProjectionState.size(2) != examples) {
+            throw new IllegalStateException("Minibatch size changed while decoding: got " + examples + " examples, but previous state has "
+                    + keyProjectionState.size(2) + ". Call rnnClearPreviousState() first.");
+        }
+
+        final long capacity = keyProjectionState == null ? 0 : keyProjectionState.size(1);
+        if (capacity >= required) {
+            return;
+        }
+
+        final long newCapacity = Math.max(required, 2 * capacity);
+        try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+            final INDArray keyProjection = Nd4j.create(new long[]{nOut, newCapacity, examples}, 'f');
+            final INDArray values = Nd4j.create(new long[]{nIn, newCapacity, examples}, 'f');
+            if (stateLength > 0) {
+                keyProjection.get(all(), interval(0, stateLength), all()).assign(keyProjectionState.get(all(), interval(0, stateLength), all()));
+                values.get(all(), interval(0, stateLength), all()).assign(valueState.get(all(), interval(0, stateLength), all()));
+            }
+            keyProjectionState = keyProjection;
+            valueState = values;
+        }
+    }
+
+    /*
+     * Keeps only the most recent maxLength timesteps of the decoding state, i.e. following steps attend over a sliding
+     * window.
+     */
+    public void rnnTrimPreviousState(long maxLength) {
+        Preconditions.checkArgument(maxLength >= 0, "maxLength must be >= 0, got %s", maxLength);
+        if (stateLength <= maxLength) {
+            return;
+        }
+        if (layerConf().isLinearAttention()) {
+            throw new IllegalStateException("The decoding state of linear attention summarizes all previous timesteps and can not be trimmed");
+        }
+
+        final long drop = stateLength - maxLength;
+        if (maxLength > 0) {
+            keyProjectionState.get(all(), interval(0, maxLength), all()).assign(keyProjectionState.get(all(), interval(drop, stateLength), all()).dup('f'));
+            valueState.get(all(), interval(0, maxLength), all()).assign(valueState.get(all(), interval(drop, stateLength), all()).dup('f'));
+        }
+        stateLength = maxLength;
+    }
+
+    public long rnnPreviousStateLength() {
+        return stateLength;
+    }
+
+    @Override
+    public Map<String, INDArray> rnnGetPreviousState() {
+        if (stateLength == 0) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, INDArray> state = new LinkedHashMap<>();
+        if (layerConf().isLinearAttention()) {
+            // Summaries are updated in place by the next step, so hand out copies
+            state.put(STATE_KEY_SUMMARY, keySummaryState.dup('f'));
+            state.put(STATE_KEY_NORMALIZER, normalizerState.dup('f'));
+            state.put(STATE_KEY_LENGTH, Nd4j.scalar((double) stateLength));
+            return state;
+        }
+        state.put(STATE_KEY_PROJECTION, keyProjectionState.get(all(), interval(0, stateLength), all()));
+        state.put(STATE_KEY_VALUES, valueState.get(all(), interval(0, stateLength), all()));
+        return state;
+    }
+
+    @Override
+    public void rnnSetPreviousState(Map<String, INDArray> stateMap) {
+        rnnClearPreviousState();
+        if (stateMap == null || stateMap.isEmpty()) {
+            return;
+        }
+
+        if (layerConf().isLinearAttention()) {
+            final INDArray keySummary = stateMap.get(STATE_KEY_SUMMARY);
+            final INDArray normalizer = stateMap.get(STATE_KEY_NORMALIZER);
+            final INDArray length = stateMap.get(STATE_KEY_LENGTH);
+            Preconditions.checkArgument(keySummary != null && normalizer != null && length != null, "State must contain %s, %s and %s", STATE_KEY_SUMMARY, STATE_KEY_NORMALIZER, STATE_KEY_LENGTH);
+
+            try (MemoryWorkspace ws = Nd4j.getWorkspaceManager().scopeOutOfWorkspaces()) {
+                keySummaryState = keySummary.dup('f');
+                normalizerState = normalizer.dup('f');
+            }
+            stateLength = (long) length.getDouble(0);
+            return;
+        }
+
+        final INDArray keyProjection = stateMap.get(STATE_KEY_PROJECTION);
+        final INDArray values = stateMap.get(STATE_KEY_VALUES);
+        Preconditions.checkArgument(keyProjection != null && values != null, "State must contain %s and %s", STATE_KEY_PROJECTION, STATE_KEY_VALUES);
+
+        final long length = values.size(1);
+        ensureStateCapacity(layerConf().getNIn(), layerConf().getNOut(), values.size(2), length);
+        keyProjectionState.get(all(), interval(0, length), all()).assign(keyProjection);
+        valueState.get(all(), interval(0, length), all()).assign(values);
+        stateLength = length;
+    }
+
+    @Override
+    public void rnnClearPreviousState() {
+        keyProjectionState = null;
+        valueState = null;
+        keySummaryState = null;
+        normalizerState = null;
+        stateLength = 0;
+    }
+
+    /*
+     * Truncated BPTT is not stateful for this layer: every segment only attends within itself.
+     */
+    @Override
+    public INDArray rnnActivateUsingStoredState(INDArray input, boolean training, boolean storeLastForTBPTT, LayerWorkspaceMgr workspaceMgr) {
+        return activate(input, training, workspaceMgr);
+    }
+
+    @Override
+    public Map<String, INDArray> rnnGetTBPTTState() {
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void rnnSetTBPTTState(Map<String, INDArray> state) {
+    }
+
+    @Override
+    public Pair<Gradient, INDArray> tbpttBackpropGradient(INDArray epsilon, int tbpttBackLength, LayerWorkspaceMgr workspaceMgr) {
+        return backpropGradient(epsilon, workspaceMgr);
+    }
 }
@@ -0,0 +1,92 @@
+package tech.dubs.dl4j.contrib.attention.nn.params;
+
+import org.deeplearning4j.nn.conf.distribution.Distributions;
+import org.deeplearning4j.nn.weights.WeightInitUtil;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.rng.distribution.Distribution;
+import tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/**
+ * Parameters of a CrossAttentionVertex: the key weights W [nIn, nOut], the query weights Q [nInQueries, nOut] and the
+ * bias b [1, nOut], in this order in the flattened parameters. ParamInitializer only supports layers, so this has the
+ * same methods for the vertex configuration instead.
+ *
+ * @author Paul Dubs
+ */
+public class CrossAttentionParamInitializer {
+
+    private static final CrossAttentionParamInitializer INSTANCE = new CrossAttentionParamInitializer();
+
+    public static CrossAttentionParamInitializer getInstance(){
+        return INSTANCE;
+    }
+
+    public static final String WEIGHT_KEY = "W";
+    public static final String QUERY_WEIGHT_KEY = "Q";
+    public static final String BIAS_KEY = "b";
+
+    private static final List<String> PARAM_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY, BIAS_KEY));
+    private static final List<String> WEIGHT_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY));
+
+    public long numParams(CrossAttentionVertex conf) {
+        return conf.getNIn() * conf.getNOut() + conf.getNInQueries() * conf.getNOut() + conf.getNOut();
+    }
+
+    public List<String> paramKeys() {
+        return PARAM_KEYS;
+    }
+
+    public List<String> weightKeys() {
+        return WEIGHT_KEYS;
+    }
+
+    public boolean isWeightParam(String key) {
+        return WEIGHT_KEYS.contains(key);
+    }
+
+    public boolean isBiasParam(String key) {
+        return BIAS_KEY.equals(key);
+    }
+
+    public Map<String, INDArray> init(CrossAttentionVertex conf, INDArray paramsView, boolean initializeParams) {
+        final long nInQueries = conf.getNInQueries();
+        final long nIn = conf.getNIn();
+        final long nOut = conf.getNOut();
+
+        final Map<String, INDArray> m = getSubsets(paramsView, nInQueries, nIn, nOut);
+        if (initializeParams) {
+            final Distribution dist = conf.getDist() == null ? null : Distributions.createDistribution(conf.getDist());
+            WeightInitUtil.initWeights(nIn, nOut, new long[]{nIn, nOut}, conf.getWeightInit(), dist, 'f', m.get(WEIGHT_KEY));
+            WeightInitUtil.initWeights(nInQueries, nOut, new long[]{nInQueries, nOut}, conf.getWeightInit(), dist, 'f', m.get(QUERY_WEIGHT_KEY));
+            m.get(BIAS_KEY).assign(0);
+        }
+        return m;
+    }
+
+    public Map<String, INDArray> getGradientsFromFlattened(CrossAttentionVertex conf, INDArray gradientView) {
+        return getSubsets(gradientView, conf.getNInQueries(), conf.getNIn(), conf.getNOut());
+    }
+
+    private static Map<String,INDArray> getSubsets(INDArray in, long nInQueries, long nIn, long nOut){
+        long pos = nIn * nOut;
+        final INDArray w = in.get(point(0), interval(0, pos)).reshape('f', nIn, nOut);
+        final INDArray q = in.get(point(0), interval(pos, pos + nInQueries * nOut)).reshape('f', nInQueries, nOut);
+        pos += nInQueries * nOut;
+        final INDArray b = in.get(point(0), interval(pos, pos + nOut)).reshape('f', 1, nOut);
+
+        Map<String,INDArray> m = new LinkedHashMap<>();
+        m.put(WEIGHT_KEY, w);
+        m.put(QUERY_WEIGHT_KEY, q);
+        m.put(BIAS_KEY, b);
+        return m;
+    }
+}
@@ -26,6 +26,8 @@ import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.nn.weights.WeightInitUtil;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.api.rng.distribution.Distribution;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
 
 import java.util.*;
 
@@ -46,10 +48,13 @@ public class QueryAttentionParamInitializer implements ParamInitializer {
     public static final String WEIGHT_KEY = DefaultParamInitializer.WEIGHT_KEY;
     public static final String QUERY_WEIGHT_KEY = "Q";
     public static final String BIAS_KEY = DefaultParamInitializer.BIAS_KEY;
+    public static final String PROJECTION_WEIGHT_KEY = "Wo";
 
     private static final List<String> PARAM_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY, BIAS_KEY));
     private static final List<String> WEIGHT_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY));
     private static final List<String> BIAS_KEYS = Collections.singletonList(BIAS_KEY);
+    private static final List<String> PROJECTION_PARAM_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY, BIAS_KEY, PROJECTION_WEIGHT_KEY));
+    private static final List<String> PROJECTION_WEIGHT_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY, PROJECTION_WEIGHT_KEY));
 
 
     @Override
@@ -66,17 +71,18 @@ public class QueryAttentionParamInitializer implements ParamInitializer {
         final long paramsW = nIn * nOut;
         final long paramsWq = nIn * nOut;
         final long paramsB = nOut;
-        return  paramsW + paramsWq + paramsB;
+        final long paramsWo = nIn * nOut * projectionSize(layer);
+        return  paramsW + paramsWq + paramsB + paramsWo;
     }
 
     @Override
     public List<String> paramKeys(Layer layer) {
-        return PARAM_KEYS;
+        return projectionSize(layer) > 0 ? PROJECTION_PARAM_KEYS : PARAM_KEYS;
     }
 
     @Override
     public List<String> weightKeys(Layer layer) {
-        return WEIGHT_KEYS;
+        return projectionSize(layer) > 0 ? PROJECTION_WEIGHT_KEYS : WEIGHT_KEYS;
     }
 
     @Override
@@ -86,7 +92,7 @@ public class QueryAttentionParamInitializer implements ParamInitializer {
 
     @Override
     public boolean isWeightParam(Layer layer, String key) {
-        return WEIGHT_KEYS.contains(key);
+        return weightKeys(layer).contains(key);
     }
 
     @Override
@@ -99,13 +105,14 @@ public class QueryAttentionParamInitializer implements ParamInitializer {
         BaseRecurrentLayer c = (BaseRecurrentLayer) conf.getLayer();
         final long nIn = c.getNIn();
         final long nOut = c.getNOut();
+        final long projectionSize = projectionSize(c);
 
         Map<String,INDArray> m;
 
         if (initializeParams) {
             Distribution dist = Distributions.createDistribution(c.getDist());
 
-            m = getSubsets(paramsView, nIn, nOut, false);
+            m = getSubsets(paramsView, nIn, nOut, projectionSize, false);
             INDArray w = WeightInitUtil.initWeights(nIn, nOut, new long[]{nIn, nOut}, c.getWeightInit(), dist, 'f', m.get(WEIGHT_KEY));
             m.put(WEIGHT_KEY, w);
 
@@ -122,13 +129,21 @@ public class QueryAttentionParamInitializer implements ParamInitializer {
 
             INDArray rq = WeightInitUtil.initWeights(nIn, nOut, new long[]{nIn, nOut}, rqInit, rqDist, 'f', m.get(QUERY_WEIGHT_KEY));
             m.put(QUERY_WEIGHT_KEY, rq);
+
+            if (projectionSize > 0) {
+                INDArray wo = WeightInitUtil.initWeights(nIn * nOut, projectionSize, new long[]{nIn * nOut, projectionSize}, c.getWeightInit(), dist, 'f', m.get(PROJECTION_WEIGHT_KEY));
+                m.put(PROJECTION_WEIGHT_KEY, wo);
+            }
         } else {
-            m = getSubsets(paramsView, nIn, nOut, true);
+            m = getSubsets(paramsView, nIn, nOut, projectionSize, true);
         }
 
         conf.addVariable(WEIGHT_KEY);
         conf.addVariable(QUERY_WEIGHT_KEY);
         conf.addVariable(BIAS_KEY);
+        if (projectionSize > 0) {
+            conf.addVariable(PROJECTION_WEIGHT_KEY);
+        }
 
         return m;
     }
@@ -139,15 +154,26 @@ public class QueryAttentionParamInitializer implements ParamInitializer {
         final long nIn = c.getNIn();
         final long nOut = c.getNOut();
 
-        return getSubsets(gradientView, nIn, nOut, true);
+        return getSubsets(gradientView, nIn, nOut, projectionSize(c), true);
     }
 
-    private static Map<String,INDArray> getSubsets(INDArray in, long nIn, long nOut, boolean reshape){
+    /*
+     * Width of the learned output projection, 0 if the heads are not projected
+     */
+    private static long projectionSize(Layer layer) {
+        if (layer instanceof TimestepAttentionLayer && ((TimestepAttentionLayer) layer).getOutputMode() == AttentionOutputMode.PROJECTION) {
+            return ((TimestepAttentionLayer) layer).getProjectionSize();
+        }
+        return 0;
+    }
+
+    private static Map<String,INDArray> getSubsets(INDArray in, long nIn, long nOut, long projectionSize, boolean reshape){
         long pos = nIn * nOut;
         INDArray w = in.get(point(0), interval(0, pos));
         INDArray rq = in.get(point(0), interval(pos, pos + nIn * nOut));
         pos += nIn * nOut;
         INDArray b = in.get(point(0), interval(pos, pos + nOut));
+        pos += nOut;
 
         if(reshape){
             w = w.reshape('f', nIn, nOut);
@@ -158,6 +184,10 @@ public class QueryAttentionParamInitializer implements ParamInitializer {
         m.put(WEIGHT_KEY, w);
         m.put(QUERY_WEIGHT_KEY, rq);
         m.put(BIAS_KEY, b);
+        if (projectionSize > 0) {
+            INDArray wo = in.get(point(0), interval(pos, pos + nIn * nOut * projectionSize));
+            m.put(PROJECTION_WEIGHT_KEY, reshape ? wo.reshape('f', nIn * nOut, projectionSize) : wo);
+        }
         return m;
     }
 }
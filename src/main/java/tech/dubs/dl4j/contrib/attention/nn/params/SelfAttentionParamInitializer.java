@@ -25,6 +25,8 @@ import org.deeplearning4j.nn.params.DefaultParamInitializer;
 import org.deeplearning4j.nn.weights.WeightInitUtil;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.api.rng.distribution.Distribution;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
 
 import java.util.*;
 
@@ -46,10 +48,13 @@ public class SelfAttentionParamInitializer implements ParamInitializer {
     public static final String QUERY_WEIGHT_KEY = "Q";
     public static final String QUERY_KEY = "q";
     public static final String BIAS_KEY = DefaultParamInitializer.BIAS_KEY;
+    public static final String PROJECTION_WEIGHT_KEY = "Wo";
 
     private static final List<String> PARAM_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY, BIAS_KEY, QUERY_KEY));
     private static final List<String> WEIGHT_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY));
     private static final List<String> BIAS_KEYS = Collections.unmodifiableList(Arrays.asList(BIAS_KEY, QUERY_KEY));
+    private static final List<String> PROJECTION_PARAM_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY, BIAS_KEY, QUERY_KEY, PROJECTION_WEIGHT_KEY));
+    private static final List<String> PROJECTION_WEIGHT_KEYS = Collections.unmodifiableList(Arrays.asList(WEIGHT_KEY, QUERY_WEIGHT_KEY, PROJECTION_WEIGHT_KEY));
 
 
     @Override
@@ -67,17 +72,18 @@ public class SelfAttentionParamInitializer implements ParamInitializer {
         final long paramsWq = nIn * nOut;
         final long paramsB = nOut;
         final long paramsQ = nIn;
-        return  paramsW + paramsWq + paramsB + paramsQ;
+        final long paramsWo = nIn * nOut * projectionSize(layer);
+        return  paramsW + paramsWq + paramsB + paramsQ + paramsWo;
     }
 
     @Override
     public List<String> paramKeys(Layer layer) {
-        return PARAM_KEYS;
+        return projectionSize(layer) > 0 ? PROJECTION_PARAM_KEYS : PARAM_KEYS;
     }
 
     @Override
     public List<String> weightKeys(Layer layer) {
-        return WEIGHT_KEYS;
+        return projectionSize(layer) > 0 ? PROJECTION_WEIGHT_KEYS : WEIGHT_KEYS;
     }
 
     @Override
@@ -87,7 +93,7 @@ public class SelfAttentionParamInitializer implements ParamInitializer {
 
     @Override
     public boolean isWeightParam(Layer layer, String key) {
-        return WEIGHT_KEYS.contains(key);
+        return weightKeys(layer).contains(key);
     }
 
     @Override
@@ -100,13 +106,14 @@ public class SelfAttentionParamInitializer implements ParamInitializer {
         FeedForwardLayer c = (FeedForwardLayer) conf.getLayer();
         final long nIn = c.getNIn();
         final long nOut = c.getNOut();
+        final long projectionSize = projectionSize(c);
 
         Map<String,INDArray> m;
 
         if (initializeParams) {
             Distribution dist = Distributions.createDistribution(c.getDist());
 
-            m = getSubsets(paramsView, nIn, nOut, false);
+            m = getSubsets(paramsView, nIn, nOut, projectionSize, false);
             INDArray w = WeightInitUtil.initWeights(nIn, nOut, new long[]{nIn, nOut}, c.getWeightInit(), dist, 'f', m.get(WEIGHT_KEY));
             m.put(WEIGHT_KEY, w);
 
@@ -115,14 +122,22 @@ public class SelfAttentionParamInitializer implements ParamInitializer {
 
             INDArray q = WeightInitUtil.initWeights(nIn, 1, new long[]{nIn, 1}, c.getWeightInit(), dist,'f', m.get(QUERY_KEY));
             m.put(QUERY_KEY, q);
+
+            if (projectionSize > 0) {
+                INDArray wo = WeightInitUtil.initWeights(nIn * nOut, projectionSize, new long[]{nIn * nOut, projectionSize}, c.getWeightInit(), dist, 'f', m.get(PROJECTION_WEIGHT_KEY));
+                m.put(PROJECTION_WEIGHT_KEY, wo);
+            }
         } else {
-            m = getSubsets(paramsView, nIn, nOut, true);
+            m = getSubsets(paramsView, nIn, nOut, projectionSize, true);
         }
 
         conf.addVariable(WEIGHT_KEY);
         conf.addVariable(QUERY_WEIGHT_KEY);
         conf.addVariable(BIAS_KEY);
         conf.addVariable(QUERY_KEY);
+        if (projectionSize > 0) {
+            conf.addVariable(PROJECTION_WEIGHT_KEY);
+        }
 
         return m;
     }
@@ -133,14 +148,25 @@ public class SelfAttentionParamInitializer implements ParamInitializer {
         final long nIn = c.getNIn();
         final long nOut = c.getNOut();
 
-        return getSubsets(gradientView, nIn, nOut, true);
+        return getSubsets(gradientView, nIn, nOut, projectionSize(c), true);
+    }
+
+    /*
+     * Width of the learned output projection, 0 if the heads are not projected
+     */
+    private static long projectionSize(Layer layer) {
+        if (layer instanceof SelfAttentionLayer && ((SelfAttentionLayer) layer).getOutputMode() == AttentionOutputMode.PROJECTION) {
+            return ((SelfAttentionLayer) layer).getProjectionSize();
+        }
+        return 0;
     }
 
-    private static Map<String,INDArray> getSubsets(INDArray in, long nIn, long nOut, boolean reshape){
+    private static Map<String,INDArray> getSubsets(INDArray in, long nIn, long nOut, long projectionSize, boolean reshape){
         final long endW = nIn * nOut;
         final long endWq = endW + nIn * nOut;
         final long endB = endWq + nOut;
         final long endQ = endB + nIn;
+        final long endWo = endQ + nIn * nOut * projectionSize;
 
         INDArray w = in.get(point(0), interval(0, endW));
         INDArray wq = in.get(point(0), interval(endW, endWq));
@@ -159,6 +185,10 @@ public class SelfAttentionParamInitializer implements ParamInitializer {
         m.put(QUERY_WEIGHT_KEY, wq);
         m.put(BIAS_KEY, b);
         m.put(QUERY_KEY, q);
+        if (projectionSize > 0) {
+            INDArray wo = in.get(point(0), interval(endQ, endWo));
+            m.put(PROJECTION_WEIGHT_KEY, reshape ? wo.reshape('f', nIn * nOut, projectionSize) : wo);
+        }
         return m;
     }
 }
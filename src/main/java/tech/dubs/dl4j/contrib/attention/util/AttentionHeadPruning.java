@@ -0,0 +1,223 @@
+package tech.dubs.dl4j.contrib.attention.util;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.params.DefaultParamInitializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.nn.params.QueryAttentionParamInitializer;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+/**
+ * Scores the attention heads of a SelfAttentionLayer or TimestepAttentionLayer and removes the least important ones.
+ *
+ * Head h produces the output features [h * nIn, (h + 1) * nIn) and owns column h of the W, Q and b parameters. The
+ * importance of a head is the increase of the data loss on a validation set when its output is removed, which is done
+ * by zeroing its input rows in the weights of the following layer. Pruning slices exactly those columns and rows into
+ * a new network with fewer heads, so a pruned network behaves like the ablated one.
+ *
+ * The following layer has to be a feed forward or recurrent layer with a "W" parameter, e.g. an OutputLayer,
+ * RnnOutputLayer, DenseLayer or LSTM. With output mode PROJECTION, the rows of the layer's own projection take the
+ * place of the following layer's rows, and the following layer can be anything. Heads averaged with output mode MEAN
+ * can not be pruned this way, as removing one changes the scale of all others. The updater state is not carried over
+ * to the pruned network.
+ *
+ * @author Paul Dubs
+ */
+public class AttentionHeadPruning {
+    private static final String[] HEAD_PARAMS = {
+            QueryAttentionParamInitializer.WEIGHT_KEY,
+            QueryAttentionParamInitializer.QUERY_WEIGHT_KEY,
+            QueryAttentionParamInitializer.BIAS_KEY
+    };
+
+    private AttentionHeadPruning() { }
+
+    /**
+     * Importance of each head of the attention layer at layerIndex: the average data loss over the validation data
+     * with that head removed, minus the average data loss of the unchanged network. Higher means more important.
+     * Regularization is left out, zeroing the rows of a head would lower its penalty as well.
+     */
+    public static double[] headImportance(MultiLayerNetwork net, int layerIndex, DataSetIterator validation) {
+        final FeedForwardLayer attention = attentionLayer(net.getLayerWiseConfigurations(), layerIndex);
+        final int nIn = (int) attention.getNIn();
+        final int heads = (int) attention.getNOut();
+        final INDArray downstream = headRows(net, layerIndex, nIn * heads);
+
+        final double baseline = score(net, validation);
+        final double[] importance = new double[heads];
+        for (int h = 0; h < heads; h++) {
+            final INDArray rows = downstream.get(interval(h * nIn, (h + 1) * nIn), all());
+            final INDArray original = rows.dup();
+            rows.assign(0);
+            try {
+                importance[h] = score(net, validation) - baseline;
+            } finally {
+                rows.assign(original);
+            }
+        }
+        return importance;
+    }
+
+    /**
+     * Scores the heads on the validation data and removes the count least important ones.
+     */
+    public static MultiLayerNetwork pruneLeastImportant(MultiLayerNetwork net, int layerIndex, DataSetIterator validation, int count) {
+        final double[] importance = headImportance(net, layerIndex, validation);
+        if (count < 0 || count >= importance.length) {
+            throw new IllegalStateException("Can only remove between 0 and " + (importance.length - 1) + " heads, but got " + count);
+        }
+
+        final Integer[] order = new Integer[importance.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(importance[a], importance[b]));
+
+        final int[] heads = new int[count];
+        for (int i = 0; i < count; i++) {
+            heads[i] = order[i];
+        }
+        return pruneHeads(net, layerIndex, heads);
+    }
+
+    /**
+     * Returns a new network without the given heads of the attention layer at layerIndex. All other parameters are
+     * copied, the given network is not changed.
+     */
+    public static MultiLayerNetwork pruneHeads(MultiLayerNetwork net, int layerIndex, int... heads) {
+        final FeedForwardLayer attention = attentionLayer(net.getLayerWiseConfigurations(), layerIndex);
+        final int nIn = (int) attention.getNIn();
+        final int headCount = (int) attention.getNOut();
+        headRows(net, layerIndex, nIn * headCount);
+        final boolean projected = isProjected(attention);
+
+        final boolean[] removed = new boolean[headCount];
+        for (int h : heads) {
+            if (h < 0 || h >= headCount) {
+                throw new IllegalStateException("Invalid head " + h + " for layer " + layerIndex + " with " + headCount + " heads");
+            }
+            removed[h] = true;
+        }
+
+        final int[] kept = new int[headCount - countTrue(removed)];
+        if (kept.length == 0) {
+            throw new IllegalStateException("Can not remove all " + headCount + " heads of layer " + layerIndex);
+        }
+        final int[] keptRows = new int[kept.length * nIn];
+        for (int h = 0, k = 0; h < headCount; h++) {
+            if (!removed[h]) {
+                for (int i = 0; i < nIn; i++) {
+                    keptRows[k * nIn + i] = h * nIn + i;
+                }
+                kept[k++] = h;
+            }
+        }
+
+        final MultiLayerConfiguration conf = net.getLayerWiseConfigurations().clone();
+        ((FeedForwardLayer) conf.getConf(layerIndex).getLayer()).setNOut(kept.length);
+        if (!projected) {
+            ((FeedForwardLayer) conf.getConf(layerIndex + 1).getLayer()).setNIn(keptRows.length);
+        }
+
+        final MultiLayerNetwork pruned = new MultiLayerNetwork(conf);
+        pruned.init();
+
+        for (int i = 0; i < net.getnLayers(); i++) {
+            final Map<String, INDArray> from = net.getLayer(i).paramTable();
+            for (Map.Entry<String, INDArray> to : pruned.getLayer(i).paramTable().entrySet()) {
+                INDArray source = from.get(to.getKey());
+                if (i == layerIndex && Arrays.asList(HEAD_PARAMS).contains(to.getKey())) {
+                    source = source.getColumns(kept);
+                } else if (i == layerIndex && QueryAttentionParamInitializer.PROJECTION_WEIGHT_KEY.equals(to.getKey())) {
+                    source = source.getRows(keptRows);
+                } else if (!projected && i == layerIndex + 1 && DefaultParamInitializer.WEIGHT_KEY.equals(to.getKey())) {
+                    source = source.getRows(keptRows);
+                }
+                to.getValue().assign(source);
+            }
+        }
+
+        return pruned;
+    }
+
+    private static FeedForwardLayer attentionLayer(MultiLayerConfiguration conf, int layerIndex) {
+        final Layer layer = conf.getConf(layerIndex).getLayer();
+        if (!(layer instanceof SelfAttentionLayer || layer instanceof TimestepAttentionLayer)) {
+            throw new IllegalStateException("Layer " + layerIndex + " must be a SelfAttentionLayer or TimestepAttentionLayer, but got " + layer.getClass().getSimpleName());
+        }
+        if (outputMode(layer) == AttentionOutputMode.MEAN) {
+            throw new IllegalStateException("Layer " + layerIndex + " averages its heads (output mode MEAN), its heads can not be pruned");
+        }
+        if (layerIndex + 1 >= conf.getConfs().size()) {
+            throw new IllegalStateException("Layer " + layerIndex + " is the last layer, its heads can only be pruned with a following layer");
+        }
+        return (FeedForwardLayer) layer;
+    }
+
+    private static AttentionOutputMode outputMode(Layer layer) {
+        return layer instanceof SelfAttentionLayer ? ((SelfAttentionLayer) layer).getOutputMode() : ((TimestepAttentionLayer) layer).getOutputMode();
+    }
+
+    private static boolean isProjected(Layer layer) {
+        return outputMode(layer) == AttentionOutputMode.PROJECTION;
+    }
+
+    /*
+     * The weights with one row per concatenated head output: the projection of the attention layer, or the weights of
+     * the following layer
+     */
+    private static INDArray headRows(MultiLayerNetwork net, int layerIndex, long outputSize) {
+        if (isProjected(net.getLayerWiseConfigurations().getConf(layerIndex).getLayer())) {
+            return net.getLayer(layerIndex).paramTable().get(QueryAttentionParamInitializer.PROJECTION_WEIGHT_KEY);
+        }
+        return downstreamWeights(net, layerIndex, outputSize);
+    }
+
+    private static INDArray downstreamWeights(MultiLayerNetwork net, int layerIndex, long outputSize) {
+        final Layer next = net.getLayerWiseConfigurations().getConf(layerIndex + 1).getLayer();
+        final INDArray W = next instanceof FeedForwardLayer ? net.getLayer(layerIndex + 1).paramTable().get(DefaultParamInitializer.WEIGHT_KEY) : null;
+        if (W == null || W.rank() != 2 || W.rows() != outputSize) {
+            throw new IllegalStateException("Layer " + (layerIndex + 1) + " must have a weight parameter \"" + DefaultParamInitializer.WEIGHT_KEY
+                    + "\" with " + outputSize + " rows (one per output of the attention layer), but got " + next.getClass().getSimpleName()
+                    + (W == null ? " without it" : " with shape " + Arrays.toString(W.shape())));
+        }
+        return W;
+    }
+
+    private static double score(MultiLayerNetwork net, DataSetIterator data) {
+        data.reset();
+        // The score includes the l1 and l2 penalty of the whole network, divided by the minibatch size like the loss
+        final double penalty = net.calcL1(true) + net.calcL2(true);
+        double total = 0;
+        long examples = 0;
+        while (data.hasNext()) {
+            final DataSet ds = data.next();
+            total += net.score(ds) * ds.numExamples() - penalty;
+            examples += ds.numExamples();
+        }
+        if (examples == 0) {
+            throw new IllegalStateException("Validation data is empty");
+        }
+        return total / examples;
+    }
+
+    private static int countTrue(boolean[] values) {
+        int count = 0;
+        for (boolean value : values) {
+            if (value) count++;
+        }
+        return count;
+    }
+}
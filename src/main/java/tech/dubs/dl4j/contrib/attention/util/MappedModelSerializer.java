@@ -0,0 +1,287 @@
+package tech.dubs.dl4j.contrib.attention.util;
+
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Save and restore networks as a single uncompressed file, whose parameters are memory mapped when restoring.
+ *
+ * In contrast to ModelSerializer, which reads a zip archive and copies every parameter into a fresh array, the
+ * flattened parameter view (as laid out by the ParamInitializers of each layer) is stored as-is in native byte order.
+ * On restore the file is mapped copy-on-write and used directly as the parameter view of the network, so no
+ * parameter is copied and pages are only read from disk when they are first used. Training a restored network is
+ * possible, but its changes are never written back to the file.
+ *
+ * A mapped file must not be modified in place while a network restored from it is alive: pages that were not
+ * updated yet still read through to the file, so the parameters of the network would silently change, or the JVM
+ * crashes if the file is truncated. writeModel never does that, it writes to a temporary file next to the target and
+ * atomically renames it over the target, so the file can be overwritten by writeModel, also with a network restored
+ * from it.
+ *
+ * Only configuration and parameters are stored. Updater state is not, so this format is meant for serving; use
+ * ModelSerializer to checkpoint training.
+ *
+ * Layout: a fixed size header (big endian), the configuration as UTF-8 JSON, and the parameters, aligned to
+ * PARAMS_ALIGNMENT bytes. The parameters are mapped as a single buffer, so they are limited to MAX_PARAMS_SIZE bytes.
+ *
+ * @author Paul Dubs
+ */
+public class MappedModelSerializer {
+    private static final Logger log = LoggerFactory.getLogger(MappedModelSerializer.class);
+
+    private static final byte[] MAGIC = "DL4JATTN".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int PARAMS_ALIGNMENT = 64;
+    // A single NIO buffer, and therefore a single mapping, can not be larger
+    public static final long MAX_PARAMS_SIZE = Integer.MAX_VALUE;
+
+    private static final byte MULTI_LAYER_NETWORK = 'M';
+    private static final byte COMPUTATION_GRAPH = 'G';
+
+    private static final List<Mapping> MAPPINGS = new ArrayList<>();
+
+    private MappedModelSerializer() { }
+
+    public static void writeModel(Model model, File file) throws IOException {
+        final byte modelType;
+        final String json;
+        if (model instanceof MultiLayerNetwork) {
+            modelType = MULTI_LAYER_NETWORK;
+            json = ((MultiLayerNetwork) model).getLayerWiseConfigurations().toJson();
+        } else if (model instanceof ComputationGraph) {
+            modelType = COMPUTATION_GRAPH;
+            json = ((ComputationGraph) model).getConfiguration().toJson();
+        } else {
+            throw new IllegalArgumentException("Only MultiLayerNetwork and ComputationGraph are supported, but got " + model.getClass().getName());
+        }
+
+        final byte[] conf = json.getBytes(StandardCharsets.UTF_8);
+        final INDArray params = model.params();
+        final long paramCount = params == null ? 0 : params.length();
+        final DataBuffer.Type dataType = params == null ? Nd4j.dataType() : params.data().dataType();
+        final long elementSize = elementSize(dataType);
+        checkParamsSize(paramCount, elementSize, dataType);
+        final long paramsOffset = align(HEADER_SIZE + conf.length);
+
+        final ByteArrayOutputStream headerBytes = new ByteArrayOutputStream((int) paramsOffset);
+        try (DataOutputStream out = new DataOutputStream(headerBytes)) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeByte(modelType);
+            out.writeByte(dataType == DataBuffer.Type.DOUBLE ? 'D' : 'F');
+            out.writeByte(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 'L' : 'B');
+            out.writeByte(0);
+            out.writeLong(HEADER_SIZE);
+            out.writeLong(conf.length);
+            out.writeLong(paramsOffset);
+            out.writeLong(paramCount);
+            out.write(new byte[HEADER_SIZE - out.size()]);
+            out.write(conf);
+            out.write(new byte[(int) (paramsOffset - HEADER_SIZE - conf.length)]);
+        }
+
+        final Path target = file.toPath().toAbsolutePath().normalize();
+        final Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                writeFully(channel, ByteBuffer.wrap(headerBytes.toByteArray()));
+
+                if (paramCount > 0) {
+                    // The raw buffer is already in native byte order, so it can be written without conversion. Parameters
+                    // mapped from the target are copied first, they must not be read through the file being replaced.
+                    final boolean contiguous = params.ordering() == 'c' && params.offset() == 0 && params.data().length() == paramCount;
+                    final INDArray flat = !contiguous || isMappedFrom(params, target) ? params.dup('c') : params;
+                    final ByteBuffer raw = flat.data().asNio();
+                    raw.position(0).limit((int) (paramCount * elementSize));
+                    writeFully(channel, raw);
+                }
+            }
+            Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /*
+     * Whether the buffer of params lies within a mapping of file made by restoring a network from it
+     */
+    private static boolean isMappedFrom(INDArray params, Path file) {
+        final long address = params.data().address();
+        synchronized (MAPPINGS) {
+            MAPPINGS.removeIf(mapping -> mapping.buffer.get() == null);
+            for (Mapping mapping : MAPPINGS) {
+                if (mapping.file.equals(file) && address >= mapping.address && address < mapping.address + mapping.size) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    public static MultiLayerNetwork restoreMultiLayerNetwork(File file) throws IOException {
+        final Header header = readHeader(file);
+        if (header.modelType != MULTI_LAYER_NETWORK) {
+            throw new IllegalStateException("File " + file + " does not contain a MultiLayerNetwork");
+        }
+
+        final MultiLayerNetwork net = new MultiLayerNetwork(MultiLayerConfiguration.fromJson(header.conf));
+        net.init(mapParams(file, header), false);
+        return net;
+    }
+
+    public static ComputationGraph restoreComputationGraph(File file) throws IOException {
+        final Header header = readHeader(file);
+        if (header.modelType != COMPUTATION_GRAPH) {
+            throw new IllegalStateException("File " + file + " does not contain a ComputationGraph");
+        }
+
+        final ComputationGraph net = new ComputationGraph(ComputationGraphConfiguration.fromJson(header.conf));
+        net.init(mapParams(file, header), false);
+        return net;
+    }
+
+    private static INDArray mapParams(File file, Header header) throws IOException {
+        if (header.paramCount == 0) {
+            return null;
+        }
+        checkParamsSize(header.paramCount, elementSize(header.dataType), header.dataType);
+
+        final int length = (int) header.paramCount;
+        final long size = header.paramCount * elementSize(header.dataType);
+        // A private (copy-on-write) mapping needs a writable channel, even though nothing is ever written to the file.
+        // A read-only mapping would crash the JVM as soon as the parameters are updated, so copy instead.
+        final boolean writable = file.canWrite();
+        final ByteBuffer mapped;
+        if (writable) {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                mapped = channel.map(FileChannel.MapMode.PRIVATE, header.paramsOffset, size);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, header.paramsOffset, size);
+            }
+        }
+        mapped.order(header.byteOrder);
+
+        if (writable && header.dataType == Nd4j.dataType() && header.byteOrder == ByteOrder.nativeOrder()) {
+            final DataBuffer buffer = Nd4j.createBuffer(mapped, header.dataType, length);
+            synchronized (MAPPINGS) {
+                // Processes that only restore would otherwise keep the entries of collected networks forever
+                MAPPINGS.removeIf(mapping -> mapping.buffer.get() == null);
+                MAPPINGS.add(new Mapping(file.toPath().toAbsolutePath().normalize(), buffer, size));
+            }
+            return Nd4j.create(buffer, new long[]{1, length});
+        }
+
+        log.warn("Parameters in {} are stored as {} ({}), this process uses {} ({}) and the file is {}writable. They will be copied.",
+                file, header.dataType, header.byteOrder, Nd4j.dataType(), ByteOrder.nativeOrder(), writable ? "" : "not ");
+        final INDArray params = Nd4j.createUninitialized(new long[]{1, length}, 'c');
+        for (int i = 0; i < length; i++) {
+            params.putScalar(i, header.dataType == DataBuffer.Type.DOUBLE ? mapped.getDouble(i * 8) : mapped.getFloat(i * 4));
+        }
+        return params;
+    }
+
+    private static Header readHeader(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            final byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!java.util.Arrays.equals(magic, MAGIC)) {
+                throw new IllegalStateException("File " + file + " is not a mapped model file");
+            }
+            final int version = in.readInt();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unsupported mapped model file version " + version + " in " + file);
+            }
+
+            final Header header = new Header();
+            header.modelType = in.readByte();
+            header.dataType = in.readByte() == 'D' ? DataBuffer.Type.DOUBLE : DataBuffer.Type.FLOAT;
+            header.byteOrder = in.readByte() == 'L' ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+            in.readByte();
+            final long confOffset = in.readLong();
+            final long confLength = in.readLong();
+            header.paramsOffset = in.readLong();
+            header.paramCount = in.readLong();
+
+            in.skipBytes((int) (confOffset - (MAGIC.length + 4 + 4 + 8 * 4)));
+            final byte[] conf = new byte[(int) confLength];
+            in.readFully(conf);
+            header.conf = new String(conf, StandardCharsets.UTF_8);
+            return header;
+        }
+    }
+
+    private static void checkParamsSize(long paramCount, long elementSize, DataBuffer.Type dataType) {
+        if (paramCount > MAX_PARAMS_SIZE / elementSize) {
+            throw new IllegalStateException("Parameters are too large to be mapped: " + paramCount + " " + dataType + " parameters take "
+                    + paramCount * elementSize + " bytes, but at most " + MAX_PARAMS_SIZE + " bytes are supported. Use ModelSerializer instead.");
+        }
+    }
+
+    private static int elementSize(DataBuffer.Type dataType) {
+        switch (dataType) {
+            case DOUBLE:
+                return 8;
+            case FLOAT:
+                return 4;
+            default:
+                throw new IllegalStateException("Unsupported parameter data type: " + dataType);
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + PARAMS_ALIGNMENT - 1) / PARAMS_ALIGNMENT * PARAMS_ALIGNMENT;
+    }
+
+    private static class Mapping {
+        private final Path file;
+        private final WeakReference<DataBuffer> buffer;
+        private final long address;
+        private final long size;
+
+        private Mapping(Path file, DataBuffer buffer, long size) {
+            this.file = file;
+            this.buffer = new WeakReference<>(buffer);
+            this.address = buffer.address();
+            this.size = size;
+        }
+    }
+
+    private static class Header {
+        private byte modelType;
+        private DataBuffer.Type dataType;
+        private ByteOrder byteOrder;
+        private long paramsOffset;
+        private long paramCount;
+        private String conf;
+    }
+}
@@ -0,0 +1,354 @@
+package tech.dubs.dl4j.contrib.attention.util;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+/**
+ * Emits minibatches of sequences with similar length, so they are only padded to the longest sequence of their own
+ * length bucket instead of the longest sequence of a random minibatch. Attention layers do work quadratic in the
+ * padded length, so this saves more than the padding itself.
+ *
+ * All examples of the source iterator are read into memory once. The length of an example is the position of the last
+ * unmasked timestep of its features (padding is expected at the end); examples without any unmasked timestep are
+ * dropped. Examples are grouped into buckets of bucketWidth lengths, shuffled within their bucket and cut into
+ * minibatches, and then the order of all minibatches is shuffled across buckets. Every reset reshuffles.
+ *
+ * Features are [examples, size, timesteps]. Labels are either per sequence [examples, size] or per timestep
+ * [examples, size, timesteps] with the same length as the features. Masks are only emitted for minibatches that need
+ * them.
+ *
+ * @author Paul Dubs
+ */
+public class SequenceLengthBucketingIterator implements DataSetIterator {
+    private static final Logger log = LoggerFactory.getLogger(SequenceLengthBucketingIterator.class);
+
+    private final List<Example> examples = new ArrayList<>();
+    private final int batchSize;
+    private final int bucketWidth;
+    private final Random random;
+    private final List<String> labels;
+    private int inputColumns;
+    private int totalOutcomes;
+    private Boolean timeSeriesLabels;
+
+    private long sourceTimesteps;
+    private long sourceAttentionWork;
+
+    private List<int[]> batches;
+    private int cursor;
+    private PaddingReport report;
+    private DataSetPreProcessor preProcessor;
+
+    public SequenceLengthBucketingIterator(DataSetIterator source, int batchSize, int bucketWidth, long seed) {
+        if (batchSize <= 0 || bucketWidth <= 0) {
+            throw new IllegalStateException("batchSize and bucketWidth must be positive, but got " + batchSize + " and " + bucketWidth);
+        }
+        this.batchSize = batchSize;
+        this.bucketWidth = bucketWidth;
+        this.random = new Random(seed);
+        this.labels = source.getLabels();
+
+        int dropped = 0;
+        while (source.hasNext()) {
+            dropped += read(source.next());
+        }
+        if (examples.isEmpty()) {
+            throw new IllegalStateException("Source iterator has no examples with unmasked timesteps");
+        }
+        if (dropped > 0) {
+            log.warn("Dropped {} examples without any unmasked timestep", dropped);
+        }
+        shuffle();
+        log.info("{}", report);
+    }
+
+    /*
+     * Padding and attention work of the current epoch, compared to the minibatches of the source iterator.
+     */
+    public PaddingReport getPaddingReport() {
+        return report;
+    }
+
+    private int read(DataSet ds) {
+        final INDArray features = ds.getFeatures();
+        final INDArray featuresMask = ds.getFeaturesMaskArray();
+        final INDArray labels = ds.getLabels();
+        final INDArray labelsMask = ds.getLabelsMaskArray();
+        if (features.rank() != 3) {
+            throw new IllegalStateException("Features must be sequences [examples, size, timesteps], but got rank " + features.rank());
+        }
+        final long tsLength = features.size(2);
+        if (timeSeriesLabels == null) {
+            timeSeriesLabels = labels.rank() == 3;
+            inputColumns = (int) features.size(1);
+            totalOutcomes = (int) labels.size(1);
+        } else if (timeSeriesLabels != (labels.rank() == 3) || features.size(1) != inputColumns || labels.size(1) != totalOutcomes) {
+            throw new IllegalStateException("All minibatches of the source iterator must have the same feature and label sizes");
+        }
+        if (timeSeriesLabels && labels.size(2) != tsLength) {
+            throw new IllegalStateException("Per timestep labels must have the same length as the features, but got "
+                    + labels.size(2) + " and " + tsLength);
+        }
+
+        sourceTimesteps += features.size(0) * tsLength;
+        sourceAttentionWork += features.size(0) * tsLength * tsLength;
+
+        int dropped = 0;
+        for (int i = 0; i < features.size(0); i++) {
+            final int length = featuresMask == null ? (int) tsLength : lastUnmasked(featuresMask.getRow(i)) + 1;
+            if (length == 0) {
+                dropped++;
+                continue;
+            }
+
+            final INDArray mask = featuresMask == null ? null : featuresMask.get(point(i), interval(0, length)).reshape(1, length);
+            final Example example = new Example(length, features.get(point(i), all(), interval(0, length)).dup('f'), mask == null ? null : mask.dup());
+            if (timeSeriesLabels) {
+                example.labels = labels.get(point(i), all(), interval(0, length)).dup('f');
+                final INDArray lMask = labelsMask == null ? mask : labelsMask.get(point(i), interval(0, length)).reshape(1, length);
+                example.labelsMask = lMask == null ? null : lMask.dup();
+            } else {
+                example.labels = labels.getRow(i).dup();
+            }
+            examples.add(example);
+        }
+        return dropped;
+    }
+
+    private static int lastUnmasked(INDArray mask) {
+        for (int t = (int) mask.length() - 1; t >= 0; t--) {
+            if (mask.getDouble(t) != 0.0) {
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    private void shuffle() {
+        final List<List<Integer>> buckets = new ArrayList<>();
+        for (int i = 0; i < examples.size(); i++) {
+            final int bucket = (examples.get(i).length - 1) / bucketWidth;
+            while (buckets.size() <= bucket) {
+                buckets.add(new ArrayList<>());
+            }
+            buckets.get(bucket).add(i);
+        }
+
+        batches = new ArrayList<>();
+        long timesteps = 0;
+        long attentionWork = 0;
+        long realTimesteps = 0;
+        for (List<Integer> bucket : buckets) {
+            Collections.shuffle(bucket, random);
+            for (int start = 0; start < bucket.size(); start += batchSize) {
+                final int[] batch = new int[Math.min(batchSize, bucket.size() - start)];
+                long maxLength = 0;
+                for (int j = 0; j < batch.length; j++) {
+                    batch[j] = bucket.get(start + j);
+                    maxLength = Math.max(maxLength, examples.get(batch[j]).length);
+                    realTimesteps += examples.get(batch[j]).length;
+                }
+                timesteps += batch.length * maxLength;
+                attentionWork += batch.length * maxLength * maxLength;
+                batches.add(batch);
+            }
+        }
+        Collections.shuffle(batches, random);
+        cursor = 0;
+
+        report = new PaddingReport(realTimesteps, sourceTimesteps, timesteps, sourceAttentionWork, attentionWork);
+    }
+
+    @Override
+    public boolean hasNext() {
+        return cursor < batches.size();
+    }
+
+    @Override
+    public DataSet next() {
+        final int[] batch = batches.get(cursor++);
+
+        int maxLength = 0;
+        boolean masked = false;
+        for (int idx : batch) {
+            final Example example = examples.get(idx);
+            maxLength = Math.max(maxLength, example.length);
+            masked |= example.mask != null || example.labelsMask != null;
+        }
+        for (int idx : batch) {
+            masked |= examples.get(idx).length != maxLength;
+        }
+
+        final INDArray features = Nd4j.create(new int[]{batch.length, inputColumns, maxLength}, 'f');
+        final INDArray labels = timeSeriesLabels
+                ? Nd4j.create(new int[]{batch.length, totalOutcomes, maxLength}, 'f')
+                : Nd4j.create(batch.length, totalOutcomes);
+        final INDArray featuresMask = masked ? Nd4j.create(batch.length, maxLength) : null;
+        final INDArray labelsMask = masked && timeSeriesLabels ? Nd4j.create(batch.length, maxLength) : null;
+
+        for (int j = 0; j < batch.length; j++) {
+            final Example example = examples.get(batch[j]);
+            final int length = example.length;
+            features.get(point(j), all(), interval(0, length)).assign(example.features);
+            if (featuresMask != null) {
+                featuresMask.get(point(j), interval(0, length)).assign(example.mask == null ? Nd4j.ones(1, length) : example.mask);
+            }
+            if (timeSeriesLabels) {
+                labels.get(point(j), all(), interval(0, length)).assign(example.labels);
+                if (labelsMask != null) {
+                    labelsMask.get(point(j), interval(0, length)).assign(example.labelsMask == null ? Nd4j.ones(1, length) : example.labelsMask);
+                }
+            } else {
+                labels.putRow(j, example.labels);
+            }
+        }
+
+        final DataSet ds = new DataSet(features, labels, featuresMask, labelsMask);
+        if (preProcessor != null) {
+            preProcessor.preProcess(ds);
+        }
+        return ds;
+    }
+
+    @Override
+    public DataSet next(int num) {
+        throw new UnsupportedOperationException("Minibatch sizes are given by the buckets");
+    }
+
+    @Override
+    public int inputColumns() {
+        return inputColumns;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return totalOutcomes;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        shuffle();
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return labels;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private static class Example {
+        private final int length;
+        private final INDArray features;
+        private final INDArray mask;
+        private INDArray labels;
+        private INDArray labelsMask;
+
+        private Example(int length, INDArray features, INDArray mask) {
+            this.length = length;
+            this.features = features;
+            this.mask = mask;
+        }
+    }
+
+    public static class PaddingReport {
+        private final long realTimesteps;
+        private final long sourceTimesteps;
+        private final long bucketedTimesteps;
+        private final long sourceAttentionWork;
+        private final long bucketedAttentionWork;
+
+        private PaddingReport(long realTimesteps, long sourceTimesteps, long bucketedTimesteps, long sourceAttentionWork, long bucketedAttentionWork) {
+            this.realTimesteps = realTimesteps;
+            this.sourceTimesteps = sourceTimesteps;
+            this.bucketedTimesteps = bucketedTimesteps;
+            this.sourceAttentionWork = sourceAttentionWork;
+            this.bucketedAttentionWork = bucketedAttentionWork;
+        }
+
+        /* Unpadded timesteps of all examples */
+        public long getRealTimesteps() {
+            return realTimesteps;
+        }
+
+        /* Timesteps including padding, as given by the source iterator */
+        public long getSourceTimesteps() {
+            return sourceTimesteps;
+        }
+
+        /* Timesteps including padding, with bucketing */
+        public long getBucketedTimesteps() {
+            return bucketedTimesteps;
+        }
+
+        /* Sum of examples * timesteps^2 over all minibatches of the source iterator, a proxy for attention work */
+        public long getSourceAttentionWork() {
+            return sourceAttentionWork;
+        }
+
+        /* Sum of examples * timesteps^2 over all minibatches with bucketing */
+        public long getBucketedAttentionWork() {
+            return bucketedAttentionWork;
+        }
+
+        public double getSourcePaddingFraction() {
+            return 1.0 - (double) realTimesteps / sourceTimesteps;
+        }
+
+        public double getBucketedPaddingFraction() {
+            return 1.0 - (double) realTimesteps / bucketedTimesteps;
+        }
+
+        public double getAttentionWorkReduction() {
+            return (double) sourceAttentionWork / bucketedAttentionWork;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Bucketing: padding %.1f%% -> %.1f%% of timesteps, attention work (examples * T^2) reduced %.2fx",
+                    100 * getSourcePaddingFraction(), 100 * getBucketedPaddingFraction(), getAttentionWorkReduction());
+        }
+    }
+}
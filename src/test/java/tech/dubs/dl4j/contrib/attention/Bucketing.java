@@ -0,0 +1,104 @@
+package tech.dubs.dl4j.contrib.attention;
+
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
+import org.junit.Test;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import tech.dubs.dl4j.contrib.attention.util.SequenceLengthBucketingIterator;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+public class Bucketing {
+    static {
+        Nd4j.setDataType(DataBuffer.Type.DOUBLE);
+    }
+
+    @Test
+    public void testSequenceLengthBucketing() {
+        int nIn = 3;
+        int nOut = 2;
+        int examples = 40;
+        int maxLength = 20;
+        int sourceBatchSize = 8;
+        int bucketWidth = 4;
+        int batchSize = 4;
+
+        // Every example is filled with its id + 1 on all unmasked timesteps, and its labels are the same per timestep
+        Random r = new Random(12345);
+        final int[] lengths = new int[examples];
+        final List<DataSet> source = new ArrayList<>();
+        for (int start = 0; start < examples; start += sourceBatchSize) {
+            final INDArray features = Nd4j.create(new int[]{sourceBatchSize, nIn, maxLength}, 'f');
+            final INDArray labels = Nd4j.create(new int[]{sourceBatchSize, nOut, maxLength}, 'f');
+            final INDArray mask = Nd4j.create(sourceBatchSize, maxLength);
+            for (int i = 0; i < sourceBatchSize; i++) {
+                final int id = start + i;
+                lengths[id] = 1 + r.nextInt(maxLength);
+                features.get(point(i), all(), interval(0, lengths[id])).assign(id + 1);
+                labels.get(point(i), all(), interval(0, lengths[id])).assign(id + 1);
+                mask.get(point(i), interval(0, lengths[id])).assign(1);
+            }
+            source.add(new DataSet(features, labels, mask, mask));
+        }
+
+        final SequenceLengthBucketingIterator iterator = new SequenceLengthBucketingIterator(new ListDataSetIterator<>(source, 1), batchSize, bucketWidth, 42);
+        assertEquals(nIn, iterator.inputColumns());
+        assertEquals(nOut, iterator.totalOutcomes());
+
+        final List<Integer> firstEpoch = new ArrayList<>();
+        for (int epoch = 0; epoch < 2; epoch++) {
+            final Set<Integer> seen = new HashSet<>();
+            final List<Integer> order = new ArrayList<>();
+            long paddedTimesteps = 0;
+            while (iterator.hasNext()) {
+                final DataSet ds = iterator.next();
+                final long tsLength = ds.getFeatures().size(2);
+                assertTrue(ds.getFeatures().size(0) <= batchSize);
+                paddedTimesteps += ds.getFeatures().size(0) * tsLength;
+
+                int minLength = Integer.MAX_VALUE;
+                for (int i = 0; i < ds.getFeatures().size(0); i++) {
+                    final int id = (int) ds.getFeatures().getDouble(i, 0, 0) - 1;
+                    assertTrue(seen.add(id));
+                    order.add(id);
+                    minLength = Math.min(minLength, lengths[id]);
+
+                    final INDArray mask = ds.getFeaturesMaskArray() == null ? Nd4j.ones(1, tsLength) : ds.getFeaturesMaskArray().getRow(i);
+                    assertEquals(lengths[id], mask.sumNumber().intValue());
+                    assertEquals(lengths[id] * nIn * (id + 1), ds.getFeatures().get(point(i), all(), all()).sumNumber().doubleValue(), 1e-10);
+                    assertEquals(lengths[id] * nOut * (id + 1), ds.getLabels().get(point(i), all(), all()).sumNumber().doubleValue(), 1e-10);
+                }
+                // Minibatches only contain examples of one bucket
+                assertTrue(tsLength - minLength < bucketWidth);
+            }
+            assertEquals(examples, seen.size());
+            assertEquals(iterator.getPaddingReport().getBucketedTimesteps(), paddedTimesteps);
+
+            if (epoch == 0) {
+                firstEpoch.addAll(order);
+            } else {
+                assertNotEquals(firstEpoch, order);
+            }
+            iterator.reset();
+        }
+
+        final SequenceLengthBucketingIterator.PaddingReport report = iterator.getPaddingReport();
+        int realTimesteps = 0;
+        for (int length : lengths) realTimesteps += length;
+        assertEquals(realTimesteps, report.getRealTimesteps());
+        assertEquals(examples * maxLength, report.getSourceTimesteps());
+        assertTrue(report.getBucketedPaddingFraction() < report.getSourcePaddingFraction());
+        assertTrue(report.getAttentionWorkReduction() > 1.0);
+    }
+}
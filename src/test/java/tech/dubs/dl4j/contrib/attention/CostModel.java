@@ -0,0 +1,222 @@
+package tech.dubs.dl4j.contrib.attention;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.MaskState;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.api.ops.executioner.OpExecutioner;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.profiler.OpProfiler;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionCostEstimate;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.nn.SmallAttentionKernel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Estimated op counts are checked against the native op invocations OpProfiler records for the same shapes. FLOPs
+ * and bytes can not be measured that way, they are checked for how they scale instead.
+ */
+public class CostModel {
+    private static final double OPS_TOLERANCE = 0.05;
+
+    static {
+        Nd4j.setDataType(DataBuffer.Type.DOUBLE);
+    }
+
+    @Test
+    public void testOpCountsMatchProfiler() {
+        int nIn = 3;
+        int attentionHeads = 2;
+
+        for (int mb : new int[]{2, 4}) {
+            for (int tsLength : new int[]{5, 8}) {
+                for (double maskDensity : new double[]{1.0, 0.75}) {
+                    for (boolean training : new boolean[]{false, true}) {
+                        checkOps("SelfAttentionLayer", new SelfAttentionLayer.Builder().nOut(attentionHeads).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("SelfAttentionLayer topK", new SelfAttentionLayer.Builder().nOut(attentionHeads).topK(2).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer", new TimestepAttentionLayer.Builder().nOut(attentionHeads).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer topK", new TimestepAttentionLayer.Builder().nOut(attentionHeads).topK(2).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer linear", new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(true).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer keyStride", new TimestepAttentionLayer.Builder().nOut(attentionHeads).keyStride(2).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer linear keyStride", new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(true).keyStride(3).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("RecurrentAttentionLayer", new RecurrentAttentionLayer.Builder().nOut(attentionHeads).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("SelfAttentionLayer kernel", new SelfAttentionLayer.Builder().nOut(attentionHeads).smallShapeThreshold(SmallAttentionKernel.SUGGESTED_THRESHOLD).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer kernel", new TimestepAttentionLayer.Builder().nOut(attentionHeads).smallShapeThreshold(SmallAttentionKernel.SUGGESTED_THRESHOLD).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("RecurrentAttentionLayer kernel", new RecurrentAttentionLayer.Builder().nOut(attentionHeads).smallShapeThreshold(SmallAttentionKernel.SUGGESTED_THRESHOLD).build(), nIn, mb, tsLength, maskDensity, training);
+
+                        checkOps("SelfAttentionLayer mean", new SelfAttentionLayer.Builder().nOut(attentionHeads).outputMode(AttentionOutputMode.MEAN).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("SelfAttentionLayer projection", new SelfAttentionLayer.Builder().nOut(attentionHeads).outputMode(AttentionOutputMode.PROJECTION).projectionSize(5).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer mean", new TimestepAttentionLayer.Builder().nOut(attentionHeads).outputMode(AttentionOutputMode.MEAN).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer projection", new TimestepAttentionLayer.Builder().nOut(attentionHeads).outputMode(AttentionOutputMode.PROJECTION).projectionSize(5).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer linear mean", new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(true).outputMode(AttentionOutputMode.MEAN).build(), nIn, mb, tsLength, maskDensity, training);
+                        checkOps("TimestepAttentionLayer linear projection", new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(true).outputMode(AttentionOutputMode.PROJECTION).projectionSize(5).build(), nIn, mb, tsLength, maskDensity, training);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testScaling() {
+        final TimestepAttentionLayer dense = new TimestepAttentionLayer.Builder().nIn(16).nOut(4).build();
+        final TimestepAttentionLayer topK = new TimestepAttentionLayer.Builder().nIn(16).nOut(4).topK(2).build();
+        final TimestepAttentionLayer linear = new TimestepAttentionLayer.Builder().nIn(16).nOut(4).linearAttention(true).build();
+
+        // Every query attends to all keys: quadratic in the sequence length, without the linear projections
+        final double denseGrowth = (double) dense.getCostEstimate(InputType.recurrent(16, 512), 8, 1.0, false).getForwardFlops()
+                / dense.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, false).getForwardFlops();
+        assertTrue("Dense attention grew by " + denseGrowth, denseGrowth > 3.5 && denseGrowth <= 4.0);
+
+        final double linearGrowth = (double) linear.getCostEstimate(InputType.recurrent(16, 512), 8, 1.0, false).getForwardFlops()
+                / linear.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, false).getForwardFlops();
+        assertEquals(2.0, linearGrowth, 1e-2);
+
+        // Values are only aggregated over selected keys, but selecting them costs more than that saves on short sequences
+        final AttentionCostEstimate denseCost = dense.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, true);
+        final AttentionCostEstimate topKCost = topK.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, true);
+        assertTrue(topKCost.getForwardOps() > denseCost.getForwardOps());
+        assertTrue(topKCost.getPeakWorkingMemory() > denseCost.getPeakWorkingMemory());
+
+        // Minibatch scales everything linearly
+        final AttentionCostEstimate half = dense.getCostEstimate(InputType.recurrent(16, 256), 4, 1.0, true);
+        assertEquals(2.0, (double) denseCost.getForwardFlops() / half.getForwardFlops(), 1e-3);
+        assertEquals(2.0, (double) denseCost.getBackwardFlops() / half.getBackwardFlops(), 1e-3);
+
+        // Inference has no backward pass, training does
+        final AttentionCostEstimate inference = dense.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, false);
+        assertEquals(0, inference.getBackwardFlops());
+        assertEquals(0, inference.getBackwardOps());
+        assertTrue(denseCost.getBackwardFlops() > denseCost.getForwardFlops());
+        assertTrue(denseCost.getBackwardBytes() > denseCost.getForwardBytes());
+
+        // The folded query of SelfAttentionLayer only scores the keys once
+        final SelfAttentionLayer self = new SelfAttentionLayer.Builder().nIn(16).nOut(4).build();
+        assertTrue(self.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, false).getForwardOps()
+                < self.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, true).getForwardOps());
+
+        // Reduced heads are narrower, a projection to fewer features is cheaper downstream but costs its GEMM
+        final TimestepAttentionLayer mean = new TimestepAttentionLayer.Builder().nIn(16).nOut(4).outputMode(AttentionOutputMode.MEAN).build();
+        final TimestepAttentionLayer projection = new TimestepAttentionLayer.Builder().nIn(16).nOut(4).outputMode(AttentionOutputMode.PROJECTION).projectionSize(16).build();
+        final AttentionCostEstimate meanCost = mean.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, false);
+        final AttentionCostEstimate projectionCost = projection.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, false);
+        final AttentionCostEstimate concatCost = dense.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, false);
+        assertTrue(meanCost.getPeakWorkingMemory() < concatCost.getPeakWorkingMemory());
+        assertTrue(projectionCost.getPeakWorkingMemory() < concatCost.getPeakWorkingMemory());
+        assertTrue(projectionCost.getForwardFlops() > meanCost.getForwardFlops());
+
+        // Pooled keys: every query only scores tsLength / keyStride keys
+        final TimestepAttentionLayer strided = new TimestepAttentionLayer.Builder().nIn(16).nOut(4).keyStride(4).build();
+        final AttentionCostEstimate stridedCost = strided.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, true);
+        assertTrue(stridedCost.getForwardFlops() < concatCost.getForwardFlops() / 2);
+        assertTrue(stridedCost.getBackwardFlops() < denseCost.getBackwardFlops() / 2);
+
+        // Bytes follow the data type
+        final long doubleBytes = denseCost.getForwardBytes();
+        Nd4j.setDataType(DataBuffer.Type.FLOAT);
+        try {
+            assertEquals(doubleBytes / 2, dense.getCostEstimate(InputType.recurrent(16, 256), 8, 1.0, true).getForwardBytes());
+        } finally {
+            Nd4j.setDataType(DataBuffer.Type.DOUBLE);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnknownSequenceLength() {
+        new TimestepAttentionLayer.Builder().nIn(16).nOut(4).build().getCostEstimate(InputType.recurrent(16), 8, 1.0, false);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testInvalidMaskDensity() {
+        new SelfAttentionLayer.Builder().nIn(16).nOut(4).build().getCostEstimate(InputType.recurrent(16, 10), 8, 1.5, false);
+    }
+
+    private static void checkOps(String name, org.deeplearning4j.nn.conf.layers.Layer layerConf, int nIn, int mb, int tsLength, double maskDensity, boolean training) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(layerConf)
+                .layer(new RnnOutputLayer.Builder().nOut(3).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        net.initGradientsView();
+        final Layer layer = net.getLayer(0);
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        INDArray mask = null;
+        if (maskDensity < 1.0) {
+            // Same density for every example
+            mask = Nd4j.ones(mb, tsLength);
+            for (long t = Math.round(maskDensity * tsLength); t < tsLength; t++) {
+                for (int i = 0; i < mb; i++) {
+                    mask.putScalar(i, t, 0.0);
+                }
+            }
+        }
+
+        final AttentionCostEstimate estimate = estimate(layerConf, InputType.recurrent(nIn, tsLength), mb, maskDensity, training);
+        final String description = name + ", mb = " + mb + ", tsLength = " + tsLength + ", maskDensity = " + maskDensity + ", training = " + training;
+
+        // Warm up, e.g. the folded query of SelfAttentionLayer is computed on first use
+        activate(layer, in, mask, training);
+        final INDArray epsilon = Nd4j.rand(activate(layer, in, mask, training).shape());
+
+        try {
+            Nd4j.getExecutioner().setProfilingMode(OpExecutioner.ProfilingMode.OPERATIONS);
+            OpProfiler.getInstance().reset();
+            activate(layer, in, mask, training);
+            assertOps(description + ", forward", estimate.getForwardOps(), OpProfiler.getInstance().getInvocationsCount());
+
+            if (training) {
+                activate(layer, in, mask, training);
+                OpProfiler.getInstance().reset();
+                layer.backpropGradient(epsilon, LayerWorkspaceMgr.noWorkspaces());
+                assertOps(description + ", backward", estimate.getBackwardOps(), OpProfiler.getInstance().getInvocationsCount());
+            }
+        } finally {
+            Nd4j.getExecutioner().setProfilingMode(OpExecutioner.ProfilingMode.DISABLED);
+        }
+    }
+
+    private static AttentionCostEstimate estimate(org.deeplearning4j.nn.conf.layers.Layer layerConf, InputType inputType, int mb, double maskDensity, boolean training) {
+        if (layerConf instanceof SelfAttentionLayer) {
+            return ((SelfAttentionLayer) layerConf).getCostEstimate(inputType, mb, maskDensity, training);
+        } else if (layerConf instanceof TimestepAttentionLayer) {
+            return ((TimestepAttentionLayer) layerConf).getCostEstimate(inputType, mb, maskDensity, training);
+        } else {
+            return ((RecurrentAttentionLayer) layerConf).getCostEstimate(inputType, mb, maskDensity, training);
+        }
+    }
+
+    private static INDArray activate(Layer layer, INDArray in, INDArray mask, boolean training) {
+        layer.setInput(in, LayerWorkspaceMgr.noWorkspaces());
+        layer.setMaskArray(mask);
+        if (mask != null) {
+            layer.feedForwardMaskArray(mask, MaskState.Active, (int) in.size(0));
+        }
+        return layer.activate(training, LayerWorkspaceMgr.noWorkspaces());
+    }
+
+    private static void assertOps(String description, long estimated, long measured) {
+        assertTrue(description + ": estimated " + estimated + " ops, but OpProfiler counted " + measured,
+                Math.abs(estimated - measured) <= OPS_TOLERANCE * measured);
+    }
+}
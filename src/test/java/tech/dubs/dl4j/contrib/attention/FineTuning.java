@@ -0,0 +1,238 @@
+package tech.dubs.dl4j.contrib.attention;
+
+import org.deeplearning4j.nn.api.Layer;
+import org.deeplearning4j.nn.api.MaskState;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.gradient.Gradient;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.learning.config.IUpdater;
+import org.nd4j.linalg.learning.config.Sgd;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.primitives.Pair;
+import org.nd4j.linalg.schedule.MapSchedule;
+import org.nd4j.linalg.schedule.ScheduleType;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Attention layers with frozen parameters (or a zero learning rate) only backprop the epsilon for their input, and
+ * attention layers on the network input can skip that epsilon.
+ */
+public class FineTuning {
+    private static final double DEFAULT_EPS = 1e-10;
+
+    static {
+        Nd4j.setDataType(DataBuffer.Type.DOUBLE);
+    }
+
+    @Test
+    public void testFrozenParamsBackprop() {
+        int nIn = 3;
+        int attentionHeads = 2;
+        int tsLength = 5;
+        int mb = 4;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.putScalar(1, tsLength - 1, 0.0);
+
+        for (String kind : new String[]{"self", "self projection", "timestep", "timestep projection", "timestep linear", "recurrent"}) {
+            for (INDArray curMask : new INDArray[]{null, mask}) {
+                final String name = kind + (curMask == null ? "" : ", masked");
+                final Layer trained = layer(kind, nIn, attentionHeads, false, new Adam(0.01));
+                final Layer frozen = layer(kind, nIn, attentionHeads, true, new Adam(0.01));
+                frozen.setParams(trained.params());
+
+                final INDArray epsilon = Nd4j.rand(activate(trained, in, curMask).shape());
+                final Pair<Gradient, INDArray> expected = backprop(trained, in, curMask, epsilon);
+                final Pair<Gradient, INDArray> actual = backprop(frozen, in, curMask, epsilon);
+
+                assertTrue(name + ": epsilon", expected.getSecond().equalsWithEps(actual.getSecond(), DEFAULT_EPS));
+                assertTrue(name + ": parameter gradients are computed", expected.getFirst().gradient().norm1Number().doubleValue() > 0);
+                assertEquals(name + ": parameter gradients are skipped", 0.0, actual.getFirst().gradient().norm1Number().doubleValue(), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testZeroLearningRate() {
+        int nIn = 3;
+        int attentionHeads = 2;
+        int tsLength = 5;
+        int mb = 4;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        for (String kind : new String[]{"self", "timestep", "recurrent"}) {
+            final Layer trained = layer(kind, nIn, attentionHeads, false, new Sgd(0.1));
+            final Layer zero = layer(kind, nIn, attentionHeads, false, new Sgd(0.0));
+            zero.setParams(trained.params());
+
+            final INDArray epsilon = Nd4j.rand(activate(trained, in, null).shape());
+            final Pair<Gradient, INDArray> expected = backprop(trained, in, null, epsilon);
+            final Pair<Gradient, INDArray> actual = backprop(zero, in, null, epsilon);
+
+            assertTrue(kind + ": epsilon", expected.getSecond().equalsWithEps(actual.getSecond(), DEFAULT_EPS));
+            assertEquals(kind + ": parameter gradients are skipped", 0.0, actual.getFirst().gradient().norm1Number().doubleValue(), 0.0);
+
+            // Adam updates its moments even at a learning rate of 0, a warmup from 0 needs the parameter gradients
+            final Layer warmup = layer(kind, nIn, attentionHeads, false,
+                    new Adam(new MapSchedule.Builder(ScheduleType.ITERATION).add(0, 0.0).add(10, 0.1).build()));
+            warmup.setParams(trained.params());
+            final Pair<Gradient, INDArray> stateful = backprop(warmup, in, null, epsilon);
+            assertTrue(kind + ": epsilon with Adam", expected.getSecond().equalsWithEps(stateful.getSecond(), DEFAULT_EPS));
+            assertTrue(kind + ": parameter gradients with Adam", expected.getFirst().gradient().equalsWithEps(stateful.getFirst().gradient(), DEFAULT_EPS));
+        }
+    }
+
+    @Test
+    public void testSkipInputGradients() {
+        int nIn = 3;
+        int attentionHeads = 2;
+        int tsLength = 5;
+        int mb = 4;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.putScalar(1, tsLength - 1, 0.0);
+
+        for (String kind : new String[]{"self", "timestep", "timestep linear", "recurrent"}) {
+            for (boolean frozenParams : new boolean[]{false, true}) {
+                final String name = kind + (frozenParams ? ", frozen" : "");
+                final Layer full = layer(kind, nIn, attentionHeads, frozenParams, false, new Adam(0.01));
+                final Layer skipping = layer(kind, nIn, attentionHeads, frozenParams, true, new Adam(0.01));
+                skipping.setParams(full.params());
+
+                final INDArray epsilon = Nd4j.rand(activate(full, in, mask).shape());
+                final Pair<Gradient, INDArray> expected = backprop(full, in, mask, epsilon);
+                final Pair<Gradient, INDArray> actual = backprop(skipping, in, mask, epsilon);
+
+                assertNull(name + ": no epsilon", actual.getSecond());
+                assertTrue(name + ": parameter gradients", expected.getFirst().gradient().equalsWithEps(actual.getFirst().gradient(), DEFAULT_EPS));
+            }
+        }
+    }
+
+    @Test
+    public void testFitKeepsFrozenParams() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 5;
+        int mb = 2;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new Adam(0.01))
+                .l2(0.01)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new LSTM.Builder().nOut(4).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).frozenParams(true).build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(4).frozenParams(true).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).frozenParams(true).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray labels = Nd4j.zeros(mb, nOut);
+        for (int i = 0; i < mb; i++) {
+            labels.putScalar(i, i % nOut, 1.0);
+        }
+
+        final INDArray[] before = new INDArray[net.getnLayers()];
+        for (int i = 0; i < before.length; i++) {
+            before[i] = net.getLayer(i).params().dup();
+        }
+        for (int i = 0; i < 3; i++) {
+            net.fit(in, labels);
+        }
+
+        // The layers below and above still train, through the epsilon of the frozen layers
+        assertTrue(!before[0].equalsWithEps(net.getLayer(0).params(), DEFAULT_EPS));
+        assertTrue(!before[4].equalsWithEps(net.getLayer(4).params(), DEFAULT_EPS));
+        for (int i = 1; i <= 3; i++) {
+            assertTrue("Layer " + i + " is frozen", before[i].equalsWithEps(net.getLayer(i).params(), 0.0));
+        }
+    }
+
+    private static Layer layer(String kind, int nIn, int attentionHeads, boolean frozenParams, IUpdater updater) {
+        return layer(kind, nIn, attentionHeads, frozenParams, false, updater);
+    }
+
+    private static Layer layer(String kind, int nIn, int attentionHeads, boolean frozenParams, boolean skipInputGradients, IUpdater updater) {
+        final org.deeplearning4j.nn.conf.layers.Layer attention;
+        final boolean projection = kind.endsWith("projection");
+        if (kind.startsWith("self")) {
+            final SelfAttentionLayer.Builder builder = new SelfAttentionLayer.Builder().nOut(attentionHeads).frozenParams(frozenParams)
+                    .skipInputGradients(skipInputGradients);
+            attention = (projection ? builder.outputMode(AttentionOutputMode.PROJECTION).projectionSize(4) : builder).build();
+        } else if (kind.startsWith("timestep")) {
+            final TimestepAttentionLayer.Builder builder = new TimestepAttentionLayer.Builder().nOut(attentionHeads).frozenParams(frozenParams)
+                    .skipInputGradients(skipInputGradients)
+                    .linearAttention(kind.endsWith("linear"));
+            attention = (projection ? builder.outputMode(AttentionOutputMode.PROJECTION).projectionSize(4) : builder).build();
+        } else {
+            attention = new RecurrentAttentionLayer.Builder().nOut(attentionHeads).frozenParams(frozenParams)
+                    .skipInputGradients(skipInputGradients).build();
+        }
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(updater)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(attention)
+                .layer(kind.startsWith("self")
+                        ? new OutputLayer.Builder().nOut(3).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build()
+                        : new RnnOutputLayer.Builder().nOut(3).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        net.initGradientsView();
+        return net.getLayer(0);
+    }
+
+    private static INDArray activate(Layer layer, INDArray in, INDArray mask) {
+        layer.setInput(in, LayerWorkspaceMgr.noWorkspaces());
+        layer.setMaskArray(mask);
+        if (mask != null) {
+            layer.feedForwardMaskArray(mask, MaskState.Active, (int) in.size(0));
+        }
+        return layer.activate(true, LayerWorkspaceMgr.noWorkspaces());
+    }
+
+    private static Pair<Gradient, INDArray> backprop(Layer layer, INDArray in, INDArray mask, INDArray epsilon) {
+        activate(layer, in, mask);
+        // activate may replace the input with its permuted copy
+        layer.setInput(in, LayerWorkspaceMgr.noWorkspaces());
+        final Pair<Gradient, INDArray> result = layer.backpropGradient(epsilon, LayerWorkspaceMgr.noWorkspaces());
+        return new Pair<>(result.getFirst(), result.getSecond() == null ? null : result.getSecond().dup());
+    }
+}
@@ -1,6 +1,7 @@
 package tech.dubs.dl4j.contrib.attention;
 
 import org.deeplearning4j.gradientcheck.GradientCheckUtil;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.inputs.InputType;
@@ -8,7 +9,9 @@ import org.deeplearning4j.nn.conf.layers.GlobalPoolingLayer;
 import org.deeplearning4j.nn.conf.layers.LSTM;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
 import org.deeplearning4j.nn.conf.layers.PoolingType;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.conf.layers.recurrent.LastTimeStep;
+import org.deeplearning4j.nn.graph.ComputationGraph;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.junit.Test;
@@ -19,13 +22,17 @@ import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.learning.config.NoOp;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 import org.nd4j.linalg.profiler.OpProfiler;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex;
 import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
 import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
 import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.nn.SmallAttentionKernel;
 
 import java.util.Random;
 
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class GradientChecks {
     private static final boolean PRINT_RESULTS = false;
@@ -33,6 +40,8 @@ public class GradientChecks {
     private static final double DEFAULT_EPS = 1e-6;
     private static final double DEFAULT_MAX_REL_ERROR = 1e-3;
     private static final double DEFAULT_MIN_ABS_ERROR = 1e-8;
+    // Native ops, the default, and the opt-in small shape kernel
+    private static final long[] SMALL_SHAPE_THRESHOLDS = {0, SmallAttentionKernel.SUGGESTED_THRESHOLD};
 
     static {
         Nd4j.setDataType(DataBuffer.Type.DOUBLE);
@@ -47,7 +56,200 @@ public class GradientChecks {
         int attentionHeads = 2;
 
         Random r = new Random(12345);
-        for (int mb : new int[]{1, 2, 3}) {
+        for (long smallShapeThreshold : SMALL_SHAPE_THRESHOLDS) {
+            for (int mb : new int[]{1, 2, 3}) {
+                for (boolean inputMask : new boolean[]{false, true}) {
+                    INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+                    INDArray labels = Nd4j.create(mb, nOut);
+                    for (int i = 0; i < mb; i++) {
+                        labels.putScalar(i, r.nextInt(nOut), 1.0);
+                    }
+                    String maskType = (inputMask ? "inputMask" : "none");
+
+                    INDArray inMask = null;
+                    if (inputMask) {
+                        inMask = Nd4j.ones(mb, tsLength);
+                        for (int i = 0; i < mb; i++) {
+                            int firstMaskedStep = tsLength - 1 - i;
+                            if (firstMaskedStep == 0) {
+                                firstMaskedStep = tsLength;
+                            }
+                            for (int j = firstMaskedStep; j < tsLength; j++) {
+                                inMask.putScalar(i, j, 0.0);
+                            }
+                        }
+                    }
+
+                    String name = "testSelfAttentionLayer() - smallShapeThreshold=" + smallShapeThreshold + ", mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                    System.out.println("Starting test: " + name);
+
+
+                    MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                            .activation(Activation.TANH)
+                            .updater(new NoOp())
+                            .weightInit(WeightInit.XAVIER)
+                            .list()
+                            .layer(new LSTM.Builder().nOut(layerSize).build())
+                            .layer(new SelfAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).build())
+                            .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                                    .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                            .setInputType(InputType.recurrent(nIn))
+                            .build();
+
+                    MultiLayerNetwork net = new MultiLayerNetwork(conf);
+                    net.init();
+
+                    boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
+                            DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE,in, labels, inMask, null, false, -1,
+                            null //Sets.newHashSet(  /*"1_b", "1_W",* "1_WR", "1_WQR", "1_WQ", "1_bQ",*/ "2_b", "2_W" ,"0_W", "0_RW", "0_b"/**/)
+                    );
+                    assertTrue(name, gradOK);
+                }
+            }
+        }
+
+        OpProfiler.getInstance().printOutDashboard();
+    }
+
+    @Test
+    public void testTimestepAttentionLayer() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 4;
+        int layerSize = 8;
+        int attentionHeads = 3;
+
+
+        Random r = new Random(12345);
+        for (long smallShapeThreshold : SMALL_SHAPE_THRESHOLDS) {
+            for (int mb : new int[]{1, 2, 3}) {
+                for (boolean inputMask : new boolean[]{false, true}) {
+                    INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+                    INDArray labels = Nd4j.create(mb, nOut);
+                    for (int i = 0; i < mb; i++) {
+                        labels.putScalar(i, r.nextInt(nOut), 1.0);
+                    }
+                    String maskType = (inputMask ? "inputMask" : "none");
+
+                    INDArray inMask = null;
+                    if (inputMask) {
+                        inMask = Nd4j.ones(mb, tsLength);
+                        for (int i = 0; i < mb; i++) {
+                            int firstMaskedStep = tsLength - 1 - i;
+                            if (firstMaskedStep == 0) {
+                                firstMaskedStep = tsLength;
+                            }
+                            for (int j = firstMaskedStep; j < tsLength; j++) {
+                                inMask.putScalar(i, j, 0.0);
+                            }
+                        }
+                    }
+
+                    String name = "testTimestepAttentionLayer() - smallShapeThreshold=" + smallShapeThreshold + ", mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                    System.out.println("Starting test: " + name);
+
+
+                    MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                            .activation(Activation.TANH)
+                            .updater(new NoOp())
+                            .weightInit(WeightInit.XAVIER)
+                            .list()
+                            .layer(new LSTM.Builder().nOut(layerSize).build())
+                            .layer(new TimestepAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).build())
+                            .layer(new GlobalPoolingLayer.Builder().poolingType(PoolingType.MAX).build())
+                            .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                                    .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                            .setInputType(InputType.recurrent(nIn))
+                            .build();
+
+                    MultiLayerNetwork net = new MultiLayerNetwork(conf);
+                    net.init();
+
+                    boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
+                            DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, in, labels, inMask, null);
+                    assertTrue(name, gradOK);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testRecurrentAttentionLayer() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 4;
+        int layerSize = 8;
+        int attentionHeads = 7;
+
+
+        Random r = new Random(12345);
+        for (long smallShapeThreshold : SMALL_SHAPE_THRESHOLDS) {
+            for (int mb : new int[]{3, 2, 1}) {
+                for (boolean inputMask : new boolean[]{true, false}) {
+                    INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+                    INDArray labels = Nd4j.create(mb, nOut);
+                    for (int i = 0; i < mb; i++) {
+                        labels.putScalar(i, r.nextInt(nOut), 1.0);
+                    }
+                    String maskType = (inputMask ? "inputMask" : "none");
+
+                    INDArray inMask = null;
+                    if (inputMask) {
+                        inMask = Nd4j.ones(mb, tsLength);
+                        for (int i = 0; i < mb; i++) {
+                            int firstMaskedStep = tsLength - 1 - i;
+                            if (firstMaskedStep == 0) {
+                                firstMaskedStep = tsLength;
+                            }
+                            for (int j = firstMaskedStep; j < tsLength; j++) {
+                                inMask.putScalar(i, j, 0.0);
+                            }
+                        }
+                    }
+
+                    String name = "testRecurrentAttentionLayer() - smallShapeThreshold=" + smallShapeThreshold + ", mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                    System.out.println("Starting test: " + name);
+
+
+                    MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                            .activation(Activation.TANH)
+                            .updater(new NoOp())
+                            .weightInit(WeightInit.XAVIER)
+                            .list()
+                            .layer(new LSTM.Builder().nOut(layerSize).build())
+                            // Values are only pre-projected through Wr for nOut <= nIn, so the first layer attends over its input
+                            .layer(new RecurrentAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(layerSize + 1).build())
+                            .layer(new LastTimeStep(new RecurrentAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(7).build()))
+                            .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                                    .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                            .setInputType(InputType.recurrent(nIn))
+                            .build();
+
+                    MultiLayerNetwork net = new MultiLayerNetwork(conf);
+                    net.init();
+
+                    //System.out.println("Original");
+                    boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
+                            DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, in, labels, inMask, null, false, -1, null
+                            //Sets.newHashSet(  /*"1_b", "1_W",* "1_WR", "1_WQR", "1_WQ", "1_bQ",*/ "2_b", "2_W" ,"0_W", "0_RW", "0_b"/**/)
+                    );
+                    assertTrue(name, gradOK);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTopKAttention() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 5;
+        int layerSize = 4;
+        int attentionHeads = 2;
+        int topK = 2;
+
+        Random r = new Random(12345);
+        for (int mb : new int[]{1, 3}) {
             for (boolean inputMask : new boolean[]{false, true}) {
                 INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
                 INDArray labels = Nd4j.create(mb, nOut);
@@ -60,27 +262,24 @@ public class GradientChecks {
                 if (inputMask) {
                     inMask = Nd4j.ones(mb, tsLength);
                     for (int i = 0; i < mb; i++) {
-                        int firstMaskedStep = tsLength - 1 - i;
-                        if (firstMaskedStep == 0) {
-                            firstMaskedStep = tsLength;
-                        }
-                        for (int j = firstMaskedStep; j < tsLength; j++) {
-                            inMask.putScalar(i, j, 0.0);
+                        // Leave fewer than topK steps unmasked for one of the examples
+                        for (int j = tsLength - 1 - 2 * i; j < tsLength; j++) {
+                            if (j >= 1) inMask.putScalar(i, j, 0.0);
                         }
                     }
                 }
 
-                String name = "testSelfAttentionLayer() - mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                String name = "testTopKAttention() - mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
                 System.out.println("Starting test: " + name);
 
-
                 MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
                         .activation(Activation.TANH)
                         .updater(new NoOp())
                         .weightInit(WeightInit.XAVIER)
                         .list()
                         .layer(new LSTM.Builder().nOut(layerSize).build())
-                        .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).build())
+                        .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).topK(topK).build())
+                        .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).topK(topK).build())
                         .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
                                 .lossFunction(LossFunctions.LossFunction.MCXENT).build())
                         .setInputType(InputType.recurrent(nIn))
@@ -90,27 +289,22 @@ public class GradientChecks {
                 net.init();
 
                 boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
-                        DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE,in, labels, inMask, null, false, -1,
-                        null //Sets.newHashSet(  /*"1_b", "1_W",* "1_WR", "1_WQR", "1_WQ", "1_bQ",*/ "2_b", "2_W" ,"0_W", "0_RW", "0_b"/**/)
-                );
+                        DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, in, labels, inMask, null);
                 assertTrue(name, gradOK);
             }
         }
-
-        OpProfiler.getInstance().printOutDashboard();
     }
 
     @Test
-    public void testTimestepAttentionLayer() {
+    public void testLinearAttention() {
         int nIn = 3;
         int nOut = 5;
         int tsLength = 4;
-        int layerSize = 8;
-        int attentionHeads = 3;
-
+        int layerSize = 4;
+        int attentionHeads = 2;
 
         Random r = new Random(12345);
-        for (int mb : new int[]{1, 2, 3}) {
+        for (int mb : new int[]{1, 3}) {
             for (boolean inputMask : new boolean[]{false, true}) {
                 INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
                 INDArray labels = Nd4j.create(mb, nOut);
@@ -123,28 +317,23 @@ public class GradientChecks {
                 if (inputMask) {
                     inMask = Nd4j.ones(mb, tsLength);
                     for (int i = 0; i < mb; i++) {
-                        int firstMaskedStep = tsLength - 1 - i;
-                        if (firstMaskedStep == 0) {
-                            firstMaskedStep = tsLength;
-                        }
-                        for (int j = firstMaskedStep; j < tsLength; j++) {
+                        for (int j = tsLength - i; j < tsLength; j++) {
                             inMask.putScalar(i, j, 0.0);
                         }
                     }
                 }
 
-                String name = "testTimestepAttentionLayer() - mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                String name = "testLinearAttention() - mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
                 System.out.println("Starting test: " + name);
 
-
                 MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
                         .activation(Activation.TANH)
                         .updater(new NoOp())
                         .weightInit(WeightInit.XAVIER)
                         .list()
                         .layer(new LSTM.Builder().nOut(layerSize).build())
-                        .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).build())
-                        .layer(new GlobalPoolingLayer.Builder().poolingType(PoolingType.MAX).build())
+                        .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(true).build())
+                        .layer(new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build())
                         .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
                                 .lossFunction(LossFunctions.LossFunction.MCXENT).build())
                         .setInputType(InputType.recurrent(nIn))
@@ -161,64 +350,300 @@ public class GradientChecks {
     }
 
     @Test
-    public void testRecurrentAttentionLayer() {
+    public void testKeyStride() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 5;
+        int layerSize = 4;
+        int attentionHeads = 2;
+
+        Random r = new Random(12345);
+        for (long smallShapeThreshold : SMALL_SHAPE_THRESHOLDS) {
+            for (int mb : new int[]{1, 3}) {
+                for (boolean inputMask : new boolean[]{false, true}) {
+                    INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+                    INDArray labels = Nd4j.create(mb, nOut);
+                    for (int i = 0; i < mb; i++) {
+                        labels.putScalar(i, r.nextInt(nOut), 1.0);
+                    }
+                    String maskType = (inputMask ? "inputMask" : "none");
+
+                    // Masks partial and whole windows of the pooled keys, the last attention layer pools them into one
+                    INDArray inMask = null;
+                    if (inputMask) {
+                        inMask = Nd4j.ones(mb, tsLength);
+                        for (int i = 0; i < mb; i++) {
+                            for (int j = tsLength - i; j < tsLength; j++) {
+                                inMask.putScalar(i, j, 0.0);
+                            }
+                        }
+                    }
+
+                    String name = "testKeyStride() - smallShapeThreshold=" + smallShapeThreshold + ", mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                    System.out.println("Starting test: " + name);
+
+                    MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                            .activation(Activation.TANH)
+                            .updater(new NoOp())
+                            .weightInit(WeightInit.XAVIER)
+                            .list()
+                            .layer(new LSTM.Builder().nOut(layerSize).build())
+                            .layer(new TimestepAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).keyStride(2).build())
+                            .layer(new TimestepAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(1).linearAttention(true).keyStride(3).build())
+                            .layer(new TimestepAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(2).keyStride(tsLength).build())
+                            .layer(new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build())
+                            .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                                    .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                            .setInputType(InputType.recurrent(nIn))
+                            .build();
+
+                    MultiLayerNetwork net = new MultiLayerNetwork(conf);
+                    net.init();
+
+                    boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
+                            DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, in, labels, inMask, null);
+                    assertTrue(name, gradOK);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSkipInputGradients() {
         int nIn = 3;
         int nOut = 5;
         int tsLength = 4;
-        int layerSize = 8;
-        int attentionHeads = 7;
+        int attentionHeads = 2;
+
+        Random r = new Random(12345);
+        for (long smallShapeThreshold : SMALL_SHAPE_THRESHOLDS) {
+            for (String first : new String[]{"self", "timestep", "timestep linear", "timestep stride", "recurrent"}) {
+                for (boolean inputMask : new boolean[]{false, true}) {
+                    int mb = 2;
+                    INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+                    INDArray labels = Nd4j.create(mb, nOut);
+                    for (int i = 0; i < mb; i++) {
+                        labels.putScalar(i, r.nextInt(nOut), 1.0);
+                    }
+                    String maskType = (inputMask ? "inputMask" : "none");
+
+                    INDArray inMask = null;
+                    if (inputMask) {
+                        inMask = Nd4j.ones(mb, tsLength);
+                        inMask.putScalar(1, tsLength - 1, 0.0);
+                    }
+
+                    String name = "testSkipInputGradients() - smallShapeThreshold=" + smallShapeThreshold + ", first = " + first + ", maskType=" + maskType;
+                    System.out.println("Starting test: " + name);
+
+                    // The attention layer sits directly on the input, its parameter gradients still have to be correct
+                    final NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
+                            .activation(Activation.TANH)
+                            .updater(new NoOp())
+                            .weightInit(WeightInit.XAVIER)
+                            .list();
+                    if (first.equals("self")) {
+                        builder.layer(new SelfAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).skipInputGradients(true).build());
+                    } else if (first.startsWith("timestep")) {
+                        builder.layer(new TimestepAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).skipInputGradients(true)
+                                .linearAttention(first.endsWith("linear")).keyStride(first.endsWith("stride") ? 2 : 1).build());
+                        builder.layer(new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build());
+                    } else {
+                        builder.layer(new RecurrentAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(4).skipInputGradients(true).build());
+                        builder.layer(new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build());
+                    }
+                    MultiLayerConfiguration conf = builder
+                            .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                                    .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                            .setInputType(InputType.recurrent(nIn))
+                            .build();
+
+                    MultiLayerNetwork net = new MultiLayerNetwork(conf);
+                    net.init();
+
+                    boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
+                            DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, in, labels, inMask, null);
+                    assertTrue(name, gradOK);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSkipInputGradientsNotFirst() {
+        final org.deeplearning4j.nn.conf.layers.Layer[] attentionLayers = {
+                new SelfAttentionLayer.Builder().nOut(2).skipInputGradients(true).build(),
+                new TimestepAttentionLayer.Builder().nOut(2).skipInputGradients(true).build(),
+                new RecurrentAttentionLayer.Builder().nOut(4).skipInputGradients(true).build()
+        };
+        for (org.deeplearning4j.nn.conf.layers.Layer attention : attentionLayers) {
+            // SelfAttentionLayer has a feed forward output, the others are pooled
+            final boolean pooled = !(attention instanceof SelfAttentionLayer);
+
+            // The LSTM below needs the epsilon of the attention layer
+            final NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
+                    .list()
+                    .layer(new LSTM.Builder().nOut(3).build())
+                    .layer(attention.clone());
+            if (pooled) {
+                builder.layer(new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build());
+            }
+            MultiLayerConfiguration conf = builder
+                    .layer(new OutputLayer.Builder().nOut(5).activation(Activation.SOFTMAX)
+                            .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                    .setInputType(InputType.recurrent(3))
+                    .build();
+            try {
+                new MultiLayerNetwork(conf).init();
+                fail("skipInputGradients must be rejected on " + attention.getClass().getSimpleName() + " after the first layer");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("skipInputGradients"));
+            }
+
+            // A graph vertex fed by a network input is allowed, even though its index is not 0
+            final ComputationGraphConfiguration.GraphBuilder graphBuilder = new NeuralNetConfiguration.Builder()
+                    .graphBuilder()
+                    .addInputs("in")
+                    .addLayer("attention", attention.clone(), "in");
+            if (pooled) {
+                graphBuilder.addLayer("pooling", new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build(), "attention");
+            }
+            ComputationGraphConfiguration graphConf = graphBuilder
+                    .addLayer("out", new OutputLayer.Builder().nOut(5).activation(Activation.SOFTMAX)
+                            .lossFunction(LossFunctions.LossFunction.MCXENT).build(), pooled ? "pooling" : "attention")
+                    .setOutputs("out")
+                    .setInputTypes(InputType.recurrent(3))
+                    .build();
+            new ComputationGraph(graphConf).init();
+        }
+    }
+
+    @Test
+    public void testOutputModes() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 4;
+        int layerSize = 4;
+        int attentionHeads = 2;
 
+        Random r = new Random(12345);
+        for (long smallShapeThreshold : SMALL_SHAPE_THRESHOLDS) {
+            for (AttentionOutputMode outputMode : new AttentionOutputMode[]{AttentionOutputMode.MEAN, AttentionOutputMode.PROJECTION}) {
+                for (int mb : new int[]{1, 3}) {
+                    for (boolean inputMask : new boolean[]{false, true}) {
+                        INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+                        INDArray labels = Nd4j.create(mb, nOut);
+                        for (int i = 0; i < mb; i++) {
+                            labels.putScalar(i, r.nextInt(nOut), 1.0);
+                        }
+                        String maskType = (inputMask ? "inputMask" : "none");
+
+                        INDArray inMask = null;
+                        if (inputMask) {
+                            inMask = Nd4j.ones(mb, tsLength);
+                            for (int i = 0; i < mb; i++) {
+                                for (int j = tsLength - i; j < tsLength; j++) {
+                                    inMask.putScalar(i, j, 0.0);
+                                }
+                            }
+                        }
+
+                        String name = "testOutputModes() - smallShapeThreshold=" + smallShapeThreshold + ", outputMode=" + outputMode + ", mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                        System.out.println("Starting test: " + name);
+
+                        // Projection sizes differ from the minibatch sizes, so the input layout is never ambiguous
+                        final boolean projection = outputMode == AttentionOutputMode.PROJECTION;
+                        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                                .activation(Activation.TANH)
+                                .updater(new NoOp())
+                                .weightInit(WeightInit.XAVIER)
+                                .list()
+                                .layer(new LSTM.Builder().nOut(layerSize).build())
+                                .layer(outputMode(new TimestepAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads), outputMode, 5).build())
+                                .layer(outputMode(new TimestepAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).linearAttention(true), outputMode, 6).build())
+                                .layer(projection ? new SelfAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).outputMode(outputMode).projectionSize(7).build()
+                                        : new SelfAttentionLayer.Builder().smallShapeThreshold(smallShapeThreshold).nOut(attentionHeads).outputMode(outputMode).build())
+                                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                                .setInputType(InputType.recurrent(nIn))
+                                .build();
+
+                        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+                        net.init();
+
+                        boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
+                                DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, in, labels, inMask, null);
+                        assertTrue(name, gradOK);
+                    }
+                }
+            }
+        }
+    }
+
+    private static TimestepAttentionLayer.Builder outputMode(TimestepAttentionLayer.Builder builder, AttentionOutputMode outputMode, int projectionSize) {
+        builder.outputMode(outputMode);
+        return outputMode == AttentionOutputMode.PROJECTION ? builder.projectionSize(projectionSize) : builder;
+    }
+
+    @Test
+    public void testCrossAttentionVertex() {
+        int nIn = 3;
+        int nOut = 4;
+        int encoderLength = 5;
+        int decoderLength = 3;
+        int encoderSize = 4;
+        int decoderSize = 3;
+        int attentionHeads = 2;
 
         Random r = new Random(12345);
-        for (int mb : new int[]{3, 2, 1}) {
-            for (boolean inputMask : new boolean[]{true, false}) {
-                INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
-                INDArray labels = Nd4j.create(mb, nOut);
+        for (int mb : new int[]{1, 3}) {
+            for (boolean inputMask : new boolean[]{false, true}) {
+                INDArray encoderIn = Nd4j.rand(new int[]{mb, nIn, encoderLength});
+                INDArray decoderIn = Nd4j.rand(new int[]{mb, nIn, decoderLength});
+                INDArray labels = Nd4j.create(mb, nOut, decoderLength);
                 for (int i = 0; i < mb; i++) {
-                    labels.putScalar(i, r.nextInt(nOut), 1.0);
+                    for (int j = 0; j < decoderLength; j++) {
+                        labels.putScalar(i, r.nextInt(nOut), j, 1.0);
+                    }
                 }
                 String maskType = (inputMask ? "inputMask" : "none");
 
-                INDArray inMask = null;
+                INDArray encoderMask = null;
                 if (inputMask) {
-                    inMask = Nd4j.ones(mb, tsLength);
+                    encoderMask = Nd4j.ones(mb, encoderLength);
                     for (int i = 0; i < mb; i++) {
-                        int firstMaskedStep = tsLength - 1 - i;
-                        if (firstMaskedStep == 0) {
-                            firstMaskedStep = tsLength;
-                        }
-                        for (int j = firstMaskedStep; j < tsLength; j++) {
-                            inMask.putScalar(i, j, 0.0);
+                        for (int j = encoderLength - i; j < encoderLength; j++) {
+                            encoderMask.putScalar(i, j, 0.0);
                         }
                     }
                 }
 
-                String name = "testRecurrentAttentionLayer() - mb=" + mb + ", tsLength = " + tsLength + ", maskType=" + maskType;
+                String name = "testCrossAttentionVertex() - mb=" + mb + ", maskType=" + maskType;
                 System.out.println("Starting test: " + name);
 
-
-                MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
                         .activation(Activation.TANH)
                         .updater(new NoOp())
                         .weightInit(WeightInit.XAVIER)
-                        .list()
-                        .layer(new LSTM.Builder().nOut(layerSize).build())
-                        .layer(new LastTimeStep(new RecurrentAttentionLayer.Builder().nOut(7).build()))
-                        .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
-                                .lossFunction(LossFunctions.LossFunction.MCXENT).build())
-                        .setInputType(InputType.recurrent(nIn))
+                        .graphBuilder()
+                        .addInputs("decoderIn", "encoderIn")
+                        .addLayer("encoder", new LSTM.Builder().nOut(encoderSize).build(), "encoderIn")
+                        .addLayer("decoder", new LSTM.Builder().nOut(decoderSize).build(), "decoderIn")
+                        .addVertex("attention", new CrossAttentionVertex.Builder().nOut(attentionHeads).updater(new NoOp()).build(), "decoder", "encoder")
+                        .addLayer("out", new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                                .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "attention")
+                        .setOutputs("out")
+                        .setInputTypes(InputType.recurrent(nIn), InputType.recurrent(nIn))
                         .build();
 
-                MultiLayerNetwork net = new MultiLayerNetwork(conf);
+                ComputationGraph net = new ComputationGraph(conf);
                 net.init();
 
-                //System.out.println("Original");
                 boolean gradOK = GradientCheckUtil.checkGradients(net, DEFAULT_EPS, DEFAULT_MAX_REL_ERROR,
-                        DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, in, labels, inMask, null, false, -1, null
-                        //Sets.newHashSet(  /*"1_b", "1_W",* "1_WR", "1_WQR", "1_WQ", "1_bQ",*/ "2_b", "2_W" ,"0_W", "0_RW", "0_b"/**/)
-                );
+                        DEFAULT_MIN_ABS_ERROR, PRINT_RESULTS, RETURN_ON_FIRST_FAILURE, new INDArray[]{decoderIn, encoderIn},
+                        new INDArray[]{labels}, new INDArray[]{null, encoderMask}, null);
                 assertTrue(name, gradOK);
             }
         }
     }
-}
\ No newline at end of file
+}
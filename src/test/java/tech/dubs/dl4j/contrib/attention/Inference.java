@@ -0,0 +1,1117 @@
+package tech.dubs.dl4j.contrib.attention;
+
+import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.BaseLayer;
+import org.deeplearning4j.nn.conf.layers.FeedForwardLayer;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.nn.workspace.ArrayType;
+import org.deeplearning4j.nn.workspace.LayerWorkspaceMgr;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.indexing.INDArrayIndex;
+import org.nd4j.linalg.learning.config.Sgd;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex;
+import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.nn.ApproximateScoring;
+import tech.dubs.dl4j.contrib.attention.nn.AttentionAutotuner;
+import tech.dubs.dl4j.contrib.attention.nn.InferenceCache;
+import tech.dubs.dl4j.contrib.attention.nn.MemoryPooling;
+import tech.dubs.dl4j.contrib.attention.nn.PackedSequences;
+import tech.dubs.dl4j.contrib.attention.nn.SmallAttentionKernel;
+import tech.dubs.dl4j.contrib.attention.util.AttentionHeadPruning;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+import static org.nd4j.linalg.indexing.NDArrayIndex.point;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class Inference {
+    private static final double DEFAULT_EPS = 1e-10;
+
+    static {
+        Nd4j.setDataType(DataBuffer.Type.DOUBLE);
+    }
+
+    @Test
+    public void testSelfAttentionFoldedQuery() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 4;
+        int layerSize = 8;
+        int attentionHeads = 2;
+        int mb = 3;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new Sgd(0.1))
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+
+        INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        INDArray inMask = Nd4j.ones(mb, tsLength);
+        inMask.putScalar(1, tsLength - 1, 0.0);
+        INDArray labels = Nd4j.zeros(mb, nOut);
+        for (int i = 0; i < mb; i++) {
+            labels.putScalar(i, i % nOut, 1.0);
+        }
+
+        // Folded query (inference) must match the unfolded one (training)
+        assertEquals(net.output(in, true, inMask, null), net.output(in, false, inMask, null));
+
+        // Parameters changed through setParams
+        net.setParams(Nd4j.rand(net.params().shape()).subi(0.5));
+        assertEquals(net.output(in, true, inMask, null), net.output(in, false, inMask, null));
+
+        // Parameters changed through fit
+        net.fit(in, labels, inMask, null);
+        assertEquals(net.output(in, true, inMask, null), net.output(in, false, inMask, null));
+    }
+
+    @Test
+    public void testTimestepAttentionDecoding() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 7;
+        int layerSize = 8;
+        int attentionHeads = 3;
+        int mb = 2;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+
+        INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+
+        // Single steps, 2d input
+        for (int t = 0; t < tsLength; t++) {
+            final INDArray step = net.rnnTimeStep(in.get(all(), all(), point(t)));
+            final INDArray full = net.output(in.get(all(), all(), interval(0, t + 1)));
+            assertEquals(full.get(all(), all(), point(t)), step);
+        }
+
+        // Several steps at once must be the same as one step at a time
+        net.rnnClearPreviousState();
+        final INDArray first = net.rnnTimeStep(in.get(all(), all(), interval(0, 3)));
+        final INDArray rest = net.rnnTimeStep(in.get(all(), all(), interval(3, tsLength)));
+        for (int t = 0; t < tsLength; t++) {
+            final INDArray step = t < 3 ? first.get(all(), all(), point(t)) : rest.get(all(), all(), point(t - 3));
+            assertEquals(net.output(in.get(all(), all(), interval(0, t + 1))).get(all(), all(), point(t)), step);
+        }
+    }
+
+    @Test
+    public void testTimestepAttentionDecodingWindow() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 7;
+        int attentionHeads = 3;
+        int window = 3;
+        int mb = 2;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        final tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer layer = (tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer) net.getLayer(0);
+
+        INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+
+        for (int t = 0; t < tsLength; t++) {
+            layer.rnnTrimPreviousState(window - 1);
+            final INDArray step = net.rnnTimeStep(in.get(all(), all(), point(t)));
+            final int start = Math.max(0, t - window + 1);
+            final INDArray full = net.output(in.get(all(), all(), interval(start, t + 1)));
+            assertEquals(full.get(all(), all(), point(t - start)), step);
+        }
+        org.junit.Assert.assertEquals(window, layer.rnnPreviousStateLength());
+
+        net.rnnClearPreviousState();
+        org.junit.Assert.assertEquals(0, layer.rnnPreviousStateLength());
+        assertEquals(net.output(in.get(all(), all(), interval(0, 1))).get(all(), all(), point(0)), net.rnnTimeStep(in.get(all(), all(), point(0))));
+    }
+
+    @Test
+    public void testTopKAttention() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 6;
+        int layerSize = 8;
+        int attentionHeads = 2;
+        int mb = 3;
+
+        INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        INDArray inMask = Nd4j.ones(mb, tsLength);
+        inMask.putScalar(1, tsLength - 1, 0.0);
+        inMask.putScalar(2, 0, 0.0);
+
+        MultiLayerNetwork dense = topKNetwork(nIn, nOut, layerSize, attentionHeads, 0);
+        MultiLayerNetwork all = topKNetwork(nIn, nOut, layerSize, attentionHeads, tsLength);
+        MultiLayerNetwork sparse = topKNetwork(nIn, nOut, layerSize, attentionHeads, 2);
+        all.setParams(dense.params());
+        sparse.setParams(dense.params());
+
+        // Selecting every timestep is dense attention
+        assertEquals(dense.output(in, false, inMask, null), all.output(in, false, inMask, null));
+
+        // Folded query (inference) must select the same timesteps as the unfolded one (training)
+        final INDArray sparseOut = sparse.output(in, false, inMask, null);
+        assertEquals(sparse.output(in, true, inMask, null), sparseOut);
+        org.junit.Assert.assertFalse(dense.output(in, false, inMask, null).equalsWithEps(sparseOut, DEFAULT_EPS));
+
+        // Decoding must select from the same prefix as the full forward pass
+        for (int t = 0; t < tsLength; t++) {
+            final INDArray lstmStep = ((RecurrentLayer) sparse.getLayer(0)).rnnTimeStep(in.get(all(), all(), interval(t, t + 1)), LayerWorkspaceMgr.noWorkspaces());
+            final INDArray step = ((RecurrentLayer) sparse.getLayer(1)).rnnTimeStep(lstmStep, LayerWorkspaceMgr.noWorkspaces());
+            final INDArray full = sparse.feedForwardToLayer(1, in.get(all(), all(), interval(0, t + 1))).get(2);
+            assertEquals(full.get(all(), all(), interval(t, t + 1)), step);
+        }
+    }
+
+    @Test
+    public void testFullyMaskedExample() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 4;
+        int layerSize = 8;
+        int attentionHeads = 2;
+        int mb = 3;
+
+        INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        INDArray inMask = Nd4j.ones(mb, tsLength);
+        inMask.getRow(1).assign(0);
+        inMask.putScalar(2, tsLength - 1, 0.0);
+        INDArray labels = Nd4j.zeros(mb, nOut);
+        for (int i = 0; i < mb; i++) {
+            labels.putScalar(i, i % nOut, 1.0);
+        }
+
+        for (boolean linear : new boolean[]{false, true}) {
+            MultiLayerNetwork net = linear ? linearNetwork(nIn, nOut, layerSize, attentionHeads) : topKNetwork(nIn, nOut, layerSize, attentionHeads, 0);
+
+            // Nothing to attend to: zero attention output instead of NaN
+            final List<INDArray> activations = net.feedForward(in, inMask, null);
+            org.junit.Assert.assertEquals(0.0, activations.get(2).get(point(1), all(), all()).norm1Number().doubleValue(), 0.0);
+            org.junit.Assert.assertEquals(0.0, activations.get(3).getRow(1).norm1Number().doubleValue(), 0.0);
+            for (boolean training : new boolean[]{false, true}) {
+                org.junit.Assert.assertFalse(Double.isNaN(net.output(in, training, inMask, null).sumNumber().doubleValue()));
+            }
+
+            // Other examples are unaffected
+            final INDArray others = Nd4j.create(new int[]{2, nIn, tsLength}, 'f');
+            others.get(point(0), all(), all()).assign(in.get(point(0), all(), all()));
+            others.get(point(1), all(), all()).assign(in.get(point(2), all(), all()));
+            final INDArray othersMask = Nd4j.vstack(inMask.getRow(0), inMask.getRow(2));
+            final INDArray out = net.output(in, false, inMask, null);
+            assertEquals(net.output(others, false, othersMask, null), Nd4j.vstack(out.getRow(0), out.getRow(2)));
+
+            net.fit(in, labels, inMask, null);
+            org.junit.Assert.assertFalse(Double.isNaN(net.params().sumNumber().doubleValue()));
+        }
+    }
+
+    @Test
+    public void testLinearAttentionDecoding() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 7;
+        int layerSize = 8;
+        int attentionHeads = 3;
+        int mb = 2;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(true).build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        final tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer layer = (tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer) net.getLayer(1);
+
+        INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+
+        for (int t = 0; t < tsLength; t++) {
+            final INDArray step = net.rnnTimeStep(in.get(all(), all(), point(t)));
+            final INDArray full = net.output(in.get(all(), all(), interval(0, t + 1)));
+            assertEquals(full.get(all(), all(), point(t)), step);
+        }
+        org.junit.Assert.assertEquals(tsLength, layer.rnnPreviousStateLength());
+
+        // State is a fixed size summary, which can be restored
+        final Map<String, INDArray> state = net.rnnGetPreviousState(1);
+        org.junit.Assert.assertArrayEquals(new long[]{layerSize, layerSize * attentionHeads, mb}, state.get(tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer.STATE_KEY_SUMMARY).shape());
+        final Map<String, INDArray> lstmState = net.rnnGetPreviousState(0);
+        final INDArray next = Nd4j.rand(new int[]{mb, nIn});
+        final INDArray expected = net.rnnTimeStep(next);
+
+        net.rnnClearPreviousState();
+        net.rnnSetPreviousState(0, lstmState);
+        net.rnnSetPreviousState(1, state);
+        assertEquals(expected, net.rnnTimeStep(next));
+    }
+
+    @Test
+    public void testCrossAttentionKeyProjectionCache() {
+        int nIn = 3;
+        int nOut = 5;
+        int encoderLength = 6;
+        int decoderLength = 4;
+        int layerSize = 8;
+        int mb = 2;
+
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .updater(new Sgd(0.1))
+                .graphBuilder()
+                .addInputs("decoderIn", "encoderIn")
+                .addLayer("encoder", new LSTM.Builder().nOut(layerSize).build(), "encoderIn")
+                .addVertex("attention", new CrossAttentionVertex.Builder().nOut(2).build(), "decoderIn", "encoder")
+                .addLayer("out", new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "attention")
+                .setOutputs("out")
+                .setInputTypes(InputType.recurrent(nIn), InputType.recurrent(nIn))
+                .build();
+
+        ComputationGraph net = new ComputationGraph(conf);
+        net.init();
+
+        final INDArray encoderIn = Nd4j.rand(new int[]{mb, nIn, encoderLength});
+        final INDArray decoderIn = Nd4j.rand(new int[]{mb, nIn, decoderLength});
+
+        // Each decoding step reuses the projection of the same encoder output
+        final INDArray full = net.outputSingle(decoderIn, encoderIn);
+        for (int t = 0; t < decoderLength; t++) {
+            final INDArray step = net.outputSingle(decoderIn.get(all(), all(), interval(t, t + 1)), encoderIn);
+            assertEquals(full.get(all(), all(), interval(t, t + 1)), step);
+        }
+
+        // A new encoder output or updated parameters must not use the stale projection
+        final INDArray otherEncoderIn = Nd4j.rand(new int[]{mb, nIn, encoderLength});
+        assertEquals(fresh(net).outputSingle(decoderIn, otherEncoderIn), net.outputSingle(decoderIn, otherEncoderIn));
+
+        net.fit(new INDArray[]{decoderIn, encoderIn}, new INDArray[]{Nd4j.rand(new int[]{mb, nOut, decoderLength})});
+        assertEquals(fresh(net).outputSingle(decoderIn, encoderIn), net.outputSingle(decoderIn, encoderIn));
+
+        // With the encoder output as graph input, the same array is seen by every decoding step
+        ComputationGraphConfiguration decoderConf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .graphBuilder()
+                .addInputs("decoderIn", "encoderOut")
+                .addVertex("attention", new CrossAttentionVertex.Builder().nOut(2).build(), "decoderIn", "encoderOut")
+                .addLayer("out", new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "attention")
+                .setOutputs("out")
+                .setInputTypes(InputType.recurrent(nIn), InputType.recurrent(layerSize))
+                .build();
+
+        ComputationGraph decoder = new ComputationGraph(decoderConf);
+        decoder.init();
+
+        final INDArray encoderOut = Nd4j.rand(new int[]{mb, layerSize, encoderLength});
+        final INDArray decoded = decoder.outputSingle(decoderIn, encoderOut);
+        for (int t = 0; t < decoderLength; t++) {
+            final INDArray step = decoder.outputSingle(decoderIn.get(all(), all(), interval(t, t + 1)), encoderOut);
+            assertEquals(decoded.get(all(), all(), interval(t, t + 1)), step);
+        }
+
+        // Parameters set on the vertex or the graph, or an encoder output changed in place, drop the projection
+        final tech.dubs.dl4j.contrib.attention.nn.CrossAttentionVertex vertex =
+                (tech.dubs.dl4j.contrib.attention.nn.CrossAttentionVertex) decoder.getVertex("attention");
+        vertex.setParams(vertex.params().mul(1.5));
+        assertEquals(fresh(decoder).outputSingle(decoderIn, encoderOut), decoder.outputSingle(decoderIn, encoderOut));
+
+        final INDArray before = decoder.outputSingle(decoderIn, encoderOut);
+        decoder.setParams(decoder.params().mul(0.5));
+        final INDArray after = decoder.outputSingle(decoderIn, encoderOut);
+        assertNotEquals(before, after);
+        assertEquals(fresh(decoder).outputSingle(decoderIn, encoderOut), after);
+
+        encoderOut.muli(2);
+        assertEquals(fresh(decoder).outputSingle(decoderIn, encoderOut), decoder.outputSingle(decoderIn, encoderOut));
+    }
+
+    @Test
+    public void testHeadPruning() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 6;
+        int layerSize = 4;
+        int attentionHeads = 4;
+        int mb = 3;
+
+        for (boolean timestep : new boolean[]{false, true}) {
+            MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                    .activation(Activation.TANH)
+                    .weightInit(WeightInit.XAVIER)
+                    .seed(12345)
+                    .list()
+                    .layer(new LSTM.Builder().nOut(layerSize).build())
+                    .layer(timestep ? new TimestepAttentionLayer.Builder().nOut(attentionHeads).build()
+                            : new SelfAttentionLayer.Builder().nOut(attentionHeads).build())
+                    .layer(timestep ? new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build()
+                            : new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                    .setInputType(InputType.recurrent(nIn))
+                    .build();
+
+            MultiLayerNetwork net = new MultiLayerNetwork(conf);
+            net.init();
+
+            final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+            final INDArray labels = timestep ? Nd4j.rand(new int[]{mb, nOut, tsLength}) : Nd4j.rand(mb, nOut);
+            final DataSetIterator validation = new ListDataSetIterator<>(Arrays.asList(
+                    new DataSet(in.get(interval(0, 2), all(), all()), labels.get(interval(0, 2))),
+                    new DataSet(in.get(interval(2, mb), all(), all()), labels.get(interval(2, mb)))), 1);
+
+            final INDArray params = net.params().dup();
+            final double[] importance = AttentionHeadPruning.headImportance(net, 1, validation);
+            org.junit.Assert.assertEquals(attentionHeads, importance.length);
+            org.junit.Assert.assertEquals(params, net.params());
+
+            // Regularization does not change the importance, only the data loss counts
+            final MultiLayerConfiguration regularizedConf = conf.clone();
+            for (NeuralNetConfiguration layerConf : regularizedConf.getConfs()) {
+                if (layerConf.getLayer() instanceof BaseLayer) {
+                    ((BaseLayer) layerConf.getLayer()).setL1(0.01);
+                    ((BaseLayer) layerConf.getLayer()).setL2(0.1);
+                }
+            }
+            final MultiLayerNetwork regularized = new MultiLayerNetwork(regularizedConf);
+            regularized.init(params.dup(), false);
+            assertNotEquals(net.score(new DataSet(in, labels)), regularized.score(new DataSet(in, labels)), 1e-3);
+            org.junit.Assert.assertArrayEquals(importance, AttentionHeadPruning.headImportance(regularized, 1, validation), 1e-8);
+
+            // Pruning a head is the same as removing its output from the following layer
+            final MultiLayerNetwork pruned = AttentionHeadPruning.pruneHeads(net, 1, 1, 3);
+            final MultiLayerNetwork ablated = net.clone();
+            final INDArray W = ablated.getLayer(2).getParam("W");
+            W.get(interval(layerSize, 2 * layerSize), all()).assign(0);
+            W.get(interval(3 * layerSize, 4 * layerSize), all()).assign(0);
+
+            org.junit.Assert.assertEquals(2, ((FeedForwardLayer) pruned.getLayer(1).conf().getLayer()).getNOut());
+            org.junit.Assert.assertEquals(net.numParams() - 2 * (2 * layerSize + 1) - 2 * layerSize * nOut, pruned.numParams());
+            assertEquals(ablated.output(in), pruned.output(in));
+
+            final MultiLayerNetwork leastImportant = AttentionHeadPruning.pruneLeastImportant(net, 1, validation, 1);
+            double min = Double.MAX_VALUE;
+            for (double v : importance) min = Math.min(min, v);
+            org.junit.Assert.assertEquals(net.score(new DataSet(in, labels)) + min, leastImportant.score(new DataSet(in, labels)), 1e-8);
+        }
+    }
+
+    @Test
+    public void testOutputModes() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 5;
+        int attentionHeads = 3;
+        int projectionSize = 4;
+        int mb = 2;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.putScalar(1, tsLength - 1, 0.0);
+
+        for (String kind : new String[]{"self", "timestep", "topK", "linear"}) {
+            final MultiLayerNetwork concat = outputModeNetwork(kind, nIn, nOut, attentionHeads, AttentionOutputMode.CONCAT, 0);
+            final MultiLayerNetwork mean = outputModeNetwork(kind, nIn, nOut, attentionHeads, AttentionOutputMode.MEAN, 0);
+            final MultiLayerNetwork projection = outputModeNetwork(kind, nIn, nOut, attentionHeads, AttentionOutputMode.PROJECTION, projectionSize);
+            for (Map.Entry<String, INDArray> param : concat.getLayer(0).paramTable().entrySet()) {
+                mean.getLayer(0).getParam(param.getKey()).assign(param.getValue());
+                projection.getLayer(0).getParam(param.getKey()).assign(param.getValue());
+            }
+
+            concat.setLayerMaskArrays(mask, null);
+            mean.setLayerMaskArrays(mask, null);
+            projection.setLayerMaskArrays(mask, null);
+            final INDArray heads = concat.feedForward(in, false).get(1);
+            final INDArray averaged = mean.feedForward(in, false).get(1);
+            final INDArray projected = projection.feedForward(in, false).get(1);
+
+            // Same as reducing the concatenated heads afterwards
+            final boolean timestep = heads.rank() == 3;
+            INDArray expectedMean = Nd4j.zeros(timestep ? new int[]{mb, nIn, tsLength} : new int[]{mb, nIn});
+            for (int h = 0; h < attentionHeads; h++) {
+                expectedMean.addi(timestep ? heads.get(all(), interval(h * nIn, (h + 1) * nIn), all()) : heads.get(all(), interval(h * nIn, (h + 1) * nIn)));
+            }
+            assertEquals(expectedMean.divi(attentionHeads), averaged);
+
+            final INDArray Wo = projection.getLayer(0).getParam("Wo");
+            final INDArray expectedProjection;
+            if (timestep) {
+                final INDArray rows = heads.permute(0, 2, 1).dup('c').reshape('c', mb * tsLength, nIn * attentionHeads);
+                expectedProjection = rows.mmul(Wo).reshape('c', mb, tsLength, projectionSize).permute(0, 2, 1);
+            } else {
+                expectedProjection = heads.mmul(Wo);
+            }
+            assertEquals(expectedProjection, projected);
+        }
+    }
+
+    @Test
+    public void testKeyStride() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 5;
+        int attentionHeads = 2;
+        int mb = 4;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.putScalar(1, tsLength - 1, 0.0);
+        mask.putScalar(2, 0, 0.0);
+        mask.putScalar(2, 1, 0.0);
+
+        for (boolean linear : new boolean[]{false, true}) {
+            // A single pooled key gets all the attention: every query sees the mean of the unmasked timesteps
+            final MultiLayerNetwork single = keyStrideNetwork(nIn, nOut, attentionHeads, linear, tsLength);
+            final INDArray attention = single.feedForward(in, mask, null).get(1);
+            for (int i = 0; i < mb; i++) {
+                final INDArray example = in.get(point(i), all(), all()).mulRowVector(mask.getRow(i));
+                final INDArray mean = example.sum(1).divi(mask.getRow(i).sumNumber().doubleValue()).reshape(nIn, 1);
+                for (int h = 0; h < attentionHeads; h++) {
+                    for (int t = 0; t < tsLength; t++) {
+                        assertEquals(mean, attention.get(point(i), interval(h * nIn, (h + 1) * nIn), point(t)).reshape(nIn, 1));
+                    }
+                }
+            }
+
+            // Masked timesteps do not leak into the pooled keys and values, not even in partially masked windows
+            final MultiLayerNetwork strided = keyStrideNetwork(nIn, nOut, attentionHeads, linear, 2);
+            final INDArray changed = in.dup();
+            changed.get(point(1), all(), point(tsLength - 1)).addi(10);
+            changed.get(point(2), all(), interval(0, 2)).addi(10);
+            final INDArray out = strided.feedForward(in, mask, null).get(1);
+            final INDArray changedOut = strided.feedForward(changed, mask, null).get(1);
+            assertEquals(out.get(interval(0, 1), all(), all()), changedOut.get(interval(0, 1), all(), all()));
+            assertEquals(out.get(interval(1, 2), all(), interval(0, tsLength - 1)), changedOut.get(interval(1, 2), all(), interval(0, tsLength - 1)));
+            assertEquals(out.get(interval(2, 3), all(), interval(2, tsLength)), changedOut.get(interval(2, 3), all(), interval(2, tsLength)));
+
+            try {
+                strided.rnnTimeStep(in.get(all(), all(), point(0)));
+                org.junit.Assert.fail("Decoding with pooled keys must fail");
+            } catch (IllegalStateException expected) {
+                // expected
+            }
+        }
+
+        // Pooled windows are the means of their unmasked timesteps, the last window is shorter
+        final INDArray memory = in.permute(1, 2, 0).dup('f');
+        for (INDArray poolingMask : new INDArray[]{null, mask}) {
+            final MemoryPooling pooling = new MemoryPooling(tsLength, 2, poolingMask);
+            final INDArray pooled = pooling.pool(memory, LayerWorkspaceMgr.noWorkspaces(), ArrayType.FF_WORKING_MEM);
+            final INDArray pooledGradient = Nd4j.rand(new int[]{nIn, 3, mb});
+            final INDArray memoryGradient = Nd4j.zeros(new int[]{nIn, tsLength, mb}, 'f');
+            pooling.backprop(pooledGradient, memoryGradient);
+            for (int i = 0; i < mb; i++) {
+                for (int p = 0; p < 3; p++) {
+                    final INDArrayIndex window = interval(2 * p, Math.min(tsLength, 2 * p + 2));
+                    final INDArray windowMask = poolingMask == null ? Nd4j.ones(1, window.length()) : poolingMask.get(point(i), window);
+                    final double count = windowMask.sumNumber().doubleValue();
+                    final INDArray expected = count == 0 ? Nd4j.zeros(nIn, 1)
+                            : memory.get(all(), window, point(i)).mulRowVector(windowMask).sum(1).divi(count).reshape(nIn, 1);
+                    assertEquals(expected, pooled.get(all(), point(p), point(i)).reshape(nIn, 1));
+
+                    final INDArray expectedGradient = count == 0 ? Nd4j.zeros(nIn, window.length())
+                            : pooledGradient.get(all(), point(p), point(i)).reshape(nIn, 1).mmul(windowMask.div(count));
+                    assertEquals(expectedGradient, memoryGradient.get(all(), window, point(i)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testInferenceCache() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 4;
+        int attentionHeads = 2;
+        int mb = 4;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.putScalar(1, tsLength - 1, 0.0);
+
+        final MultiLayerNetwork reference = inferenceCacheNetwork(nIn, nOut, attentionHeads, 0);
+        final MultiLayerNetwork cached = inferenceCacheNetwork(nIn, nOut, attentionHeads, 8);
+        cached.setParams(reference.params());
+        final InferenceCache timestepCache = ((tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer) cached.getLayer(0)).getInferenceCache();
+        final InferenceCache selfCache = ((tech.dubs.dl4j.contrib.attention.nn.SelfAttentionLayer) cached.getLayer(1)).getInferenceCache();
+        org.junit.Assert.assertNull(((tech.dubs.dl4j.contrib.attention.nn.SelfAttentionLayer) reference.getLayer(1)).getInferenceCache());
+
+        final INDArray expected = reference.output(in, false, mask, null);
+        assertEquals(expected, cached.output(in, false, mask, null));
+        org.junit.Assert.assertEquals(mb, timestepCache.getMisses());
+        org.junit.Assert.assertEquals(0, timestepCache.getHits());
+
+        // Repeated examples are served from the cache, also within a new minibatch and with their own mask rows
+        assertEquals(expected, cached.output(in, false, mask, null));
+        org.junit.Assert.assertEquals(mb, timestepCache.getHits());
+        org.junit.Assert.assertEquals(mb, selfCache.getHits());
+
+        final INDArray mixed = Nd4j.create(new int[]{2, nIn, tsLength}, 'c');
+        mixed.get(point(0), all(), all()).assign(in.get(point(1), all(), all()));
+        mixed.get(point(1), all(), all()).assign(in.get(point(1), all(), all()));
+        final INDArray mixedMask = Nd4j.vstack(mask.getRow(1), Nd4j.ones(1, tsLength));
+        assertEquals(reference.output(mixed, false, mixedMask, null), cached.output(mixed, false, mixedMask, null));
+        org.junit.Assert.assertEquals(mb + 1, timestepCache.getHits());
+        org.junit.Assert.assertEquals(mb + 1, timestepCache.getMisses());
+
+        // Training does not use the cache
+        cached.output(in, true, mask, null);
+        org.junit.Assert.assertEquals(mb + 1, timestepCache.getHits());
+
+        // Parameters changed in place invalidate it, without the layers being told
+        reference.params().muli(1.5);
+        cached.params().muli(1.5);
+        assertEquals(reference.output(in, false, mask, null), cached.output(in, false, mask, null));
+        org.junit.Assert.assertEquals(1, timestepCache.getInvalidations());
+        org.junit.Assert.assertEquals(mb + 1, timestepCache.getHits());
+        org.junit.Assert.assertEquals(mb, timestepCache.size());
+
+        // MultiLayerNetwork.setParams only assigns the flattened parameters
+        final INDArray before = cached.output(in, false, mask, null);
+        final INDArray params = Nd4j.rand(cached.params().shape()).subi(0.5);
+        cached.setParams(params);
+        reference.setParams(params);
+        final INDArray after = cached.output(in, false, mask, null);
+        org.junit.Assert.assertFalse(before.equalsWithEps(after, DEFAULT_EPS));
+        assertEquals(reference.output(in, false, mask, null), after);
+        org.junit.Assert.assertEquals(2, timestepCache.getInvalidations());
+        org.junit.Assert.assertEquals(2, selfCache.getInvalidations());
+
+        // So do fit and setParam
+        cached.fit(in, Nd4j.rand(mb, nOut), mask, null);
+        reference.setParams(cached.params());
+        assertEquals(reference.output(in, false, mask, null), cached.output(in, false, mask, null));
+        org.junit.Assert.assertEquals(3, timestepCache.getInvalidations());
+        org.junit.Assert.assertEquals(3, selfCache.getInvalidations());
+
+        final INDArray W = cached.getParam("0_W").mul(0.5);
+        cached.setParam("0_W", W);
+        reference.setParam("0_W", W);
+        assertEquals(reference.output(in, false, mask, null), cached.output(in, false, mask, null));
+        org.junit.Assert.assertEquals(4, timestepCache.getInvalidations());
+        org.junit.Assert.assertEquals(mb + 1 + mb, timestepCache.getHits());
+
+        // Least recently used entries are evicted beyond the limits
+        final MultiLayerNetwork small = inferenceCacheNetwork(nIn, nOut, attentionHeads, 2);
+        small.output(in, false, mask, null);
+        final InferenceCache smallCache = ((tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer) small.getLayer(0)).getInferenceCache();
+        org.junit.Assert.assertEquals(2, smallCache.size());
+        org.junit.Assert.assertEquals(mb - 2, smallCache.getEvictions());
+        small.output(in.get(interval(mb - 1, mb), all(), all()), false, mask.get(interval(mb - 1, mb), all()), null);
+        org.junit.Assert.assertEquals(1, smallCache.getHits());
+    }
+
+    @Test
+    public void testInferenceCacheLimits() {
+        final long[] now = {0};
+        final InferenceCache cache = new InferenceCache(10, 0, 100, () -> now[0]);
+        final INDArray params = Nd4j.rand(1, 5);
+        final INDArray input = Nd4j.rand(new int[]{3, 4, 2}, 'f');
+        final int[] calls = {0};
+        final java.util.function.BiFunction<INDArray, INDArray, INDArray> attend = (in, mask) -> {
+            calls[0]++;
+            return in.sum(1).transpose();
+        };
+
+        final INDArray expected = input.sum(1).transpose();
+        assertEquals(expected, cache.activate(input, null, params, LayerWorkspaceMgr.noWorkspaces(), attend));
+        now[0] = 99;
+        assertEquals(expected, cache.activate(input, null, params, LayerWorkspaceMgr.noWorkspaces(), attend));
+        org.junit.Assert.assertEquals(1, calls[0]);
+        org.junit.Assert.assertEquals(2, cache.getHits());
+
+        // Entries expire after their time to live
+        now[0] = 100;
+        assertEquals(expected, cache.activate(input, null, params, LayerWorkspaceMgr.noWorkspaces(), attend));
+        org.junit.Assert.assertEquals(2, calls[0]);
+        org.junit.Assert.assertEquals(2, cache.getExpirations());
+
+        // The same example with another mask is another entry
+        assertEquals(expected, cache.activate(input, Nd4j.ones(2, 4), params, LayerWorkspaceMgr.noWorkspaces(), attend));
+        org.junit.Assert.assertEquals(3, calls[0]);
+        org.junit.Assert.assertEquals(4, cache.size());
+
+        // Other parameters drop all entries
+        assertEquals(expected, cache.activate(input, null, params.add(1), LayerWorkspaceMgr.noWorkspaces(), attend));
+        org.junit.Assert.assertEquals(4, calls[0]);
+        org.junit.Assert.assertEquals(1, cache.getInvalidations());
+        org.junit.Assert.assertEquals(2, cache.size());
+
+        // Byte limit: keys (2 + 12 values) and outputs (3 values) of one example fit, two don't
+        final long entryBytes = (2 + 12 + 3) * Nd4j.sizeOfDataType();
+        final InferenceCache bounded = new InferenceCache(10, entryBytes, 0);
+        assertEquals(expected, bounded.activate(input, null, params, LayerWorkspaceMgr.noWorkspaces(), attend));
+        org.junit.Assert.assertEquals(1, bounded.size());
+        org.junit.Assert.assertEquals(entryBytes, bounded.getBytes());
+        org.junit.Assert.assertEquals(1, bounded.getEvictions());
+    }
+
+    @Test
+    public void testPackedSequences() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 6;
+        int mb = 4;
+        final int[] lengths = {6, 4, 1, 5};
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray mask = Nd4j.zeros(mb, tsLength);
+        for (int i = 0; i < mb; i++) {
+            mask.get(point(i), interval(0, lengths[i])).assign(1.0);
+        }
+
+        final PackedSequences packed = PackedSequences.fromPadded(in, mask);
+        org.junit.Assert.assertArrayEquals(new long[]{0, 6, 10, 11, 16}, packed.getOffsets());
+        assertEquals(mask, packed.toPaddedMask());
+        for (int i = 0; i < mb; i++) {
+            assertEquals(in.get(point(i), all(), interval(0, lengths[i])), packed.getSequence(i));
+        }
+        final INDArray padded = packed.toPadded();
+        assertEquals(in.get(point(0), all(), all()), padded.get(point(0), all(), all()));
+        assertEquals(Nd4j.zeros(nIn, tsLength - lengths[1]), padded.get(point(1), all(), interval(lengths[1], tsLength)));
+
+        for (String kind : new String[]{"dense", "topK", "mean", "linear", "keyStride"}) {
+            final MultiLayerNetwork net = packedNetwork(kind, nIn, nOut);
+            final java.util.List<INDArray> activations = net.feedForward(in, mask, null);
+
+            // Outputs at the padded timesteps are not defined, the outputs for the sequences are the same
+            final PackedSequences timestep = ((tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer) net.getLayer(0)).activatePacked(packed, LayerWorkspaceMgr.noWorkspaces());
+            final PackedSequences recurrent = ((tech.dubs.dl4j.contrib.attention.nn.RecurrentAttentionLayer) net.getLayer(1)).activatePacked(timestep, LayerWorkspaceMgr.noWorkspaces());
+            final INDArray self = ((tech.dubs.dl4j.contrib.attention.nn.SelfAttentionLayer) net.getLayer(2)).activatePacked(recurrent, LayerWorkspaceMgr.noWorkspaces());
+            for (int i = 0; i < mb; i++) {
+                assertEquals(activations.get(1).get(point(i), all(), interval(0, lengths[i])), timestep.getSequence(i));
+                assertEquals(activations.get(2).get(point(i), all(), interval(0, lengths[i])), recurrent.getSequence(i));
+            }
+            assertEquals(activations.get(3), self);
+        }
+
+        final INDArray gap = mask.dup();
+        gap.putScalar(0, 2, 0.0);
+        try {
+            PackedSequences.fromPadded(in, gap);
+            org.junit.Assert.fail("Masks with gaps can not be packed");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAutotuning() throws IOException {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 7;
+        int mb = 2;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.putScalar(1, tsLength - 1, 0.0);
+
+        final Path file = Files.createTempFile("attention-autotune", ".properties");
+        Files.delete(file);
+        try {
+            final MultiLayerNetwork reference = autotuneNetwork(nIn, nOut, null);
+            final MultiLayerNetwork tuned = autotuneNetwork(nIn, nOut, file.toString());
+            tuned.setParams(reference.params());
+
+            // Every strategy gives the same output, while tuning as well as with the decision
+            for (int i = 0; i < 2; i++) {
+                assertEquals(reference.output(in, false), tuned.output(in, false));
+                assertEquals(reference.output(in, false, mask, null), tuned.output(in, false, mask, null));
+            }
+
+            final AttentionAutotuner autotuner = ((tech.dubs.dl4j.contrib.attention.nn.TimestepAttentionLayer) tuned.getLayer(1)).getAutotuner();
+            org.junit.Assert.assertEquals(2, autotuner.getTunedBuckets());
+            org.junit.Assert.assertEquals(2 * 4 * 3, autotuner.getTimedRuns());
+            org.junit.Assert.assertEquals(2, autotuner.getReusedDecisions());
+            org.junit.Assert.assertEquals(2, autotuner.getDecisions().size());
+
+            // Training does not tune, a restarted process reuses the persisted decisions
+            tuned.output(in, true);
+            org.junit.Assert.assertEquals(2 * 4 * 3, autotuner.getTimedRuns());
+            final AttentionAutotuner restarted = new AttentionAutotuner(file, 3);
+            org.junit.Assert.assertEquals(autotuner.getDecisions(), restarted.getDecisions());
+            org.junit.Assert.assertEquals(0, restarted.getTunedBuckets());
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        final AttentionAutotuner.Strategy strategy = new AttentionAutotuner.Strategy(true, 4);
+        org.junit.Assert.assertEquals(strategy, AttentionAutotuner.Strategy.parse(strategy.toString()));
+        org.junit.Assert.assertEquals(8, AttentionAutotuner.sizeBucket(7));
+        org.junit.Assert.assertEquals(8, AttentionAutotuner.sizeBucket(8));
+    }
+
+    @Test
+    public void testApproximateScoring() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 9;
+        int mb = 4;
+
+        for (double x = -30.0; x <= 30.0; x += 0.01) {
+            org.junit.Assert.assertEquals(Math.exp(x), ApproximateScoring.exp(x), Math.exp(x) * ApproximateScoring.EXP_RELATIVE_ERROR);
+            org.junit.Assert.assertEquals(Math.tanh(x), ApproximateScoring.tanh(x), ApproximateScoring.TANH_ABSOLUTE_ERROR);
+        }
+        org.junit.Assert.assertEquals(0.0, ApproximateScoring.exp(-1e10), 0.0);
+        org.junit.Assert.assertEquals(1.0, ApproximateScoring.tanh(1e10), 0.0);
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength}).subi(0.5);
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.get(point(1), interval(5, tsLength)).assign(0.0);
+        mask.get(point(3), interval(1, tsLength)).assign(0.0);
+
+        for (String kind : new String[]{"dense", "topK", "mean"}) {
+            final MultiLayerNetwork exact = approximateNetwork(kind, nIn, nOut, false);
+            final MultiLayerNetwork approximate = approximateNetwork(kind, nIn, nOut, true);
+            approximate.setParams(exact.params());
+
+            // The attention weights are within WEIGHT_RELATIVE_ERROR, the outputs are as close
+            for (INDArray curMask : new INDArray[]{null, mask}) {
+                final java.util.List<INDArray> expected = exact.feedForward(in, curMask, null);
+                final java.util.List<INDArray> actual = approximate.feedForward(in, curMask, null);
+                for (int i = 1; i <= 3; i++) {
+                    org.junit.Assert.assertTrue(kind + ", layer " + (i - 1), expected.get(i).equalsWithEps(actual.get(i), 1e-5));
+                }
+            }
+
+            // Training stays exact
+            assertEquals(exact.output(in, true, mask, null), approximate.output(in, true, mask, null));
+        }
+
+        // Other activations than tanh are applied exactly, only the softmax is approximated
+        final INDArray preA = Nd4j.rand(2, 7).subi(0.5).muli(10);
+        final INDArray bias = Nd4j.zeros(1, 7);
+        bias.putScalar(0, 6, -1e10);
+        final INDArray expected = Transforms.softmax(Transforms.relu(preA).addRowVector(bias));
+        final INDArray actual = ApproximateScoring.attentionWeights(preA, Activation.RELU.getActivationFunction(), bias);
+        org.junit.Assert.assertTrue(expected.equalsWithEps(actual, ApproximateScoring.WEIGHT_RELATIVE_ERROR));
+    }
+
+    @Test
+    public void testSmallShapeKernel() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 6;
+        int mb = 4;
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength}).subi(0.5);
+        final INDArray labels = Nd4j.zeros(mb, nOut);
+        for (int i = 0; i < mb; i++) {
+            labels.putScalar(i, i % nOut, 1.0);
+        }
+        final INDArray mask = Nd4j.ones(mb, tsLength);
+        mask.get(point(1), interval(4, tsLength)).assign(0.0);
+        mask.get(point(3), interval(1, tsLength)).assign(0.0);
+
+        for (String kind : new String[]{"dense", "mean", "keyStride", "identity", "sigmoid", "relu"}) {
+            final MultiLayerNetwork kernel = smallShapeNetwork(kind, nIn, nOut, SmallAttentionKernel.SUGGESTED_THRESHOLD);
+            final MultiLayerNetwork nativeOps = smallShapeNetwork(kind, nIn, nOut, 0);
+            nativeOps.setParams(kernel.params());
+
+            // Same outputs in inference and training, and same gradients
+            for (INDArray curMask : new INDArray[]{null, mask}) {
+                assertEquals(nativeOps.output(in, false, curMask, null), kernel.output(in, false, curMask, null));
+                assertEquals(nativeOps.output(in, true, curMask, null), kernel.output(in, true, curMask, null));
+
+                for (MultiLayerNetwork net : new MultiLayerNetwork[]{kernel, nativeOps}) {
+                    net.setInput(in);
+                    net.setLabels(labels);
+                    net.setLayerMaskArrays(curMask, null);
+                    net.computeGradientAndScore();
+                }
+                org.junit.Assert.assertEquals(nativeOps.score(), kernel.score(), DEFAULT_EPS);
+                assertEquals(nativeOps.gradient().gradient(), kernel.gradient().gradient());
+                kernel.clearLayerMaskArrays();
+                nativeOps.clearLayerMaskArrays();
+            }
+        }
+
+        // Decoding step by step uses the kernel for the single query
+        final MultiLayerNetwork kernel = keyStrideNetwork(nIn, nOut, 2, false, 1);
+        final MultiLayerNetwork nativeOps = new MultiLayerNetwork(kernel.getLayerWiseConfigurations().clone());
+        ((TimestepAttentionLayer) nativeOps.getLayerWiseConfigurations().getConf(0).getLayer()).setSmallShapeThreshold(0);
+        nativeOps.init(kernel.params().dup(), false);
+        for (int t = 0; t < tsLength; t++) {
+            final INDArray step = in.get(all(), all(), point(t));
+            assertEquals(nativeOps.rnnTimeStep(step), kernel.rnnTimeStep(step));
+        }
+    }
+
+    private static MultiLayerNetwork outputModeNetwork(String kind, int nIn, int nOut, int attentionHeads, AttentionOutputMode outputMode, int projectionSize) {
+        final org.deeplearning4j.nn.conf.layers.Layer attention;
+        if (kind.equals("self")) {
+            final SelfAttentionLayer.Builder builder = new SelfAttentionLayer.Builder().nOut(attentionHeads).outputMode(outputMode);
+            attention = (projectionSize > 0 ? builder.projectionSize(projectionSize) : builder).build();
+        } else {
+            final TimestepAttentionLayer.Builder builder = new TimestepAttentionLayer.Builder().nOut(attentionHeads).outputMode(outputMode)
+                    .topK(kind.equals("topK") ? 2 : 0).linearAttention(kind.equals("linear"));
+            attention = (projectionSize > 0 ? builder.projectionSize(projectionSize) : builder).build();
+        }
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(attention)
+                .layer(kind.equals("self")
+                        ? new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build()
+                        : new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork packedNetwork(String kind, int nIn, int nOut) {
+        final TimestepAttentionLayer.Builder timestep = new TimestepAttentionLayer.Builder().nOut(2);
+        if (kind.equals("topK")) {
+            timestep.topK(2);
+        } else if (kind.equals("mean")) {
+            timestep.outputMode(AttentionOutputMode.MEAN);
+        } else if (kind.equals("linear")) {
+            timestep.linearAttention(true);
+        } else if (kind.equals("keyStride")) {
+            timestep.keyStride(2);
+        }
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(timestep.build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(5).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).topK(kind.equals("topK") ? 2 : 0).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork approximateNetwork(String kind, int nIn, int nOut, boolean approximate) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).topK(kind.equals("topK") ? 2 : 0)
+                        .outputMode(kind.equals("mean") ? AttentionOutputMode.MEAN : AttentionOutputMode.CONCAT).approximateScoring(approximate).build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(5).approximateScoring(approximate).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).approximateScoring(approximate).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork smallShapeNetwork(String kind, int nIn, int nOut, long smallShapeThreshold) {
+        final Activation activation = kind.equals("identity") ? Activation.IDENTITY : kind.equals("sigmoid") ? Activation.SIGMOID
+                : kind.equals("relu") ? Activation.RELU : Activation.TANH;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(activation)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).keyStride(kind.equals("keyStride") ? 2 : 1)
+                        .outputMode(kind.equals("mean") ? AttentionOutputMode.MEAN : AttentionOutputMode.CONCAT).smallShapeThreshold(smallShapeThreshold).build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(5).smallShapeThreshold(smallShapeThreshold).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).smallShapeThreshold(smallShapeThreshold).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork autotuneNetwork(int nIn, int nOut, String file) {
+        final TimestepAttentionLayer.Builder attention = new TimestepAttentionLayer.Builder().nOut(2).queryThreads(2);
+        if (file != null) {
+            attention.autotune(file);
+        }
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new LSTM.Builder().nOut(4).build())
+                .layer(attention.build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork keyStrideNetwork(int nIn, int nOut, int attentionHeads, boolean linear, int keyStride) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(linear).keyStride(keyStride).build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork inferenceCacheNetwork(int nIn, int nOut, int attentionHeads, int cacheSize) {
+        final TimestepAttentionLayer.Builder timestep = new TimestepAttentionLayer.Builder().nOut(attentionHeads);
+        final SelfAttentionLayer.Builder self = new SelfAttentionLayer.Builder().nOut(attentionHeads);
+        if (cacheSize > 0) {
+            timestep.inferenceCache(cacheSize, 0, 0);
+            self.inferenceCache(cacheSize, 0, 0);
+        }
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(timestep.build())
+                .layer(self.build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static ComputationGraph fresh(ComputationGraph net) {
+        final ComputationGraph copy = new ComputationGraph(net.getConfiguration().clone());
+        copy.init(net.params().dup(), false);
+        return copy;
+    }
+
+    private static MultiLayerNetwork topKNetwork(int nIn, int nOut, int layerSize, int attentionHeads, int topK) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).topK(topK).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).topK(topK).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork linearNetwork(int nIn, int nOut, int layerSize, int attentionHeads) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(true).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static void assertEquals(INDArray expected, INDArray actual) {
+        org.junit.Assert.assertArrayEquals(expected.shape(), actual.shape());
+        org.junit.Assert.assertTrue("Expected " + expected + " but got " + actual, expected.equalsWithEps(actual, DEFAULT_EPS));
+    }
+}
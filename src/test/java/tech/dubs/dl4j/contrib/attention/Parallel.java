@@ -0,0 +1,271 @@
+package tech.dubs.dl4j.contrib.attention;
+
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Sgd;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex;
+import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.nd4j.linalg.indexing.NDArrayIndex.all;
+import static org.nd4j.linalg.indexing.NDArrayIndex.interval;
+
+/**
+ * Replicas are created the way ParallelWrapper and ParallelInference create their workers: the configuration goes
+ * through JSON, the parameters are copied, and every replica is used by its own thread. Layers with query threads
+ * split the queries of a single sequence across threads instead.
+ */
+public class Parallel {
+    private static final double DEFAULT_EPS = 1e-10;
+    private static final int WORKERS = 4;
+
+    static {
+        Nd4j.setDataType(DataBuffer.Type.DOUBLE);
+    }
+
+    @Test
+    public void testConcurrentInference() throws Exception {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 6;
+        int mb = 4;
+
+        final MultiLayerNetwork net = network(nIn, nOut);
+        final ComputationGraph graph = crossAttentionGraph(nIn, nOut);
+
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+        final INDArray inMask = Nd4j.ones(mb, tsLength);
+        inMask.putScalar(1, tsLength - 1, 0.0);
+        final INDArray decoderIn = Nd4j.rand(new int[]{mb, nIn, tsLength - 2});
+
+        final INDArray expected = net.output(in, false, inMask, null);
+        final INDArray expectedGraph = graph.outputSingle(decoderIn, in);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int w = 0; w < WORKERS; w++) {
+                final MultiLayerNetwork replica = replicate(net);
+                final ComputationGraph graphReplica = replicate(graph);
+                results.add(executor.submit((Callable<Void>) () -> {
+                    // Repeated calls use the cached folded queries and key projections of each replica
+                    for (int i = 0; i < 5; i++) {
+                        assertEquals(expected, replica.output(in, false, inMask, null));
+                        assertEquals(expectedGraph, graphReplica.outputSingle(decoderIn, in));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testParameterAveraging() throws Exception {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 6;
+        int mb = 3;
+
+        final MultiLayerNetwork net = network(nIn, nOut);
+        final INDArray in = Nd4j.rand(new int[]{WORKERS * mb, nIn, tsLength});
+        final INDArray labels = Nd4j.zeros(WORKERS * mb, nOut);
+        for (int i = 0; i < WORKERS * mb; i++) {
+            labels.putScalar(i, i % nOut, 1.0);
+        }
+
+        // One worker after another gives the reference for the averaged parameters
+        final INDArray expected = Nd4j.zeros(net.params().shape());
+        for (int w = 0; w < WORKERS; w++) {
+            final MultiLayerNetwork replica = replicate(net);
+            replica.fit(in.get(interval(w * mb, (w + 1) * mb), all(), all()), labels.get(interval(w * mb, (w + 1) * mb), all()));
+            expected.addi(replica.params());
+        }
+        expected.divi(WORKERS);
+
+        final List<MultiLayerNetwork> replicas = new ArrayList<>();
+        for (int w = 0; w < WORKERS; w++) {
+            final MultiLayerNetwork replica = replicate(net);
+            // Fill the caches with the parameters before averaging
+            replica.output(in);
+            replicas.add(replica);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(WORKERS);
+        try {
+            final List<Future<?>> results = new ArrayList<>();
+            for (int w = 0; w < WORKERS; w++) {
+                final MultiLayerNetwork replica = replicas.get(w);
+                final INDArray shard = in.get(interval(w * mb, (w + 1) * mb), all(), all());
+                final INDArray shardLabels = labels.get(interval(w * mb, (w + 1) * mb), all());
+                results.add(executor.submit(() -> replica.fit(shard, shardLabels)));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        final INDArray averaged = Nd4j.zeros(net.params().shape());
+        for (MultiLayerNetwork replica : replicas) {
+            averaged.addi(replica.params());
+        }
+        averaged.divi(WORKERS);
+        assertEquals(expected, averaged);
+
+        // Averaged parameters are assigned in place, cached projections must not survive that
+        net.setParams(averaged);
+        final INDArray afterAveraging = net.output(in, true);
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setParams(averaged);
+            assertEquals(afterAveraging, replica.output(in, false));
+        }
+    }
+
+    @Test
+    public void testQueryThreads() {
+        int nIn = 3;
+        int nOut = 5;
+        int tsLength = 37;
+
+        final INDArray in = Nd4j.rand(new int[]{1, nIn, tsLength});
+        final INDArray inMask = Nd4j.ones(1, tsLength);
+        for (int t = tsLength - 5; t < tsLength; t++) {
+            inMask.putScalar(0, t, 0.0);
+        }
+        final INDArray batch = Nd4j.rand(new int[]{2, nIn, tsLength});
+
+        for (String kind : new String[]{"dense", "topK", "mean", "keyStride"}) {
+            final MultiLayerNetwork serial = queryThreadsNetwork(kind, nIn, nOut, 1);
+            final MultiLayerNetwork parallel = queryThreadsNetwork(kind, nIn, nOut, WORKERS);
+            parallel.setParams(serial.params());
+
+            // Repeated calls reuse the workspaces of the worker threads
+            for (int i = 0; i < 3; i++) {
+                assertEquals(serial.output(in, false), parallel.output(in, false));
+                assertEquals(serial.output(in, false, inMask, inMask), parallel.output(in, false, inMask, inMask));
+                assertEquals(serial.output(batch, false), parallel.output(batch, false));
+            }
+        }
+    }
+
+    private static MultiLayerNetwork queryThreadsNetwork(String kind, int nIn, int nOut, int queryThreads) {
+        final TimestepAttentionLayer.Builder attention = new TimestepAttentionLayer.Builder().nOut(2).queryThreads(queryThreads);
+        if (kind.equals("topK")) {
+            attention.topK(3);
+        } else if (kind.equals("mean")) {
+            attention.outputMode(AttentionOutputMode.MEAN);
+        } else if (kind.equals("keyStride")) {
+            attention.keyStride(4);
+        }
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new LSTM.Builder().nOut(4).build())
+                .layer(attention.build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static MultiLayerNetwork replicate(MultiLayerNetwork net) {
+        final MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson(net.getLayerWiseConfigurations().toJson());
+        conf.setTrainingWorkspaceMode(WorkspaceMode.ENABLED);
+        final MultiLayerNetwork replica = new MultiLayerNetwork(conf);
+        replica.init();
+        replica.setParams(net.params().dup());
+        return replica;
+    }
+
+    private static ComputationGraph replicate(ComputationGraph graph) {
+        final ComputationGraphConfiguration conf = ComputationGraphConfiguration.fromJson(graph.getConfiguration().toJson());
+        conf.setTrainingWorkspaceMode(WorkspaceMode.ENABLED);
+        final ComputationGraph replica = new ComputationGraph(conf);
+        replica.init();
+        replica.setParams(graph.params().dup());
+        return replica;
+    }
+
+    private static MultiLayerNetwork network(int nIn, int nOut) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new Sgd(0.1))
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new LSTM.Builder().nOut(8).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(6).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static ComputationGraph crossAttentionGraph(int nIn, int nOut) {
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .graphBuilder()
+                .addInputs("decoderIn", "encoderIn")
+                .setInputTypes(InputType.recurrent(nIn), InputType.recurrent(nIn))
+                .addLayer("encoder", new LSTM.Builder().nOut(6).build(), "encoderIn")
+                .addVertex("attention", new CrossAttentionVertex.Builder().nOut(2).build(), "decoderIn", "encoder")
+                .addLayer("out", new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "attention")
+                .setOutputs("out")
+                .build();
+
+        ComputationGraph net = new ComputationGraph(conf);
+        net.init();
+        return net;
+    }
+
+    private static void assertEquals(INDArray expected, INDArray actual) {
+        org.junit.Assert.assertArrayEquals(expected.shape(), actual.shape());
+        org.junit.Assert.assertTrue("Expected " + expected + " but got " + actual, expected.equalsWithEps(actual, DEFAULT_EPS));
+    }
+}
@@ -5,17 +5,37 @@ import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.inputs.InputType;
 import org.deeplearning4j.nn.conf.layers.LSTM;
 import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.layers.recurrent.LastTimeStep;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.junit.Assert;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
 import org.nd4j.linalg.learning.config.NoOp;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.AttentionOutputMode;
+import tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex;
 import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
 import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
 import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.util.MappedModelSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 
 public class Serialization {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testSelfAttentionSerialization(){
         int nIn = 3;
@@ -99,4 +119,365 @@ public class Serialization {
         Assert.assertEquals(conf, fromJson);
         Assert.assertEquals(conf, fromYaml);
     }
+
+    @Test
+    public void testMappedMultiLayerNetwork() throws IOException {
+        int nIn = 3;
+        int nOut = 5;
+        int layerSize = 8;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).build())
+                .layer(new LastTimeStep(new RecurrentAttentionLayer.Builder().nOut(layerSize).build()))
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+
+        final File file = folder.newFile();
+        MappedModelSerializer.writeModel(net, file);
+        final MultiLayerNetwork restored = MappedModelSerializer.restoreMultiLayerNetwork(file);
+
+        final INDArray in = Nd4j.rand(new int[]{2, nIn, 4});
+        Assert.assertEquals(net.getLayerWiseConfigurations(), restored.getLayerWiseConfigurations());
+        Assert.assertEquals(net.params(), restored.params());
+        Assert.assertEquals(net.output(in), restored.output(in));
+
+        // A restored network can be written back to the file it is mapped from, without changing either
+        MappedModelSerializer.writeModel(restored, file);
+        Assert.assertEquals(net.params(), restored.params());
+        final MultiLayerNetwork rewritten = MappedModelSerializer.restoreMultiLayerNetwork(file);
+        Assert.assertEquals(net.params(), rewritten.params());
+        Assert.assertEquals(net.output(in), rewritten.output(in));
+        Assert.assertEquals(1, file.getParentFile().listFiles().length);
+    }
+
+    @Test
+    public void testMappedComputationGraph() throws IOException {
+        int nIn = 3;
+        int nOut = 5;
+        int layerSize = 8;
+
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .graphBuilder()
+                .addInputs("in")
+                .addLayer("lstm", new LSTM.Builder().nOut(layerSize).build(), "in")
+                .addLayer("attention", new SelfAttentionLayer.Builder().nOut(2).build(), "lstm")
+                .addLayer("out", new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "attention")
+                .setOutputs("out")
+                .setInputTypes(InputType.recurrent(nIn))
+                .build();
+
+        ComputationGraph net = new ComputationGraph(conf);
+        net.init();
+
+        final File file = folder.newFile();
+        MappedModelSerializer.writeModel(net, file);
+        final ComputationGraph restored = MappedModelSerializer.restoreComputationGraph(file);
+
+        final INDArray in = Nd4j.rand(new int[]{2, nIn, 4});
+        Assert.assertEquals(net.getConfiguration(), restored.getConfiguration());
+        Assert.assertEquals(net.params(), restored.params());
+        Assert.assertEquals(net.outputSingle(in), restored.outputSingle(in));
+
+        // Parameters over MAX_PARAMS_SIZE bytes can not be mapped, the parameter count is the last long of the header
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(16 + 3 * 8);
+            raf.writeLong(MappedModelSerializer.MAX_PARAMS_SIZE);
+        }
+        try {
+            MappedModelSerializer.restoreComputationGraph(file);
+            Assert.fail("Parameters too large to map must be rejected");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+        }
+    }
+
+    @Test
+    public void testTopKSerialization(){
+        int nIn = 3;
+        int nOut = 5;
+        int layerSize = 8;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).topK(3).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).topK(2).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertEquals(3, ((TimestepAttentionLayer) fromJson.getConf(1).getLayer()).getTopK());
+        Assert.assertEquals(2, ((SelfAttentionLayer) fromJson.getConf(2).getLayer()).getTopK());
+
+        final MultiLayerConfiguration dense = MultiLayerConfiguration.fromJson(conf.toJson());
+        ((SelfAttentionLayer) dense.getConf(2).getLayer()).setTopK(0);
+        Assert.assertNotEquals(conf, dense);
+    }
+
+    @Test
+    public void testLinearAttentionSerialization(){
+        int nIn = 3;
+        int nOut = 5;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).linearAttention(true).build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertTrue(((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).isLinearAttention());
+    }
+
+    @Test
+    public void testKeyStrideSerialization(){
+        int nIn = 3;
+        int nOut = 5;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).keyStride(4).queryThreads(3).autotune("autotune.properties").build())
+                .layer(new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertEquals(4, ((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).getKeyStride());
+        Assert.assertEquals(3, ((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).getQueryThreads());
+        Assert.assertEquals("autotune.properties", ((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).getAutotuneFile());
+    }
+
+    @Test
+    public void testInferenceCacheSerialization(){
+        int nIn = 3;
+        int nOut = 5;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).inferenceCache(100, 1 << 20, 60000).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).inferenceCache(50, 0, 0).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        final TimestepAttentionLayer timestep = (TimestepAttentionLayer) fromJson.getConf(0).getLayer();
+        Assert.assertEquals(100, timestep.getInferenceCacheSize());
+        Assert.assertEquals(1 << 20, timestep.getInferenceCacheBytes());
+        Assert.assertEquals(60000, timestep.getInferenceCacheTtl());
+        Assert.assertEquals(50, ((SelfAttentionLayer) fromJson.getConf(1).getLayer()).getInferenceCacheSize());
+    }
+
+    @Test
+    public void testFrozenParamsSerialization(){
+        int nIn = 3;
+        int nOut = 5;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).frozenParams(true).skipInputGradients(true).build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(4).frozenParams(true).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).frozenParams(true).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertTrue(((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).isFrozenParams());
+        Assert.assertTrue(((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).isSkipInputGradients());
+        Assert.assertTrue(((RecurrentAttentionLayer) fromJson.getConf(1).getLayer()).isFrozenParams());
+        Assert.assertTrue(((SelfAttentionLayer) fromJson.getConf(2).getLayer()).isFrozenParams());
+    }
+
+    @Test
+    public void testApproximateScoringSerialization(){
+        int nIn = 3;
+        int nOut = 5;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).approximateScoring(true).build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(4).approximateScoring(true).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).approximateScoring(true).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertTrue(((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).isApproximateScoring());
+        Assert.assertTrue(((RecurrentAttentionLayer) fromJson.getConf(1).getLayer()).isApproximateScoring());
+        Assert.assertTrue(((SelfAttentionLayer) fromJson.getConf(2).getLayer()).isApproximateScoring());
+    }
+
+    @Test
+    public void testSmallShapeThresholdSerialization(){
+        int nIn = 3;
+        int nOut = 5;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).smallShapeThreshold(0).build())
+                .layer(new RecurrentAttentionLayer.Builder().nOut(4).smallShapeThreshold(64).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).smallShapeThreshold(128).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertEquals(0, ((TimestepAttentionLayer) fromJson.getConf(0).getLayer()).getSmallShapeThreshold());
+        Assert.assertEquals(64, ((RecurrentAttentionLayer) fromJson.getConf(1).getLayer()).getSmallShapeThreshold());
+        Assert.assertEquals(128, ((SelfAttentionLayer) fromJson.getConf(2).getLayer()).getSmallShapeThreshold());
+    }
+
+    @Test
+    public void testOutputModeSerialization() throws IOException {
+        int nIn = 3;
+        int nOut = 5;
+        int layerSize = 8;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(2).outputMode(AttentionOutputMode.MEAN).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(2).outputMode(AttentionOutputMode.PROJECTION).projectionSize(6).build())
+                .layer(new OutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        final MultiLayerConfiguration fromJson = MultiLayerConfiguration.fromJson(conf.toJson());
+        final MultiLayerConfiguration fromYaml = MultiLayerConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertEquals(AttentionOutputMode.MEAN, ((TimestepAttentionLayer) fromJson.getConf(1).getLayer()).getOutputMode());
+        Assert.assertEquals(6, ((SelfAttentionLayer) fromJson.getConf(2).getLayer()).getProjectionSize());
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+
+        final File file = folder.newFile();
+        MappedModelSerializer.writeModel(net, file);
+        final MultiLayerNetwork restored = MappedModelSerializer.restoreMultiLayerNetwork(file);
+
+        final INDArray in = Nd4j.rand(new int[]{2, nIn, 4});
+        Assert.assertEquals(net.params(), restored.params());
+        Assert.assertEquals(net.output(in), restored.output(in));
+    }
+
+    @Test
+    public void testCrossAttentionSerialization() throws IOException {
+        int nIn = 3;
+        int nOut = 5;
+        int layerSize = 8;
+
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .graphBuilder()
+                .addInputs("decoderIn", "encoderIn")
+                .addLayer("encoder", new LSTM.Builder().nOut(layerSize).build(), "encoderIn")
+                .addVertex("attention", new CrossAttentionVertex.Builder().nOut(2).updater(new Adam(0.01)).l2(1e-4)
+                        .activation(Activation.SOFTSIGN).build(), "decoderIn", "encoder")
+                .addLayer("out", new RnnOutputLayer.Builder().nOut(nOut).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "attention")
+                .setOutputs("out")
+                .setInputTypes(InputType.recurrent(nIn), InputType.recurrent(nIn))
+                .build();
+
+        final ComputationGraphConfiguration fromJson = ComputationGraphConfiguration.fromJson(conf.toJson());
+        final ComputationGraphConfiguration fromYaml = ComputationGraphConfiguration.fromYaml(conf.toYaml());
+
+        Assert.assertEquals(conf, fromJson);
+        Assert.assertEquals(conf, fromYaml);
+        Assert.assertEquals(conf, conf.clone());
+
+        ComputationGraph net = new ComputationGraph(conf);
+        net.init();
+
+        final File file = folder.newFile();
+        MappedModelSerializer.writeModel(net, file);
+        final ComputationGraph restored = MappedModelSerializer.restoreComputationGraph(file);
+
+        final INDArray decoderIn = Nd4j.rand(new int[]{2, nIn, 3});
+        final INDArray encoderIn = Nd4j.rand(new int[]{2, nIn, 4});
+        Assert.assertEquals(net.params(), restored.params());
+        Assert.assertEquals(net.outputSingle(decoderIn, encoderIn), restored.outputSingle(decoderIn, encoderIn));
+    }
 }
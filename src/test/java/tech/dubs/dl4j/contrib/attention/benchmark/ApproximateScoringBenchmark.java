@@ -0,0 +1,94 @@
+package tech.dubs.dl4j.contrib.attention.benchmark;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.nn.ApproximateScoring;
+
+import java.util.Arrays;
+
+/**
+ * Compares exact attention scoring against approximate scoring (see ApproximateScoring) of a timestep attention layer
+ * for several sequence lengths. Reports the maximum error of the approximate exp and tanh over their useful range, and
+ * per sequence length the inference speedup and the maximum and relative error of the layer output, on the same
+ * parameters.
+ *
+ * Usage: ApproximateScoringBenchmark [nIn] [attentionHeads] [miniBatch] [repetitions]
+ *
+ * @author Paul Dubs
+ */
+public class ApproximateScoringBenchmark {
+    public static void main(String[] args) {
+        final int nIn = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        final int attentionHeads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int mb = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final int repetitions = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+        double expError = 0;
+        double tanhError = 0;
+        for (double x = -40.0; x <= 40.0; x += 1e-4) {
+            expError = Math.max(expError, Math.abs(ApproximateScoring.exp(x) - Math.exp(x)) / Math.exp(x));
+            tanhError = Math.max(tanhError, Math.abs(ApproximateScoring.tanh(x) - Math.tanh(x)));
+        }
+        System.out.println(String.format("exp: max. rel. error %.2e (bound %.0e), tanh: max. abs. error %.2e (bound %.0e)",
+                expError, ApproximateScoring.EXP_RELATIVE_ERROR, tanhError, ApproximateScoring.TANH_ABSOLUTE_ERROR));
+
+        System.out.println(String.format("%6s %12s %12s %8s %12s %12s", "T", "exact [ms]", "approx [ms]", "speedup", "max. error", "rel. error"));
+        for (int tsLength : new int[]{16, 64, 256}) {
+            final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength}).subi(0.5);
+            final MultiLayerNetwork exact = network(nIn, attentionHeads, false);
+            final MultiLayerNetwork approximate = network(nIn, attentionHeads, true);
+            approximate.setParams(exact.params());
+
+            final INDArray expected = exact.feedForwardToLayer(0, in).get(1);
+            final INDArray actual = approximate.feedForwardToLayer(0, in).get(1);
+            final double maxError = Transforms.abs(actual.sub(expected)).maxNumber().doubleValue();
+            final double error = Transforms.abs(actual.sub(expected)).sumNumber().doubleValue() / Transforms.abs(expected).sumNumber().doubleValue();
+
+            final double exactTime = time(exact, in, repetitions);
+            final double approximateTime = time(approximate, in, repetitions);
+            System.out.println(String.format("%6d %12.2f %12.2f %8.2f %12.4e %12.4e", tsLength, exactTime / 1e6, approximateTime / 1e6,
+                    exactTime / approximateTime, maxError, error));
+        }
+    }
+
+    private static MultiLayerNetwork network(int nIn, int attentionHeads, boolean approximate) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).approximateScoring(approximate).build())
+                .layer(new RnnOutputLayer.Builder().nOut(10).activation(Activation.IDENTITY)
+                        .lossFunction(LossFunctions.LossFunction.MSE).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static double time(MultiLayerNetwork net, INDArray in, int repetitions) {
+        // Warm up
+        net.output(in);
+
+        final long[] times = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            final long start = System.nanoTime();
+            net.output(in);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[repetitions / 2];
+    }
+}
@@ -0,0 +1,94 @@
+package tech.dubs.dl4j.contrib.attention.benchmark;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+
+import java.util.Arrays;
+
+/**
+ * Compares the forward pass of TimestepAttentionLayer with additive and with linear attention for growing sequence
+ * lengths, as well as the time per step when decoding with rnnTimeStep after a long prefix.
+ *
+ * Usage: LinearAttentionBenchmark [nIn] [attentionHeads] [miniBatch] [repetitions]
+ *
+ * @author Paul Dubs
+ */
+public class LinearAttentionBenchmark {
+    public static void main(String[] args) {
+        final int nIn = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int attentionHeads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int mb = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        final int repetitions = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+
+        final MultiLayerNetwork additive = network(nIn, attentionHeads, false);
+        final MultiLayerNetwork linear = network(nIn, attentionHeads, true);
+
+        System.out.println(String.format("%6s %14s %14s %14s %14s", "T", "additive [ms]", "linear [ms]", "additive/step", "linear/step"));
+        for (int tsLength : new int[]{64, 256, 1024, 4096}) {
+            final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength});
+            final INDArray step = Nd4j.rand(new int[]{mb, nIn});
+
+            System.out.println(String.format("%6d %14.2f %14.2f %14.3f %14.3f", tsLength,
+                    time(additive, in, repetitions) / 1e6, time(linear, in, repetitions) / 1e6,
+                    timeStep(additive, in, step, repetitions) / 1e6, timeStep(linear, in, step, repetitions) / 1e6));
+        }
+    }
+
+    private static MultiLayerNetwork network(int nIn, int attentionHeads, boolean linearAttention) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(linearAttention).build())
+                .layer(new RnnOutputLayer.Builder().nOut(4).activation(Activation.IDENTITY)
+                        .lossFunction(LossFunctions.LossFunction.MSE).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static double time(MultiLayerNetwork net, INDArray in, int repetitions) {
+        // Warm up
+        net.output(in);
+
+        final long[] times = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            final long start = System.nanoTime();
+            net.output(in);
+            times[i] = System.nanoTime() - start;
+        }
+        return median(times);
+    }
+
+    private static double timeStep(MultiLayerNetwork net, INDArray prefix, INDArray step, int repetitions) {
+        net.rnnClearPreviousState();
+        net.rnnTimeStep(prefix);
+
+        final long[] times = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            final long start = System.nanoTime();
+            net.rnnTimeStep(step);
+            times[i] = System.nanoTime() - start;
+        }
+        net.rnnClearPreviousState();
+        return median(times);
+    }
+
+    private static double median(long[] times) {
+        final long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
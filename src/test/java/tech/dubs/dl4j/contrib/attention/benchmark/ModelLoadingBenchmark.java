@@ -0,0 +1,90 @@
+package tech.dubs.dl4j.contrib.attention.benchmark;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.util.MappedModelSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compares the time it takes to restore a large multi-head attention network with ModelSerializer against
+ * MappedModelSerializer, including the first inference call.
+ *
+ * Usage: ModelLoadingBenchmark [attentionHeads] [repetitions]
+ *
+ * @author Paul Dubs
+ */
+public class ModelLoadingBenchmark {
+    public static void main(String[] args) throws IOException {
+        final int attentionHeads = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        final int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        final int nIn = 32;
+        final int layerSize = 256;
+        final int tsLength = 16;
+
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new Adam())
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads / 4).build())
+                .layer(new LSTM.Builder().nOut(layerSize).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).build())
+                .layer(new DenseLayer.Builder().nOut(1024).build())
+                .layer(new OutputLayer.Builder().nOut(10).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        final INDArray in = Nd4j.rand(new int[]{1, nIn, tsLength});
+
+        final File zip = File.createTempFile("attention", ".zip");
+        final File mapped = File.createTempFile("attention", ".bin");
+        zip.deleteOnExit();
+        mapped.deleteOnExit();
+        ModelSerializer.writeModel(net, zip, false);
+        MappedModelSerializer.writeModel(net, mapped);
+
+        System.out.println("Parameters: " + net.numParams() + ", ModelSerializer file: " + zip.length() + " bytes, MappedModelSerializer file: " + mapped.length() + " bytes");
+
+        final long[] zipTimes = new long[repetitions];
+        final long[] mappedTimes = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            long start = System.nanoTime();
+            ModelSerializer.restoreMultiLayerNetwork(zip, false).output(in);
+            zipTimes[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            MappedModelSerializer.restoreMultiLayerNetwork(mapped).output(in);
+            mappedTimes[i] = System.nanoTime() - start;
+        }
+
+        System.out.println(String.format("ModelSerializer:       median %8.2f ms", median(zipTimes) / 1e6));
+        System.out.println(String.format("MappedModelSerializer: median %8.2f ms", median(mappedTimes) / 1e6));
+    }
+
+    private static double median(long[] times) {
+        final long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+}
@@ -0,0 +1,143 @@
+package tech.dubs.dl4j.contrib.attention.benchmark;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Sgd;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures inference and training throughput with 1 to maxWorkers workers, each with its own replica of the model and
+ * its own thread, as used by ParallelInference and ParallelWrapper. Training averages the parameters of all replicas
+ * after every round of one minibatch per worker, i.e. ParallelWrapper with averagingFrequency 1.
+ *
+ * Every worker also uses the native thread pool, run with OMP_NUM_THREADS=1 to see the scaling of the workers alone.
+ *
+ * Usage: ParallelScalingBenchmark [nIn] [attentionHeads] [miniBatch] [tsLength] [rounds] [maxWorkers]
+ *
+ * @author Paul Dubs
+ */
+public class ParallelScalingBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int nIn = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        final int attentionHeads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int mb = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final int tsLength = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        final int rounds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+        final int maxWorkers = args.length > 5 ? Integer.parseInt(args[5]) : Runtime.getRuntime().availableProcessors();
+
+        final MultiLayerNetwork net = network(nIn, attentionHeads);
+        final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength}).subi(0.5);
+        final INDArray labels = Nd4j.zeros(mb, 10);
+        for (int i = 0; i < mb; i++) {
+            labels.putScalar(i, i % 10, 1.0);
+        }
+
+        System.out.println(String.format("%8s %16s %8s %16s %8s", "workers", "infer [ex/s]", "speedup", "train [ex/s]", "speedup"));
+        double inferBase = 0;
+        double trainBase = 0;
+        for (int workers = 1; workers <= maxWorkers; workers++) {
+            final List<MultiLayerNetwork> replicas = new ArrayList<>();
+            for (int w = 0; w < workers; w++) {
+                replicas.add(replicate(net));
+            }
+
+            final ExecutorService executor = Executors.newFixedThreadPool(workers);
+            try {
+                // Warm up
+                run(executor, replicas, r -> r.output(in));
+                run(executor, replicas, r -> r.fit(in, labels));
+
+                long start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    run(executor, replicas, r -> r.output(in));
+                }
+                final double infer = (double) rounds * workers * mb / ((System.nanoTime() - start) / 1e9);
+
+                start = System.nanoTime();
+                for (int i = 0; i < rounds; i++) {
+                    run(executor, replicas, r -> r.fit(in, labels));
+                    average(replicas);
+                }
+                final double train = (double) rounds * workers * mb / ((System.nanoTime() - start) / 1e9);
+
+                if (workers == 1) {
+                    inferBase = infer;
+                    trainBase = train;
+                }
+                System.out.println(String.format("%8d %16.1f %8.2f %16.1f %8.2f", workers, infer, infer / inferBase, train, train / trainBase));
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    private interface Work {
+        void apply(MultiLayerNetwork replica);
+    }
+
+    private static void run(ExecutorService executor, List<MultiLayerNetwork> replicas, Work work) throws Exception {
+        final List<Future<?>> results = new ArrayList<>();
+        for (MultiLayerNetwork replica : replicas) {
+            results.add(executor.submit(() -> work.apply(replica)));
+        }
+        for (Future<?> result : results) {
+            result.get();
+        }
+    }
+
+    private static void average(List<MultiLayerNetwork> replicas) {
+        final INDArray averaged = replicas.get(0).params().dup();
+        for (int i = 1; i < replicas.size(); i++) {
+            averaged.addi(replicas.get(i).params());
+        }
+        averaged.divi(replicas.size());
+        for (MultiLayerNetwork replica : replicas) {
+            replica.setParams(averaged);
+        }
+    }
+
+    private static MultiLayerNetwork replicate(MultiLayerNetwork net) {
+        final MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson(net.getLayerWiseConfigurations().toJson());
+        conf.setTrainingWorkspaceMode(WorkspaceMode.ENABLED);
+        final MultiLayerNetwork replica = new MultiLayerNetwork(conf);
+        replica.init();
+        replica.setParams(net.params().dup());
+        return replica;
+    }
+
+    private static MultiLayerNetwork network(int nIn, int attentionHeads) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new Sgd(0.01))
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new LSTM.Builder().nOut(nIn).build())
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).build())
+                .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).build())
+                .layer(new OutputLayer.Builder().nOut(10).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+}
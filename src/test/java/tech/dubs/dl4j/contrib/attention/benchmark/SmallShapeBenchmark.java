@@ -0,0 +1,96 @@
+package tech.dubs.dl4j.contrib.attention.benchmark;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Sgd;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+
+import java.util.Arrays;
+
+/**
+ * Compares the native ops of a timestep attention layer against the pure Java kernel for small shapes (see
+ * SmallAttentionKernel) for several sequence lengths. Reports per sequence length the size the threshold is compared
+ * to (attentionHeads * timesteps * width) and the time of inference and of a training step with both.
+ *
+ * Usage: SmallShapeBenchmark [nIn] [attentionHeads] [miniBatch] [repetitions]
+ *
+ * @author Paul Dubs
+ */
+public class SmallShapeBenchmark {
+    public static void main(String[] args) {
+        final int nIn = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int attentionHeads = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        final int mb = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        final int repetitions = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+        System.out.println(String.format("%6s %8s %14s %14s %8s %14s %14s %8s", "T", "size", "native [ms]", "kernel [ms]", "speedup",
+                "native fit", "kernel fit", "speedup"));
+        for (int tsLength : new int[]{4, 8, 16, 32, 64, 128}) {
+            final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength}).subi(0.5);
+            final INDArray labels = Nd4j.rand(new int[]{mb, 10, tsLength});
+            final MultiLayerNetwork nativeOps = network(nIn, attentionHeads, 0);
+            final MultiLayerNetwork kernel = network(nIn, attentionHeads, Long.MAX_VALUE);
+            kernel.setParams(nativeOps.params());
+
+            final double nativeTime = time(nativeOps, in, null, repetitions);
+            final double kernelTime = time(kernel, in, null, repetitions);
+            final double nativeFit = time(nativeOps, in, labels, repetitions);
+            final double kernelFit = time(kernel, in, labels, repetitions);
+            System.out.println(String.format("%6d %8d %14.3f %14.3f %8.2f %14.3f %14.3f %8.2f", tsLength, (long) attentionHeads * tsLength * nIn,
+                    nativeTime / 1e6, kernelTime / 1e6, nativeTime / kernelTime, nativeFit / 1e6, kernelFit / 1e6, nativeFit / kernelFit));
+        }
+    }
+
+    private static MultiLayerNetwork network(int nIn, int attentionHeads, long smallShapeThreshold) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .weightInit(WeightInit.XAVIER)
+                .updater(new Sgd(0.01))
+                .seed(12345)
+                .list()
+                .layer(new TimestepAttentionLayer.Builder().nOut(attentionHeads).smallShapeThreshold(smallShapeThreshold).build())
+                .layer(new RnnOutputLayer.Builder().nOut(10).activation(Activation.IDENTITY)
+                        .lossFunction(LossFunctions.LossFunction.MSE).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    /*
+     * Median time of inference, or of a training step if labels are given
+     */
+    private static double time(MultiLayerNetwork net, INDArray in, INDArray labels, int repetitions) {
+        // Warm up
+        for (int i = 0; i < 5; i++) {
+            run(net, in, labels);
+        }
+
+        final long[] times = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            final long start = System.nanoTime();
+            run(net, in, labels);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[repetitions / 2];
+    }
+
+    private static void run(MultiLayerNetwork net, INDArray in, INDArray labels) {
+        if (labels == null) {
+            net.output(in);
+        } else {
+            net.fit(in, labels);
+        }
+    }
+}
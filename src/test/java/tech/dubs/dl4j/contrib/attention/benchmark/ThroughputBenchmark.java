@@ -0,0 +1,295 @@
+package tech.dubs.dl4j.contrib.attention.benchmark;
+
+import org.bytedeco.javacpp.Pointer;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.WorkspaceMode;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.GlobalPoolingLayer;
+import org.deeplearning4j.nn.conf.layers.LSTM;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.PoolingType;
+import org.deeplearning4j.nn.conf.layers.recurrent.LastTimeStep;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.Adam;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * End to end throughput of sequence classification networks with each attention layer, in the topologies of
+ * GradientChecks, against an LSTM + GlobalPooling baseline:
+ *  - lstm:      LSTM -> GlobalPooling -> Output
+ *  - self:      LSTM -> SelfAttentionLayer -> Output
+ *  - timestep:  LSTM -> TimestepAttentionLayer -> GlobalPooling -> Output
+ *  - linear:    LSTM -> TimestepAttentionLayer (linear attention) -> GlobalPooling -> Output
+ *  - recurrent: LSTM -> LastTimeStep(RecurrentAttentionLayer) -> Output
+ *
+ * Sequence lengths are drawn from a distribution, every minibatch is padded to its longest sequence and masked:
+ *  - fixed:T            every sequence has length T
+ *  - uniform:MIN:MAX    uniform in [MIN, MAX]
+ *  - lognormal:MEDIAN:SIGMA  long tailed, as typical for text, capped at 8 * MEDIAN
+ *
+ * For every network and thread count, each thread runs its own replica of the network on its own minibatches, first
+ * inference and then training (fit without averaging the replicas, see ParallelScalingBenchmark for that). Reported
+ * are examples/sec over all threads, p50 and p99 latency of a single minibatch, and peak heap and off-heap memory,
+ * sampled while the phase runs.
+ *
+ * Usage: ThroughputBenchmark [lengths] [threads] [miniBatch] [batches] [networks] [layerSize] [attentionHeads]
+ * e.g.   ThroughputBenchmark lognormal:64:0.5 1,2,4 16 50 lstm,self,recurrent
+ *
+ * @author Paul Dubs
+ */
+public class ThroughputBenchmark {
+    private static final int N_IN = 8;
+    private static final int N_OUT = 10;
+    private static final int WARMUP = 3;
+    private static final long SAMPLE_MILLIS = 5;
+
+    public static void main(String[] args) throws Exception {
+        final String lengths = args.length > 0 ? args[0] : "lognormal:64:0.5";
+        final int[] threads = args.length > 1 ? parseInts(args[1]) : new int[]{1, 2, 4};
+        final int mb = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final int batches = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+        final String[] networks = args.length > 4 ? args[4].split(",") : new String[]{"lstm", "self", "timestep", "linear", "recurrent"};
+        final int layerSize = args.length > 5 ? Integer.parseInt(args[5]) : 32;
+        final int attentionHeads = args.length > 6 ? Integer.parseInt(args[6]) : 4;
+
+        if (mb == layerSize) {
+            // The attention layers can't tell [examples, features, timesteps] from [features, timesteps, examples] otherwise
+            throw new IllegalStateException("miniBatch must differ from layerSize, but got " + mb);
+        }
+
+        final int maxThreads = Arrays.stream(threads).max().orElse(1);
+        final List<DataSet> data = data(lengths, mb, maxThreads * (batches + WARMUP), new Random(12345));
+        System.out.println("lengths = " + lengths + ", miniBatch = " + mb + ", batches per thread = " + batches
+                + ", mean padded length = " + String.format("%.1f", data.stream().mapToLong(d -> d.getFeatures().size(2)).average().orElse(0)));
+
+        System.out.println(String.format("%-10s %7s %-6s %12s %10s %10s %12s %14s",
+                "network", "threads", "phase", "ex/s", "p50 [ms]", "p99 [ms]", "heap [MB]", "off-heap [MB]"));
+        for (String name : networks) {
+            final MultiLayerNetwork net = network(name, layerSize, attentionHeads);
+            for (int t : threads) {
+                final List<MultiLayerNetwork> replicas = new ArrayList<>();
+                for (int i = 0; i < t; i++) {
+                    replicas.add(replicate(net));
+                }
+
+                final ExecutorService executor = Executors.newFixedThreadPool(t);
+                try {
+                    print(name, t, "infer", run(executor, replicas, data, batches, mb,
+                            (r, d) -> r.output(d.getFeatures(), false, d.getFeaturesMaskArray(), null)));
+                    print(name, t, "train", run(executor, replicas, data, batches, mb, MultiLayerNetwork::fit));
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+        }
+    }
+
+    private interface Work {
+        void apply(MultiLayerNetwork replica, DataSet batch);
+    }
+
+    private static class Result {
+        private double examplesPerSecond;
+        private long[] latencies;
+        private long peakHeap;
+        private long peakOffHeap;
+    }
+
+    private static Result run(ExecutorService executor, List<MultiLayerNetwork> replicas, List<DataSet> data, int batches, int mb, Work work) throws Exception {
+        final int threads = replicas.size();
+        final long[][] latencies = new long[threads][batches];
+
+        // Warm up every replica
+        final List<Future<?>> warmup = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            warmup.add(executor.submit(() -> {
+                for (int i = 0; i < WARMUP; i++) {
+                    work.apply(replicas.get(thread), data.get(thread * (batches + WARMUP) + i));
+                }
+            }));
+        }
+        for (Future<?> f : warmup) {
+            f.get();
+        }
+
+        System.gc();
+        final MemorySampler sampler = new MemorySampler();
+        sampler.start();
+
+        final long start = System.nanoTime();
+        final List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            results.add(executor.submit(() -> {
+                for (int i = 0; i < batches; i++) {
+                    final long batchStart = System.nanoTime();
+                    work.apply(replicas.get(thread), data.get(thread * (batches + WARMUP) + WARMUP + i));
+                    latencies[thread][i] = System.nanoTime() - batchStart;
+                }
+            }));
+        }
+        for (Future<?> f : results) {
+            f.get();
+        }
+        final long elapsed = System.nanoTime() - start;
+        sampler.interrupt();
+        sampler.join();
+
+        final Result result = new Result();
+        result.examplesPerSecond = (double) threads * batches * mb / (elapsed / 1e9);
+        result.latencies = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        result.peakHeap = sampler.peakHeap;
+        result.peakOffHeap = sampler.peakOffHeap;
+        return result;
+    }
+
+    private static void print(String name, int threads, String phase, Result result) {
+        System.out.println(String.format("%-10s %7d %-6s %12.1f %10.2f %10.2f %12.1f %14.1f", name, threads, phase,
+                result.examplesPerSecond, percentile(result.latencies, 0.50) / 1e6, percentile(result.latencies, 0.99) / 1e6,
+                result.peakHeap / 1048576.0, result.peakOffHeap / 1048576.0));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(p * sorted.length) - 1)];
+    }
+
+    /*
+     * Polls the used heap and the off-heap memory allocated through JavaCPP, which holds all ND4J buffers
+     */
+    private static class MemorySampler extends Thread {
+        private volatile long peakHeap;
+        private volatile long peakOffHeap;
+
+        private MemorySampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final Runtime runtime = Runtime.getRuntime();
+            while (!isInterrupted()) {
+                peakHeap = Math.max(peakHeap, runtime.totalMemory() - runtime.freeMemory());
+                peakOffHeap = Math.max(peakOffHeap, Pointer.totalBytes());
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static List<DataSet> data(String lengths, int mb, int count, Random r) {
+        final String[] spec = lengths.split(":");
+        final List<DataSet> data = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final int[] exampleLengths = new int[mb];
+            for (int j = 0; j < mb; j++) {
+                exampleLengths[j] = sampleLength(spec, r);
+            }
+            final int tsLength = Arrays.stream(exampleLengths).max().getAsInt();
+
+            final INDArray features = Nd4j.rand(new int[]{mb, N_IN, tsLength}).subi(0.5);
+            final INDArray mask = Nd4j.zeros(mb, tsLength);
+            final INDArray labels = Nd4j.zeros(mb, N_OUT);
+            for (int j = 0; j < mb; j++) {
+                for (int t = 0; t < exampleLengths[j]; t++) {
+                    mask.putScalar(j, t, 1.0);
+                }
+                labels.putScalar(j, r.nextInt(N_OUT), 1.0);
+            }
+            data.add(new DataSet(features, labels, mask, null));
+        }
+        Collections.shuffle(data, r);
+        return data;
+    }
+
+    private static int sampleLength(String[] spec, Random r) {
+        switch (spec[0]) {
+            case "fixed":
+                return Integer.parseInt(spec[1]);
+            case "uniform":
+                final int min = Integer.parseInt(spec[1]);
+                final int max = Integer.parseInt(spec[2]);
+                return min + r.nextInt(max - min + 1);
+            case "lognormal":
+                final double median = Double.parseDouble(spec[1]);
+                final double sigma = Double.parseDouble(spec[2]);
+                return (int) Math.max(1, Math.min(8 * median, Math.round(median * Math.exp(sigma * r.nextGaussian()))));
+            default:
+                throw new IllegalStateException("Unknown length distribution " + String.join(":", spec)
+                        + ", use fixed:T, uniform:MIN:MAX or lognormal:MEDIAN:SIGMA");
+        }
+    }
+
+    private static int[] parseInts(String list) {
+        return Arrays.stream(list.split(",")).mapToInt(Integer::parseInt).toArray();
+    }
+
+    private static MultiLayerNetwork replicate(MultiLayerNetwork net) {
+        final MultiLayerConfiguration conf = MultiLayerConfiguration.fromJson(net.getLayerWiseConfigurations().toJson());
+        conf.setTrainingWorkspaceMode(WorkspaceMode.ENABLED);
+        final MultiLayerNetwork replica = new MultiLayerNetwork(conf);
+        replica.init();
+        replica.setParams(net.params().dup());
+        return replica;
+    }
+
+    private static MultiLayerNetwork network(String name, int layerSize, int attentionHeads) {
+        final List<Layer> layers = new ArrayList<>();
+        layers.add(new LSTM.Builder().nOut(layerSize).build());
+        switch (name) {
+            case "lstm":
+                layers.add(new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build());
+                break;
+            case "self":
+                layers.add(new SelfAttentionLayer.Builder().nOut(attentionHeads).build());
+                break;
+            case "timestep":
+            case "linear":
+                layers.add(new TimestepAttentionLayer.Builder().nOut(attentionHeads).linearAttention(name.equals("linear")).build());
+                layers.add(new GlobalPoolingLayer.Builder().poolingType(PoolingType.AVG).build());
+                break;
+            case "recurrent":
+                layers.add(new LastTimeStep(new RecurrentAttentionLayer.Builder().nOut(layerSize).build()));
+                break;
+            default:
+                throw new IllegalStateException("Unknown network " + name + ", use lstm, self, timestep, linear or recurrent");
+        }
+        layers.add(new OutputLayer.Builder().nOut(N_OUT).activation(Activation.SOFTMAX)
+                .lossFunction(LossFunctions.LossFunction.MCXENT).build());
+
+        final NeuralNetConfiguration.ListBuilder builder = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new Adam(0.001))
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list();
+        for (Layer layer : layers) {
+            builder.layer(layer);
+        }
+        final MultiLayerNetwork net = new MultiLayerNetwork(builder.setInputType(InputType.recurrent(N_IN)).build());
+        net.init();
+        return net;
+    }
+}
@@ -0,0 +1,91 @@
+package tech.dubs.dl4j.contrib.attention.benchmark;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.nd4j.linalg.ops.transforms.Transforms;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+
+import java.util.Arrays;
+
+/**
+ * Compares dense self attention against top-k attention for several sequence lengths and values of k. Reports the
+ * inference speedup and the error of the top-k attention output relative to the dense one, on the same parameters.
+ *
+ * Freshly initialized weights attend almost uniformly, which is the worst case for top-k. The key weights are scaled by
+ * sharpness to get the peaked attention of a trained model.
+ *
+ * Top-k is not expected to be faster: all scores are computed either way, and the selection adds a pass over them. A speedup
+ * below 1 is the price of the sparsity, the error shows how much accuracy a given k keeps.
+ *
+ * Usage: TopKBenchmark [nIn] [attentionHeads] [miniBatch] [sharpness] [repetitions]
+ *
+ * @author Paul Dubs
+ */
+public class TopKBenchmark {
+    public static void main(String[] args) {
+        final int nIn = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        final int attentionHeads = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int mb = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final double sharpness = args.length > 3 ? Double.parseDouble(args[3]) : 10.0;
+        final int repetitions = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        System.out.println(String.format("%6s %6s %12s %12s %8s %12s", "T", "k", "dense [ms]", "top-k [ms]", "speedup", "rel. error"));
+        for (int tsLength : new int[]{32, 128, 512}) {
+            final INDArray in = Nd4j.rand(new int[]{mb, nIn, tsLength}).subi(0.5);
+            final MultiLayerNetwork dense = network(nIn, attentionHeads, 0);
+            dense.getLayer(0).getParam("W").muli(sharpness);
+            final INDArray expected = dense.feedForwardToLayer(0, in).get(1);
+            final double denseTime = time(dense, in, repetitions);
+
+            for (int k : new int[]{1, 4, 16, 64}) {
+                if (k >= tsLength) continue;
+
+                final MultiLayerNetwork sparse = network(nIn, attentionHeads, k);
+                sparse.setParams(dense.params());
+                final INDArray actual = sparse.feedForwardToLayer(0, in).get(1);
+                final double sparseTime = time(sparse, in, repetitions);
+                final double error = Transforms.abs(actual.sub(expected)).sumNumber().doubleValue() / Transforms.abs(expected).sumNumber().doubleValue();
+
+                System.out.println(String.format("%6d %6d %12.2f %12.2f %8.2f %12.4e", tsLength, k, denseTime / 1e6, sparseTime / 1e6, denseTime / sparseTime, error));
+            }
+        }
+    }
+
+    private static MultiLayerNetwork network(int nIn, int attentionHeads, int topK) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.IDENTITY)
+                .weightInit(WeightInit.XAVIER)
+                .list()
+                .layer(new SelfAttentionLayer.Builder().nOut(attentionHeads).topK(topK).build())
+                .layer(new OutputLayer.Builder().nOut(10).activation(Activation.IDENTITY)
+                        .lossFunction(LossFunctions.LossFunction.MSE).build())
+                .setInputType(InputType.recurrent(nIn))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static double time(MultiLayerNetwork net, INDArray in, int repetitions) {
+        // Warm up
+        net.output(in);
+
+        final long[] times = new long[repetitions];
+        for (int i = 0; i < repetitions; i++) {
+            final long start = System.nanoTime();
+            net.output(in);
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        return times[repetitions / 2];
+    }
+}
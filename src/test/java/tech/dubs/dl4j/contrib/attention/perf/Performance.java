@@ -0,0 +1,268 @@
+package tech.dubs.dl4j.contrib.attention.perf;
+
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.Layer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.buffer.DataBuffer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.learning.config.NoOp;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+import tech.dubs.dl4j.contrib.attention.conf.CrossAttentionVertex;
+import tech.dubs.dl4j.contrib.attention.conf.RecurrentAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.SelfAttentionLayer;
+import tech.dubs.dl4j.contrib.attention.conf.TimestepAttentionLayer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.TreeSet;
+
+/**
+ * Performance regression suite, only run by the perf profile: mvn -Pperf test
+ *
+ * Every layer runs a fixed shape forward workload (inference) and backward workload (forward and backward pass,
+ * without updating the parameters). Heap bytes allocated per op don't depend on the machine and are the hard gate: a
+ * workload fails if they grow by more than perf.allocationTolerance (default 0.1) over the checked in baseline.
+ *
+ * Absolute throughput (ops/sec) differs between machines and runs, so it is reported relative to a calibration
+ * workload, a fixed loop of Nd4j.gemm calls measured in the same JVM. A workload also fails if this relative
+ * throughput drops by more than perf.tolerance (default 0.3) below the baseline.
+ *
+ * After an intended performance change, record a new baseline with -Dperf.updateBaseline=true and check it in.
+ *
+ * @author Paul Dubs
+ */
+public class Performance {
+    private static final int MB = 8;
+    private static final int N_IN = 16;
+    private static final int TS_LENGTH = 32;
+    private static final int HEADS = 4;
+    private static final int N_OUT = 10;
+
+    private static final int WARMUP = 10;
+    private static final long MIN_REPETITION_NANOS = 300_000_000L;
+    private static final int REPETITIONS = 5;
+
+    private static final File BASELINE = new File(System.getProperty("perf.baseline", "src/test/resources/perf/baseline.properties"));
+    private static final boolean UPDATE_BASELINE = Boolean.getBoolean("perf.updateBaseline");
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("perf.tolerance", "0.3"));
+    private static final double ALLOCATION_TOLERANCE = Double.parseDouble(System.getProperty("perf.allocationTolerance", "0.1"));
+
+    private static final int CALIBRATION_SIZE = 64;
+    private static final int CALIBRATION_GEMMS = 16;
+
+    static {
+        Nd4j.setDataType(DataBuffer.Type.DOUBLE);
+    }
+
+    @Test
+    public void testSelfAttentionLayer() throws IOException {
+        final MultiLayerNetwork net = network(new SelfAttentionLayer.Builder().nOut(HEADS).build(), false);
+        check("SelfAttentionLayer", net, Nd4j.rand(MB, N_OUT));
+    }
+
+    @Test
+    public void testTimestepAttentionLayer() throws IOException {
+        final MultiLayerNetwork net = network(new TimestepAttentionLayer.Builder().nOut(HEADS).build(), true);
+        check("TimestepAttentionLayer", net, Nd4j.rand(new int[]{MB, N_OUT, TS_LENGTH}));
+    }
+
+    @Test
+    public void testRecurrentAttentionLayer() throws IOException {
+        final MultiLayerNetwork net = network(new RecurrentAttentionLayer.Builder().nOut(N_IN).build(), true);
+        check("RecurrentAttentionLayer", net, Nd4j.rand(new int[]{MB, N_OUT, TS_LENGTH}));
+    }
+
+    @Test
+    public void testCrossAttentionVertex() throws IOException {
+        ComputationGraphConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .graphBuilder()
+                .addInputs("decoder", "encoder")
+                .setInputTypes(InputType.recurrent(N_IN), InputType.recurrent(N_IN))
+                .addVertex("attention", new CrossAttentionVertex.Builder().nOut(HEADS).build(), "decoder", "encoder")
+                .addLayer("out", new RnnOutputLayer.Builder().nOut(N_OUT).activation(Activation.SOFTMAX)
+                        .lossFunction(LossFunctions.LossFunction.MCXENT).build(), "attention")
+                .setOutputs("out")
+                .build();
+
+        final ComputationGraph net = new ComputationGraph(conf);
+        net.init();
+
+        final INDArray decoder = Nd4j.rand(new int[]{MB, N_IN, TS_LENGTH});
+        final INDArray encoder = Nd4j.rand(new int[]{MB, N_IN, TS_LENGTH});
+        net.setInputs(decoder, encoder);
+        net.setLabels(Nd4j.rand(new int[]{MB, N_OUT, TS_LENGTH}));
+
+        final List<String> regressions = new ArrayList<>();
+        compare("CrossAttentionVertex.forward", () -> net.output(decoder, encoder), regressions);
+        compare("CrossAttentionVertex.backward", net::computeGradientAndScore, regressions);
+        Assert.assertTrue(String.join("\n", regressions), regressions.isEmpty());
+    }
+
+    private static MultiLayerNetwork network(Layer attention, boolean perTimestep) {
+        MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+                .activation(Activation.TANH)
+                .updater(new NoOp())
+                .weightInit(WeightInit.XAVIER)
+                .seed(12345)
+                .list()
+                .layer(attention)
+                .layer(perTimestep
+                        ? new RnnOutputLayer.Builder().nOut(N_OUT).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build()
+                        : new OutputLayer.Builder().nOut(N_OUT).activation(Activation.SOFTMAX).lossFunction(LossFunctions.LossFunction.MCXENT).build())
+                .setInputType(InputType.recurrent(N_IN))
+                .build();
+
+        MultiLayerNetwork net = new MultiLayerNetwork(conf);
+        net.init();
+        return net;
+    }
+
+    private static void check(String name, MultiLayerNetwork net, INDArray labels) throws IOException {
+        final INDArray in = Nd4j.rand(new int[]{MB, N_IN, TS_LENGTH});
+        net.setInput(in);
+        net.setLabels(labels);
+
+        final List<String> regressions = new ArrayList<>();
+        compare(name + ".forward", () -> net.output(in), regressions);
+        compare(name + ".backward", net::computeGradientAndScore, regressions);
+        Assert.assertTrue(String.join("\n", regressions), regressions.isEmpty());
+    }
+
+    /*
+     * Every repetition runs the calibration and then the op, each for at least MIN_REPETITION_NANOS, so both see about
+     * the same state of the machine. Relative throughput is the median ratio of the repetitions, absolute throughput
+     * and allocated bytes are the best of them: the fastest run and the fewest allocated bytes are the least disturbed
+     * by the rest of the machine. Returns relative throughput, ops/sec and bytes/op.
+     */
+    private static double[] measure(Runnable op) {
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long thread = Thread.currentThread().getId();
+        final Runnable calibration = calibration();
+
+        for (int i = 0; i < WARMUP; i++) {
+            calibration.run();
+            op.run();
+        }
+
+        final double[] ratios = new double[REPETITIONS];
+        double opsPerSec = 0;
+        double bytesPerOp = Double.MAX_VALUE;
+        for (int r = 0; r < REPETITIONS; r++) {
+            final double calibrationOpsPerSec = run(calibration)[0];
+            final long bytes = threads.getThreadAllocatedBytes(thread);
+            final double[] run = run(op);
+            ratios[r] = run[0] / calibrationOpsPerSec;
+            opsPerSec = Math.max(opsPerSec, run[0]);
+            bytesPerOp = Math.min(bytesPerOp, (threads.getThreadAllocatedBytes(thread) - bytes) / run[1]);
+        }
+        Arrays.sort(ratios);
+        return new double[]{ratios[REPETITIONS / 2], opsPerSec, bytesPerOp};
+    }
+
+    /*
+     * Runs the op for at least MIN_REPETITION_NANOS, returns ops/sec and the number of iterations
+     */
+    private static double[] run(Runnable op) {
+        final long start = System.nanoTime();
+        long time;
+        int iterations = 0;
+        do {
+            op.run();
+            iterations++;
+            time = System.nanoTime() - start;
+        } while (time < MIN_REPETITION_NANOS);
+        return new double[]{iterations / (time / 1e9), iterations};
+    }
+
+    /*
+     * Fixed calibration workload: CALIBRATION_GEMMS products of CALIBRATION_SIZE square matrices, without allocations
+     */
+    private static Runnable calibration() {
+        final INDArray a = Nd4j.rand(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        final INDArray b = Nd4j.rand(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        final INDArray c = Nd4j.create(CALIBRATION_SIZE, CALIBRATION_SIZE);
+        return () -> {
+            for (int i = 0; i < CALIBRATION_GEMMS; i++) {
+                Nd4j.gemm(a, b, c, false, false, 1.0, 0.0);
+            }
+        };
+    }
+
+    private static void compare(String workload, Runnable op, List<String> regressions) throws IOException {
+        double[] measured = measure(op);
+        final Properties baseline = new Properties();
+        if (BASELINE.exists()) {
+            try (InputStream is = new FileInputStream(BASELINE)) {
+                baseline.load(is);
+            }
+        }
+
+        final String throughputKey = workload + ".relativeThroughput";
+        final String bytesKey = workload + ".bytesPerOp";
+        if (UPDATE_BASELINE) {
+            baseline.setProperty(throughputKey, String.format("%.6f", measured[0]));
+            baseline.setProperty(bytesKey, String.format("%.0f", measured[2]));
+            // Sorted and without a timestamp, so the checked in file only changes where the numbers do
+            BASELINE.getParentFile().mkdirs();
+            try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(BASELINE), StandardCharsets.ISO_8859_1))) {
+                writer.println("# Performance baseline, see tech.dubs.dl4j.contrib.attention.perf.Performance");
+                for (String key : new TreeSet<>(baseline.stringPropertyNames())) {
+                    writer.println(key + "=" + baseline.getProperty(key));
+                }
+            }
+            System.out.println(String.format("%-40s %10.6f relative throughput (%.1f ops/sec) %12.0f bytes/op (new baseline)",
+                    workload, measured[0], measured[1], measured[2]));
+            return;
+        }
+
+        if (!baseline.containsKey(throughputKey) || !baseline.containsKey(bytesKey)) {
+            regressions.add(workload + ": no baseline in " + BASELINE + ", record one with -Dperf.updateBaseline=true");
+            return;
+        }
+
+        final double relative = Double.parseDouble(baseline.getProperty(throughputKey));
+        final double bytes = Double.parseDouble(baseline.getProperty(bytesKey));
+        if (measured[0] < relative * (1 - TOLERANCE)) {
+            // Confirm a throughput regression once, so a single disturbed measurement does not fail the suite
+            final double[] again = measure(op);
+            measured = new double[]{Math.max(measured[0], again[0]), Math.max(measured[1], again[1]), Math.min(measured[2], again[2])};
+        }
+        System.out.println(String.format("%-40s %10.6f relative throughput (baseline %10.6f, %.1f ops/sec) %12.0f bytes/op (baseline %12.0f)",
+                workload, measured[0], relative, measured[1], measured[2], bytes));
+
+        if (measured[0] < relative * (1 - TOLERANCE)) {
+            regressions.add(String.format("%s: relative throughput %.6f is more than %.0f%% below the baseline of %.6f",
+                    workload, measured[0], 100 * TOLERANCE, relative));
+        }
+        if (measured[2] > bytes * (1 + ALLOCATION_TOLERANCE)) {
+            regressions.add(String.format("%s: %.0f bytes/op is more than %.0f%% above the baseline of %.0f bytes/op",
+                    workload, measured[2], 100 * ALLOCATION_TOLERANCE, bytes));
+        }
+    }
+}